@@ -0,0 +1,61 @@
+package wb.conn;
+
+import wb.conn.wifi.UdpMessenger.Result;
+import wb.conn.wifi.UdpMessenger.SendResult;
+
+// 把Transport使用者的listeners包一层, 收发消息时顺便更新TransportStats.
+// 各个Transport的实现共用.
+public class CountingListeners implements MessageListener, ErrorListener {
+    private final TransportStats mStats;
+    private final MessageListener mMessageListener;
+    private final ErrorListener mErrorListener;
+
+    public CountingListeners(final TransportStats stats, final MessageListener messageListener,
+                    final ErrorListener errorListener) {
+        mStats = stats;
+        mMessageListener = messageListener;
+        mErrorListener = errorListener;
+    }
+
+    @Override
+    public void newMessageComes(final MessageInfo msgInfo) {
+        mStats.countReceived();
+        if (mMessageListener != null) {
+            mMessageListener.newMessageComes(msgInfo);
+        }
+    }
+
+    @Override
+    public void messageSent(final MessageInfo msgInfo, final Result... results) {
+        if (results == null || results.length <= 0) {
+            mStats.countSent();
+        } else {
+            for (Result result : results) {
+                if (result.result == SendResult.Succeeded) {
+                    mStats.countSent();
+                } else {
+                    mStats.countFailed();
+                }
+            }
+        }
+        if (mMessageListener != null) {
+            mMessageListener.messageSent(msgInfo, results);
+        }
+    }
+
+    @Override
+    public void onException(final Exception e, final String log) {
+        mStats.countFailed();
+        if (mErrorListener != null) {
+            mErrorListener.onException(e, log);
+        }
+    }
+
+    @Override
+    public void onError(final String errorInfo) {
+        mStats.countFailed();
+        if (mErrorListener != null) {
+            mErrorListener.onError(errorInfo);
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package wb.conn;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import wb.conn.MessageInfo.MessageType;
+
+// 进程内的Transport: 同一个Hub上的endpoint之间互相收发消息, 不经过网络.
+// 现在用于LoadGenerator的loopback模式: host和模拟的client在同一个Hub上, 不经过socket.
+// 1. 消息和网络上一样编码再解码, 接收方拿到的是独立的MessageInfo, 编解码的问题也能暴露出来;
+// 2. 每个endpoint有自己的接收线程, 消息按发送顺序交给MessageListener;
+// 3. endpoint加入/离开Hub时, 其他endpoint收到onConnected()/onDisconnected().
+public class LoopbackTransport implements Transport {
+    private static final String FORMAT_NAME = "Loopback:%s";
+    private static final String FORMAT_THREAD_NAME = "loopback-%s";
+
+    // 接收线程收到它就退出.
+    private static final MessageInfo END_OF_QUEUE = new MessageInfo(new byte[0],
+                    MessageType.Unknown, true, null);
+
+    public static class Hub {
+        private final ConcurrentHashMap<String, LoopbackTransport> mEndpoints =
+                        new ConcurrentHashMap<String, LoopbackTransport>();
+
+        private void attach(final LoopbackTransport endpoint) {
+            if (mEndpoints.putIfAbsent(endpoint.mAddress, endpoint) != null) {
+                throw new RuntimeException("Address already in use: " + endpoint.mAddress);
+            }
+            for (LoopbackTransport other : mEndpoints.values()) {
+                if (other == endpoint) continue;
+                other.enqueueEvent(MessageType.EventConnected, endpoint.mAddress);
+                endpoint.enqueueEvent(MessageType.EventConnected, other.mAddress);
+            }
+        }
+
+        private void detach(final LoopbackTransport endpoint) {
+            if (!mEndpoints.remove(endpoint.mAddress, endpoint)) return;
+            for (LoopbackTransport other : mEndpoints.values()) {
+                other.enqueueEvent(MessageType.EventDisconnect, endpoint.mAddress);
+            }
+        }
+
+        private LoopbackTransport find(final String address) {
+            return address == null ? null : mEndpoints.get(address);
+        }
+    }
+
+    private final Hub mHub;
+    private final String mAddress;
+    private final TransportStats mStats = new TransportStats();
+
+    private final LinkedBlockingQueue<MessageInfo> mInbox = new LinkedBlockingQueue<MessageInfo>();
+
+    private CountingListeners mListeners;
+    private ConnectionListener mConnectionListener;
+    private Thread mDeliveryThread;
+
+    // address: 这个endpoint在Hub中的地址, 其他endpoint发消息时用作MessageInfo.ip.
+    public LoopbackTransport(final Hub hub, final String address) {
+        mHub = hub;
+        mAddress = address;
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    @Override
+    public String getName() {
+        return String.format(FORMAT_NAME, mAddress);
+    }
+
+    @Override
+    public synchronized void start(final MessageListener messageListener,
+                    final ErrorListener errorListener,
+                    final ConnectionListener connectionListener) {
+        if (mDeliveryThread != null) {
+            throw new RuntimeException("Loopback transport already started: " + mAddress);
+        }
+        mListeners = new CountingListeners(mStats, messageListener, errorListener);
+        mConnectionListener = connectionListener;
+        mInbox.clear();
+        final CountingListeners listeners = mListeners;
+        mDeliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                deliver(listeners, connectionListener);
+            }
+        }, String.format(FORMAT_THREAD_NAME, mAddress));
+        mDeliveryThread.start();
+        mHub.attach(this);
+    }
+
+    @Override
+    public void stop() {
+        final Thread deliveryThread;
+        synchronized (this) {
+            if (mDeliveryThread == null) return;
+            deliveryThread = mDeliveryThread;
+            mDeliveryThread = null;
+            mListeners = null;
+            mConnectionListener = null;
+        }
+        mHub.detach(this);
+        mInbox.offer(END_OF_QUEUE);
+        if (deliveryThread == Thread.currentThread()) return;
+        try {
+            deliveryThread.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void deliver(final CountingListeners listeners,
+                    final ConnectionListener connectionListener) {
+        MessageInfo msgInfo;
+        while (true) {
+            try {
+                msgInfo = mInbox.take();
+            } catch (InterruptedException ie) {
+                return;
+            }
+            if (msgInfo == END_OF_QUEUE) return;
+            switch (msgInfo.messageType) {
+                case EventConnected:
+                    mStats.countConnected();
+                    if (connectionListener != null) connectionListener.onConnected(msgInfo.ip);
+                    break;
+                case EventDisconnect:
+                    mStats.countDisconnected();
+                    if (connectionListener != null) {
+                        connectionListener.onDisconnected(msgInfo.ip);
+                    }
+                    break;
+                default:
+                    listeners.newMessageComes(msgInfo);
+                    break;
+            }
+        }
+    }
+
+    private void enqueueEvent(final MessageType event, final String address) {
+        mInbox.offer(new MessageInfo(event.getMessageData(), event, true, address));
+    }
+
+    @Override
+    public void send(final MessageInfo messageInfo) {
+        final CountingListeners listeners;
+        synchronized (this) {
+            listeners = mListeners;
+        }
+        if (listeners == null) return;
+        final LoopbackTransport target = mHub.find(messageInfo.ip);
+        if (target == null) {
+            listeners.onError("No loopback endpoint: " + messageInfo.ip);
+            return;
+        }
+        final MessageInfo received;
+        try {
+            received = MessageInfo.parseReceivedMessage(mAddress,
+                            MessageInfo.constructMessageData(messageInfo));
+        } catch (IOException ioe) {
+            listeners.onException(ioe, "Failed to encode message!\n" + messageInfo);
+            return;
+        }
+        target.mInbox.offer(received);
+        listeners.messageSent(messageInfo);
+    }
+
+    @Override
+    public void broadcast(final MessageInfo messageInfo, final String... addresses) {
+        for (String address : addresses) {
+            send(messageInfo.copyTo(address));
+        }
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return mStats;
+    }
+}
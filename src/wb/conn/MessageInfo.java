@@ -7,8 +7,10 @@ import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.ProtocolException;
 
 import android.text.TextUtils;
+import wb.game.utils.EnumCodec;
 import wb.game.utils.Utils;
 
 public class MessageInfo {
@@ -47,11 +49,15 @@ public class MessageInfo {
             return toString().getBytes();
         }
 
+        private static final EnumCodec<MessageType> sCodec = EnumCodec.of(MessageType.class);
+
         public static MessageType getMessageType(final int ordinal) {
-            for (MessageType messageType : values()) {
-                if (messageType.ordinal() == ordinal) return messageType;
-            }
-            return Unknown;
+            return sCodec.get(ordinal, Unknown);
+        }
+
+        // 收到的数据: 超出范围说明数据不对.
+        public static MessageType decode(final int ordinal) throws ProtocolException {
+            return sCodec.decode(ordinal);
         }
     }
 
@@ -140,6 +146,11 @@ public class MessageInfo {
         this.time = Utils.currentTimeString();
     }
 
+    // 同样的消息发给另一个ip, 用于Transport.broadcast().
+    public MessageInfo copyTo(final String destIp) {
+        return new MessageInfo(messageData, messageType, false, destIp, playerInfo);
+    }
+
     private static String[] getIps(final InetAddress...inetAddresses) {
         if (inetAddresses == null || inetAddresses.length <= 0) return null;
         String[] ips = new String[inetAddresses.length];
@@ -178,8 +189,12 @@ public class MessageInfo {
         MessageType messageType = null;
         int destIpCount = -1;
         try {
-            messageType = MessageType.getMessageType(dis.readInt());
+            messageType = MessageType.decode(dis.readInt());
             destIpCount = dis.readInt();
+            // 每个ip至少2个字节(readUTF的长度).
+            if (destIpCount < 0 || destIpCount > dis.available() / 2) {
+                throw new ProtocolException("Invalid destIpCount: " + destIpCount);
+            }
             String[] destIps = null;
             if (destIpCount > 0) {
                 destIps = new String[destIpCount];
@@ -196,8 +211,12 @@ public class MessageInfo {
             }
 
             int dataLen = dis.readInt();
+            // 长度不对时不分配内存.
+            if (dataLen < 0 || dataLen > dis.available()) {
+                throw new ProtocolException("Invalid data length: " + dataLen);
+            }
             byte[] data = new byte[dataLen];
-            dis.read(data);
+            dis.readFully(data);
             MessageInfo newMessage = new MessageInfo(data, messageType, true, ip, playerInfo);
             newMessage.destIps = destIps;
             return newMessage;
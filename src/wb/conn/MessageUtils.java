@@ -16,6 +16,7 @@ import wb.game.mahjong.model.Player.PlayerActionInfo;
 import wb.game.mahjong.model.Tile;
 import wb.game.mahjong.model.Tile.TileInfo;
 import wb.game.mahjong.model.WifiPlayer;
+import wb.game.utils.EnumCodec;
 
 public class MessageUtils {
     private static final String SEPARATOR_ARGUMENT = ",";
@@ -305,6 +306,90 @@ public class MessageUtils {
         return Integer.parseInt(strRemainingTileNum);
     }
 
+    // 旁观者看到的一个player.
+    public static class SpectatorPlayer {
+        public final String name;
+        public final Location location;
+        public final int handTileCount;
+        public final Tile[] thrownTiles;
+        public final Tile[] openTiles;
+
+        public SpectatorPlayer(String name, Location location, int handTileCount,
+                        Tile[] thrownTiles, Tile[] openTiles) {
+            this.name = name;
+            this.location = location;
+            this.handTileCount = handTileCount;
+            this.thrownTiles = thrownTiles;
+            this.openTiles = openTiles;
+        }
+    }
+
+    public static class SpectatorSnapshot {
+        public final int liveTileNum;
+        public final SpectatorPlayer[] players;
+
+        public SpectatorSnapshot(int liveTileNum, SpectatorPlayer[] players) {
+            this.liveTileNum = liveTileNum;
+            this.players = players;
+        }
+    }
+
+    // 只有公开的信息, 没有手中的牌.
+    // Format: liveTileNum;name,locationInt,handTileCount,thrownTile thrownTile...,openTile...;...
+    private static final String SEPARATOR_SPECTATOR_PLAYER = ";";
+    private static final String SEPARATOR_TILE = " ";
+    public static String messageSpectatorSnapshot(final Player[] players, final int liveTileNum) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(liveTileNum);
+        for (Player player : players) {
+            if (player == null || player.getLocation() == null) continue;
+            sb.append(SEPARATOR_SPECTATOR_PLAYER).append(player.name);
+            sb.append(SEPARATOR_ARGUMENT).append(player.getLocation().ordinal());
+            sb.append(SEPARATOR_ARGUMENT).append(player.getHandTileCount());
+            sb.append(SEPARATOR_ARGUMENT);
+            appendTiles(sb, player.getState().thrownTiles);
+            sb.append(SEPARATOR_ARGUMENT);
+            appendTiles(sb, player.getOpenTiles());
+        }
+        return sb.toString();
+    }
+
+    private static void appendTiles(final StringBuilder sb, final Tile[] tiles) {
+        for (int i = 0; i < tiles.length; i++) {
+            if (i > 0) sb.append(SEPARATOR_TILE);
+            sb.append(tiles[i].toString());
+        }
+    }
+
+    public static SpectatorSnapshot parseSpectatorSnapshot(final Object messageContent) {
+        if (messageContent == null || !(messageContent instanceof String)) {
+            throw new RuntimeException("Invalid argument!Content NOT string:\n" + messageContent);
+        }
+        String[] infoArray = ((String)messageContent).trim().split(SEPARATOR_SPECTATOR_PLAYER);
+        final int liveTileNum = Integer.parseInt(infoArray[0].trim());
+        SpectatorPlayer[] players = new SpectatorPlayer[infoArray.length - 1];
+        String[] array;
+        for (int i = 0; i < players.length; i++) {
+            array = infoArray[i + 1].split(SEPARATOR_ARGUMENT, -1);
+            players[i] = new SpectatorPlayer(array[0].trim(),
+                            Location.getLocation(Integer.parseInt(array[1].trim())),
+                            Integer.parseInt(array[2].trim()),
+                            parseTiles(array[3]), parseTiles(array[4]));
+        }
+        return new SpectatorSnapshot(liveTileNum, players);
+    }
+
+    private static Tile[] parseTiles(final String tilesString) {
+        final String trimmed = tilesString.trim();
+        if (trimmed.length() <= 0) return new Tile[0];
+        String[] array = trimmed.split(SEPARATOR_TILE);
+        Tile[] tiles = new Tile[array.length];
+        for (int i = 0; i < array.length; i++) {
+            tiles[i] = Tile.parse(array[i]);
+        }
+        return tiles;
+    }
+
     public static class WhenTilesReadyInfo {
         public final Tile shownTile;
 
@@ -442,11 +527,10 @@ public class MessageUtils {
         TileInfo,
         PlayerAction;
 
+        private static final EnumCodec<ObjType> sCodec = EnumCodec.of(ObjType.class);
+
         public static ObjType getType(int ordinal) {
-            for (ObjType type : values()) {
-                if (type.ordinal() == ordinal) return type;
-            }
-            return null;
+            return sCodec.get(ordinal);
         }
     }
 
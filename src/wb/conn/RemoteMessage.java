@@ -5,11 +5,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.net.ProtocolException;
 
 import android.text.TextUtils;
 import wb.conn.MessageInfo.MessageType;
 import wb.conn.MessageInfo.PlayerInfo;
-import wb.game.mahjong.constants.Constants;
+import wb.game.mahjong.model.TurnStats;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 
 public class RemoteMessage {
     public static enum ConnMessage {
@@ -63,13 +67,28 @@ public class RemoteMessage {
         MSG_PLAYER_ACTIONS_IGNORED,
         MSG_GAME_END,
         MSG_GAME_OVER,
-        MSG_DISCONNECT;
+        MSG_DISCONNECT,
+        // 以下是心跳消息, 不经过MahjongManager, 见Heartbeat.
+        MSG_HEARTBEAT_PING,
+        MSG_HEARTBEAT_PONG,
+        // 发给旁观者的公开牌局状态, 见SpectatorServer.
+        MSG_SPECTATOR_SNAPSHOT,
+        // 以下是host迁移的消息, 见HostMigration.
+        MSG_MIGRATION_WALL,        // 庄家端发给备用端的加密牌墙.
+        MSG_MIGRATION_KEY,         // 庄家端发给保管者的key和牌墙的SHA-256.
+        MSG_MIGRATION_START,       // host发现庄家端断开了, 通知其他设备.
+        MSG_MIGRATION_KEY_RELEASE, // 保管者把最近的几个key交给备用端.
+        MSG_MIGRATION_DONE;        // 备用端已经成为master.
+
+        private static final EnumCodec<ConnMessage> sCodec = EnumCodec.of(ConnMessage.class);
 
         public static ConnMessage getConnMessage(final int index) {
-            for (ConnMessage connMessage : values()) {
-                if (connMessage.ordinal() == index) return connMessage;
-            }
-            return null;
+            return sCodec.get(index);
+        }
+
+        // 收到的消息: 不认识的消息直接当作协议错误.
+        public static ConnMessage decode(final int index) throws ProtocolException {
+            return sCodec.decode(index);
         }
     }
 
@@ -79,11 +98,10 @@ public class RemoteMessage {
         NoContent,
         Unknown;
 
+        private static final EnumCodec<DataType> sCodec = EnumCodec.of(DataType.class);
+
         public static DataType getDataType(final int ordinal) {
-            for (DataType dataType : values()) {
-                if (dataType.ordinal() == ordinal) return dataType;
-            }
-            return Unknown;
+            return sCodec.get(ordinal, Unknown);
         }
     }
 
@@ -161,16 +179,27 @@ public class RemoteMessage {
                         destIp, content.toString());
     }
 
+    // 只看消息的ConnMessage(messageData的头4个字节), 不解析内容, 也不计入TurnStats.
+    // 不是RemoteMessage或者不认识时返回null.
+    public static ConnMessage peekConnMessage(final MessageInfo messageInfo) {
+        final byte[] data = messageInfo.messageData;
+        if (data == null || data.length < 4) return null;
+        return ConnMessage.getConnMessage(((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16)
+                        | ((data[2] & 0xff) << 8) | (data[3] & 0xff));
+    }
+
     // Parse received message.
     public static RemoteMessage parse(final MessageInfo messageInfo) {
-        final String fromIp = messageInfo.ip;Constants.debug("RemoteMessage.parse, messageInfo.messageType:"+messageInfo.messageType);
+        final String fromIp = messageInfo.ip;
+        Logger.v(Subsystem.Net, "RemoteMessage.parse, messageType:{}", messageInfo.messageType);
 
         ByteArrayInputStream bais = new ByteArrayInputStream(messageInfo.messageData);
         DataInputStream dis = new DataInputStream(bais);
         String destIp = null;
         ConnMessage connMessage = null;
         try {
-            connMessage = ConnMessage.getConnMessage(dis.readInt());Constants.debug("RemoteMessage.parse, connMessage:"+connMessage);
+            connMessage = ConnMessage.decode(dis.readInt());
+            Logger.v(Subsystem.Net, "RemoteMessage.parse, connMessage:{}", connMessage);
             if (dis.readBoolean()) {
                 destIp = dis.readUTF();
             }
@@ -193,6 +222,7 @@ public class RemoteMessage {
                     break;
             }
             newRemoteMessage.destIp = destIp;
+            TurnStats.getInstance().countReceived(connMessage);
             return newRemoteMessage;
         } catch (IOException ioe) {//Constants.debug("What's wrong in parse?" + ioe);
             //return null;
@@ -0,0 +1,33 @@
+package wb.conn;
+
+import java.io.IOException;
+
+// 牌局消息的传输方式: WiFi TCP, WiFi UDP, 以及进程内的loopback.
+// RemoteConnector只通过这个接口收发牌局消息, 不关心下面是哪一种.
+// 1. start()之后, 收到的消息交给MessageListener, 在哪个线程中调用由具体的实现决定;
+// 2. send()/broadcast()不阻塞, 发送的结果通过MessageListener.messageSent()或ErrorListener通知;
+// 3. 能知道连接状态的实现(UDP的EventConnected/EventDisconnect, loopback)通过ConnectionListener通知,
+//    其他的不通知, 由Heartbeat发现断开.
+public interface Transport {
+    public static interface ConnectionListener {
+        void onConnected(String address);
+        void onDisconnected(String address);
+    }
+
+    // 用于日志, 如"TCP:50802".
+    String getName();
+
+    // connectionListener可以为null.
+    void start(MessageListener messageListener, ErrorListener errorListener,
+                    ConnectionListener connectionListener) throws IOException;
+
+    void stop();
+
+    // 发给messageInfo.ip.
+    void send(MessageInfo messageInfo);
+
+    // 同样的消息发给每一个address.
+    void broadcast(MessageInfo messageInfo, String... addresses);
+
+    TransportStats getStats();
+}
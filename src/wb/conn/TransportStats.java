@@ -0,0 +1,60 @@
+package wb.conn;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// 一个Transport收发消息的计数, 可以在任何线程中更新和读取.
+public class TransportStats {
+    private static final String FORMAT_STATS = "%s: sent %d, received %d, failed %d, connections %d";
+
+    private final AtomicLong mSent = new AtomicLong();
+    private final AtomicLong mReceived = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+
+    public void countSent() {
+        mSent.incrementAndGet();
+    }
+
+    public void countReceived() {
+        mReceived.incrementAndGet();
+    }
+
+    public void countFailed() {
+        mFailed.incrementAndGet();
+    }
+
+    public void countConnected() {
+        mConnections.incrementAndGet();
+    }
+
+    public void countDisconnected() {
+        mConnections.decrementAndGet();
+    }
+
+    public long getSentCount() {
+        return mSent.get();
+    }
+
+    public long getReceivedCount() {
+        return mReceived.get();
+    }
+
+    public long getFailedCount() {
+        return mFailed.get();
+    }
+
+    public long getConnectionCount() {
+        return mConnections.get();
+    }
+
+    public void reset() {
+        mSent.set(0);
+        mReceived.set(0);
+        mFailed.set(0);
+    }
+
+    public String toString(final String transportName) {
+        return String.format(FORMAT_STATS, transportName, mSent.get(), mReceived.get(),
+                        mFailed.get(), mConnections.get());
+    }
+}
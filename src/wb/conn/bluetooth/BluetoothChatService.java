@@ -17,10 +17,14 @@
 //package com.example.android.BluetoothChat;
 package wb.conn.bluetooth;
 
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.UUID;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
@@ -53,6 +57,11 @@ public class BluetoothChatService {
     private static final UUID MY_UUID_INSECURE =
         UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
 
+    // Reads and the buffered output stream use this size
+    private static final int RAW_BUFFER_SIZE = 1024;
+    // Queued to stop the SendThread
+    private static final byte[] END_OF_QUEUE = new byte[0];
+
     // Member fields
     private final BluetoothAdapter mAdapter;
     private final Handler mHandler;
@@ -420,12 +429,14 @@ public class BluetoothChatService {
 
     /**
      * This thread runs during a connection with a remote device.
-     * It handles all incoming and outgoing transmissions.
+     * It handles all incoming transmissions; outgoing ones are queued
+     * to its SendThread so that write() never blocks the caller.
      */
     private class ConnectedThread extends Thread {
         private final BluetoothSocket mmSocket;
         private final InputStream mmInStream;
         private final OutputStream mmOutStream;
+        private final SendThread mmSendThread;
 
         public ConnectedThread(BluetoothSocket socket, String socketType) {
             Log.d(TAG, "create ConnectedThread: " + socketType);
@@ -443,54 +454,106 @@ public class BluetoothChatService {
 
             mmInStream = tmpIn;
             mmOutStream = tmpOut;
+            mmSendThread = new SendThread(mmOutStream);
         }
 
         @Override
         public void run() {
             Log.i(TAG, "BEGIN mConnectedThread");
-            byte[] buffer = new byte[1024];
+            mmSendThread.start();
+            try {
+                readRaw();
+            } catch (IOException e) {
+                Log.e(TAG, "disconnected", e);
+                mmSendThread.cancel();
+                connectionLost();
+                // Start the service over to restart listening mode
+                BluetoothChatService.this.start();
+            }
+        }
+
+        private void readRaw() throws IOException {
+            byte[] buffer = new byte[RAW_BUFFER_SIZE];
             int bytes;
 
             // Keep listening to the InputStream while connected
             while (true) {
-                try {
-                    // Read from the InputStream
-                    bytes = mmInStream.read(buffer);
-
-                    // Send the obtained bytes to the UI Activity
-                    mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1, buffer)
-                            .sendToTarget();
-                } catch (IOException e) {
-                    Log.e(TAG, "disconnected", e);
-                    connectionLost();
-                    // Start the service over to restart listening mode
-                    BluetoothChatService.this.start();
-                    break;
-                }
+                // Read from the InputStream
+                bytes = mmInStream.read(buffer);
+                if (bytes < 0) throw new EOFException();
+
+                // Send a copy of the obtained bytes to the UI Activity,
+                // the buffer is reused by the next read.
+                mHandler.obtainMessage(BluetoothChat.MESSAGE_READ, bytes, -1,
+                        Arrays.copyOf(buffer, bytes)).sendToTarget();
             }
         }
 
         /**
-         * Write to the connected OutStream.
+         * Queue bytes to be written to the connected OutStream.
          * @param buffer  The bytes to write
          */
         public void write(byte[] buffer) {
-            try {
-                mmOutStream.write(buffer);
+            mmSendThread.enqueue(buffer);
+        }
 
-                // Share the sent message back to the UI Activity
-                mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
-                        .sendToTarget();
+        public void cancel() {
+            mmSendThread.cancel();
+            try {
+                mmSocket.close();
             } catch (IOException e) {
-                Log.e(TAG, "Exception during write", e);
+                Log.e(TAG, "close() of connect socket failed", e);
             }
         }
+    }
+
+    /**
+     * Writes queued data to the connected OutStream. Frames queued while
+     * a write is in progress are written back to back and flushed once.
+     */
+    private class SendThread extends Thread {
+        private final LinkedBlockingQueue<byte[]> mmQueue = new LinkedBlockingQueue<byte[]>();
+        private final OutputStream mmOutStream;
+        private volatile boolean mmCancelled;
+
+        public SendThread(OutputStream outStream) {
+            super("BluetoothSendThread");
+            mmOutStream = outStream;
+        }
+
+        public void enqueue(byte[] buffer) {
+            if (mmCancelled) return;
+            mmQueue.offer(buffer);
+        }
 
         public void cancel() {
+            mmCancelled = true;
+            mmQueue.offer(END_OF_QUEUE);
+        }
+
+        @Override
+        public void run() {
+            final BufferedOutputStream bos =
+                    new BufferedOutputStream(mmOutStream, RAW_BUFFER_SIZE);
+            byte[] buffer;
             try {
-                mmSocket.close();
+                while (!mmCancelled) {
+                    buffer = mmQueue.take();
+                    while (buffer != null && buffer != END_OF_QUEUE) {
+                        bos.write(buffer);
+                        // Share the sent message back to the UI Activity
+                        mHandler.obtainMessage(BluetoothChat.MESSAGE_WRITE, -1, -1, buffer)
+                                .sendToTarget();
+                        buffer = mmQueue.poll();
+                    }
+                    bos.flush();
+                    if (buffer == END_OF_QUEUE) break;
+                }
+            } catch (InterruptedException e) {
+                // Cancelled.
             } catch (IOException e) {
-                Log.e(TAG, "close() of connect socket failed", e);
+                // ConnectedThread notices the broken connection on its next read.
+                Log.e(TAG, "Exception during write", e);
             }
         }
     }
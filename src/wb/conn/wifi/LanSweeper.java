@@ -0,0 +1,191 @@
+package wb.conn.wifi;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.BitSet;
+
+import android.os.SystemClock;
+
+// 扫描局域网中的玩家: 向本机所在子网的每个地址发一个UDP消息, 对方收到后回复MSG_UDP_OK.
+// 1. 只扫描网卡实际的子网(按prefix length), 而不是整个/16;
+// 2. 地址按int计算, 不生成字符串, 也不调用InetAddress.getByName();
+// 3. 用一个non-blocking DatagramChannel按固定的速率发送, 不会一下子把AP塞满;
+// 4. 回复随时到达随时记录(onReply()), 下一轮只发给还没有回复的地址.
+// sweep()在后台线程中调用, onReply()和cancel()可以在任何线程中调用.
+public class LanSweeper {
+    // 子网太大时只扫描本机附近的这么多位(/22, 1022个地址), 更远的玩家可以手动连接.
+    private static final int MIN_PREFIX_LENGTH = 22;
+    // 至少要有两个地址(/30).
+    private static final int MAX_PREFIX_LENGTH = 30;
+    // 拿不到prefix length时按/24扫描.
+    private static final int DEFAULT_PREFIX_LENGTH = 24;
+
+    // 每秒最多发多少个.
+    private static final int PACKETS_PER_SECOND = 400;
+    // 一次连续发多少个, 然后等到这一批的时间用完.
+    private static final int BURST_SIZE = 16;
+    private static final long BURST_INTERVAL_MS = BURST_SIZE * 1000 / PACKETS_PER_SECOND;
+    // 发送缓冲满时等多久再试.
+    private static final long SEND_RETRY_DELAY_MS = 5;
+    // 一共扫描几轮, UDP可能丢包, 第二轮起只发给没有回复的地址.
+    private static final int ROUNDS = 2;
+    // 每轮发完后等回复的时间.
+    private static final long ROUND_WAIT_MS = 300;
+
+    public static interface ProgressListener {
+        // sentCount: 这一轮已经发了多少个地址.
+        void onProgress(int sentCount, int hostCount);
+    }
+
+    private final int mNetwork;   // 子网地址, 第一个host是mNetwork + 1.
+    private final int mHostCount;
+    private final int mLocalIp;
+    private final int mPort;
+    private final ByteBuffer mData;
+
+    // 已经回复的host, 下标同地址减去mNetwork + 1. 由this保护.
+    private final BitSet mReplied;
+    private int mReplyCount;
+
+    private volatile boolean mCancelled;
+
+    // localAddress: 本机的IPv4地址; prefixLength <= 0表示不知道.
+    public LanSweeper(final InetAddress localAddress, final int prefixLength, final int port,
+                    final byte[] data) {
+        final byte[] address = localAddress.getAddress();
+        if (address.length != 4) {
+            throw new RuntimeException("Not an IPv4 address: " + localAddress);
+        }
+        int prefix = prefixLength <= 0 ? DEFAULT_PREFIX_LENGTH : prefixLength;
+        if (prefix < MIN_PREFIX_LENGTH) prefix = MIN_PREFIX_LENGTH;
+        if (prefix > MAX_PREFIX_LENGTH) prefix = MAX_PREFIX_LENGTH;
+
+        mLocalIp = toInt(address);
+        mNetwork = mLocalIp & (-1 << (32 - prefix));
+        // 去掉子网地址和广播地址.
+        mHostCount = (1 << (32 - prefix)) - 2;
+        mPort = port;
+        mData = ByteBuffer.wrap(data);
+        mReplied = new BitSet(mHostCount);
+    }
+
+    public int getHostCount() {
+        return mHostCount;
+    }
+
+    public synchronized int getReplyCount() {
+        return mReplyCount;
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    // 收到MSG_UDP_OK时调用. 不在子网中的地址忽略.
+    public void onReply(final String ip) {
+        final long parsed = parseIpV4(ip);
+        if (parsed < 0) return;
+        final int index = (int)parsed - mNetwork - 1;
+        if (index < 0 || index >= mHostCount) return;
+        synchronized (this) {
+            if (mReplied.get(index)) return;
+            mReplied.set(index);
+            mReplyCount++;
+        }
+    }
+
+    private synchronized boolean isReplied(final int index) {
+        return mReplied.get(index);
+    }
+
+    // 阻塞直到扫描结束或者被cancel(). 返回回复的数量.
+    public int sweep(final ProgressListener listener) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            for (int round = 0; round < ROUNDS && !mCancelled; round++) {
+                sweepOnce(channel, listener);
+                SystemClock.sleep(ROUND_WAIT_MS);
+            }
+        } finally {
+            channel.close();
+        }
+        return getReplyCount();
+    }
+
+    private void sweepOnce(final DatagramChannel channel, final ProgressListener listener)
+                    throws IOException {
+        final byte[] address = new byte[4];
+        long burstStartTime = SystemClock.elapsedRealtime();
+        int burst = 0;
+        int ip;
+        for (int index = 0; index < mHostCount; index++) {
+            if (mCancelled) return;
+            ip = mNetwork + 1 + index;
+            if (ip == mLocalIp || isReplied(index)) continue;
+
+            if (burst >= BURST_SIZE) {
+                if (listener != null) listener.onProgress(index, mHostCount);
+                final long waitTime = burstStartTime + BURST_INTERVAL_MS
+                                - SystemClock.elapsedRealtime();
+                if (waitTime > 0) SystemClock.sleep(waitTime);
+                burstStartTime = SystemClock.elapsedRealtime();
+                burst = 0;
+            }
+            send(channel, new InetSocketAddress(InetAddress.getByAddress(toBytes(ip, address)),
+                            mPort));
+            burst++;
+        }
+        if (listener != null) listener.onProgress(mHostCount, mHostCount);
+    }
+
+    private void send(final DatagramChannel channel, final InetSocketAddress target)
+                    throws IOException {
+        mData.rewind();
+        // 返回0表示发送缓冲满了.
+        while (channel.send(mData, target) == 0) {
+            if (mCancelled) return;
+            SystemClock.sleep(SEND_RETRY_DELAY_MS);
+        }
+    }
+
+    private static int toInt(final byte[] address) {
+        return ((address[0] & 0xff) << 24) | ((address[1] & 0xff) << 16)
+                        | ((address[2] & 0xff) << 8) | (address[3] & 0xff);
+    }
+
+    private static byte[] toBytes(final int ip, final byte[] address) {
+        address[0] = (byte)(ip >>> 24);
+        address[1] = (byte)(ip >>> 16);
+        address[2] = (byte)(ip >>> 8);
+        address[3] = (byte)ip;
+        return address;
+    }
+
+    // "a.b.c.d"转为int(放在long中), 格式不对时返回-1.
+    static long parseIpV4(final String ip) {
+        if (ip == null) return -1;
+        long result = 0;
+        int part = -1;
+        int partCount = 0;
+        char c;
+        for (int i = 0, length = ip.length(); i <= length; i++) {
+            c = i < length ? ip.charAt(i) : '.';
+            if (c == '.') {
+                if (part < 0) return -1;
+                result = (result << 8) | part;
+                partCount++;
+                part = -1;
+            } else if (c >= '0' && c <= '9') {
+                part = (part < 0 ? 0 : part * 10) + (c - '0');
+                if (part > 255) return -1;
+            } else {
+                return -1;
+            }
+        }
+        return partCount == 4 ? result : -1;
+    }
+}
@@ -0,0 +1,193 @@
+package wb.conn.wifi;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+import wb.conn.ErrorListener;
+import wb.conn.MessageInfo;
+import wb.conn.RemoteMessage;
+import wb.conn.RemoteMessage.ConnMessage;
+
+// 一个TCP连接的发送队列, 有自己的发送线程, write()只是放进队列, 不会阻塞.
+// 消息分两条lane:
+//   Game: 牌局的动作, 控制和状态同步消息. 后面的消息常常依赖前面的(比如MSG_GAME_START之前要先有
+//         MSG_3_PLAYERS, MSG_LOCATIONS, MSG_BANKER_INFO), 所以不论大小都按发送的顺序;
+//   Bulk: 图片/文件/头像, 和牌局消息没有先后关系, 可以让牌局消息先走.
+// Bulk的数据分成CHUNK_SIZE的块发送, 每发一块就重新检查Game lane,
+// 所以传头像时打出的牌最多等一块的时间.
+// 格式(接收见TcpUtils.SocketConnection.readFrame()):
+//   完整的消息: [int length > 0][data];
+//   一块:       [int -chunkLength][int totalLength][chunk], 同一时间只有一个消息在分块发送.
+class Outbox {
+    static enum Lane {
+        Game,
+        Bulk;
+    }
+
+    static final int CHUNK_SIZE = 4 * 1024;
+
+    private static final String FORMAT_THREAD_NAME = "outbox-%s";
+
+    // 按消息的类型和ConnMessage(messageData的头4个字节)决定lane, 不看大小.
+    // 不知道是什么的数据(messageInfo为null)当作牌局消息.
+    static Lane getLane(final MessageInfo messageInfo) {
+        if (messageInfo == null) return Lane.Game;
+        switch (messageInfo.messageType) {
+            case Bitmap:
+            case FileAudio:
+            case FileImage:
+            case FileVideo:
+                return Lane.Bulk;
+            case TextMessage:
+                break;
+            default:
+                return Lane.Game;
+        }
+        final ConnMessage connMessage = RemoteMessage.peekConnMessage(messageInfo);
+        return connMessage == ConnMessage.MSG_UDP_SEND_ICON ? Lane.Bulk : Lane.Game;
+    }
+
+    private final DataOutputStream mDos;
+    private final ErrorListener mErrorListener;
+    private final Thread mThread;
+
+    // 由this保护.
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] mQueues = new ArrayDeque[Lane.values().length];
+    private boolean mClosed;
+    // drain()之后不再接受新的消息, 发完队列中的就结束.
+    private boolean mDraining;
+    private boolean mFinished;
+
+    // 正在分块发送的消息, 只在发送线程中访问.
+    private byte[] mBulk;
+    private int mBulkOffset;
+
+    Outbox(final DataOutputStream dos, final ErrorListener errorListener, final String name) {
+        mDos = dos;
+        mErrorListener = errorListener;
+        for (int i = 0; i < mQueues.length; i++) {
+            mQueues[i] = new ArrayDeque<byte[]>();
+        }
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendLoop();
+            }
+        }, String.format(FORMAT_THREAD_NAME, name));
+        mThread.start();
+    }
+
+    synchronized void enqueue(final byte[] frame, final Lane lane) {
+        if (mClosed || mDraining) return;
+        mQueues[lane.ordinal()].offer(frame);
+        notifyAll();
+    }
+
+    // 没发出去的消息丢掉. 连接已经断了的时候用.
+    synchronized void close() {
+        mClosed = true;
+        notifyAll();
+    }
+
+    // 把队列中的消息(包括分块发送到一半的)都发完并flush, 最多等timeoutMs, 然后close().
+    // 返回是否都发完了.
+    boolean drain(final long timeoutMs) {
+        synchronized (this) {
+            mDraining = true;
+            notifyAll();
+            if (Thread.currentThread() != mThread) {
+                final long deadline = System.currentTimeMillis() + timeoutMs;
+                long waitMs = timeoutMs;
+                while (!mFinished && !mClosed && waitMs > 0) {
+                    try {
+                        wait(waitMs);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    waitMs = deadline - System.currentTimeMillis();
+                }
+            }
+            final boolean drained = mFinished && !mClosed;
+            close();
+            return drained;
+        }
+    }
+
+    // 返回下一个要发的完整消息; 返回null表示发一块mBulk.
+    // 关闭或者drain()时都发完了, 返回null并且mBulk为null.
+    private synchronized byte[] take() throws InterruptedException {
+        while (true) {
+            if (mClosed) {
+                mBulk = null;
+                return null;
+            }
+            byte[] frame = mQueues[Lane.Game.ordinal()].poll();
+            if (frame != null) return frame;
+            if (mBulk != null) return null;
+            frame = mQueues[Lane.Bulk.ordinal()].poll();
+            if (frame != null) {
+                if (frame.length <= CHUNK_SIZE) return frame;
+                mBulk = frame;
+                mBulkOffset = 0;
+                return null;
+            }
+            if (mDraining) return null;
+            wait();
+        }
+    }
+
+    private synchronized boolean isIdle() {
+        for (ArrayDeque<byte[]> queue : mQueues) {
+            if (!queue.isEmpty()) return false;
+        }
+        return mBulk == null;
+    }
+
+    private synchronized void finish() {
+        mFinished = true;
+        notifyAll();
+    }
+
+    private void sendLoop() {
+        try {
+            while (true) {
+                final byte[] frame = take();
+                if (frame != null) {
+                    mDos.writeInt(frame.length);
+                    mDos.write(frame);
+                } else if (mBulk != null) {
+                    writeChunk();
+                } else {
+                    break;
+                }
+                // 一批消息写完以后再flush; 要发的是分块的话writeChunk()会flush.
+                if (isIdle()) mDos.flush();
+            }
+        } catch (InterruptedException ie) {
+            // 结束.
+        } catch (IOException ioe) {
+            if (mErrorListener != null) {
+                mErrorListener.onException(ioe, "Fail to write message!");
+            }
+            close();
+        } finally {
+            finish();
+        }
+    }
+
+    private void writeChunk() throws IOException {
+        final int length = Math.min(CHUNK_SIZE, mBulk.length - mBulkOffset);
+        mDos.writeInt(-length);
+        mDos.writeInt(mBulk.length);
+        mDos.write(mBulk, mBulkOffset, length);
+        // 每块都flush, 下一块之前插进来的消息不用等这一块在缓冲中攒满.
+        mDos.flush();
+        mBulkOffset += length;
+        if (mBulkOffset >= mBulk.length) {
+            mBulk = null;
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package wb.conn.wifi;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import wb.conn.ErrorListener;
+import wb.conn.MessageInfo;
+
+// 旁观者连接: host把公开的牌局事件(打牌, 吃碰杠胡, 剩余牌数)发给任意多个只看不玩的设备.
+// 1. 每个事件只编码一次(publish()), 同一个byte[]放进每个旁观者的队列, 不按接收者重新编码;
+// 2. 每个旁观者有自己的发送线程, 一个慢的旁观者不会挡住publish()和别的旁观者;
+// 3. 旁观者的队列超过MAX_PENDING_FRAMES或者MAX_PENDING_BYTES时, 清空队列, 改发一个快照,
+//    快照也只在有新事件后编码一次, 同时落后的旁观者共用.
+//    快照和publish()在同一个线程(mPublishExecutor)中生成, 快照正好包含已经publish的事件,
+//    所以发快照时清空队列, 之后publish的事件接在快照后面.
+// 格式同TcpUtils.SocketConnection: [int length][data], 旁观者用TcpClient连接就可以读.
+// 旁观者发来的数据都不读.
+public class SpectatorServer {
+    public static interface SnapshotProvider {
+        // 在mPublishExecutor中调用, 返回当前公开的牌局状态.
+        MessageInfo getSnapshot();
+    }
+
+    private static final int MAX_SPECTATORS = 64;
+    private static final int MAX_PENDING_FRAMES = 64;
+    private static final int MAX_PENDING_BYTES = 256 * 1024;
+
+    private static final String FORMAT_THREAD_NAME = "spectator-%s";
+    private static final String FORMAT_INFO =
+                    "Spectators[%d] %d watching, %d published, %d resyncs";
+
+    private final int mPort;
+    private final SnapshotProvider mSnapshotProvider;
+    // 调用publish()的线程, 快照也在这里生成.
+    private final Executor mPublishExecutor;
+    private final ErrorListener mErrorListener;
+
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+
+    // 以下由this保护.
+    private final ArrayList<Spectator> mSpectators = new ArrayList<Spectator>();
+    private long mPublishedCount;
+    private long mResyncCount;
+    // 最近编码的快照, 和它编码时的mPublishedCount.
+    private byte[] mSnapshotFrame;
+    private long mSnapshotVersion = -1;
+    // 已经交给mPublishExecutor, 还没有开始生成的快照.
+    private boolean mSnapshotPending;
+
+    // publish()必须在publishExecutor中调用.
+    public SpectatorServer(final int port, final SnapshotProvider snapshotProvider,
+                    final Executor publishExecutor, final ErrorListener errorListener) {
+        mPort = port;
+        mSnapshotProvider = snapshotProvider;
+        mPublishExecutor = publishExecutor;
+        mErrorListener = errorListener;
+    }
+
+    public synchronized void start() throws IOException {
+        if (mServerSocket != null) return;
+        final ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(mPort));
+        mServerSocket = serverSocket;
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop(serverSocket);
+            }
+        }, String.format(FORMAT_THREAD_NAME, mPort));
+        mAcceptThread.start();
+    }
+
+    public void stop() {
+        final ArrayList<Spectator> spectators;
+        synchronized (this) {
+            if (mServerSocket == null) return;
+            try {
+                mServerSocket.close();
+            } catch (IOException ioe) {
+                reportException(ioe, "Failed to close spectator ServerSocket");
+            }
+            mServerSocket = null;
+            mAcceptThread = null;
+            spectators = new ArrayList<Spectator>(mSpectators);
+            mSpectators.clear();
+            mSnapshotFrame = null;
+            mSnapshotVersion = -1;
+            mSnapshotPending = false;
+        }
+        for (Spectator spectator : spectators) {
+            spectator.close();
+        }
+    }
+
+    // 编码一次, 放进每个旁观者的队列, 不阻塞. 在mPublishExecutor中调用.
+    public void publish(final MessageInfo messageInfo) {
+        final byte[] frame;
+        try {
+            frame = MessageInfo.constructMessageData(messageInfo);
+        } catch (IOException ioe) {
+            reportException(ioe, "Failed to encode spectator message");
+            return;
+        }
+        synchronized (this) {
+            mPublishedCount++;
+            for (Spectator spectator : mSpectators) {
+                spectator.offer(frame);
+            }
+        }
+    }
+
+    // 比如新的一局开始时, 让所有旁观者重新同步.
+    public synchronized void resyncAll() {
+        for (Spectator spectator : mSpectators) {
+            spectator.requestResync();
+        }
+    }
+
+    public synchronized int getSpectatorCount() {
+        return mSpectators.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format(FORMAT_INFO, mPort, mSpectators.size(), mPublishedCount,
+                        mResyncCount);
+    }
+
+    private void acceptLoop(final ServerSocket serverSocket) {
+        while (!serverSocket.isClosed()) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException ioe) {
+                // close()之后accept()会抛异常.
+                if (!serverSocket.isClosed()) reportException(ioe, "Failed to accept spectator");
+                continue;
+            }
+            synchronized (this) {
+                if (mServerSocket != serverSocket || mSpectators.size() >= MAX_SPECTATORS) {
+                    closeQuietly(socket);
+                    continue;
+                }
+                try {
+                    // 新来的旁观者先收到快照.
+                    mSpectators.add(new Spectator(socket));
+                } catch (IOException ioe) {
+                    closeQuietly(socket);
+                    reportException(ioe, "Failed to open spectator " + socket);
+                }
+            }
+        }
+    }
+
+    // 在旁观者的发送线程中调用, 同时要求的旁观者共用一次生成.
+    // 在this之外交给mPublishExecutor, 它可能有自己的锁.
+    private void requestSnapshot() {
+        synchronized (this) {
+            mResyncCount++;
+            if (mSnapshotPending || mServerSocket == null) return;
+            mSnapshotPending = true;
+        }
+        mPublishExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                publishSnapshot();
+            }
+        });
+    }
+
+    // 在mPublishExecutor中调用, 和publish()不会同时执行, mPublishedCount在这里不会变.
+    // 有新事件之后才重新编码快照. 在this之外调用mSnapshotProvider, 不挡住旁观者的发送线程.
+    private void publishSnapshot() {
+        byte[] frame;
+        final long version;
+        synchronized (this) {
+            mSnapshotPending = false;
+            frame = mSnapshotVersion == mPublishedCount ? mSnapshotFrame : null;
+            version = mPublishedCount;
+        }
+        if (frame == null) frame = encodeSnapshot();
+        synchronized (this) {
+            if (frame != null) {
+                mSnapshotFrame = frame;
+                mSnapshotVersion = version;
+            }
+            // 还没有牌局时没有快照, 之后的事件照常发.
+            for (Spectator spectator : mSpectators) {
+                spectator.offerSnapshot(frame);
+            }
+        }
+    }
+
+    private byte[] encodeSnapshot() {
+        final MessageInfo snapshot = mSnapshotProvider.getSnapshot();
+        if (snapshot == null) return null;
+        try {
+            return MessageInfo.constructMessageData(snapshot);
+        } catch (IOException ioe) {
+            reportException(ioe, "Failed to encode spectator snapshot");
+            return null;
+        }
+    }
+
+    private synchronized void remove(final Spectator spectator) {
+        mSpectators.remove(spectator);
+    }
+
+    private void reportException(final Exception e, final String log) {
+        if (mErrorListener == null) return;
+        mErrorListener.onException(e, log);
+    }
+
+    private static void closeQuietly(final Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            // ...
+        }
+    }
+
+    private class Spectator {
+        private final Socket mSocket;
+        private final DataOutputStream mDos;
+
+        // 以下由this保护. 队列中的byte[]和快照是共用的, 不能修改.
+        private final ArrayDeque<byte[]> mQueue = new ArrayDeque<byte[]>();
+        private int mPendingBytes;
+        private boolean mNeedResync = true;
+        private boolean mSnapshotRequested;
+        private byte[] mSnapshot;
+        private boolean mClosed;
+
+        Spectator(final Socket socket) throws IOException {
+            mSocket = socket;
+            mSocket.shutdownInput();
+            mDos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, String.format(FORMAT_THREAD_NAME, socket.getInetAddress().getHostAddress()));
+            thread.start();
+        }
+
+        // 等着重新同步的时候, 新事件已经包含在之后的快照中了, 不用放进队列.
+        synchronized void offer(final byte[] frame) {
+            if (mClosed || mNeedResync) return;
+            if (mQueue.size() >= MAX_PENDING_FRAMES
+                            || mPendingBytes + frame.length > MAX_PENDING_BYTES) {
+                requestResync();
+                return;
+            }
+            mQueue.offer(frame);
+            mPendingBytes += frame.length;
+            notify();
+        }
+
+        synchronized void requestResync() {
+            mQueue.clear();
+            mPendingBytes = 0;
+            mNeedResync = true;
+            mSnapshotRequested = false;
+            mSnapshot = null;
+            notify();
+        }
+
+        // 在mPublishExecutor中调用, 快照包含了之前publish的所有事件. snapshot为null时不发快照.
+        synchronized void offerSnapshot(final byte[] snapshot) {
+            if (mClosed || !mNeedResync) return;
+            mNeedResync = false;
+            mSnapshotRequested = false;
+            mSnapshot = snapshot;
+            notify();
+        }
+
+        // 关掉socket, 阻塞在write()中的发送线程也会结束.
+        synchronized void close() {
+            mClosed = true;
+            notify();
+            closeQuietly(mSocket);
+        }
+
+        // 返回下一个要发的快照或者事件; 需要向server要快照时返回null. 关闭后抛出异常.
+        private synchronized byte[] take() throws InterruptedException, IOException {
+            while (true) {
+                if (mClosed) throw new IOException("Spectator closed");
+                if (mSnapshot != null) {
+                    final byte[] snapshot = mSnapshot;
+                    mSnapshot = null;
+                    return snapshot;
+                }
+                if (mNeedResync) {
+                    if (!mSnapshotRequested) {
+                        mSnapshotRequested = true;
+                        return null;
+                    }
+                } else {
+                    final byte[] frame = mQueue.poll();
+                    if (frame != null) {
+                        mPendingBytes -= frame.length;
+                        return frame;
+                    }
+                }
+                wait();
+            }
+        }
+
+        private synchronized boolean isIdle() {
+            return mQueue.isEmpty() && mSnapshot == null && !mNeedResync;
+        }
+
+        private void sendLoop() {
+            try {
+                while (true) {
+                    final byte[] frame = take();
+                    if (frame == null) {
+                        requestSnapshot();
+                        continue;
+                    }
+                    mDos.writeInt(frame.length);
+                    mDos.write(frame);
+                    if (isIdle()) mDos.flush();
+                }
+            } catch (InterruptedException ie) {
+                // 结束.
+            } catch (IOException ioe) {
+                // 旁观者断开或者被stop(), 不用报告.
+            }
+            remove(this);
+            closeQuietly(mSocket);
+        }
+    }
+}
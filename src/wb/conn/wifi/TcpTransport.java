@@ -0,0 +1,83 @@
+package wb.conn.wifi;
+
+import java.io.IOException;
+
+import android.os.Handler;
+import wb.conn.CountingListeners;
+import wb.conn.ErrorListener;
+import wb.conn.LogListener;
+import wb.conn.MessageInfo;
+import wb.conn.MessageListener;
+import wb.conn.Transport;
+import wb.conn.TransportStats;
+
+// 使用TcpMessenger的Transport. serverIp为空时是server(host), 否则连接到serverIp.
+// 收到的消息在socket的读线程中交给MessageListener. 不通知连接状态.
+public class TcpTransport implements Transport {
+    private static final String FORMAT_NAME = "TCP:%d";
+
+    private final int mPort;
+    private final Handler mHandler;
+    private final String mServerIp;
+    private final LogListener mLogListener;
+    private final TransportStats mStats = new TransportStats();
+
+    private TcpMessenger mMessenger;
+
+    // logListener可以为null.
+    public TcpTransport(final int port, final Handler handler, final String serverIp,
+                    final LogListener logListener) {
+        mPort = port;
+        mHandler = handler;
+        mServerIp = serverIp;
+        mLogListener = logListener;
+    }
+
+    @Override
+    public String getName() {
+        return String.format(FORMAT_NAME, mPort);
+    }
+
+    @Override
+    public synchronized void start(final MessageListener messageListener,
+                    final ErrorListener errorListener,
+                    final ConnectionListener connectionListener) throws IOException {
+        if (mMessenger != null) {
+            mMessenger.stop();
+        }
+        final CountingListeners listeners = new CountingListeners(mStats, messageListener,
+                        errorListener);
+        try {
+            mMessenger = new TcpMessenger(mPort, mHandler, mServerIp, listeners, listeners,
+                            mLogListener);
+        } catch (Exception e) {
+            throw new IOException("Failed to create TcpMessenger for " + mServerIp, e);
+        }
+        mMessenger.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mMessenger == null) return;
+        mMessenger.stop();
+        mMessenger = null;
+    }
+
+    @Override
+    public synchronized void send(final MessageInfo messageInfo) {
+        if (mMessenger == null) return;
+        mMessenger.sendMessage(messageInfo);
+    }
+
+    @Override
+    public void broadcast(final MessageInfo messageInfo, final String... addresses) {
+        for (String address : addresses) {
+            send(messageInfo.copyTo(address));
+        }
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return mStats;
+    }
+}
@@ -1,15 +1,26 @@
 package wb.conn.wifi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.ProtocolException;
 import java.net.Socket;
 
 import wb.conn.ErrorListener;
 import wb.conn.MessageInfo;
 import wb.conn.MessageListener;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 
 public class TcpUtils {
+    // 分块收到的消息最大不超过这么多.
+    private static final int MAX_CHUNKED_SIZE = 16 * 1024 * 1024;
+    // 断开连接前最多等这么久, 让发送队列中的消息发出去.
+    private static final long DRAIN_TIMEOUT_MS = 1000;
+
     public static byte[] readMessageData(final DataInputStream dis,
                     final ErrorListener errorListener) {
         try {
@@ -18,7 +29,8 @@ public class TcpUtils {
                 throw new RuntimeException("Why receive empty/null data?! " + dataLen);
             }
             byte[] data = new byte[dataLen];
-            dis.read(data);
+            // 消息多时read()可能只读到一部分.
+            dis.readFully(data);
             return data;
         } catch (IOException ioe) {
             if (errorListener != null) {
@@ -49,10 +61,16 @@ public class TcpUtils {
 
         private final DataInputStream mDis;
         private final DataOutputStream mDos;
+        // 发送不在调用者的线程中, 见Outbox.
+        private final Outbox mOutbox;
 
         public final String ip;
 
-        private boolean mReceiveThreadRunning;
+        private volatile boolean mReceiveThreadRunning;
+
+        // 正在分块接收的消息, 只在读线程中访问.
+        private byte[] mChunked;
+        private int mChunkedOffset;
 
         public SocketConnection(Socket socket, MessageListener messageListener,
                         ErrorListener errorListener) throws IOException {
@@ -62,8 +80,9 @@ public class TcpUtils {
 
             ip = socket.getInetAddress().getHostAddress();
 
-            mDis = new DataInputStream(socket.getInputStream());
-            mDos = new DataOutputStream(socket.getOutputStream());
+            mDis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mDos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            mOutbox = new Outbox(mDos, errorListener, ip);
 
             mReceiveThreadRunning = true;
 
@@ -75,11 +94,19 @@ public class TcpUtils {
                 @Override
                 public void run() {
                     while (mReceiveThreadRunning) {
-                        byte[] data = readMessageData(mDis, mErrorListener);
-                        if (data == null || data.length <= 0) {
-                            //throw new RuntimeException("Why received null data in " + mSocket);
-                            continue; // Ignore this read...
+                        byte[] data;
+                        try {
+                            data = readFrame();
+                        } catch (EOFException eofe) {
+                            break;
+                        } catch (IOException ioe) {
+                            // 读错了一次以后的数据都对不上了. endConnection()关闭socket时也会读错.
+                            if (mReceiveThreadRunning) {
+                                reportException(ioe, "Fail to read message!");
+                            }
+                            break;
                         }
+                        if (data == null) continue; // 还没有收完的分块消息.
                         MessageInfo messageInfo = null;
                         try {
                             messageInfo = MessageInfo.parseReceivedMessage(ip, data);
@@ -93,6 +120,7 @@ public class TcpUtils {
                             mMessageListener.newMessageComes(messageInfo);
                         }
                     }
+                    mOutbox.close();
                     try {
                         mDis.close();
                     } catch(IOException ioe) {
@@ -111,6 +139,41 @@ public class TcpUtils {
             readThread.start();
         }
 
+        // 返回一个完整的消息; 读到的是分块消息的一块并且还没有收完时返回null.
+        // 格式见Outbox.
+        private byte[] readFrame() throws IOException {
+            final int header = mDis.readInt();
+            if (header > 0) {
+                final byte[] data = new byte[header];
+                mDis.readFully(data);
+                return data;
+            }
+            if (header == 0) {
+                throw new ProtocolException("Why receive empty data?!");
+            }
+            final int chunkLength = -header;
+            final int totalLength = mDis.readInt();
+            if (mChunked == null) {
+                if (totalLength <= 0 || totalLength > MAX_CHUNKED_SIZE) {
+                    throw new ProtocolException("Invalid chunked message length: " + totalLength);
+                }
+                mChunked = new byte[totalLength];
+                mChunkedOffset = 0;
+            } else if (mChunked.length != totalLength) {
+                throw new ProtocolException("Chunk of another message: " + totalLength
+                                + ", expected " + mChunked.length);
+            }
+            if (chunkLength > totalLength - mChunkedOffset) {
+                throw new ProtocolException("Chunk too long: " + chunkLength);
+            }
+            mDis.readFully(mChunked, mChunkedOffset, chunkLength);
+            mChunkedOffset += chunkLength;
+            if (mChunkedOffset < totalLength) return null;
+            final byte[] data = mChunked;
+            mChunked = null;
+            return data;
+        }
+
         private void closeSocket(Socket socket) {
             synchronized (socket) {
                 if (socket.isClosed()) return;
@@ -122,20 +185,31 @@ public class TcpUtils {
             }
         }
 
+        // 先把发送队列中的消息(比如最后的MSG_GAME_OVER)发完, 然后关闭socket, 读线程随之结束.
+        // 对方不收的话最多等DRAIN_TIMEOUT_MS, 剩下的丢掉.
         public void endConnection() {
             mReceiveThreadRunning = false;
+            if (!mOutbox.drain(DRAIN_TIMEOUT_MS)) {
+                Logger.w(Subsystem.Net, "Outbox of {} not drained", ip);
+            }
+            closeSocket(mSocket);
         }
 
+        // 放进发送队列, 按消息的类型决定lane.
         public void write(MessageInfo messageInfo) {
+            final byte[] data;
             try {
-                write(MessageInfo.constructMessageData(messageInfo));
+                data = MessageInfo.constructMessageData(messageInfo);
             } catch (IOException ioe) {
                 mErrorListener.onException(ioe, "Failed to send message:\n" + messageInfo.toString());
+                return;
             }
+            mOutbox.enqueue(data, Outbox.getLane(messageInfo));
         }
 
+        // 已经编码好的数据, 不知道是什么, 和牌局消息一起按顺序发.
         public void write(final byte[] messageData) {
-            sendMessageData(mDos, messageData, mErrorListener);
+            mOutbox.enqueue(messageData, Outbox.getLane(null));
         }
 
         protected void reportException(Exception e, String log) {
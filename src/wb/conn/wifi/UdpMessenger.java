@@ -17,6 +17,9 @@ import wb.conn.MessageInfo.MessageType;
 import wb.conn.MessageListener;
 import wb.conn.MessageUtils;
 import wb.game.mahjong.constants.Constants;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Level;
+import wb.game.utils.Logger.Subsystem;
 import wb.game.utils.Utils;
 
 public class UdpMessenger {
@@ -156,7 +159,9 @@ public class UdpMessenger {
                     continue;
                 }
                 final InetAddress fromInetAddress = datagramPacket.getAddress();
-                addLog("Received from " + fromInetAddress + ",len:" + datagramPacket.getLength());
+                if (Logger.isLoggable(Subsystem.Net, Level.Debug)) {
+                    addLog("Received from " + fromInetAddress + ",len:" + datagramPacket.getLength());
+                }
                 final byte[] newData = Utils.copyData(datagramPacket.getData());
                 runInHandlerThread(new Runnable() {
                     @Override
@@ -0,0 +1,95 @@
+package wb.conn.wifi;
+
+import android.os.Handler;
+import wb.conn.CountingListeners;
+import wb.conn.ErrorListener;
+import wb.conn.LogListener;
+import wb.conn.MessageInfo;
+import wb.conn.MessageListener;
+import wb.conn.Transport;
+import wb.conn.TransportStats;
+
+// 使用UdpMessenger的Transport. 收到的消息在handler的线程中交给MessageListener.
+// 对方停止时发来的EventDisconnect作为断开连接通知, 不再当作消息.
+public class UdpTransport implements Transport {
+    private static final String FORMAT_NAME = "UDP:%d";
+
+    private final int mPort;
+    private final Handler mHandler;
+    private final LogListener mLogListener;
+    private final TransportStats mStats = new TransportStats();
+
+    private UdpMessenger mMessenger;
+
+    // logListener可以为null.
+    public UdpTransport(final int port, final Handler handler, final LogListener logListener) {
+        mPort = port;
+        mHandler = handler;
+        mLogListener = logListener;
+    }
+
+    @Override
+    public String getName() {
+        return String.format(FORMAT_NAME, mPort);
+    }
+
+    @Override
+    public synchronized void start(final MessageListener messageListener,
+                    final ErrorListener errorListener,
+                    final ConnectionListener connectionListener) {
+        final CountingListeners listeners = new CountingListeners(mStats, messageListener,
+                        errorListener) {
+            @Override
+            public void newMessageComes(final MessageInfo msgInfo) {
+                switch (msgInfo.messageType) {
+                    case EventDisconnect:
+                        mStats.countDisconnected();
+                        if (connectionListener != null) {
+                            connectionListener.onDisconnected(msgInfo.ip);
+                        }
+                        break;
+                    case EventConnected:
+                        mStats.countConnected();
+                        if (connectionListener != null) {
+                            connectionListener.onConnected(msgInfo.ip);
+                        }
+                        break;
+                    default:
+                        super.newMessageComes(msgInfo);
+                        break;
+                }
+            }
+        };
+        if (mMessenger != null) {
+            mMessenger.stop(null);
+        }
+        mMessenger = new UdpMessenger(mPort, mHandler, listeners, listeners, mLogListener);
+        mMessenger.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (mMessenger == null) return;
+        mMessenger.stop(null);
+        mMessenger = null;
+    }
+
+    @Override
+    public synchronized void send(final MessageInfo messageInfo) {
+        if (mMessenger == null) return;
+        mMessenger.sendMessage(messageInfo);
+    }
+
+    @Override
+    public void broadcast(final MessageInfo messageInfo, final String... addresses) {
+        // UdpMessenger发给多个ip时不带playerInfo, 所以一个个发.
+        for (String address : addresses) {
+            send(messageInfo.copyTo(address));
+        }
+    }
+
+    @Override
+    public TransportStats getStats() {
+        return mStats;
+    }
+}
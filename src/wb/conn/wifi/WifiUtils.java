@@ -2,6 +2,7 @@ package wb.conn.wifi;
 
 import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
 import java.util.Enumeration;
@@ -290,6 +291,26 @@ public class WifiUtils {
         return sInfoWifi.ipV4;
     }
 
+    // 本机WiFi IPv4地址所在的网卡地址, 包含子网的prefix length. 找不到时返回null.
+    public static InterfaceAddress getIpV4InterfaceAddress() {
+        final String ipV4 = sInfoWifi.ipV4;
+        if (ipV4 == null) return null;
+        try {
+            for (Enumeration<NetworkInterface> en = NetworkInterface
+                    .getNetworkInterfaces(); en.hasMoreElements();) {
+                for (InterfaceAddress interfaceAddress : en.nextElement().getInterfaceAddresses()) {
+                    InetAddress inetAddress = interfaceAddress.getAddress();
+                    if (inetAddress instanceof Inet4Address
+                                    && ipV4.equals(inetAddress.getHostAddress())) {
+                        return interfaceAddress;
+                    }
+                }
+            }
+        } catch (SocketException se) {
+        }
+        return null;
+    }
+
     private static String getIpV4() {
         try {
             return getLocalIp4Address();
@@ -0,0 +1,162 @@
+package wb.game.mahjong;
+
+import java.util.HashMap;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import wb.game.mahjong.model.Player;
+import wb.game.mahjong.model.WifiPlayer;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 每个需要player决定的地方都有一个期限, 过期后由manager替player做默认的决定(不要/托管打牌),
+// 这样一个慢的player不会让另外3个一直等.
+// 期限按这个player以前的反应时间算: 平滑的平均值 + 4倍偏差(同RTT的RTO),
+// 限制在Decision的[min, max]之间; 远端的player再加上两个心跳的RTO, 消息在路上的时间不算它慢.
+// 过期的不算样本, 不然总是不动的player期限会越来越长.
+// start()/finish()可以在任何线程中调用, 过期的Runnable在主线程中执行.
+class DecisionDeadlines {
+    static enum Decision {
+        Check(5000, 15000, 8000),    // 检查对打出的牌有没有action, 没有定缺之前要等.
+        Action(5000, 15000, 10000),  // 选择吃/碰/杠/胡或者不要.
+        Throw(8000, 30000, 15000);   // 打一张牌.
+
+        final long minMs;
+        final long maxMs;
+        final long initialMs; // 还没有样本时的期限.
+
+        private Decision(final long minMs, final long maxMs, final long initialMs) {
+            this.minMs = minMs;
+            this.maxMs = maxMs;
+            this.initialMs = initialMs;
+        }
+    }
+
+    // 一个player一种决定的反应时间, 单位毫秒.
+    private static class ResponseStats {
+        private long mMean = -1;
+        private long mDeviation;
+
+        void add(final long sample) {
+            if (mMean < 0) {
+                mMean = sample;
+                mDeviation = sample / 2;
+                return;
+            }
+            mDeviation += (Math.abs(mMean - sample) - mDeviation) / 4;
+            mMean += (sample - mMean) / 8;
+        }
+
+        long getDeadline(final Decision decision) {
+            if (mMean < 0) return decision.initialMs;
+            return Math.min(decision.maxMs, Math.max(decision.minMs, mMean + 4 * mDeviation));
+        }
+    }
+
+    private static class Pending {
+        final long startTime;
+        final Runnable expiry;
+
+        Pending(final long startTime, final Runnable expiry) {
+            this.startTime = startTime;
+            this.expiry = expiry;
+        }
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 以下由this保护, 数组下标是Decision.ordinal().
+    private final HashMap<Player, ResponseStats[]> mStats = new HashMap<Player, ResponseStats[]>(4);
+    private final HashMap<Player, Pending[]> mPendings = new HashMap<Player, Pending[]>(4);
+
+    // 开始等player做决定, 到期还没有finish()就执行onExpired. 同一个决定重复start()时重新计时.
+    synchronized void start(final Player player, final Decision decision,
+                    final Runnable onExpired) {
+        cancel(player, decision);
+        final long deadline = getDeadline(player, decision);
+        final Pending pending = new Pending(SystemClock.elapsedRealtime(), new Runnable() {
+            @Override
+            public void run() {
+                if (!remove(player, decision, this)) return;
+                Logger.w(Subsystem.Game, "{} timed out on {}", player.name, decision);
+                onExpired.run();
+            }
+        });
+        getPendings(player)[decision.ordinal()] = pending;
+        mHandler.postDelayed(pending.expiry, deadline);
+    }
+
+    // player做了决定, 记下反应时间.
+    synchronized void finish(final Player player, final Decision decision) {
+        final Pending pending = cancel(player, decision);
+        if (pending == null) return;
+        final long responseTime = SystemClock.elapsedRealtime() - pending.startTime;
+        getStats(player)[decision.ordinal()].add(responseTime);
+    }
+
+    // 替player做了决定(比如它断开了), 不算样本.
+    synchronized void abandon(final Player player, final Decision decision) {
+        cancel(player, decision);
+    }
+
+    // 牌局结束时调用, 反应时间的统计保留到下一局.
+    synchronized void cancelAll() {
+        for (Pending[] pendings : mPendings.values()) {
+            for (int i = 0; i < pendings.length; i++) {
+                if (pendings[i] != null) mHandler.removeCallbacks(pendings[i].expiry);
+                pendings[i] = null;
+            }
+        }
+    }
+
+    synchronized long getDeadline(final Player player, final Decision decision) {
+        long deadline = getStats(player)[decision.ordinal()].getDeadline(decision);
+        if (player instanceof WifiPlayer) {
+            final Heartbeat.PeerStats peer = RemoteConnector.getInstance().getHeartbeat()
+                            .getStats(((WifiPlayer) player).ipv4);
+            if (peer != null) deadline += 2 * peer.getRto();
+        }
+        return deadline;
+    }
+
+    private Pending cancel(final Player player, final Decision decision) {
+        final Pending[] pendings = getPendings(player);
+        final Pending pending = pendings[decision.ordinal()];
+        if (pending == null) return null;
+        pendings[decision.ordinal()] = null;
+        mHandler.removeCallbacks(pending.expiry);
+        return pending;
+    }
+
+    // 到期时还是这个Pending才算过期, 返回false表示已经finish()或者重新start()了.
+    private synchronized boolean remove(final Player player, final Decision decision,
+                    final Runnable expiry) {
+        final Pending[] pendings = getPendings(player);
+        final Pending pending = pendings[decision.ordinal()];
+        if (pending == null || pending.expiry != expiry) return false;
+        pendings[decision.ordinal()] = null;
+        return true;
+    }
+
+    private ResponseStats[] getStats(final Player player) {
+        ResponseStats[] stats = mStats.get(player);
+        if (stats == null) {
+            stats = new ResponseStats[Decision.values().length];
+            for (int i = 0; i < stats.length; i++) {
+                stats[i] = new ResponseStats();
+            }
+            mStats.put(player, stats);
+        }
+        return stats;
+    }
+
+    private Pending[] getPendings(final Player player) {
+        Pending[] pendings = mPendings.get(player);
+        if (pendings == null) {
+            pendings = new Pending[Decision.values().length];
+            mPendings.put(player, pendings);
+        }
+        return pendings;
+    }
+}
@@ -0,0 +1,291 @@
+package wb.game.mahjong;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.text.TextUtils;
+import wb.conn.MessageInfo;
+import wb.conn.RemoteMessage;
+import wb.conn.RemoteMessage.ConnMessage;
+import wb.game.mahjong.model.Player;
+import wb.game.mahjong.model.WifiPlayer;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 牌局连接上的心跳: 定时给每个远端发MSG_HEARTBEAT_PING, 远端马上回MSG_HEARTBEAT_PONG.
+// 1. 每个远端(按ip)记录平滑的RTT和偏差(同TCP的SRTT/RTTVAR), 以及抖动(相邻两次RTT之差的平滑值);
+// 2. 收到远端的任何消息都算它还活着; 太久没有消息时通知Listener.onPeerLost(),
+//    之后又收到消息时通知onPeerRecovered(). 这样不用等阻塞的read()出错才知道对方断了;
+// 3. ping/pong在Transport的接收线程中直接处理, 不经过MahjongManager, 不受牌局处理的影响;
+// 4. 能知道连接状态的Transport(UDP, loopback)通知断开时马上算作断开, 不用等超时.
+// 远端是收到过它的消息的ip, host上就是各个client, client上就是host.
+// 定时任务在RemoteConnector的HandlerThread中执行.
+public class Heartbeat {
+    private static final long PING_INTERVAL_MS = 1000;
+    // 这么多个间隔没有任何消息就认为断开了, 另外加上RTO(SRTT + 4 * RTTVAR).
+    private static final int MISSED_PINGS = 3;
+    private static final long MIN_LOST_TIMEOUT_MS = 4000;
+    // 还没有RTT时的RTO.
+    private static final long INITIAL_RTO_MS = 1000;
+
+    private static final String FORMAT_OVERLAY = "%s rtt=%d±%d jit=%d loss=%d%s\n";
+    private static final String LOST = " LOST";
+
+    public static interface Listener {
+        // 在RemoteConnector的HandlerThread中调用.
+        void onPeerLost(String ip);
+        void onPeerRecovered(String ip);
+    }
+
+    // 一个远端的统计, 时间单位都是毫秒. 由this保护.
+    public static class PeerStats {
+        public final String ip;
+
+        private long mLastHeardTime = SystemClock.elapsedRealtime();
+        private long mLastRtt = -1;
+        private long mSmoothedRtt = -1;
+        private long mRttVariance;
+        private long mJitter;
+        private long mPingCount;
+        private long mPongCount;
+        private boolean mLost;
+        // Transport通知断开了, 之后再收到消息为止.
+        private boolean mDisconnected;
+
+        PeerStats(final String ip) {
+            this.ip = ip;
+        }
+
+        synchronized void heard(final long now) {
+            mLastHeardTime = now;
+            mDisconnected = false;
+        }
+
+        synchronized void disconnected() {
+            mDisconnected = true;
+        }
+
+        synchronized boolean isDisconnected() {
+            return mDisconnected;
+        }
+
+        synchronized void pinged() {
+            mPingCount++;
+        }
+
+        // RFC 6298: SRTT += (R - SRTT) / 8, RTTVAR += (|SRTT - R| - RTTVAR) / 4;
+        // 抖动同RFC 3550: J += (|D| - J) / 16, D是相邻两次RTT之差.
+        synchronized void ponged(final long rtt) {
+            mPongCount++;
+            if (mSmoothedRtt < 0) {
+                mSmoothedRtt = rtt;
+                mRttVariance = rtt / 2;
+            } else {
+                mRttVariance += (Math.abs(mSmoothedRtt - rtt) - mRttVariance) / 4;
+                mSmoothedRtt += (rtt - mSmoothedRtt) / 8;
+            }
+            if (mLastRtt >= 0) {
+                mJitter += (Math.abs(rtt - mLastRtt) - mJitter) / 16;
+            }
+            mLastRtt = rtt;
+        }
+
+        public synchronized long getSmoothedRtt() {
+            return mSmoothedRtt;
+        }
+
+        public synchronized long getRttVariance() {
+            return mRttVariance;
+        }
+
+        public synchronized long getJitter() {
+            return mJitter;
+        }
+
+        // 多久没有回复就可以认为这个远端有问题了.
+        public synchronized long getRto() {
+            if (mSmoothedRtt < 0) return INITIAL_RTO_MS;
+            return mSmoothedRtt + 4 * mRttVariance;
+        }
+
+        // 没有回复的ping, 包括还在路上的.
+        public synchronized long getLossCount() {
+            return mPingCount - mPongCount;
+        }
+
+        public synchronized boolean isLost() {
+            return mLost;
+        }
+
+        synchronized long getLostTimeout() {
+            return Math.max(MIN_LOST_TIMEOUT_MS, MISSED_PINGS * PING_INTERVAL_MS + getRto());
+        }
+
+        // 返回状态是否变了.
+        synchronized boolean updateLost(final long now) {
+            final boolean lost = mDisconnected || now - mLastHeardTime > getLostTimeout();
+            if (lost == mLost) return false;
+            mLost = lost;
+            return true;
+        }
+    }
+
+    private final Handler mHandler;
+    private final ConcurrentHashMap<String, PeerStats> mPeers =
+                    new ConcurrentHashMap<String, PeerStats>(4);
+    private volatile Listener mListener;
+    private boolean mRunning; // 只在mHandler的线程中访问.
+
+    private final Runnable mTick = new Runnable() {
+        @Override
+        public void run() {
+            if (!mRunning) return;
+            final long now = SystemClock.elapsedRealtime();
+            for (PeerStats stats : mPeers.values()) {
+                checkLost(stats, now);
+                if (!stats.isDisconnected()) ping(stats);
+            }
+            mHandler.postDelayed(this, PING_INTERVAL_MS);
+        }
+    };
+
+    Heartbeat(final Handler handler) {
+        mHandler = handler;
+    }
+
+    void setListener(final Listener listener) {
+        mListener = listener;
+    }
+
+    void start() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (mRunning) return;
+                mRunning = true;
+                mHandler.postDelayed(mTick, PING_INTERVAL_MS);
+            }
+        });
+    }
+
+    void stop() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mRunning = false;
+                mHandler.removeCallbacks(mTick);
+                mPeers.clear();
+            }
+        });
+    }
+
+    public PeerStats getStats(final String ip) {
+        return ip == null ? null : mPeers.get(ip);
+    }
+
+    // 在Transport的接收线程中调用. 返回true表示是心跳消息, 已经处理了.
+    boolean onMessageReceived(final MessageInfo msgInfo) {
+        final long now = SystemClock.elapsedRealtime();
+        final PeerStats stats = getOrCreateStats(msgInfo.ip);
+        if (stats != null) stats.heard(now);
+
+        final ConnMessage connMessage = RemoteMessage.peekConnMessage(msgInfo);
+        if (connMessage == ConnMessage.MSG_HEARTBEAT_PING) {
+            // 原样带回ping的内容(发送的时间).
+            sendHeartbeat(ConnMessage.MSG_HEARTBEAT_PONG, msgInfo.ip,
+                            (String) RemoteMessage.parse(msgInfo).content);
+            return true;
+        }
+        if (connMessage == ConnMessage.MSG_HEARTBEAT_PONG) {
+            if (stats != null) {
+                try {
+                    final long sentTime = Long.parseLong(
+                                    ((String) RemoteMessage.parse(msgInfo).content).trim());
+                    stats.ponged(Math.max(now - sentTime, 0));
+                } catch (NumberFormatException nfe) {
+                    Logger.w(Subsystem.Net, "Invalid pong from {}: {}", msgInfo.ip, nfe);
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    // 在Transport的线程中调用. 连上的远端马上开始ping, 不用等它先发消息.
+    void onPeerConnected(final String ip) {
+        final PeerStats stats = getOrCreateStats(ip);
+        if (stats != null) stats.heard(SystemClock.elapsedRealtime());
+    }
+
+    // 在Transport的线程中调用.
+    void onPeerDisconnected(final String ip) {
+        final PeerStats stats = getStats(ip);
+        if (stats == null) return;
+        stats.disconnected();
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (!mRunning) return;
+                checkLost(stats, SystemClock.elapsedRealtime());
+            }
+        });
+    }
+
+    private PeerStats getOrCreateStats(final String ip) {
+        if (TextUtils.isEmpty(ip)) return null;
+        PeerStats stats = mPeers.get(ip);
+        if (stats != null) return stats;
+        stats = new PeerStats(ip);
+        final PeerStats existing = mPeers.putIfAbsent(ip, stats);
+        return existing != null ? existing : stats;
+    }
+
+    private void ping(final PeerStats stats) {
+        stats.pinged();
+        sendHeartbeat(ConnMessage.MSG_HEARTBEAT_PING, stats.ip,
+                        Long.toString(SystemClock.elapsedRealtime()));
+    }
+
+    private static void sendHeartbeat(final ConnMessage connMessage, final String ip,
+                    final String content) {
+        RemoteConnector.getInstance().sendGameMessage(
+                        RemoteMessage.constructStringMessage(connMessage, ip, null, content));
+    }
+
+    private void checkLost(final PeerStats stats, final long now) {
+        if (!stats.updateLost(now)) return;
+        final Listener listener = mListener;
+        if (stats.isLost()) {
+            Logger.w(Subsystem.Net, "Peer {} lost, rto={}", stats.ip, stats.getRto());
+            if (listener != null) listener.onPeerLost(stats.ip);
+        } else {
+            Logger.i(Subsystem.Net, "Peer {} recovered", stats.ip);
+            if (listener != null) listener.onPeerRecovered(stats.ip);
+        }
+    }
+
+    // 调试用的简要信息, 单位毫秒. 有WifiPlayer的ip显示player的名字.
+    public String overlayString(final Player[] players) {
+        final ArrayList<PeerStats> peers = new ArrayList<PeerStats>(mPeers.values());
+        if (peers.isEmpty()) return "";
+        StringBuilder sb = new StringBuilder();
+        for (PeerStats stats : peers) {
+            sb.append(String.format(FORMAT_OVERLAY, getPeerName(stats.ip, players),
+                            stats.getSmoothedRtt(), stats.getRttVariance(), stats.getJitter(),
+                            stats.getLossCount(), stats.isLost() ? LOST : ""));
+        }
+        return sb.toString();
+    }
+
+    private static String getPeerName(final String ip, final Player[] players) {
+        if (players == null) return ip;
+        for (Player player : players) {
+            if (player instanceof WifiPlayer && TextUtils.equals(ip, ((WifiPlayer) player).ipv4)) {
+                return player.name;
+            }
+        }
+        return ip;
+    }
+}
@@ -0,0 +1,269 @@
+package wb.game.mahjong;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Base64;
+import wb.conn.MessageUtils;
+import wb.game.mahjong.MahjongManager.Location;
+import wb.game.mahjong.model.LocalPlayer;
+import wb.game.mahjong.model.Player;
+import wb.game.mahjong.model.WifiPlayer;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 庄家端断开时的host迁移.
+// 庄家端(Game.isMasterGame)有牌墙, 其他设备只有剩余牌数, 庄家端断开后整桌就打不下去了.
+// 1. 备用端: 庄家端不是TCP host时就是host(client之间不直接通信, 只有host连得到庄家端),
+//    否则是从庄家的下家开始第一个真人设备. 各设备按同样的座次和庄家算出来, 不用协商;
+// 2. 庄家端每发一张牌, 在牌交出去之前把Game的状态(同快照)用这一局的AES key加密后发给备用端,
+//    key和明文的SHA-256发给其他真人设备保管, 备用端平时看不到牌墙.
+//    没有别的设备可以保管时(庄家端是client, 或者只有两个真人设备)不迁移: key不能交给备用端,
+//    而庄家端断开以后也没法再交出key, 所以牌墙也不复制;
+// 3. 庄家端断开后, 保管者把最近的几个key一起交给备用端, 备用端找两边都有的最新一次,
+//    解密并核对SHA-256, 和保管者手中的一致才成为master接着发牌.
+// 断开的设备上的player由新的庄家端当作dummy接着打, 见MahjongManager.migrateHost().
+class HostMigration {
+    private static final String CIPHER = "AES/CBC/PKCS5Padding";
+    private static final String KEY_ALGORITHM = "AES";
+    private static final String DIGEST = "SHA-256";
+    private static final int KEY_BYTES = 16;
+    private static final int IV_BYTES = 16;
+    // 备用端保留最近几次的牌墙, 保管者保留最近几个key. 断开时两边最新的一次不一定相同.
+    private static final int MAX_WALLS = 4;
+
+    // 保管者重复交出key, 直到收到MSG_MIGRATION_DONE. 重新连接之前发的会丢掉.
+    private static final long RELEASE_INTERVAL_MS = 1000;
+    private static final int MAX_RELEASES = 30;
+
+    private static final String SEPARATOR = ",";
+    // 一起交出的几个key之间的分隔, 不会出现在Base64中.
+    private static final String KEY_SEPARATOR = ";";
+    // 牌墙: seq, iv, 密文; key: seq, key, 明文的SHA-256.
+    private static final String FORMAT_ENTRY = "%d,%s,%s";
+
+    private static class Entry {
+        final int seq;
+        final byte[] first;
+        final byte[] second;
+
+        Entry(final int seq, final byte[] first, final byte[] second) {
+            this.seq = seq;
+            this.first = first;
+            this.second = second;
+        }
+    }
+
+    private final SecureRandom mRandom = new SecureRandom();
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    // 以下由this保护.
+    // 庄家端: 这一局的key和已经发出的牌墙数.
+    private byte[] mKey;
+    private int mSeq;
+    // 备用端: 最近的加密牌墙.
+    private final HashMap<Integer, Entry> mWalls = new HashMap<Integer, Entry>(MAX_WALLS);
+    // 保管者: 最近的key, 备用端也记下交回的key.
+    private final HashMap<Integer, String> mKeys = new HashMap<Integer, String>(MAX_WALLS);
+    private Runnable mRelease;
+    // 庄家端: 这一局没有保管者, 不迁移.
+    private boolean mDisabled;
+
+    // 庄家端不是host时备用端就是host, 否则是庄家下家开始第一个真人设备. 没有时返回null.
+    static String getStandbyIp(final Player[] players, final Player banker, final String hostIp) {
+        final String masterIp = MessageUtils.getPlayerIp(banker);
+        if (!TextUtils.equals(masterIp, hostIp)) return hostIp;
+        Location location = banker.getLocation();
+        for (int i = 1; i < players.length; i++) {
+            location = Location.getNextLocation(location);
+            final Player player = findPlayer(players, location);
+            if (!isHuman(player)) continue;
+            final String ip = MessageUtils.getPlayerIp(player);
+            if (!TextUtils.equals(ip, masterIp)) return ip;
+        }
+        return null;
+    }
+
+    // 除了庄家端和备用端以外的真人设备. 庄家端是client时连不到其他client, 没有保管者.
+    static ArrayList<String> getKeyHolderIps(final Player[] players, final Player banker,
+                    final String hostIp, final String standbyIp) {
+        final ArrayList<String> ips = new ArrayList<String>(players.length);
+        final String masterIp = MessageUtils.getPlayerIp(banker);
+        if (!TextUtils.equals(masterIp, hostIp)) return ips;
+        for (Player player : players) {
+            if (!isHuman(player)) continue;
+            final String ip = MessageUtils.getPlayerIp(player);
+            if (TextUtils.equals(ip, masterIp) || TextUtils.equals(ip, standbyIp)) continue;
+            if (!ips.contains(ip)) ips.add(ip);
+        }
+        return ips;
+    }
+
+    private static boolean isHuman(final Player player) {
+        return player instanceof LocalPlayer || player instanceof WifiPlayer;
+    }
+
+    private static Player findPlayer(final Player[] players, final Location location) {
+        for (Player player : players) {
+            if (player.getLocation() == location) return player;
+        }
+        return null;
+    }
+
+    // 新的一局开始时每个设备都调用, 庄家端下次seal()时换新的key.
+    synchronized void resetDeal() {
+        mKey = null;
+        mSeq = 0;
+        mWalls.clear();
+        mKeys.clear();
+        mDisabled = false;
+        stopReleasing();
+    }
+
+    // 庄家端: 这一局不迁移. 返回这一局是不是第一次调用, 用于只记一次日志.
+    synchronized boolean disable() {
+        if (mDisabled) return false;
+        mDisabled = true;
+        return true;
+    }
+
+    // 庄家端: 加密state, 返回{发给备用端的牌墙, 发给保管者的key}.
+    synchronized String[] seal(final byte[] state) throws GeneralSecurityException {
+        if (mKey == null) {
+            mKey = new byte[KEY_BYTES];
+            mRandom.nextBytes(mKey);
+        }
+        mSeq++;
+        final byte[] iv = new byte[IV_BYTES];
+        mRandom.nextBytes(iv);
+        final Cipher cipher = Cipher.getInstance(CIPHER);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mKey, KEY_ALGORITHM),
+                        new IvParameterSpec(iv));
+        final String wall = String.format(FORMAT_ENTRY, mSeq, encode(iv),
+                        encode(cipher.doFinal(state)));
+        final String key = String.format(FORMAT_ENTRY, mSeq, encode(mKey),
+                        encode(MessageDigest.getInstance(DIGEST).digest(state)));
+        return new String[] {wall, key};
+    }
+
+    // 备用端: 收到庄家端发来的牌墙.
+    synchronized void storeWall(final String content) {
+        final Entry wall = parse(content);
+        if (wall == null) return;
+        mWalls.put(wall.seq, wall);
+        mWalls.remove(wall.seq - MAX_WALLS);
+    }
+
+    // 保管者: 收到庄家端发来的key.
+    synchronized void storeKey(final String content) {
+        final Entry key = parse(content);
+        if (key == null) return;
+        mKeys.put(key.seq, content);
+        mKeys.remove(key.seq - MAX_WALLS);
+    }
+
+    // 保管者: 要交给备用端的所有key, 没有时返回null.
+    synchronized String getKeyEntries() {
+        if (mKeys.isEmpty()) return null;
+        return TextUtils.join(KEY_SEPARATOR, mKeys.values());
+    }
+
+    // 备用端: 记下交回的key, 从两边都有的最新一次开始解密牌墙, 核对SHA-256. 都失败返回null.
+    synchronized byte[] open(final String keyEntries) {
+        if (keyEntries == null) return null;
+        for (String keyEntry : keyEntries.split(KEY_SEPARATOR)) {
+            storeKey(keyEntry);
+        }
+        int seq = -1;
+        for (int keySeq : mKeys.keySet()) {
+            if (keySeq > seq && mWalls.containsKey(keySeq)) seq = keySeq;
+        }
+        if (seq < 0) {
+            Logger.w(Subsystem.Game, "No wall to take over, {} keys", mKeys.size());
+            return null;
+        }
+        for (int i = seq; i > seq - MAX_WALLS; i--) {
+            final Entry wall = mWalls.get(i);
+            final Entry key = wall == null ? null : parse(mKeys.get(i));
+            if (key == null) continue;
+            final byte[] state = open(wall, key);
+            if (state != null) return state;
+        }
+        return null;
+    }
+
+    private static byte[] open(final Entry wall, final Entry key) {
+        try {
+            final Cipher cipher = Cipher.getInstance(CIPHER);
+            cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key.first, KEY_ALGORITHM),
+                            new IvParameterSpec(wall.first));
+            final byte[] state = cipher.doFinal(wall.second);
+            if (!MessageDigest.isEqual(MessageDigest.getInstance(DIGEST).digest(state),
+                            key.second)) {
+                Logger.w(Subsystem.Game, "Wall #{} doesn't match the key holder's", key.seq);
+                return null;
+            }
+            return state;
+        } catch (GeneralSecurityException gse) {
+            Logger.w(Subsystem.Game, "Failed to open wall #{}: {}", key.seq, gse);
+            return null;
+        }
+    }
+
+    // 保管者: 在主线程中重复执行release, 直到stopReleasing()或者MAX_RELEASES次.
+    synchronized void startReleasing(final Runnable release) {
+        stopReleasing();
+        mRelease = new Runnable() {
+            private int mCount;
+
+            @Override
+            public void run() {
+                synchronized (HostMigration.this) {
+                    if (mRelease != this) return;
+                }
+                release.run();
+                if (++mCount < MAX_RELEASES) mHandler.postDelayed(this, RELEASE_INTERVAL_MS);
+            }
+        };
+        mHandler.post(mRelease);
+    }
+
+    synchronized void stopReleasing() {
+        if (mRelease == null) return;
+        mHandler.removeCallbacks(mRelease);
+        mRelease = null;
+    }
+
+    private static Entry parse(final String content) {
+        if (content == null) return null;
+        final String[] fields = content.split(SEPARATOR);
+        if (fields.length != 3) {
+            Logger.w(Subsystem.Net, "Invalid migration entry: {}", content);
+            return null;
+        }
+        try {
+            return new Entry(Integer.parseInt(fields[0]), decode(fields[1]), decode(fields[2]));
+        } catch (IllegalArgumentException iae) { // 包括NumberFormatException.
+            Logger.w(Subsystem.Net, "Invalid migration entry: {}", iae);
+            return null;
+        }
+    }
+
+    private static String encode(final byte[] data) {
+        return Base64.encodeToString(data, Base64.NO_WRAP);
+    }
+
+    private static byte[] decode(final String data) {
+        return Base64.decode(data, Base64.NO_WRAP);
+    }
+}
@@ -0,0 +1,596 @@
+package wb.game.mahjong;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Debug;
+import android.os.Process;
+import android.os.SystemClock;
+import wb.conn.ErrorListener;
+import wb.conn.LoopbackTransport;
+import wb.conn.MessageInfo;
+import wb.conn.MessageListener;
+import wb.conn.RemoteMessage;
+import wb.conn.RemoteMessage.ConnMessage;
+import wb.conn.wifi.UdpMessenger.Result;
+import wb.game.mahjong.model.TurnStats.Histogram;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 网络压力测试: 在本机打开很多个模拟的client连到host的TcpServer, 按固定的速率发请求,
+// 统计host(TcpServer -> MessageRouter -> MahjongManager -> RemoteConnector -> TcpServer)的响应.
+// 1. 每个client从不同的127.x.x.x地址连接, host按ip区分client, 和真实的client一样;
+// 2. 握手: 连上后发MSG_HEARTBEAT_PING, 等host回MSG_HEARTBEAT_PONG. ping由host的Heartbeat在接收线程中
+//    直接回复, 不经过MahjongManager, 所以握手对host的牌局没有影响;
+// 3. 请求是host一定会回复给发送者的消息(见sScript), 从发出到收到回复的时间算一次请求的往返延迟.
+//    模拟的client不入座, 不出牌也不吃碰杠, 所以这不是牌局中一次action的延迟,
+//    只是host收发和分发消息的开销;
+// 4. 所有client共用一个发送线程, 每个间隔每个client发一个请求(即一批突发的消息);
+//    每个client一个读线程; 请求的数据只编码一次, 尽量不影响host的统计.
+// 5. loopback模式: host的牌局Transport是LoopbackTransport, client在同一个Hub上, 不经过socket,
+//    只测host自己的处理. 这时消息的编解码都在发送的线程中,
+//    client的接收线程没有单独统计, 算在host上.
+// 结果: 延迟的分位数, 吞吐量, host的CPU时间和内存分配(都是进程的减去模拟client线程的).
+public class LoadGenerator {
+    // loopback模式下也是host在Hub上的地址.
+    static final String HOST_IP = "127.0.0.1";
+    // 第一个client的地址是127.0.0.2.
+    private static final int FIRST_CLIENT_IP = 0x7f000002;
+    private static final String FORMAT_IP = "%d.%d.%d.%d";
+    private static final int MAX_CLIENTS = 1000;
+
+    private static final int DEFAULT_REQUESTS_PER_SECOND = 10;
+    private static final long DEFAULT_DURATION_MS = 60 * 1000L;
+
+    private static final int CONNECT_TIMEOUT_MS = 3000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 5000;
+    // 发完以后等最后一批回复的时间.
+    private static final long DRAIN_TIMEOUT_MS = 3000;
+
+    // 每个client最多有多少个请求在等回复, 超过时这次不发(算作skipped). 必须是2的幂.
+    private static final int MAX_OUTSTANDING = 256;
+    private static final int MAX_FRAME_SIZE = 1 << 20;
+
+    private static final String THREAD_NAME = "load-generator";
+    private static final String FORMAT_READ_THREAD_NAME = "load-client-%s";
+
+    // 请求和host的回复. host处理这两个请求没有副作用.
+    private static final ConnMessage[] sScript = {
+        ConnMessage.MSG_CHECK_REMOTE_STATE,
+        ConnMessage.MSG_CHECK_13_TILES_OK,
+    };
+    private static final ConnMessage[] sReplies = {
+        ConnMessage.MSG_REMOTE_STATE,
+        ConnMessage.MSG_PLAYER_13_TILES_STATE,
+    };
+
+    private static final String FORMAT_REPORT_HEADER =
+                    "clients=%d/%d started=%d rate=%d/s duration=%dms\n";
+    private static final String FORMAT_REPORT_COUNTS =
+                    "requests=%d replies=%d skipped=%d other=%d errors=%d throughput=%.1f/s\n";
+    private static final String FORMAT_REPORT_LATENCY =
+                    "request rtt(us) mean=%d p50=%d p90=%d p99=%d p999=%d max=%d\n";
+    private static final String FORMAT_REPORT_HOST =
+                    "cpu(ms) process=%d clients=%d host=%d, "
+                    + "host alloc=%d bytes/%d objects, gc=%d\n";
+
+    private final int mClientCount;
+    private final int mRequestsPerSecond;
+    private final long mDurationMs;
+    private final int mPort;
+    // 不为null时是loopback模式.
+    private final LoopbackTransport.Hub mHub;
+
+    private final boolean[] mIsReply = new boolean[ConnMessage.values().length];
+    private MessageInfo[] mRequestMessages;
+    private byte[][] mRequests;
+    private MessageInfo mPingMessage;
+    private byte[] mPingData;
+
+    private final ArrayList<Client> mClients = new ArrayList<Client>();
+    private CountDownLatch mStarted;
+
+    private final Histogram mLatency = new Histogram();
+    private final AtomicLong mRequestCount = new AtomicLong();
+    private final AtomicLong mReplyCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+    private final AtomicLong mOtherCount = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    // 模拟client的线程用掉的CPU时间和分配的内存, 从进程的统计中减掉.
+    private final AtomicLong mClientCpuNanos = new AtomicLong();
+    private final AtomicLong mClientAllocBytes = new AtomicLong();
+    private final AtomicLong mClientAllocCount = new AtomicLong();
+
+    private int mStartedCount;
+    private long mElapsedMs;
+    private long mProcessCpuMs;
+    private long mAllocBytes;
+    private long mAllocCount;
+    private int mGcCount;
+
+    private volatile boolean mCancelled;
+
+    public LoadGenerator(final int clientCount) {
+        this(clientCount, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_DURATION_MS,
+                        RemoteConnector.getTcpPort(), null);
+    }
+
+    // hub: host的LoopbackTransport所在的Hub, 见RemoteConnector.startLoopback().
+    public LoadGenerator(final int clientCount, final LoopbackTransport.Hub hub) {
+        this(clientCount, DEFAULT_REQUESTS_PER_SECOND, DEFAULT_DURATION_MS, 0, hub);
+    }
+
+    // requestsPerSecond: 每个client每秒发多少个请求.
+    // hub为null时client通过TCP连到本机port上的host, 否则在hub上.
+    public LoadGenerator(final int clientCount, final int requestsPerSecond,
+                    final long durationMs, final int port, final LoopbackTransport.Hub hub) {
+        if (clientCount <= 0 || clientCount > MAX_CLIENTS) {
+            throw new RuntimeException("Invalid client count: " + clientCount);
+        }
+        if (requestsPerSecond <= 0) {
+            throw new RuntimeException("Invalid request rate: " + requestsPerSecond);
+        }
+        mClientCount = clientCount;
+        mRequestsPerSecond = requestsPerSecond;
+        mDurationMs = durationMs;
+        mPort = port;
+        mHub = hub;
+        for (ConnMessage reply : sReplies) {
+            mIsReply[reply.ordinal()] = true;
+        }
+    }
+
+    public void cancel() {
+        mCancelled = true;
+    }
+
+    // 在后台线程中运行, 结束后把报告写入日志和reportFilepath.
+    public void start(final String reportFilepath) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                LoadGenerator.this.run();
+                Logger.i(Subsystem.Net, "Load test finished:\n{}", report());
+                dump(reportFilepath);
+            }
+        }, THREAD_NAME);
+        thread.start();
+    }
+
+    // 阻塞直到测试结束或者被cancel().
+    public void run() {
+        mRequestMessages = new MessageInfo[sScript.length];
+        mRequests = new byte[sScript.length][];
+        for (int i = 0; i < sScript.length; i++) {
+            mRequestMessages[i] = RemoteMessage.constructStringMessage(sScript[i], HOST_IP,
+                            null, null);
+            mRequests[i] = encode(mRequestMessages[i]);
+            if (mRequests[i] == null) return;
+        }
+        // host原样带回ping的内容, 不关心是什么.
+        mPingMessage = RemoteMessage.constructStringMessage(ConnMessage.MSG_HEARTBEAT_PING,
+                        HOST_IP, null, Long.toString(SystemClock.elapsedRealtime()));
+        mPingData = encode(mPingMessage);
+        if (mPingData == null) return;
+
+        Debug.resetGlobalAllocCounters();
+        Debug.startAllocCounting();
+        final int startGcCount = Debug.getGlobalGcInvocationCount();
+        final long startCpuMs = Process.getElapsedCpuTime();
+        final long startCpuNanos = threadCpuNanos();
+        resetThreadAllocCounters();
+        final long startTime = SystemClock.elapsedRealtime();
+        try {
+            connectClients();
+            handshake();
+            sendRequests();
+            drain();
+        } finally {
+            stopClients();
+            mClientCpuNanos.addAndGet(threadCpuNanos() - startCpuNanos);
+            addThreadAllocCounters();
+            mElapsedMs = SystemClock.elapsedRealtime() - startTime;
+            mProcessCpuMs = Process.getElapsedCpuTime() - startCpuMs;
+            mGcCount = Debug.getGlobalGcInvocationCount() - startGcCount;
+            mAllocBytes = Math.max(Debug.getGlobalAllocSize() - mClientAllocBytes.get(), 0);
+            mAllocCount = Math.max(Debug.getGlobalAllocCount() - mClientAllocCount.get(), 0);
+            Debug.stopAllocCounting();
+        }
+    }
+
+    // 和MessageInfo在TcpUtils中的格式一样, 不含前面的长度.
+    private static byte[] encode(final MessageInfo messageInfo) {
+        try {
+            return MessageInfo.constructMessageData(messageInfo);
+        } catch (IOException ioe) {
+            Logger.e(Subsystem.Net, "Failed to encode {}: {}",
+                            RemoteMessage.peekConnMessage(messageInfo), ioe);
+            return null;
+        }
+    }
+
+    private static String getClientIp(final int index) {
+        final int ip = FIRST_CLIENT_IP + index;
+        return String.format(FORMAT_IP, ip >>> 24, (ip >>> 16) & 0xff, (ip >>> 8) & 0xff,
+                        ip & 0xff);
+    }
+
+    private void connectClients() {
+        final InetSocketAddress hostAddress = mHub != null ? null
+                        : new InetSocketAddress(HOST_IP, mPort);
+        for (int i = 0; i < mClientCount && !mCancelled; i++) {
+            if (mHub != null) {
+                mClients.add(new LoopbackLoadClient(getClientIp(i)));
+                continue;
+            }
+            try {
+                mClients.add(new TcpLoadClient(getClientIp(i), hostAddress));
+            } catch (IOException ioe) {
+                mErrorCount.incrementAndGet();
+                Logger.w(Subsystem.Net, "Load client {} failed to connect: {}", i, ioe);
+            }
+        }
+    }
+
+    private void handshake() {
+        mStarted = new CountDownLatch(mClients.size());
+        for (Client client : mClients) {
+            client.startReading();
+            client.sendPing();
+        }
+        try {
+            mStarted.await(HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        mStartedCount = (int)(mClients.size() - mStarted.getCount());
+    }
+
+    private void sendRequests() {
+        final long intervalNanos = 1000000000L / mRequestsPerSecond;
+        final long endTime = System.nanoTime() + mDurationMs * 1000000L;
+        long nextTime = System.nanoTime();
+        while (!mCancelled && nextTime < endTime) {
+            for (Client client : mClients) {
+                client.sendRequest();
+            }
+            nextTime += intervalNanos;
+            final long waitMs = (nextTime - System.nanoTime()) / 1000000L;
+            if (waitMs > 0) SystemClock.sleep(waitMs);
+        }
+    }
+
+    private void drain() {
+        final long deadline = SystemClock.elapsedRealtime() + DRAIN_TIMEOUT_MS;
+        while (!mCancelled && SystemClock.elapsedRealtime() < deadline) {
+            boolean pending = false;
+            for (Client client : mClients) {
+                if (client.getOutstanding() > 0) {
+                    pending = true;
+                    break;
+                }
+            }
+            if (!pending) return;
+            SystemClock.sleep(10);
+        }
+    }
+
+    private void stopClients() {
+        for (Client client : mClients) {
+            client.close();
+        }
+        for (Client client : mClients) {
+            client.join();
+        }
+    }
+
+    private static long threadCpuNanos() {
+        return Math.max(Debug.threadCpuTimeNanos(), 0);
+    }
+
+    // 当前线程的分配计数只在startAllocCounting()之后才有; 模拟client的线程开始时清零, 结束时加到总数中.
+    private static void resetThreadAllocCounters() {
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+    }
+
+    private void addThreadAllocCounters() {
+        mClientAllocBytes.addAndGet(Debug.getThreadAllocSize());
+        mClientAllocCount.addAndGet(Debug.getThreadAllocCount());
+    }
+
+    // 一个模拟的client. 请求在发送线程中发出, 回复在client自己的接收线程中处理.
+    private abstract class Client {
+        protected final String mIp;
+
+        // 请求发出的时间(nanoTime). 发送线程放, 读线程取, 所以只需要两个volatile的下标.
+        private final long[] mSentTimes = new long[MAX_OUTSTANDING];
+        private volatile int mHead; // 下一个等回复的请求.
+        private volatile int mTail; // 下一个发出的请求.
+        private int mScriptIndex;
+
+        private boolean mHandshaken;
+        protected volatile boolean mClosed;
+
+        Client(final String ip) {
+            mIp = ip;
+        }
+
+        // 开始接收, 然后发ping握手.
+        abstract void startReading();
+
+        abstract boolean sendPing();
+
+        // index: sScript中的下标.
+        abstract boolean sendRequest(int index);
+
+        abstract void close();
+
+        abstract void join();
+
+        int getOutstanding() {
+            return mTail - mHead;
+        }
+
+        // 在发送线程中调用.
+        void sendRequest() {
+            if (mClosed) return;
+            final int tail = mTail;
+            if (tail - mHead >= MAX_OUTSTANDING) {
+                mSkippedCount.incrementAndGet();
+                return;
+            }
+            mSentTimes[tail & (MAX_OUTSTANDING - 1)] = System.nanoTime();
+            mTail = tail + 1;
+            final int index = mScriptIndex;
+            mScriptIndex = (mScriptIndex + 1) % sScript.length;
+            if (sendRequest(index)) {
+                mRequestCount.incrementAndGet();
+            }
+        }
+
+        // 只看ConnMessage, 不解析内容.
+        protected void onMessage(final MessageInfo msgInfo) {
+            final ConnMessage connMessage = RemoteMessage.peekConnMessage(msgInfo);
+            if (connMessage == ConnMessage.MSG_HEARTBEAT_PONG) {
+                if (!mHandshaken) {
+                    mHandshaken = true;
+                    mStarted.countDown();
+                }
+                return;
+            }
+            if (connMessage == null || !mIsReply[connMessage.ordinal()]) {
+                mOtherCount.incrementAndGet();
+                return;
+            }
+            final int head = mHead;
+            if (head == mTail) {
+                // 不是对我们的请求的回复, 比如host自己发来的.
+                mOtherCount.incrementAndGet();
+                return;
+            }
+            final long latencyNanos = System.nanoTime() - mSentTimes[head & (MAX_OUTSTANDING - 1)];
+            mHead = head + 1;
+            mLatency.record(latencyNanos / 1000);
+            mReplyCount.incrementAndGet();
+        }
+    }
+
+    // 通过socket连到host的TcpServer.
+    private class TcpLoadClient extends Client {
+        private final Socket mSocket;
+        private final DataInputStream mDis;
+        private final DataOutputStream mDos;
+        private Thread mReadThread;
+
+        TcpLoadClient(final String ip, final InetSocketAddress hostAddress) throws IOException {
+            super(ip);
+            mSocket = new Socket();
+            try {
+                mSocket.setTcpNoDelay(true);
+                mSocket.bind(new InetSocketAddress(InetAddress.getByName(ip), 0));
+                mSocket.connect(hostAddress, CONNECT_TIMEOUT_MS);
+                mDis = new DataInputStream(new BufferedInputStream(mSocket.getInputStream()));
+                mDos = new DataOutputStream(new BufferedOutputStream(mSocket.getOutputStream()));
+            } catch (IOException ioe) {
+                mSocket.close();
+                throw ioe;
+            }
+        }
+
+        @Override
+        void startReading() {
+            mReadThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, String.format(FORMAT_READ_THREAD_NAME, mIp));
+            mReadThread.start();
+        }
+
+        @Override
+        boolean sendPing() {
+            return send(mPingData);
+        }
+
+        @Override
+        boolean sendRequest(final int index) {
+            return send(mRequests[index]);
+        }
+
+        private boolean send(final byte[] data) {
+            try {
+                mDos.writeInt(data.length);
+                mDos.write(data);
+                mDos.flush();
+                return true;
+            } catch (IOException ioe) {
+                if (!mClosed) {
+                    mErrorCount.incrementAndGet();
+                    Logger.w(Subsystem.Net, "Load client {} failed to send: {}", mIp, ioe);
+                    close();
+                }
+                return false;
+            }
+        }
+
+        private void read() {
+            final long startCpuNanos = threadCpuNanos();
+            resetThreadAllocCounters();
+            try {
+                while (!mClosed) {
+                    final int length = mDis.readInt();
+                    if (length <= 0 || length > MAX_FRAME_SIZE) {
+                        throw new IOException("Invalid frame length: " + length);
+                    }
+                    final byte[] data = new byte[length];
+                    mDis.readFully(data);
+                    onMessage(MessageInfo.parseReceivedMessage(HOST_IP, data));
+                }
+            } catch (IOException ioe) {
+                if (!mClosed) {
+                    mErrorCount.incrementAndGet();
+                    Logger.w(Subsystem.Net, "Load client {} failed to read: {}", mIp, ioe);
+                }
+            } finally {
+                mClientCpuNanos.addAndGet(threadCpuNanos() - startCpuNanos);
+                addThreadAllocCounters();
+            }
+        }
+
+        @Override
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            try {
+                mSocket.close();
+            } catch (IOException ioe) {
+                // ignore.
+            }
+        }
+
+        @Override
+        void join() {
+            if (mReadThread == null) return;
+            try {
+                mReadThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // 和host在同一个LoopbackTransport.Hub上. 消息在LoopbackTransport的接收线程中处理.
+    private class LoopbackLoadClient extends Client {
+        private final LoopbackTransport mTransport;
+
+        LoopbackLoadClient(final String ip) {
+            super(ip);
+            mTransport = new LoopbackTransport(mHub, ip);
+        }
+
+        @Override
+        void startReading() {
+            mTransport.start(new MessageListener() {
+                @Override
+                public void newMessageComes(final MessageInfo msgInfo) {
+                    onMessage(msgInfo);
+                }
+
+                @Override
+                public void messageSent(final MessageInfo msgInfo, final Result... results) {
+                }
+            }, new ErrorListener() {
+                @Override
+                public void onException(final Exception e, final String log) {
+                    mErrorCount.incrementAndGet();
+                    Logger.w(Subsystem.Net, "Load client {}: {}, {}", mIp, log, e);
+                }
+
+                @Override
+                public void onError(final String errorInfo) {
+                    mErrorCount.incrementAndGet();
+                    Logger.w(Subsystem.Net, "Load client {}: {}", mIp, errorInfo);
+                }
+            }, null);
+        }
+
+        @Override
+        boolean sendPing() {
+            mTransport.send(mPingMessage);
+            return true;
+        }
+
+        @Override
+        boolean sendRequest(final int index) {
+            mTransport.send(mRequestMessages[index]);
+            return true;
+        }
+
+        @Override
+        void close() {
+            if (mClosed) return;
+            mClosed = true;
+            // host收到onDisconnected().
+            mTransport.stop();
+        }
+
+        @Override
+        void join() {
+            // stop()已经等接收线程结束了.
+        }
+    }
+
+    public String report() {
+        final long clientCpuMs = mClientCpuNanos.get() / 1000000L;
+        final double seconds = mElapsedMs / 1000.0;
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format(FORMAT_REPORT_HEADER, mClients.size(), mClientCount,
+                        mStartedCount, mRequestsPerSecond, mElapsedMs));
+        sb.append(String.format(FORMAT_REPORT_COUNTS, mRequestCount.get(), mReplyCount.get(),
+                        mSkippedCount.get(), mOtherCount.get(), mErrorCount.get(),
+                        seconds <= 0 ? 0.0 : mReplyCount.get() / seconds));
+        sb.append(String.format(FORMAT_REPORT_LATENCY, mLatency.getMean(),
+                        mLatency.getPercentile(50), mLatency.getPercentile(90),
+                        mLatency.getPercentile(99), mLatency.getPercentile(99.9),
+                        mLatency.getMax()));
+        sb.append(String.format(FORMAT_REPORT_HOST, mProcessCpuMs, clientCpuMs,
+                        Math.max(mProcessCpuMs - clientCpuMs, 0), mAllocBytes, mAllocCount,
+                        mGcCount));
+        return sb.toString();
+    }
+
+    // 把报告追加到文件中.
+    public boolean dump(final String filepath) {
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(filepath, true);
+            fos.write(report().getBytes());
+            fos.write('\n');
+            return true;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to dump load test report: {}", ioe);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ioe) {
+                    // ignore.
+                }
+            }
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package wb.game.mahjong;
 
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
 
@@ -20,12 +21,14 @@ import android.text.TextUtils;
 import android.view.KeyEvent;
 import android.view.View;
 import android.view.View.OnClickListener;
+import android.view.View.OnLongClickListener;
 import android.view.Window;
 import android.view.WindowManager;
 import android.widget.Button;
 import android.widget.LinearLayout;
 import android.widget.RelativeLayout;
 import android.widget.TextView;
+import wb.conn.LoopbackTransport;
 import wb.conn.MessageInfo;
 import wb.conn.RemoteMessage.ConnMessage;
 import wb.conn.wifi.WifiUtils;
@@ -46,7 +49,13 @@ import wb.game.mahjong.model.Tile;
 import wb.game.mahjong.model.Tile.HuTile;
 import wb.game.mahjong.model.Tile.TileInfo;
 import wb.game.mahjong.model.Tile.TileState;
+import wb.game.mahjong.model.TurnStats;
 import wb.game.mahjong.model.WifiPlayer;
+import wb.game.mahjong.view.TileAtlas;
+import wb.game.utils.IconCache;
+import wb.game.utils.IconCache.IconListener;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 import wb.game.utils.Utils;
 
 public class MahJongActivity extends Activity {
@@ -84,6 +93,7 @@ public class MahJongActivity extends Activity {
     private LinearLayout mViewInfo;
     private TextView mTextViewRemainTiles;
     private TextView mTextViewGangCount;
+    private TextView mTextViewTurnStats;
 
     private Button mButtonGameStart;
     private Button mButtonGameEnd;
@@ -101,6 +111,10 @@ public class MahJongActivity extends Activity {
 
     private boolean mIsHost;
 
+    private static final String LOAD_TEST_FILENAME = "load_test.txt";
+    // Constants.LOAD_TEST_CLIENTS > 0时, host在本机模拟的client.
+    private LoadGenerator mLoadGenerator;
+
     private final RemoteConnector.RemoteListener mRemoteListener = new RemoteConnector.RemoteListener() {
         @Override
         public void onException(final Exception e, final String log) {
@@ -135,15 +149,41 @@ public class MahJongActivity extends Activity {
         }
     };
 
+    // 刷新player/剩余牌数/提示, 每帧最多执行一次.
+    private final UiUpdateCoalescer mUiCoalescer = new UiUpdateCoalescer(
+                    new UiUpdateCoalescer.UiUpdater() {
+        @Override
+        public void refreshPlayers(List<Player> players) {
+            final Context context = MahJongActivity.this;
+            for (Player player : players) {
+                player.viewChanged(context);
+            }
+            MahjongManager.getInstance().updateRemainedTiles(context);
+        }
+
+        @Override
+        public void refreshGame() {
+            onGameRefresh();
+        }
+
+        @Override
+        public void showPrompt(String prompt) {
+            Logger.i(Subsystem.Ui, prompt);
+        }
+    });
+
     private final Handler mHandler = new Handler() {
         @Override
         public void handleMessage(Message msg) {
             final Context context = MahJongActivity.this;
             Player player = null;
             Constants.UIMessage uiMsg = Constants.UIMessage.getMessage(msg.what);
+            // 先把攒下的刷新做完, 后面的处理看到的界面是最新的.
+            mUiCoalescer.flush();
             switch (uiMsg) {
                 case MSG_VIEW_INIT:
                     initViewsVisibility();
+                    resumeGameIfAny();
                     break;
                 case MSG_GAME_START:
                     onGameStart(msg.arg1);
@@ -163,14 +203,6 @@ public class MahJongActivity extends Activity {
                 case MSG_GAME_OVER:
                     onGameEnd(GameEnd.GameOver, msg.arg1);
                     break;
-                case MSG_GAME_REFRESH:
-                    onGameRefresh();
-                    break;
-                case MSG_REFRESH_PLAYER:
-                    player = (Player)msg.obj;
-                    player.viewChanged(context);
-                    MahjongManager.getInstance().updateRemainedTiles(context);
-                    break;
                 case MSG_SHOW_DETERMINE_IGNORED:
                     player = (Player)msg.obj;
                     showDetermineIgnored(player);
@@ -216,12 +248,15 @@ public class MahJongActivity extends Activity {
                 case MSG_NOTIFY_PLAYER_GANG_FLOWERED:
                     playerGangFlowered((Player.PlayerAction)msg.obj);
                     break;
-                case MSG_SHOW_PROMPT:Constants.debug((String)msg.obj);
-                    //Utils.showInfo(context, uiMsg.toString(), (String)msg.obj);
-                    break;
                 case MSG_SHOW_ACTIONS_TO_PLAYER:
                     showActionsToUser((Player.PlayerAction)msg.obj);
                     break;
+                case MSG_NOTIFY_PLAYER_TIMED_OUT:
+                    playerTimedOut((Player.PlayerAction)msg.obj);
+                    break;
+                case MSG_HOST_LOST:
+                    hostLost((String)msg.obj);
+                    break;
                 case MSG_SHOW_CAN_HU_TILES:
                     showCanHuTiles((HuTile[])msg.obj);
                     break;
@@ -298,6 +333,7 @@ public class MahJongActivity extends Activity {
         if (tileInfo != null && tileInfo.tileState == TileState.TileThrown) {
             mFocusedTileInfo = tileInfo;
             mFocusedTileInfo.tile.setFocused(true);
+            MahjongManager.getInstance().updatePlayerThrownTiles(mFocusedTileInfo.fromWhere);
         }
     }
 
@@ -333,6 +369,31 @@ public class MahJongActivity extends Activity {
         mahjongView.addView(promptActionsLayout, params);
     }
 
+    // 打牌超时的已经自动打了; 选择action超时的, 提示还在就说明用户没有选, 收起提示并且放弃.
+    private void playerTimedOut(final Player.PlayerAction playerAction) {
+        final Player player = playerAction.player;
+        if (playerAction.actions != null && playerAction.actions.length > 0) {
+            final RelativeLayout mahjongView = (RelativeLayout)findViewById(R.id.mahjong_view);
+            if (mahjongView.findViewById(R.id.prompt_actions) == null) return;
+            removeViews(mahjongView, R.id.prompt_actions);
+            player.actionsIgnored(playerAction.tileInfo, playerAction.actions);
+        }
+        Utils.showToast(this, getString(R.string.format_player_timed_out, player.name));
+    }
+
+    // 庄家端或者host断开了, 由manager迁移, 需要时重新连接到新的host.
+    private void hostLost(final String lostIp) {
+        final String newHostIp = MahjongManager.getInstance().migrateHost(this, lostIp);
+        Utils.showToast(this, getString(R.string.format_host_lost, lostIp));
+        if (newHostIp == null) return;
+        try {
+            stopWifiCommunicate();
+            startWifiCommunicate(newHostIp);
+        } catch (Exception e) {
+            Utils.showInfo(this, "Failed in host migration!", Utils.getExceptionInfo(e));
+        }
+    }
+
     private void playerIgnoredActions(Player.PlayerAction playerAction) {
         // TODO: So far when actions ignored, 没有需要UI做的...
     }
@@ -370,6 +431,11 @@ public class MahJongActivity extends Activity {
         getWindow().setFlags(WindowManager.LayoutParams.FLAG_FULLSCREEN,
                 WindowManager.LayoutParams.FLAG_FULLSCREEN);
 
+        // 进程被杀后可能直接恢复到这里, 没有经过MainActivity.
+        Logger.init(this);
+        IconCache.init(this);
+        // 牌的资源要在inflate牌桌之前准备好.
+        ResourceWarmup.await(this);
         setContentView(R.layout.mahjong_main);
 
         Constants.clearUsedNames();
@@ -397,12 +463,40 @@ public class MahJongActivity extends Activity {
         initMahjongManager(gameIndex, hostIp, fourPlayers);
 
         initViews(user);
-        GameEnd.userIcon = Constants.getIcon(user.user_icon_filepath);
+        GameEnd.userIcon = Constants.sDefaultIconBitmap;
+        IconCache.getInstance().loadIcon(user.user_icon_filepath, new IconListener() {
+            @Override
+            public void onIconLoaded(String iconFilepath, Bitmap bitmap) {
+                GameEnd.userIcon = bitmap;
+            }
+        });
     }
 
     private void startWifiCommunicate(final String serverIp) throws Exception {
+        // 收到的消息直接在Transport的接收线程中分发, 错误还是交给mRemoteListener.
+        RemoteConnector.getInstance().setGameRouter(new MessageRouter(this));
+        // 心跳发现断开的远端时, 牌局不再等它.
+        RemoteConnector.getInstance().setHeartbeatListener(
+                        MahjongManager.getInstance().getHeartbeatListener());
         if (Constants.sMahjongUseTcp) {
-            RemoteConnector.getInstance().startWifiTcp(serverIp, mRemoteListener);
+            final boolean loadTest = TextUtils.isEmpty(serverIp) && Constants.LOAD_TEST_CLIENTS > 0;
+            if (loadTest && Constants.LOAD_TEST_LOOPBACK) {
+                // 只有模拟的client, 牌局消息不经过socket.
+                final LoopbackTransport.Hub hub = new LoopbackTransport.Hub();
+                RemoteConnector.getInstance().startLoopback(hub, LoadGenerator.HOST_IP,
+                                mRemoteListener);
+                mLoadGenerator = new LoadGenerator(Constants.LOAD_TEST_CLIENTS, hub);
+            } else {
+                RemoteConnector.getInstance().startWifiTcp(serverIp, mRemoteListener);
+                if (loadTest) mLoadGenerator = new LoadGenerator(Constants.LOAD_TEST_CLIENTS);
+            }
+            if (mLoadGenerator != null) {
+                mLoadGenerator.start(Constants.getInternalFilepath(LOAD_TEST_FILENAME));
+            }
+            if (TextUtils.isEmpty(serverIp) && Constants.SPECTATORS_ENABLED) {
+                RemoteConnector.getInstance().startSpectatorServer(
+                                MahjongManager.getInstance().getSpectatorSnapshotProvider());
+            }
         } else {
             RemoteConnector.getInstance().startWifiUdp1(mRemoteListener);
         }
@@ -487,7 +581,7 @@ public class MahJongActivity extends Activity {
         gameLabelTextView.setText(game.labelResId);
 
         GameResource.setTiles(game);
-        MahjongManager.getInstance().setMainThreadHandler(mHandler);
+        MahjongManager.getInstance().setMainThreadHandler(mHandler, mUiCoalescer);
         MahjongManager.getInstance().init(this, gameIndex, hostIp, players);
     }
 
@@ -495,6 +589,7 @@ public class MahJongActivity extends Activity {
         mViewInfo = (LinearLayout)findViewById(R.id.info_view);
         mTextViewRemainTiles = (TextView)findViewById(R.id.tile_remaining);
         mTextViewGangCount = (TextView)findViewById(R.id.gang_count);
+        initTurnStatsView();
 
         mButtonGameStart = (Button)findViewById(R.id.button_start_game);
         mButtonGameStart.setOnClickListener(new OnClickListener() {
@@ -514,6 +609,49 @@ public class MahJongActivity extends Activity {
 
         initVolumeButtons();
         initViewsVisibility();
+        resumeGameIfAny();
+    }
+
+    // 上次进程被杀时留下了牌局快照, 直接恢复, 不用再点开始.
+    private void resumeGameIfAny() {
+        if (MahjongManager.getInstance().hasResumableGame()
+                        && mButtonGameStart.getVisibility() == View.VISIBLE) {
+            mButtonGameStart.performClick();
+        }
+    }
+
+    private static final long TURN_STATS_REFRESH_INTERVAL = 1000L;
+
+    private final Runnable mTurnStatsRefresher = new Runnable() {
+        @Override
+        public void run() {
+            if (mTextViewTurnStats.getVisibility() != View.VISIBLE) return;
+            final String peers = RemoteConnector.getInstance().getHeartbeat().overlayString(
+                            MahjongManager.getInstance().getPlayers());
+            mTextViewTurnStats.setText(TextUtils.isEmpty(peers)
+                            ? TurnStats.getInstance().overlayString()
+                            : TurnStats.getInstance().overlayString() + "\n" + peers.trim());
+            mHandler.postDelayed(this, TURN_STATS_REFRESH_INTERVAL);
+        }
+    };
+
+    // 长按剩余牌数显示/隐藏耗时统计.
+    private void initTurnStatsView() {
+        mTextViewTurnStats = (TextView)findViewById(R.id.turn_stats);
+        if (!TurnStats.isEnabled()) return;
+        mTextViewRemainTiles.setOnLongClickListener(new OnLongClickListener() {
+            @Override
+            public boolean onLongClick(View view) {
+                mHandler.removeCallbacks(mTurnStatsRefresher);
+                if (mTextViewTurnStats.getVisibility() == View.VISIBLE) {
+                    mTextViewTurnStats.setVisibility(View.GONE);
+                } else {
+                    mTextViewTurnStats.setVisibility(View.VISIBLE);
+                    mTurnStatsRefresher.run();
+                }
+                return true;
+            }
+        });
     }
 
     private void initVolumeButtons() {
@@ -909,6 +1047,7 @@ public class MahJongActivity extends Activity {
             mFocusedTileInfo.tile.setFocused(false);
         }
         mHandler.removeCallbacksAndMessages(null);
+        mUiCoalescer.cancel();
         MahjongManager.getInstance().openPlayerTiles();
 
         boolean gameEnded = !MahjongManager.getInstance().isPlaying();
@@ -1003,19 +1142,24 @@ public class MahJongActivity extends Activity {
         }
         if (isFinishing()) {
             MahjongManager.getInstance().clear();
-            MahjongManager.getInstance().setMainThreadHandler(null);
+            MahjongManager.getInstance().setMainThreadHandler(null, null);
             mHandler.removeCallbacksAndMessages(null);
+            mUiCoalescer.cancel();
+            TileAtlas.getInstance(this).clear();
         }
 
         super.onDestroy();
     }
 
     private void stopWifiCommunicate() {
-        if (Constants.sMahjongUseTcp) {
-            RemoteConnector.getInstance().stopWifiTcp();
-        } else {
-            RemoteConnector.getInstance().stopWifiUdp1(null);
+        if (mLoadGenerator != null) {
+            mLoadGenerator.cancel();
+            mLoadGenerator = null;
         }
+        RemoteConnector.getInstance().setGameRouter(null);
+        RemoteConnector.getInstance().setHeartbeatListener(null);
+        RemoteConnector.getInstance().stopSpectatorServer();
+        RemoteConnector.getInstance().stopGameTransport();
     }
 
     private void stopNetwork() {
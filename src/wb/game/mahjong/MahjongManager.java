@@ -1,7 +1,12 @@
 package wb.game.mahjong;
 
+import java.io.File;
 import java.io.IOException;
+import java.security.GeneralSecurityException;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import android.app.Activity;
 import android.content.Context;
@@ -17,7 +22,6 @@ import android.os.Handler;
 import android.os.Message;
 import android.text.TextUtils;
 import android.view.View;
-import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -29,6 +33,9 @@ import wb.conn.MessageUtils.PlayerIndex;
 import wb.conn.RemoteMessage;
 import wb.conn.RemoteMessage.ConnMessage;
 import wb.conn.RemoteMessage.DataType;
+import wb.conn.wifi.SpectatorServer;
+import wb.conn.wifi.WifiUtils;
+import wb.game.mahjong.DecisionDeadlines.Decision;
 import wb.game.mahjong.constants.Constants;
 import wb.game.mahjong.constants.Constants.Reason;
 import wb.game.mahjong.constants.Constants.UIMessage;
@@ -36,9 +43,14 @@ import wb.game.mahjong.constants.HuConstants;
 import wb.game.mahjong.constants.HuConstants.HuedType;
 import wb.game.mahjong.model.BluetoothPlayer;
 import wb.game.mahjong.model.DummyPlayer;
+import wb.game.mahjong.model.GameArchive;
+import wb.game.mahjong.model.GameLog;
 import wb.game.mahjong.model.GameResource;
 import wb.game.mahjong.model.GameResource.Action;
 import wb.game.mahjong.model.GameResource.Game;
+import wb.game.mahjong.model.GameSnapshot;
+import wb.game.mahjong.model.TurnStats;
+import wb.game.mahjong.model.TurnStats.Stage;
 import wb.game.mahjong.model.HandlerThreadExt;
 import wb.game.mahjong.model.LocalPlayer;
 import wb.game.mahjong.model.Player;
@@ -47,6 +59,11 @@ import wb.game.mahjong.model.Tile;
 import wb.game.mahjong.model.Tile.HuTile;
 import wb.game.mahjong.model.Tile.TileInfo;
 import wb.game.mahjong.model.WifiPlayer;
+import wb.game.mahjong.view.TileRiverView;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.IconCache;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 import wb.game.utils.Utils;
 
 /*
@@ -139,8 +156,57 @@ public class MahjongManager {
 
     // 记录正在等待的players，最多3家正在等待，收到反馈后删掉对应的player.
     private final ArrayList<Player> mWaitingQueue = new ArrayList<Player>(3);
+    // mWaitingQueue在等的是哪张牌, 只在game thread中访问.
+    private TileInfo mWaitingTileInfo;
+    private boolean mWaitingOnGang;
+    private boolean mWaitingBlackGang;
+    // 超时或者断开被替它放弃了的检查, 按player和等的那张牌(TileInfo本身)记录,
+    // 它晚到的检查结果不再处理, 也不会算到后面等的牌上. 只在game thread中访问, 新的一局清掉.
+    private final ArrayList<Player.PlayerAction> mAutoPassed = new ArrayList<Player.PlayerAction>();
+
+    // 等player做决定的期限.
+    private final DecisionDeadlines mDeadlines = new DecisionDeadlines();
+
+    // 旁观者重新同步时的公开状态, 在RemoteConnector的handler线程中调用, 只读各player发布的状态.
+    private final SpectatorServer.SnapshotProvider mSpectatorSnapshotProvider =
+                    new SpectatorServer.SnapshotProvider() {
+        @Override
+        public MessageInfo getSnapshot() {
+            if (!isPlaying()) return null;
+            return RemoteMessage.constructStringMessage(ConnMessage.MSG_SPECTATOR_SNAPSHOT, null,
+                            null, MessageUtils.messageSpectatorSnapshot(mPlayers,
+                                            getGame().getRemainingTileNum()));
+        }
+    };
+
+    // 庄家端断开时的host迁移.
+    private final HostMigration mMigration = new HostMigration();
+    // 已经迁移过的ip, 只在game thread中访问.
+    private final HashSet<String> mMigratedIps = new HashSet<String>();
+    // 正在等着摸牌的player和杠的牌, 打出牌后清掉. 新的庄家端从这里接着发牌.
+    private volatile Player.PlayerAction mPendingDraw;
+
+    // 心跳发现远端断开时, 不再等它检查action; 断开的是庄家端或者host时迁移.
+    private final Heartbeat.Listener mHeartbeatListener = new Heartbeat.Listener() {
+        @Override
+        public void onPeerLost(final String ip) {
+            runInGameThread(new Runnable() {
+                @Override
+                public void run() {
+                    autoPassLostPeer(ip);
+                    checkHostLost(ip);
+                }
+            });
+        }
+
+        @Override
+        public void onPeerRecovered(final String ip) {
+            // 恢复以后的action照常等待.
+        }
+    };
 
     private Handler mMainThreadHandler;
+    private UiUpdateCoalescer mUiCoalescer;
 
     private GameThread mGameThread; // manager工作线程.
 
@@ -148,6 +214,15 @@ public class MahjongManager {
 
     private int mGameIndex;
 
+    // 庄家端记录每局的事件日志, 用于重放.
+    private final GameLog mGameLog = new GameLog();
+    // 存档要读整个日志, 重放, 写segment和索引, 不能在manager的锁中或者主线程中做.
+    private final ExecutorService mArchiveExecutor = Executors.newSingleThreadExecutor();
+
+    // 进程被杀后可以恢复的牌局快照. 只支持没有remote player的牌局.
+    private GameSnapshot mSnapshotToResume;
+    private Location mResumeLocation; // 恢复牌局后下一个摸牌的player.
+
     private String mHostIp;
 
     private volatile boolean mMuted; // 是否静音.
@@ -191,7 +266,11 @@ public class MahjongManager {
         }
         mSoundThread.post(new Runnable() {
             @Override
-            public void run() {Constants.debug("playSound(" + player + "," + action + "," + tileInfo + ")");
+            public void run() {
+                // Logger在后台线程中才toString, 只传不会变的字段.
+                Logger.d(Subsystem.Sound, "playSound({}, {}, {})",
+                                player == null ? null : player.name, action,
+                                tileInfo == null ? null : tileInfo.tile);
                 String actionSoundFilepath =getActionSoundAssetFilepath();
                 if (actionSoundFilepath != null) {
                     playSound(actionSoundFilepath);
@@ -254,17 +333,22 @@ public class MahjongManager {
             throw new RuntimeException("playSound must run in SoundThread!");
         }
         if (TextUtils.isEmpty(soundFilepathInAssets)) {
-            Constants.debug("failed to play sound: EMPTY filepath!");
+            Logger.w(Subsystem.Sound, "failed to play sound: EMPTY filepath!");
             return;
         }
+        final long startTime = TurnStats.start();
         mSoundThread.playSound(soundFilepathInAssets);
+        TurnStats.getInstance().record(Stage.Sound, startTime);
     }
 
-    public synchronized void setMainThreadHandler(Handler mainHandler) {
+    // 刷新player/剩余牌数/提示通过uiCoalescer按帧合并, 其他消息通过mainHandler发送.
+    public synchronized void setMainThreadHandler(Handler mainHandler,
+                    UiUpdateCoalescer uiCoalescer) {
         /*if (mainHandler != null && mMainThreadHandler != null) {
             throw new IllegalStateException("Why there has been a main thread handler?!");
         }*/
         mMainThreadHandler = mainHandler;
+        mUiCoalescer = uiCoalescer;
     }
 
     // 麻将里面的东南西北四个方位是按天文位置的东南西北方位排列的,
@@ -283,25 +367,22 @@ public class MahjongManager {
             this.labelResId = labelResId;
         }
 
+        private static final EnumCodec<Location> sCodec = EnumCodec.of(Location.class);
+
         public static Location getLocation(int order) {
-            for (Location location : values()) {
-                if (location.ordinal() == order) return location;
-            }
-            return null;
+            return sCodec.get(order);
         }
 
         // 获得下家的位置.
         public static Location getNextLocation(Location location) {
             if (location == null) return East;
-            Location[] values = values();
-            return getLocation((location.ordinal() + 1) % values.length);
+            return sCodec.getCyclic(location.ordinal() + 1);
         }
 
         // 获得上家位置.
         public static Location getPreviousLocation(Location location) {
             if (location == null) return East;
-            Location[] values = values();
-            return getLocation((location.ordinal() + values.length - 1) % values.length);
+            return sCodec.getCyclic(location.ordinal() - 1);
         }
     }
 
@@ -439,7 +520,7 @@ public class MahjongManager {
         private final int tileIndicatorViewId;
 
         private LinearLayout mTileListView;
-        private ViewGroup mThrownTilesView;
+        private TileRiverView mThrownTilesView;
 
         public Drawable tileBackgroundDrawable;
         public Drawable tileBackDrawable;
@@ -493,7 +574,8 @@ public class MahjongManager {
             textViewName.setText(mPlayer.name);
 
             ImageView iconView = (ImageView)activity.findViewById(iconResId);
-            iconView.setImageBitmap(mPlayer.getIconBitmap());
+            // 在后台线程中解码, 先显示默认头像.
+            IconCache.getInstance().loadIcon(mPlayer.iconFilename, iconView);
 
             mTextIgnoredType = (TextView)activity.findViewById(ignoredResId);
             mTextIgnoredType.setVisibility(View.GONE);
@@ -523,7 +605,7 @@ public class MahjongManager {
             LinearLayout tileListPengView = (LinearLayout)activity.findViewById(tileListPengResId);
             LinearLayout tileListGangView = (LinearLayout)activity.findViewById(tileListGangResId);
             LinearLayout tileListHuView   = (LinearLayout)activity.findViewById(tileListHuResId);
-            mThrownTilesView = (ViewGroup)activity.findViewById(thrownTileListResId);
+            mThrownTilesView = (TileRiverView)activity.findViewById(thrownTileListResId);
             mPlayer.setViews(mTileListView, newTileView,
                     tileListChiView,  tileChiLayoutId,
                     tileListPengView, tilePengLayoutId,
@@ -598,14 +680,10 @@ public class MahjongManager {
             }
         }
 
+        private static final EnumCodec<Position> sCodec = EnumCodec.of(Position.class);
+
         public static Position getPosition(int ordinal) {
-            Position[] values = values();
-            for (Position position : values) {
-                if (position.ordinal() == (ordinal % values.length)) {
-                    return position;
-                }
-            }
-            return Position.BOTTOM;
+            return ordinal < 0 ? Position.BOTTOM : sCodec.getCyclic(ordinal);
         }
     }
 
@@ -660,7 +738,7 @@ public class MahjongManager {
 
             @Override
             public void onViewChanged() {
-                notifyMainThread(curPlayer, Constants.UIMessage.MSG_REFRESH_PLAYER);
+                refreshPlayerInMainThread(curPlayer);
             }
 
             @Override
@@ -697,14 +775,21 @@ public class MahjongManager {
 
             @Override
             public void onTileThrown(TileInfo tileInfo) {
-                // 扔出一张牌之后需要更新player显示.
-                notifyMainThread(curPlayer, Constants.UIMessage.MSG_REFRESH_PLAYER);
+                mDeadlines.finish(curPlayer, Decision.Throw);
+                mPendingDraw = null;
+                publishToSpectators(ConnMessage.MSG_PLAYER_THREW_TILE, curPlayer,
+                                tileInfo.tile.toString());
+                // 扔出一张牌之后需要更新player显示. 这里是扔牌的线程, 由它发布状态.
+                curPlayer.publishState();
+                refreshPlayerInMainThread(curPlayer);
                 // 扔出一张牌后其他3 players可能有吃/碰/杠/胡的action;
                 notifyPlayersCheckActionOnThrownTile(tileInfo);
             }
 
             @Override
             public void actionDoneOnNewTile(final Action action, final TileInfo tileInfo) {
+                mDeadlines.finish(curPlayer, Decision.Action);
+                publishActionToSpectators(curPlayer, action, tileInfo);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -715,6 +800,8 @@ public class MahjongManager {
 
             @Override
             public void actionDoneOnGotTile(final Action action, final TileInfo tileInfo) {
+                mDeadlines.finish(curPlayer, Decision.Action);
+                publishActionToSpectators(curPlayer, action, tileInfo);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -725,6 +812,8 @@ public class MahjongManager {
 
             @Override
             public void actionDoneOnThrownTile(final Action action, final TileInfo tileInfo) {
+                mDeadlines.finish(curPlayer, Decision.Action);
+                publishActionToSpectators(curPlayer, action, tileInfo);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -735,6 +824,7 @@ public class MahjongManager {
 
             @Override
             public void gangFlowerDone(final TileInfo tileInfo) {
+                publishActionToSpectators(curPlayer, Action.GangFlower, tileInfo);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -748,6 +838,8 @@ public class MahjongManager {
 
             @Override
             public void actionDoneOnGangedTile(final Action action, final TileInfo tileInfo) {
+                mDeadlines.finish(curPlayer, Decision.Action);
+                publishActionToSpectators(curPlayer, action, tileInfo);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -758,6 +850,7 @@ public class MahjongManager {
 
             @Override
             public void actionsIgnoredOnNewTile(final TileInfo tileInfo, final Action... actions) {
+                mDeadlines.finish(curPlayer, Decision.Action);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -769,6 +862,7 @@ public class MahjongManager {
 
             @Override
             public void actionsIgnoredOnGotTile(final TileInfo tileInfo, final Action... actions) {
+                mDeadlines.finish(curPlayer, Decision.Action);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -781,6 +875,7 @@ public class MahjongManager {
             @Override
             public void actionsIgnoredOnThrownTile(final TileInfo tileInfo,
                             final Action... actions) {
+                mDeadlines.finish(curPlayer, Decision.Action);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -795,6 +890,7 @@ public class MahjongManager {
             @Override
             public void actionsIgnoredOnGangedTile(final TileInfo tileInfo,
                             final boolean isBlackGang, final Action... actions) {
+                mDeadlines.finish(curPlayer, Decision.Action);
                 runInGameThread(new Runnable() {
                     @Override
                     public void run() {
@@ -845,37 +941,66 @@ public class MahjongManager {
         runInGameThread(new Runnable() {
             @Override
             public void run() {
-                mWaitingQueue.remove(actionCheckedPlayer);
-                if (mWaitingQueue.size() <= 0) {
-                    // 如果所有player都收集了action，
-                    // 需要通知可以采取action的用户作决定.
-                    checkActionOnThrownTile(tileInfo);
-                    return;
-                }
-                // 还有player没有检查完action，继续等待.
-                updateWaitingToast(tileInfo);
+                if (dropAutoPassed(actionCheckedPlayer, tileInfo)) return;
+                whenPlayerActionsChecked(actionCheckedPlayer, tileInfo);
             }
         });
     }
 
+    // 在game thread中调用.
+    private void whenPlayerActionsChecked(final Player actionCheckedPlayer,
+                    final TileInfo tileInfo) {
+        mDeadlines.finish(actionCheckedPlayer, Decision.Check);
+        mWaitingQueue.remove(actionCheckedPlayer);
+        if (mWaitingQueue.size() <= 0) {
+            // 如果所有player都收集了action，
+            // 需要通知可以采取action的用户作决定.
+            checkActionOnThrownTile(tileInfo);
+            return;
+        }
+        // 还有player没有检查完action，继续等待.
+        updateWaitingToast(tileInfo);
+    }
+
     private void checkPlayerActionsOnGangedTile(final Player actionCheckedPlayer,
                     final TileInfo tileInfo, final boolean isBlackGang) {
         runInGameThread(new Runnable() {
             @Override
             public void run() {
-                mWaitingQueue.remove(actionCheckedPlayer);
-                if (mWaitingQueue.size() <= 0) {
-                    // 如果所有player都收集了action，
-                    // 需要通知可以采取action的用户作决定.
-                    checkActionOnGangedTile(tileInfo, isBlackGang);
-                    return;
-                }
-                // 还有player没有检查完action，继续等待.
-                updateWaitingToast(tileInfo);
+                if (dropAutoPassed(actionCheckedPlayer, tileInfo)) return;
+                whenPlayerActionsCheckedOnGang(actionCheckedPlayer, tileInfo, isBlackGang);
             }
         });
     }
 
+    // 在game thread中调用.
+    private void whenPlayerActionsCheckedOnGang(final Player actionCheckedPlayer,
+                    final TileInfo tileInfo, final boolean isBlackGang) {
+        mDeadlines.finish(actionCheckedPlayer, Decision.Check);
+        mWaitingQueue.remove(actionCheckedPlayer);
+        if (mWaitingQueue.size() <= 0) {
+            // 如果所有player都收集了action，
+            // 需要通知可以采取action的用户作决定.
+            checkActionOnGangedTile(tileInfo, isBlackGang);
+            return;
+        }
+        // 还有player没有检查完action，继续等待.
+        updateWaitingToast(tileInfo);
+    }
+
+    // 已经替它放弃了的player, 晚到的检查结果丢掉, 它这时收集的action也清掉.
+    private boolean dropAutoPassed(final Player player, final TileInfo tileInfo) {
+        for (int i = 0; i < mAutoPassed.size(); i++) {
+            final Player.PlayerAction passed = mAutoPassed.get(i);
+            if (passed.player != player || passed.tileInfo != tileInfo) continue;
+            mAutoPassed.remove(i);
+            // 还在等它的其他牌的话, 它现在收集的action不是这张牌的, 不能清掉.
+            if (tileInfo == mWaitingTileInfo) player.clearActionInfo();
+            return true;
+        }
+        return false;
+    }
+
     public int getPlayerIndex(Player player) {
         for (int i = 0; i < mPlayers.length; i++) {
             if (player == mPlayers[i]) return i;
@@ -907,18 +1032,40 @@ public class MahjongManager {
 
     private synchronized void sendMessageToMainThread(Constants.UIMessage uiMessage) {
         if (mMainThreadHandler == null) return;
+        TurnStats.getInstance().countHop(THREAD_NAME_MAIN);
         mMainThreadHandler.sendEmptyMessage(uiMessage.ordinal());
     }
 
     private synchronized void sendMessageToMainThread(Constants.UIMessage uiMessage, int arg1) {
         if (mMainThreadHandler == null) return;
+        TurnStats.getInstance().countHop(THREAD_NAME_MAIN);
         Message msg = mMainThreadHandler.obtainMessage(uiMessage.ordinal());
         msg.arg1 = arg1;
         mMainThreadHandler.sendMessage(msg);
     }
 
+    private void refreshPlayerInMainThread(final Player player) {
+        final UiUpdateCoalescer uiCoalescer = getUiCoalescer();
+        if (uiCoalescer != null) uiCoalescer.refreshPlayer(player);
+    }
+
+    private void refreshGameInMainThread() {
+        final UiUpdateCoalescer uiCoalescer = getUiCoalescer();
+        if (uiCoalescer != null) uiCoalescer.refreshGame();
+    }
+
+    private void showPrompt(final String prompt) {
+        final UiUpdateCoalescer uiCoalescer = getUiCoalescer();
+        if (uiCoalescer != null) uiCoalescer.showPrompt(prompt);
+    }
+
+    private synchronized UiUpdateCoalescer getUiCoalescer() {
+        return mUiCoalescer;
+    }
+
     private synchronized void notifyMainThread(Player player, Constants.UIMessage uiMessage) {
         if (mMainThreadHandler == null) return;
+        TurnStats.getInstance().countHop(THREAD_NAME_MAIN);
         Message msg = Message.obtain();
         msg.what = uiMessage.ordinal();
         msg.obj = player;
@@ -927,6 +1074,7 @@ public class MahjongManager {
 
     private synchronized void notifyMainThread(Constants.UIMessage uiMessage, Object msgObj) {
         if (mMainThreadHandler == null) return;
+        TurnStats.getInstance().countHop(THREAD_NAME_MAIN);
         Message msg = Message.obtain();
         msg.what = uiMessage.ordinal();
         msg.obj = msgObj;
@@ -944,7 +1092,7 @@ public class MahjongManager {
             sb.append(player.name).append(' ').append(tileInfo.toString());
         }
         if (sb.length() > 0) {
-            notifyMainThread(Constants.UIMessage.MSG_SHOW_PROMPT, sb.toString());
+            showPrompt(sb.toString());
         }
     }
 
@@ -1277,8 +1425,17 @@ public class MahjongManager {
                     final Action...actions) {
         if (player.getPosition() == Position.BOTTOM) {
             player.disableThrow();
-            notifyMainThread(Constants.UIMessage.MSG_SHOW_ACTIONS_TO_PLAYER,
-                        new Player.PlayerAction(player, tileInfo, actions));
+            final Player.PlayerAction playerAction = new Player.PlayerAction(player, tileInfo,
+                            actions);
+            // 超时由UI线程收起提示并且放弃, 和用户点击不会冲突.
+            mDeadlines.start(player, Decision.Action, new Runnable() {
+                @Override
+                public void run() {
+                    notifyMainThread(Constants.UIMessage.MSG_NOTIFY_PLAYER_TIMED_OUT,
+                                    playerAction);
+                }
+            });
+            notifyMainThread(Constants.UIMessage.MSG_SHOW_ACTIONS_TO_PLAYER, playerAction);
         } else if (player instanceof DummyPlayer) {
             player.selectAction(tileInfo, actions);
         } else if (player instanceof WifiPlayer) {
@@ -1293,6 +1450,14 @@ public class MahjongManager {
                     final boolean isBlackGang) {
         if (player.getPosition() == Position.BOTTOM) {
             player.disableThrow();
+            mDeadlines.start(player, Decision.Action, new Runnable() {
+                @Override
+                public void run() {
+                    player.gangGrabIgnored(tileInfo, isBlackGang, Action.GangGrab);
+                    notifyMainThread(Constants.UIMessage.MSG_NOTIFY_PLAYER_TIMED_OUT,
+                                    new Player.PlayerAction(player, tileInfo));
+                }
+            });
             notifyMainThread(Constants.UIMessage.MSG_SHOW_ACTIONS_TO_PLAYER_ON_GANGED_TILE,
                         new Player.PlayerGrabGang(player, tileInfo, isBlackGang));
         } else if (player instanceof DummyPlayer) {
@@ -1304,10 +1469,21 @@ public class MahjongManager {
         }
     }
 
-    public void notifyPlayerThrowTile(Player player) {
+    public void notifyPlayerThrowTile(final Player player) {
         if (!Utils.isMainThread()) {
             throw new RuntimeException("notifyPlayerThrowTile must be called in main thread!");
         }
+        if (player instanceof LocalPlayer && !player.isHued()) {
+            // 超时就托管打一张.
+            mDeadlines.start(player, Decision.Throw, new Runnable() {
+                @Override
+                public void run() {
+                    ((LocalPlayer) player).autoThrow();
+                    notifyMainThread(Constants.UIMessage.MSG_NOTIFY_PLAYER_TIMED_OUT,
+                                    new Player.PlayerAction(player, null));
+                }
+            });
+        }
         player.readyToThrow();
     }
 
@@ -1320,9 +1496,13 @@ public class MahjongManager {
             public void run() {
                 final boolean isBlackGang = playerAction.isBlackGanged();
                 mWaitingQueue.clear();
+                mWaitingTileInfo = playerAction.tileInfo;
+                mWaitingOnGang = true;
+                mWaitingBlackGang = isBlackGang;
                 for (Player player : mPlayers) {
                     if (player == playerAction.player) continue;
                     mWaitingQueue.add(player);
+                    startCheckDeadline(player);
                     player.checkActionOnGangedTile(playerAction.tileInfo, isBlackGang);
                 }
                 //updateWaitingToast(tileInfo);
@@ -1349,6 +1529,48 @@ public class MahjongManager {
         return GameResource.getGame(mGameIndex);
     }
 
+    public GameLog getGameLog() {
+        return mGameLog;
+    }
+
+    private static final String FORMAT_GAME_LOG_FILENAME = "game_%d.log";
+    private static final String TURN_STATS_FILENAME = "turn_stats.txt";
+    static final String THREAD_NAME_MAIN = "main";
+
+    // 洗牌并开始记录这一局的事件日志.
+    private void washTilesForNewGame() {
+        final Game game = getGame();
+        game.washTiles();
+        mAutoPassed.clear();
+        GameSnapshot.delete();
+        archiveGameLog(); // 上一局的日志.
+        dumpTurnStats();
+        mGameLog.start(Constants.getInternalFilepath(
+                        String.format(FORMAT_GAME_LOG_FILENAME, System.currentTimeMillis())));
+        mGameLog.logDeal(game.getWashSeed(), game.getLiveTiles());
+    }
+
+    // 一局结束后把事件日志存入历史存档.
+    private void archiveGameLog() {
+        if (!mGameLog.isRecording()) return;
+        mGameLog.close();
+        final String logFilepath = mGameLog.getFilepath();
+        final int gameIndex = mGameIndex;
+        final String[] playerNames = new String[Location.values().length];
+        for (Player player : mPlayers) {
+            if (player == null || player.getLocation() == null) continue;
+            playerNames[player.getLocation().ordinal()] = player.name;
+        }
+        mArchiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (GameArchive.getInstance().addGame(logFilepath, gameIndex, playerNames) != null) {
+                    new File(logFilepath).delete();
+                }
+            }
+        });
+    }
+
     // 每一张扔出的tile，需要其他三家player检查是否需要.
     public void notifyThrownTileToPlayers(final TileInfo tileInfo) {
         if (!Utils.isMainThread()) {
@@ -1360,12 +1582,15 @@ public class MahjongManager {
             @Override
             public void run() {
                 mWaitingQueue.clear();
+                mWaitingTileInfo = tileInfo;
+                mWaitingOnGang = false;
                 for (Player player : mPlayers) {
                     player.initActionInfo();
                     if (player.getLocation() == tileInfo.fromWhere) {
                         continue;
                     }
                     mWaitingQueue.add(player);
+                    startCheckDeadline(player);
                     player.checkActionOnThrownTile(tileInfo);
                 }
                 updateWaitingToast(tileInfo);
@@ -1375,11 +1600,72 @@ public class MahjongManager {
 
     public void updatePlayerThrownTiles(final Location location) {
         Player player = getPlayer(location);
-        notifyMainThread(player, Constants.UIMessage.MSG_REFRESH_PLAYER);
+        // tile的focus不在player状态中, 直接标记扔出的牌要刷新.
+        player.markChanged(Player.CHANGE_RIVER);
+        refreshPlayerInMainThread(player);
+    }
+
+    Heartbeat.Listener getHeartbeatListener() {
+        return mHeartbeatListener;
+    }
+
+    Player[] getPlayers() {
+        return mPlayers;
+    }
+
+    // 在game thread中调用. ip所在的WifiPlayer还没有检查完action的话, 当作它放弃了所有的action,
+    // 其他player不用一直等下去.
+    private void autoPassLostPeer(final String ip) {
+        for (Player player : new ArrayList<Player>(mWaitingQueue)) {
+            if (!(player instanceof WifiPlayer)) continue;
+            if (!TextUtils.equals(ip, ((WifiPlayer) player).ipv4)) continue;
+            autoPass(player);
+        }
+    }
+
+    // 只给本设备替它检查的player(本地和dummy)以及已经断开的远端player设期限.
+    // 远端player在它自己的设备上检查, 断开时由mHeartbeatListener放弃; 这里替它超时的话,
+    // 远端设备并不知道, 两边会对这张牌做出不同的决定.
+    private void startCheckDeadline(final Player player) {
+        if (!isCheckedHere(player)) return;
+        mDeadlines.start(player, Decision.Check, new Runnable() {
+            @Override
+            public void run() {
+                runInGameThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        autoPass(player);
+                    }
+                });
+            }
+        });
+    }
+
+    private static boolean isCheckedHere(final Player player) {
+        if (player instanceof LocalPlayer || player instanceof DummyPlayer) return true;
+        if (!(player instanceof WifiPlayer)) return false;
+        final Heartbeat.PeerStats peer = RemoteConnector.getInstance().getHeartbeat()
+                        .getStats(((WifiPlayer) player).ipv4);
+        return peer != null && peer.isLost();
+    }
+
+    // 在game thread中调用. player还在mWaitingQueue中的话, 当作它检查完了, 没有任何action.
+    private void autoPass(final Player player) {
+        final TileInfo tileInfo = mWaitingTileInfo;
+        if (tileInfo == null || !mWaitingQueue.contains(player)) return;
+        Logger.w(Subsystem.Game, "Auto-pass {} on {}", player.name, tileInfo.tile);
+        mDeadlines.abandon(player, Decision.Check);
+        player.clearActionInfo();
+        mAutoPassed.add(new Player.PlayerAction(player, tileInfo));
+        if (mWaitingOnGang) {
+            whenPlayerActionsCheckedOnGang(player, tileInfo, mWaitingBlackGang);
+        } else {
+            whenPlayerActionsChecked(player, tileInfo);
+        }
     }
 
     private void updateWaitingToast(TileInfo tileInfo) {
-        notifyMainThread(Constants.UIMessage.MSG_SHOW_PROMPT, getWaitingPlayers(tileInfo));
+        showPrompt(getWaitingPlayers(tileInfo));
     }
 
     private String getWaitingPlayers(final TileInfo tileInfo) {
@@ -1415,22 +1701,50 @@ public class MahjongManager {
         }
 
         getGame().restart();
+        mMigration.resetDeal();
     }
 
     public void init(final Activity activity, final int gameIndex, final String hostIp,
                     final Player[] _4Players) {
         mGameIndex = gameIndex;
         mHostIp = hostIp;
+        mMigratedIps.clear();
 
         mBankerInfo.setLocation(null);
 
         for (int i = 0; i < mPlayers.length; i++) {
             mPlayers[i] = _4Players[i];
         }
+        mSnapshotToResume = loadSnapshotToResume();
 
         check4Players(activity, true);
     }
 
+    // 看看有没有上次进程被杀时留下的快照可以恢复.
+    private GameSnapshot loadSnapshotToResume() {
+        if (!isHost() || !are4PlayersOK() || hasRemotePlayers()) return null;
+        final GameSnapshot snapshot = GameSnapshot.load();
+        if (snapshot == null) return null;
+        boolean valid = snapshot.gameIndex == mGameIndex
+                        && snapshot.playerNames.length == mPlayers.length;
+        for (int i = 0; valid && i < mPlayers.length; i++) {
+            if (snapshot.playerLocations[i] == null) {
+                valid = false;
+            } else if (!(mPlayers[i] instanceof DummyPlayer)) {
+                valid = TextUtils.equals(snapshot.playerNames[i], mPlayers[i].name);
+            }
+        }
+        if (!valid) {
+            GameSnapshot.delete();
+            return null;
+        }
+        return snapshot;
+    }
+
+    public boolean hasResumableGame() {
+        return mSnapshotToResume != null && canStartGame();
+    }
+
     private boolean are4PlayersOK() {
         for (int i = 0; i < mPlayers.length; i++) {
             if (mPlayers[i] == null) {
@@ -1462,7 +1776,11 @@ public class MahjongManager {
         if (newLocation) {
             if (isHost()) {
                 clearLocations();
-                randomlySetLocation(activity);
+                if (mSnapshotToResume != null) {
+                    setSnapshotLocations(mSnapshotToResume);
+                } else {
+                    randomlySetLocation(activity);
+                }
                 // sendLocations();
             } else {
                 requestLocations();
@@ -1478,8 +1796,12 @@ public class MahjongManager {
             }
 
             private void initBanker() {
-                // 刚开始，以东风为庄.
-                mBankerInfo.setLocation(Location.East);
+                if (mSnapshotToResume != null) {
+                    mBankerInfo.init(BankerInfo.parse(mSnapshotToResume.bankerInfo));
+                } else {
+                    // 刚开始，以东风为庄.
+                    mBankerInfo.setLocation(Location.East);
+                }
                 Position.setBanker(mBankerInfo);
             }
         });
@@ -1556,7 +1878,9 @@ public class MahjongManager {
             @Override
             public void run() {
                 if (!isBankerHere()) return;
-                mGameThread.sendEmptyMessage(MSG_WASH_TILES_FOR_NEW_GAME);
+                if (mSnapshotToResume == null || !resumeFromSnapshot()) {
+                    mGameThread.sendEmptyMessage(MSG_WASH_TILES_FOR_NEW_GAME);
+                }
                 localizeDummyPlayers();
             }
         });
@@ -1595,11 +1919,29 @@ public class MahjongManager {
         if (!Utils.isMainThread()) {
             throw new RuntimeException("whenTilesReady must be called in main thread!");
         }
+        if (mResumeLocation != null) {
+            startResumedGame();
+            return;
+        }
         if (isBankerHere()) {
             whenTilesReadyInBanker();
         }
     }
 
+    // 快照恢复后, 不需要再发牌, 直接让下一个player摸牌.
+    private void startResumedGame() {
+        final Player nextPlayer = findPlayer(mResumeLocation);
+        mResumeLocation = null;
+        for (Player player : mPlayers) {
+            player.startPlaying(false);
+            // 快照是在game thread中恢复的, 也在这里发布.
+            player.publishState();
+            refreshPlayerInMainThread(player);
+        }
+        refreshGameInMainThread();
+        notifyMainThread(nextPlayer, Constants.UIMessage.MSG_NOTIFY_PLAYER_GET_TILE);
+    }
+
     private void whenTilesReadyInBanker() {
         final Game game = getGame();
         final GameResource.ShowTile showTileMode = game.needShowTile();
@@ -1674,13 +2016,21 @@ public class MahjongManager {
         if (!Utils.isMainThread()) {
             throw new RuntimeException("notifyPlayerGetTile must be called in main thread!");
         }
+        final long startTime = TurnStats.start();
         runInGameThread(new Runnable() {
             @Override
             public void run() {
-                if (isBankerHere()) {
-                    Constants.debug("notifyPlayerGetTile, player:" + player.name + ", gangedTile:"
-                                + gangedTileInfo);
+                mPendingDraw = new Player.PlayerAction(player, gangedTileInfo);
+                // 迁移后还没有拿到牌墙时, 等takeOverWall()接着发.
+                if (isBankerHere() && getGame().isMasterGame) {
+                    Logger.d(Subsystem.Game, "notifyPlayerGetTile, player:{}, gangedTile:{}",
+                                    player.name,
+                                    gangedTileInfo == null ? null : gangedTileInfo.tile);
+                    if (gangedTileInfo == null) {
+                        saveSnapshot(player);
+                    }
                     sendTileToPlayer(player, gangedTileInfo);
+                    TurnStats.getInstance().record(Stage.Draw, startTime);
                 }
             }
         });
@@ -1717,6 +2067,52 @@ public class MahjongManager {
         });
     }
 
+    // 恢复牌局时, 座次和dummy player的名字都用快照中的.
+    private void setSnapshotLocations(final GameSnapshot snapshot) {
+        for (int i = 0; i < mPlayers.length; i++) {
+            if (mPlayers[i] instanceof DummyPlayer) {
+                mPlayers[i].name = snapshot.playerNames[i];
+            }
+            mPlayers[i].setLocation(snapshot.playerLocations[i]);
+        }
+    }
+
+    // 在game thread中把快照恢复到game和players. 失败则重新开始一局.
+    private boolean resumeFromSnapshot() {
+        final GameSnapshot snapshot = mSnapshotToResume;
+        mSnapshotToResume = null;
+        final Game game = getGame();
+        if (!snapshot.restore(game, mPlayers)) {
+            GameSnapshot.delete();
+            return false;
+        }
+        game.setNecessaryBeforeStartDone();
+        if (!TextUtils.isEmpty(snapshot.logFilepath)) {
+            mGameLog.resume(snapshot.logFilepath);
+        }
+        mResumeLocation = snapshot.nextLocation;
+        sendMessageToMainThread(Constants.UIMessage.MSG_TILES_READY);
+        return true;
+    }
+
+    // 保存快照, 在轮到player摸牌之前调用.
+    private void saveSnapshot(final Player nextPlayer) {
+        if (!isBankerHere() || hasRemotePlayers()) return;
+        if (!getGame().isNecessaryBeforeStartDone()) return;
+        GameSnapshot snapshot = new GameSnapshot(mGameIndex, mBankerInfo.infoString(),
+                        nextPlayer.getLocation(), mGameLog.getFilepath(), mPlayers);
+        snapshot.save(getGame(), mPlayers);
+    }
+
+    // 把上一局的耗时统计写入文件, 然后重新开始统计.
+    private void dumpTurnStats() {
+        if (!TurnStats.isEnabled()) return;
+        final TurnStats turnStats = TurnStats.getInstance();
+        if (turnStats.getHistogram(Stage.Draw).getCount() <= 0) return; // 这一局还没摸过牌.
+        turnStats.dump(Constants.getInternalFilepath(TURN_STATS_FILENAME));
+        turnStats.reset();
+    }
+
     private void randomlySetLocation(final Context context) {
         for (Player player : mPlayers) {
             // 测试：总是把mPlayers[0]设为东
@@ -1760,7 +2156,8 @@ public class MahjongManager {
         throw new IllegalStateException("Why this happens!? location:" + location);
     }
 
-    private Player findPlayer(PlayerInfo playerInfo) {
+    // MessageRouter在socket线程中调用, 不加锁.
+    Player findPlayer(PlayerInfo playerInfo) {
         return findPlayer(playerInfo.ip, playerInfo.playerName);
     }
 
@@ -1824,7 +2221,13 @@ public class MahjongManager {
         for (Player player : mPlayers) {
             player.quitPlaying();
         }
+        mDeadlines.cancelAll();
+        mPendingDraw = null;
         stopGameThreads();
+        mSnapshotToResume = null;
+        GameSnapshot.delete();
+        archiveGameLog();
+        dumpTurnStats();
 
         Constants.UIMessage uiMessage;
         Reason reason = null;
@@ -1920,24 +2323,32 @@ public class MahjongManager {
                         uiMessageContent));
     }
 
-    private void wifiSendMessage(final MessageInfo messageInfo) {
-        if (Constants.sMahjongUseTcp) {
-            RemoteConnector.getInstance().sendMessageTcp(messageInfo);
-        } else {
-            RemoteConnector.getInstance().sendMessageUdp1(messageInfo);
-        }
+    // 用哪一种Transport由开始牌局时RemoteConnector.startGameTransport()决定.
+    private void sendMessage(MessageInfo messageInfo) {
+        RemoteConnector.getInstance().sendGameMessage(messageInfo);
     }
 
-    private void sendMessage(MessageInfo messageInfo) {
-        switch (Constants.sNetwork) {
-            case Wifi:
-                wifiSendMessage(messageInfo);
-                break;
-            case Bluetooth:
-                break;
-            case Hotspot:
-                break;
-        }
+    SpectatorServer.SnapshotProvider getSpectatorSnapshotProvider() {
+        return mSpectatorSnapshotProvider;
+    }
+
+    // 本地和远端player的事件在host上都经过这里, 所以旁观者能看到整桌.
+    private void publishToSpectators(final ConnMessage connMessage, final Player player,
+                    final String content) {
+        if (!RemoteConnector.getInstance().hasSpectators()) return;
+        final String playerIp = MessageUtils.getPlayerIp(player);
+        final PlayerInfo playerInfo = new PlayerInfo(playerIp == null ? "" : playerIp,
+                        player.name);
+        RemoteConnector.getInstance().publishToSpectators(
+                        RemoteMessage.constructStringMessage(connMessage, null, playerInfo,
+                                        content));
+    }
+
+    private void publishActionToSpectators(final Player player, final Action action,
+                    final TileInfo tileInfo) {
+        if (!RemoteConnector.getInstance().hasSpectators()) return;
+        publishToSpectators(ConnMessage.MSG_PLAYER_TAKE_ACTION, player,
+                        MessageUtils.messageActionInfo(action, tileInfo));
     }
 
     // 看看这个tile还有多少张活牌.
@@ -2011,7 +2422,7 @@ public class MahjongManager {
     private final GameResource.DistributeTileListener mDistributeTileListener = new GameResource.DistributeTileListener() {
         @Override
         public void refreshGame() {
-            sendMessageToMainThread(Constants.UIMessage.MSG_GAME_REFRESH);
+            refreshGameInMainThread();
             if (isBankerHere()) {
                 sendMessage2RemoteManager(ConnMessage.MSG_LIVE_TILE_NUM,
                                 MessageUtils.messageLiveTileNum(getGame().getRemainingTileNum()));
@@ -2055,9 +2466,218 @@ public class MahjongManager {
             checkGameEnd(Reason.TileNull);
             return;
         }
+        mGameLog.logDraw(player.getLocation(), newTile, fromEnd);
+        // 牌交出去之前先复制牌墙, 否则庄家端在两者之间断开时, 备用端的牌墙里还有这张牌.
+        // 发13张牌时不用每张都复制, startPlaying()时复制一次.
+        if (player.isPlaying()) replicateWall();
+        final String liveTileNum = MessageUtils.messageLiveTileNum(getGame().getRemainingTileNum());
+        sendMessage2RemoteManager(ConnMessage.MSG_LIVE_TILE_NUM, liveTileNum);
+        // 摸的是什么牌旁观者看不到, 只知道剩余牌数.
+        if (RemoteConnector.getInstance().hasSpectators()) {
+            RemoteConnector.getInstance().publishToSpectators(RemoteMessage.constructStringMessage(
+                            ConnMessage.MSG_LIVE_TILE_NUM, null, null, liveTileNum));
+        }
+        player.addNewTile(newTile, gangedTileInfo, true);
+    }
+
+    // 庄家端每发一张牌时, 把牌墙加密交给备用端, key交给保管者. 见HostMigration.
+    private void replicateWall() {
+        if (!isBankerHere() || !hasRemotePlayers()) return;
+        final Player banker = getBankerPlayer();
+        final String hostIp = getTcpHostIp();
+        final String standbyIp = HostMigration.getStandbyIp(mPlayers, banker, hostIp);
+        if (standbyIp == null) return;
+        final ArrayList<String> holderIps = HostMigration.getKeyHolderIps(mPlayers, banker, hostIp,
+                        standbyIp);
+        if (holderIps.isEmpty()) {
+            // key交给备用端的话, 它随时都能解开牌墙; 不交的话庄家端断开后就没有人能交出key.
+            if (mMigration.disable()) {
+                Logger.w(Subsystem.Game, "Host migration disabled: no device but standby {}"
+                                + " to hold the key", standbyIp);
+            }
+            return;
+        }
+        final String[] sealed;
+        try {
+            sealed = mMigration.seal(getGame().exportState());
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Game, "Failed to export the wall: {}", ioe);
+            return;
+        } catch (GeneralSecurityException gse) {
+            Logger.w(Subsystem.Game, "Failed to seal the wall: {}", gse);
+            return;
+        }
+        send2RemoteManager(standbyIp, ConnMessage.MSG_MIGRATION_WALL, sealed[0]);
+        for (String holderIp : holderIps) {
+            send2RemoteManager(holderIp, ConnMessage.MSG_MIGRATION_KEY, sealed[1]);
+        }
+    }
+
+    // TCP host的ip, 自己是host时是自己的ip.
+    private String getTcpHostIp() {
+        return isHost() ? WifiUtils.getIpInWifi() : mHostIp;
+    }
+
+    // 在game thread中调用. 断开的是庄家端或者host的话, 在主线程中迁移, 同一个ip只迁移一次.
+    private void checkHostLost(final String ip) {
+        if (TextUtils.isEmpty(ip) || !hasRemotePlayers()) return;
+        if (mBankerInfo.getLocation() == null) return; // 还没有开始.
+        if (!TextUtils.equals(ip, MessageUtils.getPlayerIp(getBankerPlayer()))
+                        && !TextUtils.equals(ip, getTcpHostIp())) {
+            return;
+        }
+        if (!mMigratedIps.add(ip)) return;
+        notifyMainThread(Constants.UIMessage.MSG_HOST_LOST, ip);
+    }
+
+    // 在主线程中调用. lostIp是断开的庄家端或者host, 它上面的player换成dummy, 由新的庄家端接着打.
+    // 返回需要重新连接的新host的ip, 新host是自己时返回"", 不用重新连接时返回null.
+    public String migrateHost(final Activity activity, final String lostIp) {
+        if (!Utils.isMainThread()) {
+            throw new RuntimeException("migrateHost must be called in main thread!");
+        }
+        final String myIp = WifiUtils.getIpInWifi();
+        final String hostIp = getTcpHostIp();
+        final String masterIp = MessageUtils.getPlayerIp(getBankerPlayer());
+        final boolean masterLost = TextUtils.equals(lostIp, masterIp);
+        final boolean hostLost = TextUtils.equals(lostIp, hostIp);
+        if (!masterLost && !hostLost) return null;
+        final String newMasterIp = masterLost
+                        ? HostMigration.getStandbyIp(mPlayers, getBankerPlayer(), hostIp)
+                        : masterIp;
+        if (newMasterIp == null) {
+            Logger.w(Subsystem.Net, "{} lost, no device to take over", lostIp);
+            return null;
+        }
+        // 和庄家端replicateWall()时一样算, 没有保管者就没有复制牌墙.
+        if (masterLost && HostMigration.getKeyHolderIps(mPlayers, getBankerPlayer(), hostIp,
+                        newMasterIp).isEmpty()) {
+            Logger.w(Subsystem.Net, "{} lost, no key holder, migration disabled", lostIp);
+            return null;
+        }
+        final String newHostIp = hostLost ? newMasterIp : hostIp;
+        Logger.w(Subsystem.Net, "{} lost, new master/host: {}", lostIp,
+                        newMasterIp + "/" + newHostIp);
+
+        // client只连着host, 发现不了别的client断开, 由host通知.
+        if (isHost() && !hostLost) {
+            for (Player player : mPlayers) {
+                if (!(player instanceof WifiPlayer)) continue;
+                final String ip = ((WifiPlayer) player).ipv4;
+                if (TextUtils.equals(ip, lostIp)) continue;
+                send2RemoteManager(ip, ConnMessage.MSG_MIGRATION_START, lostIp);
+            }
+        }
+
+        // dummy都由庄家端打, 包括断开的player.
+        final String driverIp = TextUtils.equals(newMasterIp, myIp) ? null : newMasterIp;
+        replaceLostPlayers(lostIp, driverIp);
+        if (masterLost) changeDummyPlayersIp(driverIp);
+        if (hostLost) mHostIp = TextUtils.equals(newHostIp, myIp) ? null : newHostIp;
+
+        setPositions(activity);
+        Position.setBanker(mBankerInfo);
+
+        runInGameThread(new Runnable() {
+            @Override
+            public void run() {
+                for (Player player : mPlayers) {
+                    refreshPlayerInMainThread(player);
+                }
+                continueAfterMigration(masterLost, newMasterIp);
+            }
+        });
+        if (!hostLost) return null;
+        return mHostIp == null ? "" : mHostIp;
+    }
+
+    private void replaceLostPlayers(final String lostIp, final String driverIp) {
+        synchronized (mPlayers) {
+            for (int i = 0; i < mPlayers.length; i++) {
+                if (!(mPlayers[i] instanceof WifiPlayer)) continue;
+                final WifiPlayer lost = (WifiPlayer) mPlayers[i];
+                if (!TextUtils.equals(lostIp, lost.ipv4)) continue;
+                final DummyPlayer dummy = new DummyPlayer(lost.name, lost.gender, driverIp);
+                try {
+                    dummy.takeOverFrom(lost);
+                } catch (IOException ioe) {
+                    Logger.w(Subsystem.Game, "Failed to take over {}: {}", lost, ioe);
+                    continue;
+                }
+                lost.quitPlaying();
+                mPlayers[i] = dummy;
+            }
+        }
+    }
+
+    // 在game thread中调用. 庄家端还在的话由它接着打; 否则备用端等key, 保管者把key交给备用端.
+    private void continueAfterMigration(final boolean masterLost, final String newMasterIp) {
+        if (!masterLost) {
+            if (isBankerHere()) resumeTurn();
+            return;
+        }
+        final String keyEntries = mMigration.getKeyEntries();
+        if (keyEntries == null) return;
+        mMigration.startReleasing(new Runnable() {
+            @Override
+            public void run() {
+                send2RemoteManager(newMasterIp, ConnMessage.MSG_MIGRATION_KEY_RELEASE, keyEntries);
+            }
+        });
+    }
+
+    // host通知的庄家端断开.
+    private void hostLostInRemote(final String lostIp) {
+        runInGameThread(new Runnable() {
+            @Override
+            public void run() {
+                checkHostLost(lostIp);
+            }
+        });
+    }
+
+    private void keyReleased(final String remoteIp, final String keyEntries) {
+        runInGameThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!isBankerHere()) return;
+                takeOverWall(keyEntries);
+                if (getGame().isMasterGame) {
+                    send2RemoteManager(remoteIp, ConnMessage.MSG_MIGRATION_DONE, null);
+                }
+            }
+        });
+    }
+
+    // 在game thread中调用. 解开备用的牌墙, 成为master接着发牌. 失败时等下一个保管者.
+    private void takeOverWall(final String keyEntries) {
+        if (getGame().isMasterGame) return;
+        final byte[] state = mMigration.open(keyEntries);
+        if (state == null) return;
+        try {
+            getGame().takeOverState(state);
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Game, "Failed to take over the wall: {}", ioe);
+            return;
+        }
+        Logger.i(Subsystem.Game, "Took over the wall, {} tiles left",
+                        getGame().getRemainingTileNum());
+        sendMessage2RemoteManager(ConnMessage.MSG_MIGRATION_DONE, null);
         sendMessage2RemoteManager(ConnMessage.MSG_LIVE_TILE_NUM,
                         MessageUtils.messageLiveTileNum(getGame().getRemainingTileNum()));
-        player.addNewTile(newTile, gangedTileInfo, true);
+        resumeTurn();
+    }
+
+    // 在新的庄家端接着打: 等着摸牌的player还没有拿到牌就发给它, 已经摸了牌的dummy替它打出.
+    private void resumeTurn() {
+        final Player.PlayerAction pendingDraw = mPendingDraw;
+        if (pendingDraw == null) return;
+        final Player player = getPlayer(pendingDraw.player.getLocation());
+        if (!player.hasNewTile()) {
+            sendTileToPlayer(player, pendingDraw.tileInfo);
+        } else if (player instanceof DummyPlayer) {
+            ((DummyPlayer) player).resumeTurn();
+        }
     }
 
     public synchronized void updateBankerPosition() {
@@ -2135,6 +2755,7 @@ public class MahjongManager {
             if (player.isPlaying()) return;
             player.startPlaying(true);
         }
+        replicateWall();
         // 给庄家发一张牌
         notifyMainThread(getBankerPlayer(), Constants.UIMessage.MSG_NOTIFY_PLAYER_GET_TILE);
         circleIncrease();
@@ -2164,7 +2785,7 @@ public class MahjongManager {
         protected boolean doHandleMessage(Message msg) {
             switch (msg.what) {
                 case MSG_WASH_TILES_FOR_NEW_GAME:
-                    getGame().washTiles();
+                    washTilesForNewGame();
                     sendMessageToMainThread(Constants.UIMessage.MSG_TILES_READY);
                     return true;
                 case MSG_SEND_13_TILES:
@@ -2177,6 +2798,8 @@ public class MahjongManager {
 
         @Override
         protected void whenLooperPrepared() {
+            // 新的一局, 旁观者从快照重新开始.
+            RemoteConnector.getInstance().resyncSpectators();
             final int remainingTileNum = getGame().getRemainingTileNum();
             sendMessageToMainThread(Constants.UIMessage.MSG_GAME_START, remainingTileNum);
             if (isBankerHere()) {
@@ -2265,7 +2888,7 @@ public class MahjongManager {
             try {
                 /*sound_id = */mSoundPool.load(mAssetManager.openFd(soundFilepathInAssets), 1);
             } catch (IOException ioe) {
-                notifyMainThread(Constants.UIMessage.MSG_SHOW_PROMPT, soundFilepathInAssets + "\n" + Utils.getThrowableStackTrace(ioe));
+                showPrompt(soundFilepathInAssets + "\n" + Utils.getThrowableStackTrace(ioe));
             }
         }
 
@@ -2291,7 +2914,8 @@ public class MahjongManager {
         MessageUtils.UIMessageInfo uiMessageInfo;
 
         final RemoteMessage remoteMessage = RemoteMessage.parse(msgInfo);
-        Constants.debug("Received for MahJongActivity, " + remoteMessage);
+        Logger.d(Subsystem.Net, "Received for MahJongActivity, {} from {}",
+                        remoteMessage.connMessage, remoteMessage.remoteIp);
         switch (remoteMessage.connMessage) {
             case MSG_CHECK_REMOTE_STATE:
                 send2RemoteManager(remoteMessage.remoteIp, ConnMessage.MSG_REMOTE_STATE,
@@ -2342,12 +2966,29 @@ public class MahjongManager {
                                 MessageUtils.messageLiveTileNum(getGame().getRemainingTileNum()));
                 break;
             case MSG_LIVE_TILE_NUM:
+                // 迁移以后原来的庄家端还在路上的消息.
+                if (getGame().isMasterGame) break;
                 getGame().setLiveTileNum(MessageUtils.parseLiveTileNum(remoteMessage.content));
-                sendMessageToMainThread(Constants.UIMessage.MSG_GAME_REFRESH);
+                refreshGameInMainThread();
                 break;
             case MSG_DUMMY_IP_CHANGED:
                 changeDummyPlayersIp(remoteMessage.remoteIp);
                 break;
+            case MSG_MIGRATION_WALL:
+                mMigration.storeWall((String)remoteMessage.content);
+                break;
+            case MSG_MIGRATION_KEY:
+                mMigration.storeKey((String)remoteMessage.content);
+                break;
+            case MSG_MIGRATION_START:
+                hostLostInRemote((String)remoteMessage.content);
+                break;
+            case MSG_MIGRATION_KEY_RELEASE:
+                keyReleased(remoteMessage.remoteIp, (String)remoteMessage.content);
+                break;
+            case MSG_MIGRATION_DONE:
+                mMigration.stopReleasing();
+                break;
             case MSG_PLAYER_13_TILES:
                 updatePlayers13Tiles((String)remoteMessage.content);
                 send2RemoteManager(remoteMessage.remoteIp, ConnMessage.MSG_PLAYER_13_TILES_STATE,
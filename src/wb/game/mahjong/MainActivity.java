@@ -1,6 +1,9 @@
 package wb.game.mahjong;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
@@ -58,20 +61,23 @@ import wb.conn.bluetooth.BluetoothUtils;
 import wb.conn.bluetooth.BluetoothUtils.ScanActionListener;
 import wb.conn.bluetooth.BluetoothUtils.StateChangeListener;
 import wb.conn.wifi.HotspotUtils;
+import wb.conn.wifi.LanSweeper;
 import wb.conn.wifi.WifiUtils;
 import wb.game.mahjong.constants.Constants;
 import wb.game.mahjong.constants.Constants.User;
-import wb.game.mahjong.constants.TileResources;
 import wb.game.mahjong.model.BluetoothPlayer;
 import wb.game.mahjong.model.GameResource;
 import wb.game.mahjong.model.GameResource.Game;
 import wb.game.mahjong.model.Player.Gender;
 import wb.game.mahjong.model.RemotePlayer;
 import wb.game.mahjong.model.RemotePlayer.PlayerConnectState;
-import wb.game.mahjong.model.Tile;
 import wb.game.mahjong.model.WifiPlayer;
 import wb.game.utils.BitmapUtils;
+import wb.game.utils.IconCache;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 import wb.game.utils.NetworkUtils;
+import wb.game.utils.StartupTrace;
 import wb.game.utils.Utils;
 
 public class MainActivity extends Activity {
@@ -102,11 +108,12 @@ public class MainActivity extends Activity {
 
     private RemotePlayerListAdapter mWifiPlayerListAdapter;
 
+    // 正在扫描WiFi玩家时不为null, 收到MSG_UDP_OK时告诉它.
+    private volatile LanSweeper mLanSweeper;
+
     public static class LatestGame {
         private final String mGameSettingsName;
 
-        public final Game game;
-
         public final int gameIndex;
 
         public Date latestUsedTime;
@@ -119,10 +126,14 @@ public class MainActivity extends Activity {
             mGameSettingsName = gameSettingsName;
 
             gameIndex = GameResource.getGameIndex(gameSettingsName);
-            game = GameResource.getGame(gameIndex);
             this.latestUsedTime = latestUsedTime;
         }
 
+        // 用到时才创建Game.
+        public Game getGame() {
+            return GameResource.getGame(gameIndex);
+        }
+
         public boolean isSameGame(LatestGame latestGame) {
             if (gameIndex == latestGame.gameIndex) return true;
             if (mGameSettingsName.equals(latestGame.mGameSettingsName)) return true;
@@ -189,7 +200,8 @@ public class MainActivity extends Activity {
         @Override
         public void handleReceivedMessage(final MessageInfo messageInfo) {
             final RemoteMessage remoteMessage = RemoteMessage.parse(messageInfo);
-            Constants.debug("Received in MainActivity, " + remoteMessage);
+            Logger.d(Subsystem.Net, "Received in MainActivity, {} from {}",
+                            remoteMessage.connMessage, remoteMessage.remoteIp);
             handleRemoteMessage(remoteMessage);
         }
     };
@@ -214,6 +226,8 @@ public class MainActivity extends Activity {
                 addRemote(remoteMessage.remoteIp);
                 break;
             case MSG_UDP_OK:
+                final LanSweeper lanSweeper = mLanSweeper;
+                if (lanSweeper != null) lanSweeper.onReply(remoteMessage.remoteIp);
                 connectRemote(remoteMessage.remoteIp);
                 break;
             case MSG_UDP_CONNECT_0: // 远端发来connect_0.
@@ -252,15 +266,31 @@ public class MainActivity extends Activity {
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        StartupTrace.begin();
+
+        long startTime = StartupTrace.start();
         setContentView(R.layout.activity_main);
+        StartupTrace.record("setContentView", startTime);
 
         clearFiles();
 
         initResources();
 
+        startTime = StartupTrace.start();
         initViewsForUser();
+        StartupTrace.record("initViewsForUser", startTime);
 
+        startTime = StartupTrace.start();
         initNetwork();
+        StartupTrace.record("initNetwork", startTime);
+
+        // 第一帧画出来以后大厅就可以操作了.
+        getWindow().getDecorView().post(new Runnable() {
+            @Override
+            public void run() {
+                StartupTrace.interactive();
+            }
+        });
     }
 
     private void clearFiles() {
@@ -297,12 +327,16 @@ public class MainActivity extends Activity {
         }
     }
 
+    // 大厅需要的资源在这里初始化, 只有牌桌上才用到的在ResourceWarmup中后台初始化.
     private void initResources() {
-        createDefaultIcon();
+        final long startTime = StartupTrace.start();
+        Logger.init(this);
         Constants.initStrings(this);
-        GameResource.init(this);
-        TileResources.init(getResources());
-        Tile.initResources(this);
+        createDefaultIcon();
+        IconCache.init(this);
+        StartupTrace.record("initResources", startTime);
+
+        ResourceWarmup.start(this);
     }
 
     private void initViewsForUser() {
@@ -554,7 +588,7 @@ public class MainActivity extends Activity {
 
     private void scanWifiPlayersAsync(final Button buttonScanPlayers,
                     final TextView viewPromptScanning) {
-        new AsyncTask<Void, Void, Void>() {
+        new AsyncTask<Void, Integer, Void>() {
             @Override
             protected void onPreExecute() {
                 buttonScanPlayers.setVisibility(View.INVISIBLE);
@@ -565,28 +599,44 @@ public class MainActivity extends Activity {
                 super.onPreExecute();
             }
 
+            // 按网卡的子网扫描, 回复的玩家由handleRemoteMessage()随时加到列表中.
             private void scanWifiNeighbors() {
-                final String localIp = WifiUtils.getIpInWifi();
-                final MessageType messageType = MessageType.Unknown;
                 final byte[] messageData = RemoteMessage.constructMessageData(
                                 ConnMessage.MSG_UDP_SCAN, DataType.NoContent, null);
-
-                final String dot = ".";
-                int secondDotIndex = localIp.substring(0, localIp.lastIndexOf(dot)).lastIndexOf(dot);
-                final String ipPrefix = localIp.substring(0, secondDotIndex);
-                final String formatDestIp = "%s.%d.%d";
-                String destIp;
-
-                ArrayList<String> destIps = new ArrayList<String>(256);
-                for (int i = 0; i < 255; i++) {
-                    destIps.clear();
-                    for (int j = 0; j < 255; j++) {
-                        destIp = String.format(formatDestIp, ipPrefix, i, j);
-                        if (TextUtils.equals(localIp, destIp)) continue;
-                        destIps.add(destIp);
+                final LanSweeper lanSweeper;
+                try {
+                    final byte[] sweepData = MessageInfo.constructMessageData(MessageType.Unknown,
+                                    null, messageData);
+                    final InterfaceAddress interfaceAddress = WifiUtils.getIpV4InterfaceAddress();
+                    if (interfaceAddress != null) {
+                        lanSweeper = new LanSweeper(interfaceAddress.getAddress(),
+                                        interfaceAddress.getNetworkPrefixLength(),
+                                        RemoteConnector.getUdpPort(), sweepData);
+                    } else {
+                        // 不知道子网时按默认的prefix length. 数字格式的地址不会查DNS.
+                        lanSweeper = new LanSweeper(
+                                        InetAddress.getByName(WifiUtils.getIpInWifi()), 0,
+                                        RemoteConnector.getUdpPort(), sweepData);
                     }
-                    RemoteConnector.getInstance().sendMessageUdp(messageType, messageData,
-                                    destIps.toArray(new String[destIps.size()]));
+                } catch (IOException ioe) {
+                    Logger.w(Subsystem.Net, "Failed to start scanning wifi players: {}", ioe);
+                    return;
+                }
+
+                mLanSweeper = lanSweeper;
+                try {
+                    final int replyCount = lanSweeper.sweep(new LanSweeper.ProgressListener() {
+                        @Override
+                        public void onProgress(int sentCount, int hostCount) {
+                            publishProgress(sentCount, hostCount);
+                        }
+                    });
+                    Logger.i(Subsystem.Net, "Scanned {} hosts, {} replied",
+                                    lanSweeper.getHostCount(), replyCount);
+                } catch (IOException ioe) {
+                    Logger.w(Subsystem.Net, "Failed to scan wifi players: {}", ioe);
+                } finally {
+                    mLanSweeper = null;
                 }
             }
 
@@ -608,6 +658,13 @@ public class MainActivity extends Activity {
                 RemoteConnector.getInstance().sendMessageUdp(messageType, messageData, destIps);
             }
 
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                if (isFinishing()) return;
+                viewPromptScanning.setText(getString(R.string.format_scanning_wifi_players,
+                                progress[0], progress[1]));
+            }
+
             @Override
             protected Void doInBackground(Void... params) {
                 scanWifiNeighbors(); // - send to IPs.
@@ -798,7 +855,7 @@ public class MainActivity extends Activity {
                 }
                 int gameIndex = MessageUtils.parseGameIndex(remoteMessage.content);
                 showStartGameDialog(found,
-                                context.getString(GameResource.getGame(gameIndex).labelResId));
+                                context.getString(GameResource.getGameLabelResId(gameIndex)));
             }
 
             private void showStartGameDialog(final WifiPlayer remotePlayer, final String gameName) {
@@ -1236,6 +1293,10 @@ public class MainActivity extends Activity {
 
     @Override
     protected void onDestroy() {
+        final LanSweeper lanSweeper = mLanSweeper;
+        if (lanSweeper != null) lanSweeper.cancel();
+
+        IconCache.getInstance().clear();
         Constants.setDefaultIconBitmap(null);
 
         stopNetwork();
@@ -1276,6 +1337,7 @@ public class MainActivity extends Activity {
             if (file.exists()) {
                 file.delete();
             }
+            IconCache.getInstance().invalidate(player.iconFilename);
         }
         mWifiPlayers.clear();
         mWifiPlayerListAdapter.notifyDataSetChanged();
@@ -1328,16 +1390,9 @@ public class MainActivity extends Activity {
     }
 
     private void createDefaultIcon() {
-        String defaultFilepath = Constants.getInternalFilepath(Constants.DEFAULT_ICON_FILENAME);
-        File file = new File(defaultFilepath);
-
+        // 默认头像文件在ResourceWarmup中保存.
         Bitmap bm = BitmapFactory.decodeResource(getResources(), R.drawable.ic_launcher);
         Constants.setDefaultIconBitmap(bm);
-
-        if (file.exists()) return;
-
-        //file.createNewFile();
-        BitmapUtils.saveBitmapToPngFile(bm, file);
     }
 
     private static final String FILE_TYPE_IMG = "image/*";
@@ -1873,6 +1928,7 @@ public class MainActivity extends Activity {
                 if (mBitmapRotated || !TextUtils.equals(userIconFilepath, newIconFilepath)) {
                     newIconFilepath = Constants.getInternalFilepath(User.getIconFilename(newUsername));
                     BitmapUtils.copyToPngFile(mBitmap, newIconFilepath);
+                    IconCache.getInstance().invalidate(newIconFilepath);
                     usersChanged();
                 }
                 return;
@@ -1888,6 +1944,7 @@ public class MainActivity extends Activity {
                 // newIconFilepath是外部文件,
                 // 需要copy到app files目录下.
                 BitmapUtils.copyToPngFile(mBitmap, newIconFilepath);
+                IconCache.getInstance().invalidate(newIconFilepath);
             }
             if (!TextUtils.equals(newUsername, userName) &&
                     TextUtils.equals(userIconFilepath, newIconFilepath)) {
@@ -1896,6 +1953,8 @@ public class MainActivity extends Activity {
                 }
                 newIconFilepath = Constants.getInternalFilepath(User.getIconFilename(newUsername));
                 renameFile(userIconFilepath, newIconFilepath);
+                IconCache.getInstance().invalidate(userIconFilepath);
+                IconCache.getInstance().invalidate(newIconFilepath);
             }
             User newUser = new User(newUsername,
                             userGenderRadioId == R.id.radio_female ? Gender.Female : Gender.Male,
@@ -1933,11 +1992,10 @@ public class MainActivity extends Activity {
                 mIconFilepathTextView.setVisibility(View.VISIBLE);
                 mIconFilepathTextView.setText(iconFilepath);
             }
-            mBitmap = Constants.getIcon(iconFilepath);
-            if (mBitmap.getWidth() != Constants.sIconWidth
-                            || mBitmap.getHeight() != Constants.sIconHeight) {
-                mBitmap = BitmapUtils.zoomBitmap(mBitmap, Constants.sIconWidth,
-                                Constants.sIconHeight);
+            // 选中的图片可能很大, 按头像大小解码. 这个bitmap不在缓存中, 可以修改和recycle.
+            mBitmap = IconCache.decodeIcon(iconFilepath);
+            if (mBitmap == null) {
+                mBitmap = Constants.sDefaultIconBitmap;
             }
             mUserIconView.setImageBitmap(mBitmap);
         }
@@ -2035,7 +2093,7 @@ public class MainActivity extends Activity {
             usernameText.setText(user.user_name);
 
             ImageView iconView = (ImageView)view.findViewById(R.id.user_icon);
-            iconView.setImageBitmap(Constants.getIcon(user.user_icon_filepath));
+            IconCache.getInstance().loadIcon(user.user_icon_filepath, iconView);
 
             Button buttonDelete = (Button)view.findViewById(R.id.button_delete_user);
             buttonDelete.setOnClickListener(new OnClickListener() {
@@ -2089,13 +2147,13 @@ public class MainActivity extends Activity {
             }
 
             TextView textViewLabel = (TextView) view.findViewById(R.id.game_label);
-            textViewLabel.setText(latestGame.game.labelResId);
+            textViewLabel.setText(GameResource.getGameLabelResId(latestGame.gameIndex));
 
             Button buttonSettings = (Button)view.findViewById(R.id.game_settings);
             buttonSettings.setOnClickListener(new OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    latestGame.game.showSettings(mInflater.getContext());
+                    latestGame.getGame().showSettings(mInflater.getContext());
                 }
             });
 
@@ -2133,7 +2191,6 @@ public class MainActivity extends Activity {
 
         @Override
         public View getView(final int position, View convertView, ViewGroup parent) {
-            final Game game = getItem(position);
             View view;
             if (convertView == null) {
                 view = mInflater.inflate(mResourceId, parent, false);
@@ -2142,13 +2199,14 @@ public class MainActivity extends Activity {
             }
 
             TextView textViewLabel = (TextView) view.findViewById(R.id.game_label);
-            textViewLabel.setText(game.labelResId);
+            textViewLabel.setText(GameResource.getGameLabelResId(position));
 
             Button buttonSettings = (Button)view.findViewById(R.id.game_settings);
             buttonSettings.setOnClickListener(new OnClickListener() {
                 @Override
                 public void onClick(View view) {
-                    game.showSettings(mInflater.getContext());
+                    // 第一次打开设置时才创建Game.
+                    getItem(position).showSettings(mInflater.getContext());
                 }
             });
 
@@ -2198,7 +2256,7 @@ public class MainActivity extends Activity {
             usernameText.setText(player.name);
 
             ImageView iconView = (ImageView)view.findViewById(R.id.player_icon);
-            iconView.setImageBitmap(player.getIconBitmap());
+            IconCache.getInstance().loadIcon(player.iconFilename, iconView);
 
             TextView btNameView = (TextView)view.findViewById(R.id.bluetooth_name);
             btNameView.setText(player.bluetoothName);
@@ -2281,7 +2339,7 @@ public class MainActivity extends Activity {
             }
 
             ImageView iconView = (ImageView)view.findViewById(R.id.player_icon);
-            iconView.setImageBitmap(player.getIconBitmap());
+            IconCache.getInstance().loadIcon(player.iconFilename, iconView);
 
             final TextView connectStateView = (TextView)view.findViewById(R.id.connect_state);
             int stateText = player.getStateText();
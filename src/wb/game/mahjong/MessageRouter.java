@@ -0,0 +1,83 @@
+package wb.game.mahjong;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.app.Activity;
+import wb.conn.MessageInfo;
+import wb.game.mahjong.model.Player;
+
+// 牌局中收到的TCP消息在socket的读线程中直接分发, 不再经过RemoteConnector的HandlerThread,
+// 也不再为每条player消息锁整个MahjongManager:
+//   socket thread -> Player.postRemoteMessage() -> player thread.
+// 每个目的地(manager, 每个player)一条lane, lane是无锁的多生产者单消费者队列:
+// 1. 多个读线程(host对每个client有一个)可以同时往同一条lane放消息;
+// 2. 放消息的线程发现lane空闲时, 在自己的线程中按顺序取出lane中所有的消息, 否则交给正在取的线程;
+// 3. 同一目的地的消息保持顺序, 不同目的地之间互不等待.
+// player的消息只是按顺序post到player thread中处理, 读线程不会被player挡住.
+class MessageRouter {
+    private abstract static class Lane {
+        private final ConcurrentLinkedQueue<MessageInfo> mQueue =
+                        new ConcurrentLinkedQueue<MessageInfo>();
+        private final AtomicBoolean mDraining = new AtomicBoolean();
+
+        final void offer(final MessageInfo msgInfo) {
+            mQueue.offer(msgInfo);
+            while (mDraining.compareAndSet(false, true)) {
+                try {
+                    MessageInfo next;
+                    while ((next = mQueue.poll()) != null) {
+                        dispatch(next);
+                    }
+                } finally {
+                    mDraining.set(false);
+                }
+                // 放下mDraining之前别的线程可能刚放进来消息, 没有人处理的话这里接着处理.
+                if (mQueue.isEmpty()) return;
+            }
+        }
+
+        protected abstract void dispatch(MessageInfo msgInfo);
+    }
+
+    private final Activity mActivity;
+
+    // manager的消息(包括转给UI的消息)还是由manager的锁保护, 它们很少, 不在出牌的路径上.
+    private final Lane mManagerLane = new Lane() {
+        @Override
+        protected void dispatch(MessageInfo msgInfo) {
+            MahjongManager.getInstance().handleReceivedMessage(mActivity, msgInfo);
+        }
+    };
+
+    private final ConcurrentHashMap<Player, Lane> mPlayerLanes =
+                    new ConcurrentHashMap<Player, Lane>(4);
+
+    MessageRouter(final Activity activity) {
+        mActivity = activity;
+    }
+
+    // 在socket的读线程中调用.
+    void route(final MessageInfo msgInfo) {
+        if (msgInfo.playerInfo == null) {
+            mManagerLane.offer(msgInfo);
+            return;
+        }
+        final Player player = MahjongManager.getInstance().findPlayer(msgInfo.playerInfo);
+        getPlayerLane(player).offer(msgInfo);
+    }
+
+    private Lane getPlayerLane(final Player player) {
+        Lane lane = mPlayerLanes.get(player);
+        if (lane != null) return lane;
+        lane = new Lane() {
+            @Override
+            protected void dispatch(MessageInfo msgInfo) {
+                player.postRemoteMessage(msgInfo);
+            }
+        };
+        final Lane existing = mPlayerLanes.putIfAbsent(player, lane);
+        return existing != null ? existing : lane;
+    }
+}
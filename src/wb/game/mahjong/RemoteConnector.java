@@ -1,17 +1,30 @@
 package wb.game.mahjong;
 
+import java.io.IOException;
+import java.util.concurrent.Executor;
+
 import android.os.Handler;
 import android.os.HandlerThread;
 import wb.conn.ErrorListener;
 import wb.conn.LogListener;
+import wb.conn.LoopbackTransport;
 import wb.conn.MessageInfo;
 import wb.conn.MessageInfo.MessageType;
 import wb.conn.MessageListener;
-import wb.conn.wifi.TcpMessenger;
+import wb.conn.RemoteMessage;
+import wb.conn.Transport;
+import wb.conn.Transport.ConnectionListener;
+import wb.conn.wifi.SpectatorServer;
+import wb.conn.wifi.TcpTransport;
 import wb.conn.wifi.UdpMessenger;
+import wb.conn.wifi.UdpTransport;
 import wb.conn.wifi.UdpMessenger.Result;
 import wb.conn.wifi.UdpMessenger.SendResult;
 import wb.game.mahjong.constants.Constants;
+import wb.game.mahjong.model.TurnStats;
+import wb.game.mahjong.model.TurnStats.Stage;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 
 public class RemoteConnector {
     private static RemoteConnector sInstance;
@@ -32,11 +45,27 @@ public class RemoteConnector {
     private static final int DEFAULT_UDP_PORT   = 5802;
     private static final int DEFAULT_UDP_PORT_1 = 5804;
     private static final int DEFAULT_TCP_PORT   = 50802;
+    private static final int DEFAULT_SPECTATOR_PORT = 50803;
+
+    // LanSweeper扫描时发到这个端口.
+    public static int getUdpPort() {
+        return DEFAULT_UDP_PORT;
+    }
+
+    // LoadGenerator模拟的client连接到这个端口.
+    public static int getTcpPort() {
+        return DEFAULT_TCP_PORT;
+    }
+
+    public static int getSpectatorPort() {
+        return DEFAULT_SPECTATOR_PORT;
+    }
 
     private RemoteListener mRemoteListener;
-    private RemoteListener mTcpRemoteListener;
+    // 不为null时, 牌局消息在Transport的接收线程中直接交给它, 不经过mHandlerThread.
+    private volatile MessageRouter mGameRouter;
+    private RemoteListener mGameRemoteListener;
     private RemoteListener mUdpRemoteListener;
-    private RemoteListener mUdpRemoteListener1;
 
     private final MessageListener mUdpMessageListener = new MessageListener() {
         @Override
@@ -58,21 +87,33 @@ public class RemoteConnector {
                 if (result.result == SendResult.Succeeded) {
                     // addMessage(msgInfo);
                 } else {
-                    Constants.debug("Message[" + msgInfo + "] NOT sent!\n" + result.toString());
+                    // 发送失败很少, 当场toString, messageData和destIps之后可能被改.
+                    Logger.w(Subsystem.Net, "Message[{}] NOT sent!\n{}", msgInfo.toString(),
+                                    result.toString());
                 }
             }
         }
     };
 
-    private final MessageListener mUdpMessageListener1 = new MessageListener() {
+    // 牌局消息, 不论是哪一种Transport.
+    private final MessageListener mGameMessageListener = new MessageListener() {
         @Override
         public void newMessageComes(final MessageInfo msgInfo) {
+            if (mHeartbeat.onMessageReceived(msgInfo)) return;
+            final long startTime = TurnStats.start();
+            final MessageRouter router = mGameRouter;
+            if (router != null) {
+                router.route(msgInfo);
+                TurnStats.getInstance().record(Stage.NetReceive, startTime);
+                return;
+            }
             runInHandlerThread(new Runnable() {
                 @Override
                 public void run() {
-                    if (mUdpRemoteListener1 != null) {
-                        mUdpRemoteListener1.handleReceivedMessage(msgInfo);
+                    if (mGameRemoteListener != null) {
+                        mGameRemoteListener.handleReceivedMessage(msgInfo);
                     }
+                    TurnStats.getInstance().record(Stage.NetReceive, startTime);
                 }
             });
         }
@@ -84,35 +125,24 @@ public class RemoteConnector {
                 if (result.result == SendResult.Succeeded) {
                     // addMessage(msgInfo);
                 } else {
-                    Constants.debug("Message[" + msgInfo + "] NOT sent!\n" + result.toString());
+                    // 发送失败很少, 当场toString, messageData和destIps之后可能被改.
+                    Logger.w(Subsystem.Net, "Message[{}] NOT sent!\n{}", msgInfo.toString(),
+                                    result.toString());
                 }
             }
         }
     };
 
-    private final MessageListener mTcpMessageListener = new MessageListener() {
+    // 能知道连接状态的Transport通知的连接变化交给心跳.
+    private final ConnectionListener mGameConnectionListener = new ConnectionListener() {
         @Override
-        public void newMessageComes(final MessageInfo msgInfo) {
-            runInHandlerThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mTcpRemoteListener != null) {
-                        mTcpRemoteListener.handleReceivedMessage(msgInfo);
-                    }
-                }
-            });
+        public void onConnected(final String address) {
+            mHeartbeat.onPeerConnected(address);
         }
 
         @Override
-        public void messageSent(final MessageInfo msgInfo, final Result... results) {
-            if (results == null) return;
-            for (Result result : results) {
-                if (result.result == SendResult.Succeeded) {
-                    // addMessage(msgInfo);
-                } else {
-                    Constants.debug("Message[" + msgInfo + "] NOT sent!\n" + result.toString());
-                }
-            }
+        public void onDisconnected(final String address) {
+            mHeartbeat.onPeerDisconnected(address);
         }
     };
 
@@ -142,14 +172,14 @@ public class RemoteConnector {
         }
     };
 
-    private final ErrorListener mUdpErrorListener1 = new ErrorListener() {
+    private final ErrorListener mGameErrorListener = new ErrorListener() {
         @Override
         public void onException(final Exception e, final String log) {
             runInHandlerThread(new Runnable() {
                 @Override
                 public void run() {
-                    if (mUdpRemoteListener != null) {
-                        mUdpRemoteListener1.onException(e, log);
+                    if (mGameRemoteListener != null) {
+                        mGameRemoteListener.onException(e, log);
                     }
                 }
             });
@@ -160,53 +190,51 @@ public class RemoteConnector {
             runInHandlerThread(new Runnable() {
                 @Override
                 public void run() {
-                    if (mUdpRemoteListener != null) {
-                        mUdpRemoteListener.onError(errorInfo);
+                    if (mGameRemoteListener != null) {
+                        mGameRemoteListener.onError(errorInfo);
                     }
                 }
             });
         }
     };
 
-    private final ErrorListener mTcpErrorListener = new ErrorListener() {
+    private final LogListener mLogListener = new LogListener() {
         @Override
-        public void onException(final Exception e, final String log) {
-            runInHandlerThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mTcpRemoteListener != null) {
-                        mTcpRemoteListener.onException(e, log);
-                    }
-                }
-            });
+        public void addLog(String log) {
+            Logger.d(Subsystem.Net, log);
         }
+    };
 
+    private UdpMessenger mUdpMessenger;
+    // 牌局消息的Transport, 同时只有一个.
+    private Transport mGameTransport;
+    // host上的旁观者连接, 没有旁观者功能时为null.
+    private SpectatorServer mSpectatorServer;
+
+    // 旁观者的事件和快照都在mHandler的线程中生成, 快照和事件的先后一致.
+    private final Executor mSpectatorExecutor = new Executor() {
         @Override
-        public void onError(final String errorInfo) {
-            runInHandlerThread(new Runnable() {
-                @Override
-                public void run() {
-                    if (mTcpRemoteListener != null) {
-                        mTcpRemoteListener.onError(errorInfo);
-                    }
-                }
-            });
+        public void execute(final Runnable runnable) {
+            runInHandlerThread(runnable);
         }
     };
 
-    private final LogListener mLogListener = new LogListener() {
+    private final ErrorListener mSpectatorErrorListener = new ErrorListener() {
         @Override
-        public void addLog(String log) {
-            Constants.debug(log);
+        public void onException(Exception e, String log) {
+            Logger.w(Subsystem.Net, "Spectator: {} {}", log, e);
         }
-    };
 
-    private UdpMessenger mUdpMessenger;
-    private UdpMessenger mUdpMessenger1;
-    private TcpMessenger mTcpMessenger;
+        @Override
+        public void onError(String errorInfo) {
+            Logger.w(Subsystem.Net, "Spectator: {}", errorInfo);
+        }
+    };
 
     private final HandlerThread mHandlerThread;
     private final Handler mHandler;
+    // 牌局Transport上的心跳, 和mGameTransport一起启动/停止.
+    private final Heartbeat mHeartbeat;
 
     private static final String FORMAT_REMOTE_CONNECTOR_THREAD = "RemoteConnector - %d";
     private RemoteConnector() {
@@ -214,6 +242,7 @@ public class RemoteConnector {
                         android.os.Process.myPid()));
         mHandlerThread.start();
         mHandler = new Handler(mHandlerThread.getLooper());
+        mHeartbeat = new Heartbeat(mHandler);
 
         initNetwork();
     }
@@ -238,24 +267,83 @@ public class RemoteConnector {
         mUdpRemoteListener = remoteListener;
     }
 
-    public synchronized void startWifiUdp1(final RemoteListener remoteListener) {
-        if (mUdpMessenger1 == null) {
-            mUdpMessenger1 = new UdpMessenger(DEFAULT_UDP_PORT_1, mHandler, mUdpErrorListener1,
-                            mUdpMessageListener1, mLogListener);
-        }
-        mUdpMessenger1.start();
-        mUdpRemoteListener1 = remoteListener;
+    public synchronized void startWifiUdp1(final RemoteListener remoteListener)
+                    throws Exception {
+        startGameTransport(new UdpTransport(DEFAULT_UDP_PORT_1, mHandler, mLogListener),
+                        remoteListener);
     }
 
     public synchronized void startWifiTcp(String serverIp, final RemoteListener remoteListener)
                     throws Exception {
-        if (mTcpMessenger != null) {
-            mTcpMessenger.stop();
+        startGameTransport(new TcpTransport(DEFAULT_TCP_PORT, mHandler, serverIp, mLogListener),
+                        remoteListener);
+    }
+
+    // 牌局消息只在本进程的hub上收发, 见LoadGenerator的loopback模式.
+    public synchronized void startLoopback(final LoopbackTransport.Hub hub, final String address,
+                    final RemoteListener remoteListener) throws Exception {
+        startGameTransport(new LoopbackTransport(hub, address), remoteListener);
+    }
+
+    // 用transport收发牌局消息, 原来的transport先停掉.
+    public synchronized void startGameTransport(final Transport transport,
+                    final RemoteListener remoteListener) throws Exception {
+        if (mGameTransport != null) {
+            mGameTransport.stop();
         }
-        mTcpMessenger = new TcpMessenger(DEFAULT_TCP_PORT, mHandler, serverIp, mTcpErrorListener,
-                    mTcpMessageListener, mLogListener);
-        mTcpMessenger.start();
-        mTcpRemoteListener = remoteListener;
+        mGameRemoteListener = remoteListener;
+        mGameTransport = transport;
+        transport.start(mGameMessageListener, mGameErrorListener, mGameConnectionListener);
+        mHeartbeat.start();
+        Logger.d(Subsystem.Net, "Game transport started: {}", transport.getName());
+    }
+
+    public synchronized void stopGameTransport() {
+        mGameRemoteListener = null;
+        if (mGameTransport == null) return;
+        mHeartbeat.stop();
+        Logger.d(Subsystem.Net, mGameTransport.getStats().toString(mGameTransport.getName()));
+        mGameTransport.stop();
+        mGameTransport = null;
+    }
+
+    public synchronized void startSpectatorServer(
+                    final SpectatorServer.SnapshotProvider snapshotProvider) throws IOException {
+        stopSpectatorServer();
+        final SpectatorServer server = new SpectatorServer(DEFAULT_SPECTATOR_PORT,
+                        snapshotProvider, mSpectatorExecutor, mSpectatorErrorListener);
+        server.start();
+        mSpectatorServer = server;
+    }
+
+    public synchronized void stopSpectatorServer() {
+        if (mSpectatorServer == null) return;
+        Logger.d(Subsystem.Net, mSpectatorServer.toString());
+        mSpectatorServer.stop();
+        mSpectatorServer = null;
+    }
+
+    // 没有旁观者时调用者不用构造消息.
+    public synchronized boolean hasSpectators() {
+        return mSpectatorServer != null && mSpectatorServer.getSpectatorCount() > 0;
+    }
+
+    // 公开的牌局事件发给所有旁观者, 在mHandler的线程中编码一次. 没有旁观者时什么也不做.
+    public synchronized void publishToSpectators(final MessageInfo messageInfo) {
+        if (!hasSpectators()) return;
+        final SpectatorServer server = mSpectatorServer;
+        runInHandlerThread(new Runnable() {
+            @Override
+            public void run() {
+                server.publish(messageInfo);
+            }
+        });
+    }
+
+    public synchronized void resyncSpectators() {
+        final SpectatorServer server = mSpectatorServer;
+        if (server == null) return;
+        server.resyncAll();
     }
 
     public synchronized void start(final RemoteListener remoteListener) {
@@ -296,27 +384,41 @@ public class RemoteConnector {
         mUdpMessenger.stop(connectedIps);
     }
 
-    public synchronized void stopWifiUdp1(String[] connectedIps) {
-        mUdpRemoteListener1 = null;
-        mUdpMessenger1.stop(connectedIps);
+    // 牌局中设置, 结束时设为null.
+    void setGameRouter(final MessageRouter router) {
+        mGameRouter = router;
+    }
+
+    void setHeartbeatListener(final Heartbeat.Listener listener) {
+        mHeartbeat.setListener(listener);
     }
 
-    public synchronized void stopWifiTcp() {
-        mTcpRemoteListener = null;
-        mTcpMessenger.stop();
+    public Heartbeat getHeartbeat() {
+        return mHeartbeat;
     }
 
     private synchronized void runInHandlerThread(final Runnable runnable) {
         if (mHandler != null) {
+            TurnStats.getInstance().countHop(mHandlerThread.getName());
             mHandler.post(runnable);
         }
     }
 
-    public synchronized void sendMessageTcp(final MessageInfo messageInfo) {
+    public synchronized void sendGameMessage(final MessageInfo messageInfo) {
+        final Transport transport = mGameTransport;
+        if (transport == null) {
+            Logger.w(Subsystem.Net, "No game transport, message dropped: {}",
+                            messageInfo.toString());
+            return;
+        }
+        final long startTime = TurnStats.start();
         runInHandlerThread(new Runnable() {
             @Override
             public void run() {
-                mTcpMessenger.sendMessage(messageInfo);
+                transport.send(messageInfo);
+                // 真正交给transport的才计数, 构造了没有发的(快照, 预先编码的)不算.
+                TurnStats.getInstance().countSent(RemoteMessage.peekConnMessage(messageInfo));
+                TurnStats.getInstance().record(Stage.NetSend, startTime);
             }
         });
     }
@@ -330,15 +432,6 @@ public class RemoteConnector {
         });
     }
 
-    public synchronized void sendMessageUdp1(final MessageInfo messageInfo) {
-        runInHandlerThread(new Runnable() {
-            @Override
-            public void run() {
-                mUdpMessenger1.sendMessage(messageInfo);
-            }
-        });
-    }
-
     public synchronized void sendMessageUdp(final MessageType messageType, final byte[] messageData,
                     final String...ips) {
         runInHandlerThread(new Runnable() {
@@ -348,14 +441,4 @@ public class RemoteConnector {
             }
         });
     }
-
-    public synchronized void sendMessageUdp1(final MessageType messageType, final byte[] messageData,
-                    final String...ips) {
-        runInHandlerThread(new Runnable() {
-            @Override
-            public void run() {
-                mUdpMessenger1.sendMessage(messageType,  messageData, ips);
-            }
-        });
-    }
 }
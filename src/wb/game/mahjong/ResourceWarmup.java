@@ -0,0 +1,96 @@
+package wb.game.mahjong;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import wb.game.mahjong.constants.Constants;
+import wb.game.mahjong.constants.TileResources;
+import wb.game.mahjong.model.GameResource;
+import wb.game.mahjong.model.Tile;
+import wb.game.mahjong.view.TileAtlas;
+import wb.game.utils.BitmapUtils;
+import wb.game.utils.StartupTrace;
+
+// 只有牌桌上才用到的资源(番型/牌的名字, 牌的尺寸, tile atlas, 默认头像文件)
+// 在一个后台线程中初始化, 不占用大厅的启动时间.
+// MahJongActivity使用这些资源之前调用await().
+// 资源准备好以后, 同一个线程接着做RuleWarmup, 它不会挡住await().
+public class ResourceWarmup {
+    private static final String THREAD_NAME = "warmup";
+
+    private static CountDownLatch sDone;
+
+    // 进程中只启动一次.
+    public static synchronized void start(final Context context) {
+        if (sDone != null) return;
+        sDone = new CountDownLatch(1);
+        final CountDownLatch done = sDone;
+        final Context appContext = context.getApplicationContext();
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    warmup(appContext);
+                } finally {
+                    done.countDown();
+                }
+                RuleWarmup.run();
+            }
+        }, THREAD_NAME);
+        thread.start();
+    }
+
+    // 等待初始化完成. 进程被杀后直接恢复到MahJongActivity时, 这里才开始初始化.
+    public static void await(final Context context) {
+        start(context);
+        final CountDownLatch done;
+        synchronized (ResourceWarmup.class) {
+            done = sDone;
+        }
+        final long startTime = StartupTrace.start();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        StartupTrace.record("WarmupWait", startTime);
+    }
+
+    private static void warmup(final Context context) {
+        final Resources res = context.getResources();
+
+        long startTime = StartupTrace.start();
+        GameResource.init(context);
+        StartupTrace.record("HuLabels", startTime);
+
+        startTime = StartupTrace.start();
+        TileResources.init(res);
+        Tile.initResources(context);
+        StartupTrace.record("TileResources", startTime);
+
+        startTime = StartupTrace.start();
+        TileAtlas.getInstance(context).preload();
+        StartupTrace.record("TileAtlas", startTime);
+
+        startTime = StartupTrace.start();
+        saveDefaultIcon();
+        StartupTrace.record("DefaultIconFile", startTime);
+    }
+
+    // 默认头像也存一份文件.
+    private static void saveDefaultIcon() {
+        final Bitmap bitmap = Constants.sDefaultIconBitmap;
+        if (bitmap == null) return;
+        final File file = new File(Constants.getInternalFilepath(Constants.DEFAULT_ICON_FILENAME));
+        if (file.exists()) return;
+        BitmapUtils.saveBitmapToPngFile(bitmap, file);
+    }
+}
@@ -0,0 +1,136 @@
+package wb.game.mahjong;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+
+import android.os.Process;
+import android.os.SystemClock;
+import wb.conn.MessageInfo;
+import wb.conn.MessageUtils;
+import wb.conn.RemoteMessage;
+import wb.conn.RemoteMessage.ConnMessage;
+import wb.conn.RemoteMessage.DataType;
+import wb.game.mahjong.constants.TileResources.TileType;
+import wb.game.mahjong.model.GameResource;
+import wb.game.mahjong.model.GameResource.Game;
+import wb.game.mahjong.model.Tile;
+import wb.game.mahjong.model.Tile.HuTile;
+import wb.game.mahjong.model.TurnStats;
+import wb.game.mahjong.model.TurnStats.Stage;
+import wb.game.utils.StartupTrace;
+
+// 第一局的头几轮明显比后面慢: 胡/听的计算和消息的编解码第一次执行时还没有被JIT编译.
+// 在大厅等待时, 用后台线程跑一批模拟的手牌检查和消息编解码, 让这些代码先热起来.
+// 对应的类也列在baseline-prof.txt中, 支持baseline profile的构建可以直接AOT编译.
+// 结果都丢掉, 不影响任何状态.
+class RuleWarmup {
+    // 模拟多少手牌.
+    private static final int HAND_COUNT = 64;
+    // 每种消息编解码多少次.
+    private static final int MESSAGE_ROUNDS = 32;
+    // 最多用这么长时间, 超过就停下.
+    private static final long MAX_DURATION_MS = 1500;
+
+    // 固定的seed, 每次模拟同样的牌.
+    private static final long SEED = 0x4d4a;
+
+    private static final String WARMUP_IP = "127.0.0.1";
+
+    private static final ConnMessage[] sWarmupMessages = {
+        ConnMessage.MSG_PLAYER_NEW_TILE,
+        ConnMessage.MSG_PLAYER_THREW_TILE,
+        ConnMessage.MSG_PLAYER_TAKE_ACTION,
+        ConnMessage.MSG_LIVE_TILE_NUM,
+        ConnMessage.MSG_UIMESSAGE_OBJ,
+    };
+
+    private long mDeadline;
+
+    // 在后台线程中调用.
+    static void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        final long startTime = StartupTrace.start();
+        new RuleWarmup().warmup();
+        StartupTrace.record("RuleWarmup", startTime);
+    }
+
+    private void warmup() {
+        mDeadline = SystemClock.elapsedRealtime() + MAX_DURATION_MS;
+        warmupHands();
+        warmupMessages();
+
+        // 热身时的消息不算在统计中; 已经开始打牌了就不要清掉.
+        final TurnStats turnStats = TurnStats.getInstance();
+        if (turnStats.getHistogram(Stage.Draw).getCount() <= 0) {
+            turnStats.reset();
+        }
+    }
+
+    private boolean timeout() {
+        return SystemClock.elapsedRealtime() > mDeadline;
+    }
+
+    // 每手牌: 13张听哪些牌(getHuTiles0, 即Player计算可以胡的牌), 胡牌检查, 14张的牌型.
+    private void warmupHands() {
+        // 血流成河是默认的打法.
+        final Game game = GameResource.getGame(0);
+        final Tile[] availableTiles = getAllTiles();
+        final ArrayList<Tile> wall = new ArrayList<Tile>(availableTiles.length * Tile.MAX_TILE_COUNT);
+        for (int i = 0; i < Tile.MAX_TILE_COUNT; i++) {
+            Collections.addAll(wall, availableTiles);
+        }
+
+        final Random random = new Random(SEED);
+        final ArrayList<Tile> hand = new ArrayList<Tile>(14);
+        final ArrayList<Tile> empty = new ArrayList<Tile>(0);
+        final ArrayList<Tile> huTiles = new ArrayList<Tile>();
+        final ArrayList<HuTile> canHuTiles = new ArrayList<HuTile>();
+        final Tile[] noTiles = new Tile[0];
+        for (int i = 0; i < HAND_COUNT && !timeout(); i++) {
+            Collections.shuffle(wall, random);
+            hand.clear();
+            hand.addAll(wall.subList(0, 13));
+
+            Game.getHuTiles0(game, hand, empty, empty, empty, noTiles, availableTiles,
+                            canHuTiles);
+            huTiles.clear();
+            GameResource.checkHu(hand, 4, huTiles);
+
+            hand.add(wall.get(13));
+            GameResource.isHued(hand.toArray(new Tile[hand.size()]), 4);
+        }
+    }
+
+    private static Tile[] getAllTiles() {
+        ArrayList<Tile> tiles = new ArrayList<Tile>();
+        for (TileType type : TileType.values()) {
+            final int count = type.getCount();
+            for (int i = 0; i < count; i++) {
+                tiles.add(new Tile(type, i));
+            }
+        }
+        return tiles.toArray(new Tile[tiles.size()]);
+    }
+
+    // 和收发时一样: RemoteMessage -> MessageInfo -> bytes -> MessageInfo -> RemoteMessage.
+    private void warmupMessages() {
+        for (int i = 0; i < MESSAGE_ROUNDS && !timeout(); i++) {
+            for (ConnMessage connMessage : sWarmupMessages) {
+                final String content = MessageUtils.messageLiveTileNum(i);
+                final RemoteMessage remoteMessage = new RemoteMessage(connMessage, WARMUP_IP,
+                                DataType.String, content);
+                try {
+                    final byte[] data = MessageInfo.constructMessageData(
+                                    remoteMessage.constructMessage());
+                    final MessageInfo received = MessageInfo.parseReceivedMessage(WARMUP_IP, data);
+                    MessageUtils.parseLiveTileNum(RemoteMessage.parse(received).content);
+                } catch (IOException ioe) {
+                    // 内存中的编解码, 不会发生.
+                    return;
+                }
+            }
+        }
+    }
+}
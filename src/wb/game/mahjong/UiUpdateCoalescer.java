@@ -0,0 +1,146 @@
+package wb.game.mahjong;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+import wb.game.mahjong.model.Player;
+import wb.game.mahjong.model.TurnStats;
+
+// 把game thread发给UI的刷新请求(刷新某个player, 更新剩余牌数, 显示提示)攒起来,
+// 每一帧只在main thread中执行一次:
+// 1. 同一个player在一帧内刷新多次只刷新一次;
+// 2. 剩余牌数只更新一次;
+// 3. 提示只显示最新的一条.
+// 其他有先后顺序的消息(摸牌/出牌/action等)还是通过Handler一条条发送,
+// main thread处理这些消息之前先调用flush(), 保证界面已经是最新的.
+public class UiUpdateCoalescer {
+    // 没有Choreographer(API 16以前)时, 用这个延时代替一帧.
+    private static final long FRAME_DELAY_MS = 16;
+
+    public static interface UiUpdater {
+        // 一帧内要刷新的players, 每个只出现一次.
+        void refreshPlayers(List<Player> players);
+        void refreshGame();
+        void showPrompt(String prompt);
+    }
+
+    private final UiUpdater mUpdater;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final Object mChoreographer;
+
+    // 以下都由this保护.
+    private ArrayList<Player> mPendingPlayers = new ArrayList<Player>(4);
+    private boolean mGameRefreshPending;
+    private String mPendingPrompt;
+    private boolean mScheduled;
+
+    // flush()时交换用, 只在main thread中使用.
+    private ArrayList<Player> mApplyingPlayers = new ArrayList<Player>(4);
+
+    private final Runnable mFrameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    // 必须在main thread中创建.
+    public UiUpdateCoalescer(final UiUpdater updater) {
+        mUpdater = updater;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mChoreographer = Choreographer.getInstance();
+        } else {
+            mChoreographer = null;
+        }
+    }
+
+    // 以下三个方法可以在任何线程中调用.
+    public void refreshPlayer(final Player player) {
+        synchronized (this) {
+            if (!mPendingPlayers.contains(player)) {
+                mPendingPlayers.add(player);
+            }
+            scheduleLocked();
+        }
+    }
+
+    public void refreshGame() {
+        synchronized (this) {
+            mGameRefreshPending = true;
+            scheduleLocked();
+        }
+    }
+
+    public void showPrompt(final String prompt) {
+        synchronized (this) {
+            mPendingPrompt = prompt;
+            scheduleLocked();
+        }
+    }
+
+    private void scheduleLocked() {
+        if (mScheduled) return;
+        mScheduled = true;
+        TurnStats.getInstance().countHop(MahjongManager.THREAD_NAME_MAIN);
+        if (mChoreographer != null) {
+            postFrameCallback();
+        } else {
+            mMainHandler.postDelayed(mFrameRunnable, FRAME_DELAY_MS);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void postFrameCallback() {
+        ((Choreographer)mChoreographer).postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                flush();
+            }
+        });
+    }
+
+    // 在main thread中执行所有攒下的刷新. 没有的话什么也不做.
+    public void flush() {
+        final boolean gameRefresh;
+        final String prompt;
+        synchronized (this) {
+            if (!mScheduled) return;
+            mScheduled = false;
+            ArrayList<Player> players = mPendingPlayers;
+            mPendingPlayers = mApplyingPlayers;
+            mApplyingPlayers = players;
+            gameRefresh = mGameRefreshPending;
+            mGameRefreshPending = false;
+            prompt = mPendingPrompt;
+            mPendingPrompt = null;
+        }
+        if (!mApplyingPlayers.isEmpty()) {
+            final long startTime = TurnStats.start();
+            mUpdater.refreshPlayers(mApplyingPlayers);
+            mApplyingPlayers.clear();
+            TurnStats.getInstance().record(TurnStats.Stage.UiRefresh, startTime);
+        }
+        if (gameRefresh) {
+            mUpdater.refreshGame();
+        }
+        if (prompt != null) {
+            mUpdater.showPrompt(prompt);
+        }
+    }
+
+    // 丢掉所有还没执行的刷新. 已经post的frame callback执行时会发现没有要做的.
+    public void cancel() {
+        synchronized (this) {
+            mScheduled = false;
+            mPendingPlayers.clear();
+            mGameRefreshPending = false;
+            mPendingPrompt = null;
+        }
+        mMainHandler.removeCallbacks(mFrameRunnable);
+    }
+}
@@ -4,17 +4,15 @@ import java.util.ArrayList;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.text.TextUtils;
-import android.util.Log;
 import wb.game.mahjong.MahjongManager.Location;
 import wb.game.mahjong.R;
 import wb.game.mahjong.model.GameResource.Action;
 import wb.game.mahjong.model.Player.Gender;
 import wb.game.mahjong.model.Tile;
 import wb.game.mahjong.model.WifiPlayer;
+import wb.game.utils.EnumCodec;
 import wb.game.utils.Utils;
 
 public class Constants {
@@ -22,6 +20,18 @@ public class Constants {
 
     public static final boolean LOG_WITH_TIME = true;
 
+    // 统计每一轮各阶段的耗时, 见TurnStats.
+    public static final boolean TURN_STATS = DEBUG;
+
+    // 大于0时, host开始牌局后在本机模拟这么多个client做网络压力测试, 见LoadGenerator.
+    public static final int LOAD_TEST_CLIENTS = 0;
+    // 压力测试时host的牌局消息是否只在进程内收发(LoopbackTransport), 不经过socket.
+    // 这时真的client连不上host.
+    public static final boolean LOAD_TEST_LOOPBACK = false;
+
+    // TCP的host是否接受旁观者, 见SpectatorServer.
+    public static final boolean SPECTATORS_ENABLED = true;
+
     public static final String TAG = "HELLO";
 
     public static enum Network {
@@ -36,12 +46,6 @@ public class Constants {
     // false表示wifi下麻将时使用UDP收发消息.
     public static final boolean sMahjongUseTcp = true;
 
-    public static void debug(String log) {
-        if (DEBUG) {
-            Log.d(TAG, log);
-        }
-    }
-
     public static enum Reason {
         MaxGangReached,
         NoTile,
@@ -61,14 +65,12 @@ public class Constants {
     public enum UIMessage {
         MSG_VIEW_INIT,
         MSG_GAME_START,
-        MSG_GAME_REFRESH,
         MSG_GAME_NEW,       // 保持当前座次等，新一局开始.
         MSG_GAME_END,       // 游戏由用户主动结束，下次重新排序。
         MSG_GAME_END_NULL,  // 游戏结束，无人胡，荒庄.
         MSG_GAME_OVER,      // 不玩了，返回上一界面.
         MSG_TILES_READY,
         MSG_SHOW_TILE,                    // 杠后花等需要显示杠后最后一张非字的牌.
-        MSG_REFRESH_PLAYER,
         MSG_SHOW_DETERMINE_IGNORED,            // 通知manager让player定缺.
         MSG_SHOW_CAN_CHI,                      // 通知manager让player选择吃牌.
         MSG_SHOW_CAN_GANG_TILES,               // 通知manager让player选择暗杠的牌.
@@ -87,7 +89,8 @@ public class Constants {
         MSG_NOTIFY_PLAYER_GANG_FLOWERED,
         MSG_SHOW_ACTIONS_TO_PLAYER,
         MSG_SHOW_ACTIONS_TO_PLAYER_ON_GANGED_TILE,
-        MSG_SHOW_PROMPT;                        // 显示提示...
+        MSG_NOTIFY_PLAYER_TIMED_OUT,           // player没有在期限内决定, 已经替它做了默认的决定.
+        MSG_HOST_LOST;                         // 庄家端或者host断开了, 需要host迁移.
 
         public final Action action;
 
@@ -103,13 +106,10 @@ public class Constants {
             return ordinal();
         }
 
+        private static final EnumCodec<UIMessage> sCodec = EnumCodec.of(UIMessage.class);
+
         public static UIMessage getMessage(int orderIndex) {
-            for (UIMessage msg : values()) {
-                if (msg.ordinal() == orderIndex) {
-                    return msg;
-                }
-            }
-            return null;
+            return sCodec.get(orderIndex);
         }
 
         public static UIMessage getMessage(final Action action) {
@@ -298,14 +298,6 @@ public class Constants {
         }
     }
 
-    public static Bitmap getIcon(final String iconFilepath) {
-        if (TextUtils.isEmpty(iconFilepath)) {
-            return Constants.sDefaultIconBitmap;
-        }
-        Bitmap bitmap = BitmapFactory.decodeFile(iconFilepath);
-        return bitmap == null ? Constants.sDefaultIconBitmap : bitmap;
-    }
-
     // Assets下存放sound的目录.
     private static final String PREFIX_FILE_PATH_SOUND = "resource/sound/";
 
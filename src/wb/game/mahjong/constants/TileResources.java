@@ -4,6 +4,7 @@ import android.content.res.Resources;
 import wb.game.mahjong.MahjongManager.Position;
 import wb.game.mahjong.R;
 import wb.game.mahjong.model.GameResource.Game;
+import wb.game.utils.EnumCodec;
 import wb.game.utils.Utils;
 
 public class TileResources {
@@ -146,11 +147,10 @@ public class TileResources {
             return types[randomIndex];
         }
 
+        private static final EnumCodec<TileType> sCodec = EnumCodec.of(TileType.class);
+
         public static TileType getTileType(int ordinal) {
-            for (TileType tileType : values()) {
-                if (tileType.ordinal() == ordinal) return tileType;
-            }
-            return null;
+            return sCodec.get(ordinal);
         }
     }
 
@@ -1,7 +1,5 @@
 package wb.game.mahjong.model;
 
-import wb.game.mahjong.MahjongManager;
-import wb.game.mahjong.constants.TileResources.TileType;
 import wb.game.mahjong.model.GameResource.Action;
 import wb.game.mahjong.model.Tile.TileInfo;
 import wb.game.utils.Utils;
@@ -95,12 +93,24 @@ public class DummyPlayer extends Player {
         autoThrowTile(startTime);
     }
 
+    // host迁移后接着打断开的player的牌: 已经摸了牌还没有打出的话, 打一张.
+    public void resumeTurn() {
+        if (ipv4 != null) return;
+        runInPlayerThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPlaying || mNewTile == null) return;
+                autoThrowTile(System.currentTimeMillis());
+            }
+        });
+    }
+
     private void autoThrowTile(final long startTime) {
         Tile tile = null;
         if (isHued()) {
             tile = mNewTile;
         } else {
-            tile = autoFindTileToThrow();
+            tile = findTileToAutoThrow();
         }
 
         long timePassed = System.currentTimeMillis() - startTime;
@@ -116,55 +126,4 @@ public class DummyPlayer extends Player {
         }
         throwSelected(tile, false);
     }
-
-    private Tile autoFindTileToThrow() {
-        final TileType ignoredType = getIgnoredType();
-        int ignoredNum = ignoredType == null ? 0 : getTilesNum(ignoredType);
-        if (ignoredNum > 0) {
-            // 如果有缺还没打完，优先打缺门的牌，随机选.
-            return getRandomTile(ignoredType);
-        }
-        // 对于dummy player,现在没有支持智能选牌，只是随机选一张打出去.
-        return getRandomTile(null);
-    }
-
-    private Tile getRandomTile(TileType selectedType) {
-        synchronized(mTiles) {
-            final int num = mTiles.size();
-            if (num <= 0) return null;
-            final int canTingNum = mCanTingTiles.size();
-            int randomIndex;
-            if (selectedType == null) {
-                if (mActionTingReported && canTingNum == 0) {
-                    return mNewTile;
-                }
-                if (canTingNum > 0) {
-                    randomIndex = Utils.getRandomInt(0, canTingNum - 1);
-                    return mCanTingTiles.get(randomIndex).tile;
-                }
-                Tile matchAllTile = MahjongManager.getInstance().getGame().getMatchAllTile();
-                final int tileCount = getTileCount(matchAllTile);
-                if (tileCount <= 0) {
-                    randomIndex = Utils.getRandomInt(0, num - 1);
-                    return mTiles.get(randomIndex);
-                }
-                if (tileCount == mTiles.size()) {
-                    return mTiles.get(0); // 应该不会发生这种情况啊.到这时候应该早都胡牌了...
-                }
-                // 对于matchAllTile，什么时候都不扔掉.
-                Tile tile;
-                do {
-                    randomIndex = Utils.getRandomInt(0, num - 1);
-                    tile = mTiles.get(randomIndex);
-                } while (tile.isSameTile(matchAllTile));
-                return tile;
-            }
-            Tile tile;
-            do {
-                randomIndex = Utils.getRandomInt(0, num - 1);
-                tile = mTiles.get(randomIndex);
-            } while (tile.tileType != selectedType);
-            return tile;
-        }
-    }
 }
@@ -0,0 +1,477 @@
+package wb.game.mahjong.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import android.text.TextUtils;
+import wb.game.mahjong.MahjongManager.Location;
+import wb.game.mahjong.constants.Constants;
+import wb.game.mahjong.constants.HuConstants.HuPattern;
+import wb.game.mahjong.model.GameLog.Event;
+import wb.game.mahjong.model.GameLog.ReplayHand;
+import wb.game.mahjong.model.GameLog.ReplayState;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.Utils;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 历史牌局存档.
+// 每局的事件日志追加写入segment文件, 读的时候用MappedByteBuffer, 不把整个文件读入heap.
+// 每个segment在index文件中有一条稀疏索引: gameId/日期范围, 打法, player名字, 胡牌牌型.
+// 查询时先用索引排除不可能匹配的segment, 只扫描剩下的segment.
+public class GameArchive {
+    private static final String ARCHIVE_DIR = "history/";
+    private static final String INDEX_FILENAME = "index.dat";
+    private static final String FORMAT_SEGMENT_FILENAME = "segment_%d.dat";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private static final int INDEX_MAGIC = 0x4d4a4958; // "MJIX"
+    private static final int INDEX_VERSION = 1;
+
+    private static final int MAX_SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    private static final String CHARSET = "UTF-8";
+
+    private static final int NO_VALUE = -1;
+
+    private static GameArchive sInstance;
+
+    public static synchronized GameArchive getInstance() {
+        if (sInstance == null) {
+            sInstance = new GameArchive(Constants.getInternalFilepath(ARCHIVE_DIR));
+        }
+        return sInstance;
+    }
+
+    // 一个segment的稀疏索引.
+    private static class SegmentIndex {
+        public final int segmentNo;
+        public int size;
+        public long minGameId = Long.MAX_VALUE;
+        public long maxGameId = Long.MIN_VALUE;
+        public long minDate = Long.MAX_VALUE;
+        public long maxDate = Long.MIN_VALUE;
+        public int gameMask;    // 包含哪些打法, 按game index.
+        public long huPatternMask; // 包含哪些胡牌牌型.
+        public final HashSet<String> playerNames = new HashSet<String>();
+        public final HashSet<String> winnerNames = new HashSet<String>();
+
+        public SegmentIndex(int segmentNo) {
+            this.segmentNo = segmentNo;
+        }
+
+        public void add(final GameRecord record) {
+            minGameId = Math.min(minGameId, record.gameId);
+            maxGameId = Math.max(maxGameId, record.gameId);
+            minDate = Math.min(minDate, record.date);
+            maxDate = Math.max(maxDate, record.date);
+            gameMask |= 1 << record.gameIndex;
+            for (int i = 0; i < record.playerNames.length; i++) {
+                playerNames.add(record.playerNames[i]);
+                if (record.huPatterns[i] != null) {
+                    winnerNames.add(record.playerNames[i]);
+                    huPatternMask |= 1L << record.huPatterns[i].ordinal();
+                }
+            }
+        }
+
+        public boolean mayMatch(final Query query) {
+            if (size <= 0) return false;
+            if (query.gameId != NO_VALUE
+                            && (query.gameId < minGameId || query.gameId > maxGameId)) {
+                return false;
+            }
+            if (query.fromDate > maxDate || query.toDate < minDate) return false;
+            if (query.gameIndex != NO_VALUE && (gameMask & (1 << query.gameIndex)) == 0) {
+                return false;
+            }
+            if (query.huPattern != null
+                            && (huPatternMask & (1L << query.huPattern.ordinal())) == 0) {
+                return false;
+            }
+            if (query.playerName != null && !playerNames.contains(query.playerName)) {
+                return false;
+            }
+            if (query.winnerName != null && !winnerNames.contains(query.winnerName)) {
+                return false;
+            }
+            return true;
+        }
+
+        private void write(final DataOutputStream dos) throws IOException {
+            dos.writeInt(segmentNo);
+            dos.writeInt(size);
+            dos.writeLong(minGameId);
+            dos.writeLong(maxGameId);
+            dos.writeLong(minDate);
+            dos.writeLong(maxDate);
+            dos.writeInt(gameMask);
+            dos.writeLong(huPatternMask);
+            writeNames(dos, playerNames);
+            writeNames(dos, winnerNames);
+        }
+
+        private static void writeNames(final DataOutputStream dos, final HashSet<String> names)
+                        throws IOException {
+            dos.writeShort(names.size());
+            for (String name : names) {
+                dos.writeUTF(name);
+            }
+        }
+
+        private static SegmentIndex read(final DataInputStream dis) throws IOException {
+            SegmentIndex segmentIndex = new SegmentIndex(dis.readInt());
+            segmentIndex.size = dis.readInt();
+            segmentIndex.minGameId = dis.readLong();
+            segmentIndex.maxGameId = dis.readLong();
+            segmentIndex.minDate = dis.readLong();
+            segmentIndex.maxDate = dis.readLong();
+            segmentIndex.gameMask = dis.readInt();
+            segmentIndex.huPatternMask = dis.readLong();
+            readNames(dis, segmentIndex.playerNames);
+            readNames(dis, segmentIndex.winnerNames);
+            return segmentIndex;
+        }
+
+        private static void readNames(final DataInputStream dis, final HashSet<String> names)
+                        throws IOException {
+            final int count = dis.readShort();
+            for (int i = 0; i < count; i++) {
+                names.add(dis.readUTF());
+            }
+        }
+    }
+
+    // 查询条件. 没有设置的条件不参与过滤.
+    public static class Query {
+        public long gameId = NO_VALUE;
+        public long fromDate = Long.MIN_VALUE;
+        public long toDate = Long.MAX_VALUE;
+        public int gameIndex = NO_VALUE;   // 打法, 见GameResource.getGameIndex.
+        public String playerName;          // 参加了牌局的player.
+        public String winnerName;          // 胡牌的player.
+        public HuPattern huPattern;        // 胡牌牌型. 如果设置了winnerName, 必须是这个player胡的牌型.
+
+        private boolean matches(final GameRecord record) {
+            if (gameId != NO_VALUE && record.gameId != gameId) return false;
+            if (record.date < fromDate || record.date > toDate) return false;
+            if (gameIndex != NO_VALUE && record.gameIndex != gameIndex) return false;
+            if (playerName != null && record.getLocation(playerName) == null) return false;
+            if (winnerName != null) {
+                Location location = record.getLocation(winnerName);
+                if (location == null) return false;
+                HuPattern winnerPattern = record.huPatterns[location.ordinal()];
+                if (winnerPattern == null) return false;
+                if (huPattern != null && winnerPattern != huPattern) return false;
+            } else if (huPattern != null) {
+                boolean found = false;
+                for (HuPattern pattern : record.huPatterns) {
+                    if (pattern == huPattern) {
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) return false;
+            }
+            return true;
+        }
+    }
+
+    // 一局的摘要. 事件日志本身留在segment文件中, 需要时才读出来.
+    public static class GameRecord {
+        public final long gameId;
+        public final long date;
+        public final int gameIndex;
+        public final String[] playerNames = new String[Location.values().length]; // 按location.
+        public final HuPattern[] huPatterns = new HuPattern[Location.values().length]; // null表示没胡.
+
+        private File mSegmentFile;
+        private int mLogOffset;
+        private int mLogLength;
+        private byte[] mLogData; // 只有新加入的record才有.
+
+        private GameRecord(long gameId, long date, int gameIndex) {
+            this.gameId = gameId;
+            this.date = date;
+            this.gameIndex = gameIndex;
+        }
+
+        public Location getLocation(final String playerName) {
+            for (int i = 0; i < playerNames.length; i++) {
+                if (TextUtils.equals(playerName, playerNames[i])) {
+                    return Location.getLocation(i);
+                }
+            }
+            return null;
+        }
+
+        // 读出这一局的事件, 可以交给GameLog.Replayer重放.
+        public ArrayList<Event> readEvents() throws IOException {
+            if (mLogData != null) {
+                return GameLog.read(new ByteArrayInputStream(mLogData));
+            }
+            RandomAccessFile file = new RandomAccessFile(mSegmentFile, "r");
+            try {
+                MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                mLogOffset, mLogLength);
+                byte[] logData = new byte[mLogLength];
+                buffer.get(logData);
+                return GameLog.read(new ByteArrayInputStream(logData));
+            } finally {
+                file.close();
+            }
+        }
+
+        private static final String FORMAT_TOSTRING = "#%d %s game:%d";
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder(String.format(FORMAT_TOSTRING, gameId,
+                            Utils.getTimeString(date), gameIndex));
+            for (int i = 0; i < playerNames.length; i++) {
+                sb.append(' ').append(playerNames[i]);
+                if (huPatterns[i] != null) {
+                    sb.append('(').append(huPatterns[i]).append(')');
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    private final File mDir;
+    private final ArrayList<SegmentIndex> mSegments = new ArrayList<SegmentIndex>();
+    private boolean mIndexLoaded;
+
+    private GameArchive(final String dirPath) {
+        mDir = new File(dirPath);
+    }
+
+    private File getSegmentFile(final int segmentNo) {
+        return new File(mDir, String.format(FORMAT_SEGMENT_FILENAME, segmentNo));
+    }
+
+    private void loadIndex() {
+        if (mIndexLoaded) return;
+        mIndexLoaded = true;
+        if (!mDir.exists()) {
+            mDir.mkdirs();
+        }
+        final File indexFile = new File(mDir, INDEX_FILENAME);
+        if (!indexFile.exists()) return;
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (dis.readInt() != INDEX_MAGIC || dis.readInt() != INDEX_VERSION) {
+                throw new IOException("Invalid archive index " + indexFile);
+            }
+            final int count = dis.readInt();
+            for (int i = 0; i < count; i++) {
+                SegmentIndex segmentIndex = SegmentIndex.read(dis);
+                // 以segment文件的实际长度为准, 丢掉没有写进索引的尾部.
+                final long fileSize = getSegmentFile(segmentIndex.segmentNo).length();
+                if (fileSize < segmentIndex.size) {
+                    segmentIndex.size = (int) fileSize;
+                }
+                mSegments.add(segmentIndex);
+            }
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to load archive index: {}", ioe);
+            mSegments.clear();
+        } finally {
+            if (dis != null) {
+                try {
+                    dis.close();
+                } catch (IOException ioe) {
+                    // TODO: nothing?
+                }
+            }
+        }
+    }
+
+    // 写一个临时文件再rename, 保证index文件总是完整的.
+    private void saveIndex() throws IOException {
+        final File indexFile = new File(mDir, INDEX_FILENAME);
+        final File tempFile = new File(mDir, INDEX_FILENAME + SUFFIX_TEMP);
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(
+                        new FileOutputStream(tempFile)));
+        try {
+            dos.writeInt(INDEX_MAGIC);
+            dos.writeInt(INDEX_VERSION);
+            dos.writeInt(mSegments.size());
+            for (SegmentIndex segmentIndex : mSegments) {
+                segmentIndex.write(dos);
+            }
+        } finally {
+            dos.close();
+        }
+        if (!tempFile.renameTo(indexFile)) {
+            throw new IOException("Failed to rename " + tempFile + " to " + indexFile);
+        }
+    }
+
+    private SegmentIndex getWritableSegment(final int recordSize) {
+        final int count = mSegments.size();
+        if (count > 0) {
+            SegmentIndex last = mSegments.get(count - 1);
+            if (last.size + recordSize <= MAX_SEGMENT_SIZE) return last;
+        }
+        SegmentIndex segmentIndex = new SegmentIndex(count <= 0 ? 0
+                        : mSegments.get(count - 1).segmentNo + 1);
+        mSegments.add(segmentIndex);
+        return segmentIndex;
+    }
+
+    // 把一局结束的事件日志存档. playerNames按location排列.
+    public synchronized GameRecord addGame(final String logFilepath, final int gameIndex,
+                    final String[] playerNames) {
+        loadIndex();
+        try {
+            final byte[] logData = Utils.readFileData(logFilepath);
+            if (logData == null) return null;
+            final ArrayList<Event> events = GameLog.read(new ByteArrayInputStream(logData));
+            if (events.size() <= 0) return null;
+
+            final long date = events.get(0).time;
+            final GameRecord record = new GameRecord(date, date, gameIndex);
+            final ReplayState state = new GameLog.Replayer(events).replayAll();
+            for (ReplayHand hand : state.hands) {
+                final int i = hand.location.ordinal();
+                record.playerNames[i] = playerNames[i] == null ? "" : playerNames[i];
+                record.huPatterns[i] = hand.huedTile == null ? null
+                                : (hand.huPattern == null ? HuPattern.HuNormal : hand.huPattern);
+            }
+            record.mLogData = logData;
+
+            final byte[] recordData = encodeRecord(record, logData);
+            final SegmentIndex segmentIndex = getWritableSegment(recordData.length);
+            final File segmentFile = getSegmentFile(segmentIndex.segmentNo);
+            FileOutputStream fos = new FileOutputStream(segmentFile, true);
+            try {
+                // 先截掉索引之外可能的残缺尾部, 再追加.
+                fos.getChannel().truncate(segmentIndex.size);
+                fos.write(recordData);
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            segmentIndex.size += recordData.length;
+            segmentIndex.add(record);
+            saveIndex();
+            return record;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to archive {}: {}", logFilepath, ioe);
+            return null;
+        }
+    }
+
+    // Format: recordLength, gameId, date, gameIndex, (nameLength, name) * 4, huPattern * 4,
+    //         logLength, log
+    private static byte[] encodeRecord(final GameRecord record, final byte[] logData)
+                    throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(logData.length + 128);
+        DataOutputStream dos = new DataOutputStream(baos);
+        dos.writeInt(0); // 先占位, 最后填入record长度.
+        dos.writeLong(record.gameId);
+        dos.writeLong(record.date);
+        dos.writeByte(record.gameIndex);
+        for (String name : record.playerNames) {
+            byte[] nameData = name.getBytes(CHARSET);
+            dos.writeShort(nameData.length);
+            dos.write(nameData);
+        }
+        for (HuPattern huPattern : record.huPatterns) {
+            dos.writeByte(huPattern == null ? NO_VALUE : huPattern.ordinal());
+        }
+        dos.writeInt(logData.length);
+        dos.write(logData);
+        dos.flush();
+        byte[] data = baos.toByteArray();
+        final int recordLength = data.length - 4;
+        data[0] = (byte) (recordLength >>> 24);
+        data[1] = (byte) (recordLength >>> 16);
+        data[2] = (byte) (recordLength >>> 8);
+        data[3] = (byte) recordLength;
+        return data;
+    }
+
+    private static final EnumCodec<HuPattern> sHuPatternCodec = EnumCodec.of(HuPattern.class);
+
+    private static HuPattern getHuPattern(final int ordinal) {
+        return sHuPatternCodec.get(ordinal);
+    }
+
+    private static String readName(final MappedByteBuffer buffer)
+                    throws UnsupportedEncodingException {
+        byte[] nameData = new byte[buffer.getShort()];
+        buffer.get(nameData);
+        return new String(nameData, CHARSET);
+    }
+
+    // 查询存档. 只扫描索引中可能匹配的segment; 每条record只解析摘要, 跳过事件日志.
+    public synchronized ArrayList<GameRecord> query(final Query query) {
+        loadIndex();
+        final ArrayList<GameRecord> records = new ArrayList<GameRecord>();
+        for (SegmentIndex segmentIndex : mSegments) {
+            if (!segmentIndex.mayMatch(query)) continue;
+            try {
+                scanSegment(segmentIndex, query, records);
+            } catch (IOException ioe) {
+                Logger.w(Subsystem.Storage, "Failed to scan segment {}: {}",
+                                segmentIndex.segmentNo, ioe);
+            }
+        }
+        return records;
+    }
+
+    private void scanSegment(final SegmentIndex segmentIndex, final Query query,
+                    final ArrayList<GameRecord> records) throws IOException {
+        final File segmentFile = getSegmentFile(segmentIndex.segmentNo);
+        RandomAccessFile file = new RandomAccessFile(segmentFile, "r");
+        try {
+            final MappedByteBuffer buffer = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                            0, segmentIndex.size);
+            while (buffer.remaining() > 4) {
+                final int recordLength = buffer.getInt();
+                final int recordEnd = buffer.position() + recordLength;
+                if (recordLength <= 0 || recordEnd > segmentIndex.size) break;
+
+                final GameRecord record = new GameRecord(buffer.getLong(), buffer.getLong(),
+                                buffer.get());
+                for (int i = 0; i < record.playerNames.length; i++) {
+                    record.playerNames[i] = readName(buffer);
+                }
+                for (int i = 0; i < record.huPatterns.length; i++) {
+                    record.huPatterns[i] = getHuPattern(buffer.get());
+                }
+                record.mLogLength = buffer.getInt();
+                record.mLogOffset = buffer.position();
+                record.mSegmentFile = segmentFile;
+                if (query.matches(record)) {
+                    records.add(record);
+                }
+                buffer.position(recordEnd);
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    public synchronized int getSegmentCount() {
+        loadIndex();
+        return mSegments.size();
+    }
+}
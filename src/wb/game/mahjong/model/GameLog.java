@@ -0,0 +1,496 @@
+package wb.game.mahjong.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import wb.game.mahjong.MahjongManager.Location;
+import wb.game.mahjong.constants.HuConstants.HuPattern;
+import wb.game.mahjong.constants.TileResources.TileType;
+import wb.game.mahjong.model.GameResource.Action;
+import wb.game.mahjong.model.Tile.TileInfo;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 一局牌的事件日志: 只追加写, 二进制格式.
+// 记录洗牌(seed + 牌墙顺序), 摸牌, 打牌, 吃/碰/杠/听/胡, 可以用Replayer重放到任意一个事件.
+public class GameLog {
+    private static final int LOG_MAGIC = 0x4d4a4c47; // "MJLG"
+    private static final int LOG_VERSION = 1;
+
+    private static final int NO_VALUE = -1;
+
+    public static enum EventType {
+        Deal,   // 洗牌, 记录seed和牌墙
+        Draw,   // 摸牌
+        Throw,  // 打牌
+        Action; // 吃/碰/杠/听/胡/杠上开花
+
+        private static final EnumCodec<EventType> sCodec = EnumCodec.of(EventType.class);
+
+        public static EventType getEventType(final int ordinal) {
+            return sCodec.get(ordinal);
+        }
+    }
+
+    public static class Event {
+        public final EventType type;
+        public final long time;
+
+        public Location location;      // 谁的事件. Deal为null.
+        public Tile tile;              // 摸/打/action的那张牌.
+        public boolean fromEnd;        // 是否从牌墙尾部摸牌.
+        public Action action;
+        public Location fromWhere;     // action的牌是谁打出来的. 自摸为null.
+        public Tile[] tiles;           // Deal: 牌墙顺序; 吃: 手里的两张牌; 杠上开花: 开花那张牌.
+        public HuPattern huPattern;
+        public long seed;
+
+        private Event(EventType type, long time) {
+            this.type = type;
+            this.time = time;
+        }
+
+        private static final String FORMAT_TOSTRING = "%s %s %s %s";
+
+        @Override
+        public String toString() {
+            switch (type) {
+                case Deal:
+                    return String.format(FORMAT_TOSTRING, type, seed, tiles.length, "");
+                case Action:
+                    return String.format(FORMAT_TOSTRING, type, location, action,
+                                    huPattern == null ? tile : tile + "(" + huPattern + ")");
+                default:
+                    return String.format(FORMAT_TOSTRING, type, location, tile,
+                                    fromEnd ? "fromEnd" : "");
+            }
+        }
+    }
+
+    private DataOutputStream mDos;
+    private String mFilepath;
+
+    public synchronized boolean isRecording() {
+        return mDos != null;
+    }
+
+    public synchronized String getFilepath() {
+        return mFilepath;
+    }
+
+    // 开始新的一局日志. 之前的日志会被关闭.
+    public synchronized void start(final String filepath) {
+        close();
+        try {
+            mDos = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(filepath, true)));
+            mDos.writeInt(LOG_MAGIC);
+            mDos.writeInt(LOG_VERSION);
+            mDos.flush();
+            mFilepath = filepath;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to start game log {}: {}", filepath, ioe);
+            close();
+        }
+    }
+
+    // 进程被杀后恢复牌局时, 接着之前的日志继续写.
+    public synchronized void resume(final String filepath) {
+        close();
+        try {
+            mDos = new DataOutputStream(new BufferedOutputStream(
+                            new FileOutputStream(filepath, true)));
+            mFilepath = filepath;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to resume game log {}: {}", filepath, ioe);
+            close();
+        }
+    }
+
+    public synchronized void close() {
+        if (mDos == null) return;
+        try {
+            mDos.close();
+        } catch (IOException ioe) {
+            // TODO: nothing?
+        }
+        mDos = null;
+    }
+
+    public synchronized void logDeal(final long seed, final List<Tile> wall) {
+        if (mDos == null) return;
+        try {
+            writeHeader(EventType.Deal, null);
+            mDos.writeLong(seed);
+            mDos.writeShort(wall.size());
+            for (Tile tile : wall) {
+                mDos.writeByte(encodeTile(tile));
+            }
+            mDos.flush();
+        } catch (IOException ioe) {
+            onWriteFailed(ioe);
+        }
+    }
+
+    public synchronized void logDraw(final Location location, final Tile tile,
+                    final boolean fromEnd) {
+        if (mDos == null) return;
+        try {
+            writeHeader(EventType.Draw, location);
+            mDos.writeByte(encodeTile(tile));
+            mDos.writeBoolean(fromEnd);
+            mDos.flush();
+        } catch (IOException ioe) {
+            onWriteFailed(ioe);
+        }
+    }
+
+    public synchronized void logThrow(final Location location, final Tile tile) {
+        if (mDos == null) return;
+        try {
+            writeHeader(EventType.Throw, location);
+            mDos.writeByte(encodeTile(tile));
+            mDos.flush();
+        } catch (IOException ioe) {
+            onWriteFailed(ioe);
+        }
+    }
+
+    public synchronized void logAction(final Location location, final Action action,
+                    final TileInfo tileInfo, final Tile[] tiles, final HuPattern huPattern) {
+        if (mDos == null) return;
+        try {
+            writeHeader(EventType.Action, location);
+            mDos.writeByte(action.ordinal());
+            mDos.writeByte(encodeTile(tileInfo.tile));
+            final boolean fromOther = tileInfo.isThrown() && tileInfo.fromWhere != null
+                            && tileInfo.fromWhere != location;
+            mDos.writeByte(fromOther ? tileInfo.fromWhere.ordinal() : NO_VALUE);
+            mDos.writeByte(huPattern == null ? NO_VALUE : huPattern.ordinal());
+            if (tiles == null) {
+                mDos.writeByte(0);
+            } else {
+                mDos.writeByte(tiles.length);
+                for (Tile tile : tiles) {
+                    mDos.writeByte(encodeTile(tile));
+                }
+            }
+            mDos.flush();
+        } catch (IOException ioe) {
+            onWriteFailed(ioe);
+        }
+    }
+
+    private void writeHeader(final EventType type, final Location location) throws IOException {
+        mDos.writeByte(type.ordinal());
+        mDos.writeLong(System.currentTimeMillis());
+        mDos.writeByte(location == null ? NO_VALUE : location.ordinal());
+    }
+
+    private void onWriteFailed(final IOException ioe) {
+        Logger.w(Subsystem.Storage, "Failed to write game log {}: {}", mFilepath, ioe);
+        close();
+    }
+
+    // 一张牌用一个字节: 高4位为牌的类型, 低4位为牌的index.
+    static int encodeTile(final Tile tile) {
+        return (tile.tileType.ordinal() << 4) | tile.tileIndex;
+    }
+
+    static Tile decodeTile(final int code) {
+        TileType tileType = TileType.getTileType((code >> 4) & 0x0f);
+        if (tileType == null) {
+            throw new RuntimeException("Invalid tile code in game log: " + code);
+        }
+        return new Tile(tileType, code & 0x0f);
+    }
+
+    private static final EnumCodec<HuPattern> sHuPatternCodec = EnumCodec.of(HuPattern.class);
+
+    private static HuPattern getHuPattern(final int ordinal) {
+        return sHuPatternCodec.get(ordinal);
+    }
+
+    // 读出一个日志文件中的所有事件. 如果文件尾部不完整(比如进程被杀), 只返回完整的事件.
+    public static ArrayList<Event> read(final String filepath) throws IOException {
+        return read(new FileInputStream(filepath));
+    }
+
+    // 从流中读出所有事件, 读完后关闭这个流.
+    public static ArrayList<Event> read(final InputStream inputStream) throws IOException {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(inputStream));
+        try {
+            if (dis.readInt() != LOG_MAGIC) {
+                throw new IOException("Not a game log!");
+            }
+            final int version = dis.readInt();
+            if (version != LOG_VERSION) {
+                throw new IOException("Unsupported game log version " + version);
+            }
+            while (true) {
+                final Event event = readEvent(dis);
+                if (event == null) break;
+                events.add(event);
+            }
+        } catch (EOFException eofe) {
+            // 最后一个事件没有写完整, 忽略它.
+        } finally {
+            try {
+                dis.close();
+            } catch (IOException ioe) {
+                // TODO: nothing?
+            }
+        }
+        return events;
+    }
+
+    private static Event readEvent(final DataInputStream dis) throws IOException {
+        final int typeOrdinal = dis.read();
+        if (typeOrdinal < 0) return null; // EOF
+        final EventType type = EventType.getEventType(typeOrdinal);
+        if (type == null) {
+            throw new IOException("Invalid event type in game log: " + typeOrdinal);
+        }
+        final Event event = new Event(type, dis.readLong());
+        event.location = Location.getLocation(dis.readByte());
+        switch (type) {
+            case Deal:
+                event.seed = dis.readLong();
+                event.tiles = new Tile[dis.readShort()];
+                for (int i = 0; i < event.tiles.length; i++) {
+                    event.tiles[i] = decodeTile(dis.readUnsignedByte());
+                }
+                break;
+            case Draw:
+                event.tile = decodeTile(dis.readUnsignedByte());
+                event.fromEnd = dis.readBoolean();
+                break;
+            case Throw:
+                event.tile = decodeTile(dis.readUnsignedByte());
+                break;
+            case Action:
+                event.action = Action.getAction(dis.readByte());
+                event.tile = decodeTile(dis.readUnsignedByte());
+                event.fromWhere = Location.getLocation(dis.readByte());
+                event.huPattern = getHuPattern(dis.readByte());
+                event.tiles = new Tile[dis.readUnsignedByte()];
+                for (int i = 0; i < event.tiles.length; i++) {
+                    event.tiles[i] = decodeTile(dis.readUnsignedByte());
+                }
+                break;
+        }
+        return event;
+    }
+
+    // 重放时每个player的状态.
+    public static class ReplayHand {
+        public final Location location;
+        public final ArrayList<Tile> liveTiles = new ArrayList<Tile>();
+        public final ArrayList<Tile> thrownTiles = new ArrayList<Tile>();
+        public final ArrayList<Tile[]> chiTiles = new ArrayList<Tile[]>();
+        public final ArrayList<Tile[]> pengTiles = new ArrayList<Tile[]>();
+        public final ArrayList<Tile[]> gangTiles = new ArrayList<Tile[]>();
+        public boolean tinged;
+        public Tile huedTile;
+        public HuPattern huPattern;
+
+        private ReplayHand(Location location) {
+            this.location = location;
+        }
+
+        private Tile removeLive(final Tile inputTile) {
+            for (int i = liveTiles.size() - 1; i >= 0; i--) {
+                if (liveTiles.get(i).isSameTile(inputTile)) {
+                    return liveTiles.remove(i);
+                }
+            }
+            return null;
+        }
+
+        private void removeLive(final Tile inputTile, final int count) {
+            for (int i = 0; i < count; i++) {
+                removeLive(inputTile);
+            }
+        }
+
+        private Tile[] findPeng(final Tile inputTile) {
+            for (Tile[] tiles : pengTiles) {
+                if (tiles[0].isSameTile(inputTile)) return tiles;
+            }
+            return null;
+        }
+    }
+
+    // 重放时整桌牌的状态.
+    public static class ReplayState {
+        public final ArrayList<Tile> wall = new ArrayList<Tile>();
+        public final ReplayHand[] hands = new ReplayHand[Location.values().length];
+        public long seed;
+        public int eventIndex = -1; // 已经重放到的事件.
+
+        private ReplayState() {
+            for (Location location : Location.values()) {
+                hands[location.ordinal()] = new ReplayHand(location);
+            }
+        }
+
+        public ReplayHand getHand(final Location location) {
+            return hands[location.ordinal()];
+        }
+
+        // 从牌墙头或尾部拿走一张牌. 亮牌等操作可能让牌墙顺序与实际不同，所以按牌去找.
+        private Tile takeFromWall(final Tile inputTile, final boolean fromEnd) {
+            final int count = wall.size();
+            for (int i = 0; i < count; i++) {
+                final int index = fromEnd ? count - 1 - i : i;
+                if (wall.get(index).isSameTile(inputTile)) {
+                    return wall.remove(index);
+                }
+            }
+            return inputTile;
+        }
+
+        private void takeFromThrown(final Location fromWhere, final Tile inputTile) {
+            if (fromWhere == null) return;
+            final ArrayList<Tile> thrownTiles = getHand(fromWhere).thrownTiles;
+            final int count = thrownTiles.size();
+            if (count > 0 && thrownTiles.get(count - 1).isSameTile(inputTile)) {
+                thrownTiles.remove(count - 1);
+            }
+        }
+    }
+
+    // 重放器: 把事件依次应用到ReplayState上. 向后重放是增量的, 向前重放则从头开始.
+    public static class Replayer {
+        private final List<Event> mEvents;
+        private ReplayState mState;
+
+        public Replayer(final List<Event> events) {
+            mEvents = events;
+            mState = new ReplayState();
+        }
+
+        public int getEventCount() {
+            return mEvents.size();
+        }
+
+        public Event getEvent(final int index) {
+            return mEvents.get(index);
+        }
+
+        // 重放到第eventIndex个事件(包括这个事件).
+        public ReplayState replayTo(final int eventIndex) {
+            if (eventIndex < -1 || eventIndex >= mEvents.size()) {
+                throw new IllegalArgumentException("Invalid event index " + eventIndex
+                                + ", event count:" + mEvents.size());
+            }
+            if (eventIndex < mState.eventIndex) {
+                mState = new ReplayState();
+            }
+            while (mState.eventIndex < eventIndex) {
+                mState.eventIndex++;
+                apply(mState, mEvents.get(mState.eventIndex));
+            }
+            return mState;
+        }
+
+        public ReplayState replayAll() {
+            return replayTo(mEvents.size() - 1);
+        }
+
+        private static void apply(final ReplayState state, final Event event) {
+            switch (event.type) {
+                case Deal:
+                    state.seed = event.seed;
+                    state.wall.clear();
+                    for (Tile tile : event.tiles) {
+                        state.wall.add(tile);
+                    }
+                    for (ReplayHand hand : state.hands) {
+                        hand.liveTiles.clear();
+                        hand.thrownTiles.clear();
+                        hand.chiTiles.clear();
+                        hand.pengTiles.clear();
+                        hand.gangTiles.clear();
+                        hand.tinged = false;
+                        hand.huedTile = null;
+                        hand.huPattern = null;
+                    }
+                    break;
+                case Draw:
+                    state.getHand(event.location).liveTiles.add(
+                                    state.takeFromWall(event.tile, event.fromEnd));
+                    break;
+                case Throw:
+                    ReplayHand thrower = state.getHand(event.location);
+                    Tile thrownTile = thrower.removeLive(event.tile);
+                    thrower.thrownTiles.add(thrownTile == null ? event.tile : thrownTile);
+                    break;
+                case Action:
+                    applyAction(state, event);
+                    break;
+            }
+        }
+
+        private static void applyAction(final ReplayState state, final Event event) {
+            final ReplayHand hand = state.getHand(event.location);
+            final Tile tile = event.tile;
+            switch (event.action) {
+                case Chi:
+                    state.takeFromThrown(event.fromWhere, tile);
+                    for (Tile chiTile : event.tiles) {
+                        hand.removeLive(chiTile);
+                    }
+                    hand.chiTiles.add(new Tile[] {event.tiles[0], event.tiles[1], tile});
+                    break;
+                case Peng:
+                    state.takeFromThrown(event.fromWhere, tile);
+                    hand.removeLive(tile, 2);
+                    hand.pengTiles.add(new Tile[] {tile, tile, tile});
+                    break;
+                case Gang:
+                case GangFlower:
+                    state.takeFromThrown(event.fromWhere, tile);
+                    Tile[] penged = hand.findPeng(tile);
+                    if (penged != null) { // 碰杠
+                        hand.pengTiles.remove(penged);
+                        hand.removeLive(tile, 1);
+                    } else { // 暗杠/明杠
+                        hand.removeLive(tile, event.fromWhere == null ? 4 : 3);
+                    }
+                    hand.gangTiles.add(new Tile[] {tile, tile, tile, tile});
+                    if (event.action == Action.GangFlower && event.tiles.length > 0) {
+                        hand.huedTile = state.takeFromWall(event.tiles[0], true);
+                        hand.huPattern = event.huPattern;
+                    }
+                    break;
+                case GangGrab:
+                case Hu:
+                    if (event.fromWhere != null) {
+                        state.takeFromThrown(event.fromWhere, tile);
+                    } else {
+                        hand.removeLive(tile);
+                    }
+                    hand.huedTile = tile;
+                    hand.huPattern = event.huPattern;
+                    break;
+                case Ting:
+                    hand.tinged = true;
+                    break;
+                default:
+                    break;
+            }
+        }
+    }
+}
@@ -1,7 +1,13 @@
 package wb.game.mahjong.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 
 import android.content.Context;
 import android.content.DialogInterface;
@@ -20,6 +26,8 @@ import wb.game.mahjong.constants.TileResources.TileType;
 import wb.game.mahjong.model.Tile.HuTile;
 import wb.game.mahjong.model.Tile.RemainedTileInfo;
 import wb.game.mahjong.model.Tile.TileInfo;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.StartupTrace;
 import wb.game.utils.Utils;
 
 public class GameResource {
@@ -66,11 +74,10 @@ public class GameResource {
             return actionResId > 0;
         }
 
+        private static final EnumCodec<Action> sCodec = EnumCodec.of(Action.class);
+
         public static Action getAction(final int actionOrder) {
-            for (Action action : values()) {
-                if (action.ordinal() == actionOrder) return action;
-            }
-            return null;
+            return sCodec.get(actionOrder);
         }
 
         private static final String FORMAT_DEFAULT_ACTION_STRING = "%s %s";
@@ -159,11 +166,10 @@ public class GameResource {
         Winner, // 赢家坐庄
         Next;   // 下家坐庄
 
+        private static final EnumCodec<BankerSelect> sCodec = EnumCodec.of(BankerSelect.class);
+
         public static BankerSelect getBankerSelect(final int index) {
-            for (BankerSelect bankerSelect : values()) {
-                if (bankerSelect.ordinal() == index) return bankerSelect;
-            }
-            return Winner;
+            return sCodec.get(index, Winner);
         }
     }
 
@@ -201,8 +207,9 @@ public class GameResource {
         private final ShowTile mShowTile; // 是否需要亮一张牌出来;
         private final boolean mGameOnlyHuSelf; // 是否只能自摸. 这个是游戏规则决定的.
 
-        private final Tile[] mAvailableTiles;
-        private final RemainedTileInfo[] mRemainedTiles;
+        // 这种打法用到的牌和剩余牌信息, 第一次用到时才创建, 见ensureTiles().
+        private Tile[] mAvailableTiles;
+        private RemainedTileInfo[] mRemainedTiles;
 
         private int mCircleCount;
 
@@ -224,10 +231,15 @@ public class GameResource {
 
         protected final ArrayList<Tile> mLiveTiles = new ArrayList<Tile>();
 
+        private long mWashSeed; // 最近一次洗牌用的seed.
+
+        // 牌墙张数在mLiveTiles改变时(持锁)发布, UI线程读取时不需要再锁mLiveTiles.
+        private volatile int mPublishedTileNum;
+
         public boolean isMasterGame = true;
 
         // 以下是为了remote Manager中的game服务的，在banker端不应起作用.
-        private int mLiveTileNum;
+        private volatile int mLiveTileNum;
         private Tile mShownTile;
 
         public Game(int labelResId, String introductionFilename, int settingsLayoutResId,
@@ -248,10 +260,24 @@ public class GameResource {
             mHuedType = huedType;
             mShowTile = showTile;
             mGameOnlyHuSelf = onlyHuSelf;
+        }
 
-            mAvailableTiles = gameAvailableTiles();
-            mRemainedTiles = new RemainedTileInfo[mAvailableTiles.length];
-            initRemainedTilesCount();
+        // 子类的isValidTileType()可能用到子类的成员, 不能在构造函数中调用.
+        private synchronized void ensureTiles() {
+            if (mAvailableTiles != null) return;
+            final long startTime = StartupTrace.start();
+            final Tile[] availableTiles = gameAvailableTiles();
+            mRemainedTiles = new RemainedTileInfo[availableTiles.length];
+            for (int i = 0; i < availableTiles.length; i++) {
+                mRemainedTiles[i] = new RemainedTileInfo(availableTiles[i]);
+            }
+            mAvailableTiles = availableTiles;
+            StartupTrace.record(mSettingsName + ".tiles", startTime);
+        }
+
+        private RemainedTileInfo[] getRemainedTiles() {
+            ensureTiles();
+            return mRemainedTiles;
         }
 
         public Tile distributeTile(final boolean fromEnd,
@@ -271,6 +297,7 @@ public class GameResource {
                 } else {
                     tile = mLiveTiles.remove(0);
                 }
+                mPublishedTileNum = mLiveTiles.size();
             }
             //sendMessageToMainThread(Constants.UIMessage.MSG_GAME_REFRESH);
             if (distributeTileListener != null) {
@@ -290,24 +317,90 @@ public class GameResource {
         }
 
         public void washTiles() {
+            washTiles(System.nanoTime());
+        }
+
+        // 用给定的seed洗牌, 同一个seed总是洗出同样的牌墙, 以便重放.
+        public void washTiles(final long seed) {
+            final Random random = new Random(seed);
             synchronized (mLiveTiles) {
+                mWashSeed = seed;
                 mLiveTiles.clear();
                 do {
-                    int randomIndex = Utils.getRandomInt(0, sTiles.length - 1);
+                    int randomIndex = random.nextInt(sTiles.length);
                     Tile tile = sTiles[randomIndex];
                     if (!mLiveTiles.contains(tile)) {
                         tile.init();
                         mLiveTiles.add(tile);
                     }
                 } while (mLiveTiles.size() != sTiles.length);
+                mPublishedTileNum = mLiveTiles.size();
+            }
+        }
+
+        public final long getWashSeed() {
+            return mWashSeed;
+        }
+
+        // 当前牌墙的拷贝.
+        public ArrayList<Tile> getLiveTiles() {
+            synchronized (mLiveTiles) {
+                return new ArrayList<Tile>(mLiveTiles);
+            }
+        }
+
+        // 保存牌局进行中的状态: 牌墙, 圈数, 杠数, 百搭牌, 剩余牌信息.
+        void writeSnapshot(final DataOutputStream dos) throws IOException {
+            dos.writeLong(mWashSeed);
+            dos.writeInt(mCircleCount);
+            dos.writeInt(mGangCount);
+            dos.writeByte(mMatchAllTile == null ? -1 : GameLog.encodeTile(mMatchAllTile));
+            for (RemainedTileInfo remainedTileInfo : getRemainedTiles()) {
+                dos.writeByte(remainedTileInfo.count);
+            }
+            synchronized (mLiveTiles) {
+                dos.writeShort(mLiveTiles.size());
+                for (Tile tile : mLiveTiles) {
+                    dos.writeByte(GameLog.encodeTile(tile));
+                }
             }
         }
 
+        void restoreSnapshot(final DataInputStream dis) throws IOException {
+            mWashSeed = dis.readLong();
+            mCircleCount = dis.readInt();
+            mGangCount = dis.readInt();
+            final int matchAllTileCode = dis.readByte();
+            setMatchAllTile(matchAllTileCode < 0 ? null : GameLog.decodeTile(matchAllTileCode));
+            for (RemainedTileInfo remainedTileInfo : getRemainedTiles()) {
+                remainedTileInfo.count = dis.readByte();
+            }
+            synchronized (mLiveTiles) {
+                mLiveTiles.clear();
+                final int count = dis.readShort();
+                for (int i = 0; i < count; i++) {
+                    mLiveTiles.add(GameLog.decodeTile(dis.readUnsignedByte()));
+                }
+                mPublishedTileNum = mLiveTiles.size();
+            }
+        }
+
+        // host迁移: 庄家端把进行中的状态(同writeSnapshot())交给备用的设备.
+        public byte[] exportState() throws IOException {
+            final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            writeSnapshot(new DataOutputStream(bos));
+            return bos.toByteArray();
+        }
+
+        // host迁移: 庄家端断开后, 备用的设备恢复exportState()的状态, 成为master接着发牌.
+        public void takeOverState(final byte[] state) throws IOException {
+            restoreSnapshot(new DataInputStream(new ByteArrayInputStream(state)));
+            isMasterGame = true;
+        }
+
         public int getRemainingTileNum() {
             if (isMasterGame) {
-                synchronized (mLiveTiles) {
-                    return mLiveTiles.size();
-                }
+                return mPublishedTileNum;
             }
             return mLiveTileNum;
         }
@@ -327,14 +420,8 @@ public class GameResource {
         }
 
         private void initRemainedTilesCount() {
-            int i = 0;
-            for (Tile tile : mAvailableTiles) {
-                if (mRemainedTiles[i] == null) {
-                    mRemainedTiles[i] = new RemainedTileInfo(tile);
-                } else {
-                    mRemainedTiles[i].count = Tile.MAX_TILE_COUNT;
-                }
-                i++;
+            for (RemainedTileInfo remainedTileInfo : getRemainedTiles()) {
+                remainedTileInfo.count = Tile.MAX_TILE_COUNT;
             }
         }
 
@@ -487,7 +574,7 @@ public class GameResource {
         protected abstract void saveChildPreferences(final Context context, final Editor editor);
 
         public void setRemainedTileInfo(final Tile tile, final int count) {
-            for (RemainedTileInfo remained : mRemainedTiles) {
+            for (RemainedTileInfo remained : getRemainedTiles()) {
                 if (remained.tile.isSameTile(tile)) {
                     remained.count = count;
                 }
@@ -495,7 +582,7 @@ public class GameResource {
         }
 
         public int getRemainedTileCount(final Tile tile) {
-            for (RemainedTileInfo remained : mRemainedTiles) {
+            for (RemainedTileInfo remained : getRemainedTiles()) {
                 if (remained.tile.isSameTile(tile)) {
                     return remained.count;
                 }
@@ -504,6 +591,7 @@ public class GameResource {
         }
 
         public Tile[] getAvailableTiles() {
+            ensureTiles();
             return mAvailableTiles;
         }
 
@@ -555,6 +643,7 @@ public class GameResource {
                 }
                 if (!mShowTile.keepTile && shownTile != null) {
                     mLiveTiles.remove(shownTile);
+                    mPublishedTileNum = mLiveTiles.size();
                 }
                 return shownTile;
             }
@@ -816,17 +905,47 @@ public class GameResource {
 
     public static final int sShowLatestGameCount = 3;
 
-    private static final Game[] sGames = {
-        new BloodRiver(),
-        new FlowerAfterGang(),
-        new Beijing(),
-        new BloodBattle(),
-        new TuidaoHu(),
-    };
+    // 所有打法. 大厅中只需要名字, Game在第一次被选中时才创建.
+    private static enum GameEntry {
+        BloodRiver(R.string.game_blood_river, "game_blood_river"),
+        FlowerAfterGang(R.string.game_flower_after_gang, "game_flower_on_gang"),
+        Beijing(R.string.game_beijing, "game_beijing"),
+        BloodBattle(R.string.game_blood_battle, "game_blood_battle"),
+        TuidaoHu(R.string.game_tuidaohu, "game_tuidaohu");
+
+        public final int labelResId;
+        public final String settingsName;
+
+        private GameEntry(final int labelResId, final String settingsName) {
+            this.labelResId = labelResId;
+            this.settingsName = settingsName;
+        }
+
+        private Game createGame() {
+            switch (this) {
+                case BloodRiver:
+                    return new GameResource.BloodRiver();
+                case FlowerAfterGang:
+                    return new GameResource.FlowerAfterGang();
+                case Beijing:
+                    return new GameResource.Beijing();
+                case BloodBattle:
+                    return new GameResource.BloodBattle();
+                case TuidaoHu:
+                    return new GameResource.TuidaoHu();
+                default:
+                    throw new RuntimeException("Invalid game entry:" + this);
+            }
+        }
+    }
+
+    private static final GameEntry[] sGameEntries = GameEntry.values();
+
+    private static final Game[] sGames = new Game[sGameEntries.length];
 
     public static int getGameIndex(final String settingsName) {
-        for (int i = 0; i < sGames.length; i++) {
-            if (sGames[i].mSettingsName.equals(settingsName)) {
+        for (int i = 0; i < sGameEntries.length; i++) {
+            if (sGameEntries[i].settingsName.equals(settingsName)) {
                 return i;
             }
         }
@@ -834,15 +953,31 @@ public class GameResource {
     }
 
     public static Game getGame(int index) {
-        return sGames[index];
+        synchronized (sGames) {
+            if (sGames[index] == null) {
+                final long startTime = StartupTrace.start();
+                final GameEntry entry = sGameEntries[index];
+                final Game game = entry.createGame();
+                if (!game.mSettingsName.equals(entry.settingsName)) {
+                    throw new RuntimeException("Game settingsName mismatch: " + entry);
+                }
+                sGames[index] = game;
+                StartupTrace.record(entry.settingsName, startTime);
+            }
+            return sGames[index];
+        }
     }
 
     public static int getGameNum() {
-        return sGames.length;
+        return sGameEntries.length;
     }
 
     public static String getGameSettingsName(int index) {
-        return sGames[index].mSettingsName;
+        return sGameEntries[index].settingsName;
+    }
+
+    public static int getGameLabelResId(int index) {
+        return sGameEntries[index].labelResId;
     }
 
     // 血流成河
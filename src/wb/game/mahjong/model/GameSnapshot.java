@@ -0,0 +1,160 @@
+package wb.game.mahjong.model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import wb.game.mahjong.MahjongManager.Location;
+import wb.game.mahjong.constants.Constants;
+import wb.game.mahjong.model.GameResource.Game;
+import wb.game.utils.Utils;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 牌局快照: 每轮摸牌前保存整桌的状态, 进程被杀后可以直接恢复牌局,
+// 不需要重新洗牌发牌, 也不需要重走一遍RemoteManagerState的握手.
+// 先写临时文件再rename, 所以快照文件要么是旧的要么是新的, 不会是写了一半的.
+public class GameSnapshot {
+    private static final String SNAPSHOT_FILENAME = "snapshot.dat";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private static final int SNAPSHOT_MAGIC = 0x4d4a5350; // "MJSP"
+    private static final int SNAPSHOT_VERSION = 1;
+
+    public final int gameIndex;
+    public final String bankerInfo;      // MahjongManager.BankerInfo.infoString()
+    public final Location nextLocation;  // 下一个摸牌的player.
+    public final String logFilepath;     // 这一局的事件日志, 恢复后接着写.
+    public final String[] playerNames;   // 按mPlayers的顺序.
+    public final Location[] playerLocations;
+
+    private byte[] mBody; // game和players的状态, restore时才解析.
+
+    public GameSnapshot(int gameIndex, String bankerInfo, Location nextLocation,
+                    String logFilepath, Player[] players) {
+        this.gameIndex = gameIndex;
+        this.bankerInfo = bankerInfo;
+        this.nextLocation = nextLocation;
+        this.logFilepath = logFilepath == null ? "" : logFilepath;
+        playerNames = new String[players.length];
+        playerLocations = new Location[players.length];
+        for (int i = 0; i < players.length; i++) {
+            playerNames[i] = players[i].name;
+            playerLocations[i] = players[i].getLocation();
+        }
+    }
+
+    private GameSnapshot(int gameIndex, String bankerInfo, Location nextLocation,
+                    String logFilepath, String[] playerNames, Location[] playerLocations) {
+        this.gameIndex = gameIndex;
+        this.bankerInfo = bankerInfo;
+        this.nextLocation = nextLocation;
+        this.logFilepath = logFilepath;
+        this.playerNames = playerNames;
+        this.playerLocations = playerLocations;
+    }
+
+    private static File getFile() {
+        return new File(Constants.getInternalFilepath(SNAPSHOT_FILENAME));
+    }
+
+    public static boolean exists() {
+        return getFile().exists();
+    }
+
+    public static void delete() {
+        getFile().delete();
+    }
+
+    // 把当前牌局写入快照文件.
+    public boolean save(final Game game, final Player[] players) {
+        final File file = getFile();
+        final File tempFile = new File(file.getPath() + SUFFIX_TEMP);
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(2048);
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            dos.writeInt(SNAPSHOT_MAGIC);
+            dos.writeInt(SNAPSHOT_VERSION);
+            dos.writeByte(gameIndex);
+            dos.writeUTF(bankerInfo);
+            dos.writeByte(nextLocation.ordinal());
+            dos.writeUTF(logFilepath);
+            dos.writeByte(playerNames.length);
+            for (int i = 0; i < playerNames.length; i++) {
+                dos.writeUTF(playerNames[i]);
+                dos.writeByte(playerLocations[i].ordinal());
+            }
+            game.writeSnapshot(dos);
+            for (Player player : players) {
+                player.writeSnapshot(dos);
+            }
+            dos.flush();
+
+            FileOutputStream fos = new FileOutputStream(tempFile);
+            try {
+                fos.write(baos.toByteArray());
+                fos.getFD().sync();
+            } finally {
+                fos.close();
+            }
+            return tempFile.renameTo(file);
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to save game snapshot: {}", ioe);
+            return false;
+        }
+    }
+
+    // 读出快照的头部. 整桌的状态在restore时才解析.
+    public static GameSnapshot load() {
+        final File file = getFile();
+        if (!file.exists()) return null;
+        final byte[] data = Utils.readFileData(file.getPath());
+        if (data == null) return null;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
+        try {
+            if (dis.readInt() != SNAPSHOT_MAGIC || dis.readInt() != SNAPSHOT_VERSION) {
+                return null;
+            }
+            final int gameIndex = dis.readByte();
+            final String bankerInfo = dis.readUTF();
+            final Location nextLocation = Location.getLocation(dis.readByte());
+            final String logFilepath = dis.readUTF();
+            final int playerCount = dis.readByte();
+            final String[] playerNames = new String[playerCount];
+            final Location[] playerLocations = new Location[playerCount];
+            for (int i = 0; i < playerCount; i++) {
+                playerNames[i] = dis.readUTF();
+                playerLocations[i] = Location.getLocation(dis.readByte());
+            }
+            GameSnapshot snapshot = new GameSnapshot(gameIndex, bankerInfo, nextLocation,
+                            logFilepath, playerNames, playerLocations);
+            final int headerSize = data.length - dis.available();
+            snapshot.mBody = new byte[data.length - headerSize];
+            System.arraycopy(data, headerSize, snapshot.mBody, 0, snapshot.mBody.length);
+            return snapshot;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to load game snapshot: {}", ioe);
+            return null;
+        }
+    }
+
+    // 把快照中的状态恢复到game和players. players必须和保存时的顺序一致.
+    public boolean restore(final Game game, final Player[] players) {
+        if (mBody == null || players.length != playerNames.length) return false;
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(mBody));
+        try {
+            game.restoreSnapshot(dis);
+            for (Player player : players) {
+                player.restoreSnapshot(dis);
+            }
+            return true;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to restore game snapshot: {}", ioe);
+            return false;
+        }
+    }
+}
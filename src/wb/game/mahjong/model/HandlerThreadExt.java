@@ -47,22 +47,26 @@ public class HandlerThreadExt extends HandlerThread {
     }
 
     public void post(Runnable runnable) {
+        TurnStats.getInstance().countHop(getName());
         keepWaiting();
         mHandler.post(runnable);
     }
 
     public void sendEmptyMessage(int msgWhat) {
+        TurnStats.getInstance().countHop(getName());
         keepWaiting();
         mHandler.sendEmptyMessage(msgWhat);
     }
 
     public void sendMessage(int what, Object obj) {
+        TurnStats.getInstance().countHop(getName());
         keepWaiting();
         Message msg = mHandler.obtainMessage(what, obj);
         mHandler.sendMessage(msg);
     }
 
     protected void sendMessageWithArg1(int what, int arg1) {
+        TurnStats.getInstance().countHop(getName());
         Message msg = mHandler.obtainMessage(what);
         msg.arg1 = arg1;
         mHandler.sendMessage(msg);
@@ -28,6 +28,11 @@ public class LocalPlayer extends Player {
 
     private Tile mSelectedTile;
 
+    // 选中/能否选择/能否点击也影响tile的显示, 放在高位以免和Player的标志冲突.
+    private static final int VIEW_FLAG_SELECTED = 1 << 29;
+    private static final int VIEW_FLAG_SELECTABLE = 1 << 28;
+    private static final int VIEW_FLAG_NOT_CLICKABLE = 1 << 27;
+
     public LocalPlayer(String name, Gender gender, String iconFilename) {
         super(name, gender, iconFilename);
         setTileOpen(true);
@@ -46,7 +51,7 @@ public class LocalPlayer extends Player {
         super.quitPlaying();
         if (mSelectedTile != null) {
             mSelectedTile = null;
-            notifyViewChanged();
+            notifyViewChanged(CHANGE_HAND);
         }
     }
 
@@ -58,7 +63,7 @@ public class LocalPlayer extends Player {
             mSelectedTile = mNewTile;
             throwTile(mNewTile);
         } else {
-            notifyViewChanged();
+            notifyViewChanged(CHANGE_HAND);
         }
         mPlayerCallback.send2RemotePlayer(ConnMessage.MSG_PLAYER_READY_TO_THROW, null);
     }
@@ -82,7 +87,7 @@ public class LocalPlayer extends Player {
                     if (tingTileInfo != null) {
                         showCanHuTiles(tingTileInfo.huTiles);
                     }
-                    notifyViewChanged();
+                    notifyViewChanged(CHANGE_HAND);
                 }
             }
         });
@@ -103,12 +108,27 @@ public class LocalPlayer extends Player {
                     if (tingTileInfo != null) {
                         showCanHuTiles(tingTileInfo.huTiles);
                     }
-                    notifyViewChanged();
+                    notifyViewChanged(CHANGE_HAND);
                 }
             }
         });
     }
 
+    // 打牌超时: 按DummyPlayer的方法选一张打出去. 已经打了就什么也不做.
+    public void autoThrow() {
+        runInPlayerThread(new Runnable() {
+            @Override
+            public void run() {
+                if (!mPlaying || !mThrowAvailable) return;
+                final Tile tile = isHued() ? mNewTile : findTileToAutoThrow();
+                if (tile == null) return;
+                mActionTingAvailable = false;
+                mSelectedTile = null;
+                throwSelected(tile, false);
+            }
+        });
+    }
+
     private TingTileInfo getTingTileInfo(final Tile tile) {
         for (TingTileInfo ting : mCanTingTiles) {
             if (ting.tile.isSameTile(tile)) {
@@ -151,16 +171,16 @@ public class LocalPlayer extends Player {
     }
 
     @Override
-    protected void doSetNewTileView(final boolean isSelectable) {
+    protected void doSetNewTileView(final Tile newTile, final boolean isSelectable) {
         if (isSelectable) {
-            setTileClickListener(mNewTileView, mNewTile);
+            setTileClickListener(mNewTileView, newTile);
         } else {
             mNewTileView.setOnClickListener(null);
         }
 
         if (mPlaying) {
             LayoutParams params = mNewTileView.getLayoutParams();
-            if (mSelectedTile == mNewTile) {
+            if (mSelectedTile == newTile) {
                 params.width = TileResources.getSelectedTileWidth();
                 params.height = TileResources.getSelectedTileHeight();
             } else {
@@ -240,15 +260,26 @@ public class LocalPlayer extends Player {
     }
 
     @Override
-    protected View inflateTileView(Context context, Tile tile, final int positionIndex) {
+    protected int getTileViewFlags(final PlayerState state, final Tile tile,
+                    final int positionIndex) {
+        int flags = super.getTileViewFlags(state, tile, positionIndex);
+        if (mSelectedTile == tile && mPlaying) flags |= VIEW_FLAG_SELECTED;
+        if (isSelectableTile(state, tile)) flags |= VIEW_FLAG_SELECTABLE;
+        if (isHued() || !mPlaying || isMatchAllTile(tile)) flags |= VIEW_FLAG_NOT_CLICKABLE;
+        return flags;
+    }
+
+    @Override
+    protected View inflateTileView(Context context, PlayerState state, Tile tile,
+                    final int positionIndex) {
         View tileView;
         if (mSelectedTile == tile && mPlaying) {
-            tileView = tile.inflate(context, sSelectedTileLayoutId, positionIndex);
+            tileView = tile.inflate(mTileViewPool, context, sSelectedTileLayoutId, positionIndex);
         } else {
-            tileView = tile.inflate(context, mTileOpenLayoutId, positionIndex);
+            tileView = tile.inflate(mTileViewPool, context, mTileOpenLayoutId, positionIndex);
         }
-        final boolean isSelectable = isSelectableTile(tile);
-        if (tile.tileType == mIgnoredType) {
+        final boolean isSelectable = isSelectableTile(state, tile);
+        if (tile.tileType == state.ignoredType) {
             tile.grayTile(tileView);
         } else if (!isSelectable) {
             tile.tingTile(tileView);
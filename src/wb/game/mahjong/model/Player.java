@@ -1,17 +1,21 @@
 package wb.game.mahjong.model;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
-import android.graphics.Bitmap;
 import android.text.TextUtils;
 import android.view.Gravity;
 import android.view.View;
 import android.view.View.OnClickListener;
 import android.view.ViewGroup;
-import android.view.ViewGroup.LayoutParams;
 import android.widget.ImageView;
 import android.widget.LinearLayout;
 import android.widget.TextView;
@@ -26,7 +30,6 @@ import wb.game.mahjong.R;
 import wb.game.mahjong.constants.Constants;
 import wb.game.mahjong.constants.HuConstants;
 import wb.game.mahjong.constants.HuConstants.HuPattern;
-import wb.game.mahjong.constants.TileResources;
 import wb.game.mahjong.constants.TileResources.TileType;
 import wb.game.mahjong.model.GameResource.Action;
 import wb.game.mahjong.model.GameResource.Game;
@@ -36,8 +39,14 @@ import wb.game.mahjong.model.Tile.GangFlower;
 import wb.game.mahjong.model.Tile.HuTile;
 import wb.game.mahjong.model.Tile.TileCount;
 import wb.game.mahjong.model.Tile.TileInfo;
+import wb.game.mahjong.model.Tile.TileShow;
 import wb.game.mahjong.model.Tile.TileState;
-import wb.game.mahjong.view.FixedGridLayout;
+import wb.game.mahjong.view.TileRiverView;
+import wb.game.mahjong.view.TileViewPool;
+import wb.game.mahjong.view.TileViewPool.TileViewHolder;
+import wb.game.utils.EnumCodec;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
 import wb.game.utils.Utils;
 
 // The game always needs 4 players.
@@ -229,6 +238,59 @@ public class Player {
     // 记录吃进的牌
     private final ArrayList<Chied> mChiedTiles = new ArrayList<Chied>();
 
+    // 给UI和网络编码读取的不可变状态.
+    // 状态改变后由改变它的线程(player thread/game thread)复制一份, 通过volatile引用发布,
+    // main thread渲染时只读这个引用, 不需要再锁mTiles/mGangs等.
+    public static final class PlayerState {
+        static final PlayerState EMPTY = new PlayerState(new Tile[0], null, new Tile[0],
+                        new Chied[0], new Penged[0], new Ganged[0], new TileInfo[0],
+                        new TingTileInfo[0], false, null, false, false);
+
+        public final Tile[] tiles;
+        public final Tile newTile;
+        public final Tile[] thrownTiles;
+        final Chied[] chiedTiles;
+        final Penged[] pengs;
+        final Ganged[] gangs;
+        public final TileInfo[] huedTiles;
+        final TingTileInfo[] canTingTiles;
+        public final boolean openTile;
+        public final TileType ignoredType;
+        public final boolean tingAvailable;
+        public final boolean tingReported;
+
+        private PlayerState(Tile[] tiles, Tile newTile, Tile[] thrownTiles, Chied[] chiedTiles,
+                        Penged[] pengs, Ganged[] gangs, TileInfo[] huedTiles,
+                        TingTileInfo[] canTingTiles, boolean openTile, TileType ignoredType,
+                        boolean tingAvailable, boolean tingReported) {
+            this.tiles = tiles;
+            this.newTile = newTile;
+            this.thrownTiles = thrownTiles;
+            this.chiedTiles = chiedTiles;
+            this.pengs = pengs;
+            this.gangs = gangs;
+            this.huedTiles = huedTiles;
+            this.canTingTiles = canTingTiles;
+            this.openTile = openTile;
+            this.ignoredType = ignoredType;
+            this.tingAvailable = tingAvailable;
+            this.tingReported = tingReported;
+        }
+    }
+
+    private volatile PlayerState mState = PlayerState.EMPTY;
+
+    // 状态发布时记录哪些部分变了, main thread渲染时只刷新对应的views.
+    public static final int CHANGE_HAND  = 1;      // 手中的牌和新摸的牌.
+    public static final int CHANGE_MELDS = 1 << 1; // 吃/碰/杠.
+    public static final int CHANGE_RIVER = 1 << 2; // 扔出的牌.
+    public static final int CHANGE_HU    = 1 << 3; // 胡的牌.
+    public static final int CHANGE_ALL = CHANGE_HAND | CHANGE_MELDS | CHANGE_RIVER | CHANGE_HU;
+
+    // 还没有渲染的变化. 发布状态的线程加上, main thread在viewChanged()中取走.
+    // 开始时views都还没有画过.
+    private final AtomicInteger mPendingChanges = new AtomicInteger(CHANGE_ALL);
+
     public String name;
     public Gender gender;
 
@@ -244,7 +306,7 @@ public class Player {
     private LinearLayout mPengView;
     private LinearLayout mGangView;
     private LinearLayout mHuView;
-    private ViewGroup mThrownTilesView;
+    private TileRiverView mThrownTilesView;
 
     private int mChiTileLayoutId;
     private int mGangTileLayoutId;
@@ -258,6 +320,13 @@ public class Player {
 
     private int mTileIndicatorViewId;
 
+    // 每个放tile的ViewGroup一个view pool, 刷新时复用tile views而不是重新inflate.
+    protected final TileViewPool mTileViewPool = new TileViewPool();
+    private final TileViewPool mChiViewPool = new TileViewPool();
+    private final TileViewPool mPengViewPool = new TileViewPool();
+    private final TileViewPool mGangViewPool = new TileViewPool();
+    private final TileViewPool mHuViewPool = new TileViewPool();
+
     protected TileType mIgnoredType; // 可以为null因为除了血流成河/血战到底，别的打法无缺一门...
 
     protected Tile mNewTile;
@@ -270,6 +339,8 @@ public class Player {
     protected volatile boolean mPlaying;
 
     private HandlerThreadExt mPlayerThread;
+    // 定缺之前收到的牌要做的action检查.
+    private final ArrayList<Runnable> mChecksBeforeIgnored = new ArrayList<Runnable>();
 
     public static class PlayerTiles {
         public final String ip;
@@ -503,10 +574,6 @@ public class Player {
         actionInfo.clear(action);
     }
 
-    public Bitmap getIconBitmap() {
-        return Constants.getIcon(iconFilename);
-    }
-
     protected void doInit() {
         synchronized(mTiles) {
             mTiles.clear();
@@ -535,6 +602,9 @@ public class Player {
             mNewTile = null;
             mOpenTile = false;
             mIgnoredType = null;
+            synchronized (mChecksBeforeIgnored) {
+                mChecksBeforeIgnored.clear();
+            }
 
             actionInfo.initActionInfo();
         }
@@ -542,9 +612,310 @@ public class Player {
 
     public void init() {
         doInit();
+        publishState();
         startPlayerThread(true);
     }
 
+    // 最近一次发布的状态, 任何线程都可以无锁读取.
+    public final PlayerState getState() {
+        return mState;
+    }
+
+    // 大家都能看到的牌: 吃/碰/明杠的牌, 暗杠的不算. 给旁观者用, 可以在任何线程中调用.
+    public final Tile[] getOpenTiles() {
+        final PlayerState state = mState;
+        final ArrayList<Tile> openTiles = new ArrayList<Tile>();
+        for (Chied chied : state.chiedTiles) {
+            Collections.addAll(openTiles, chied.tiles);
+        }
+        for (Penged penged : state.pengs) {
+            Collections.addAll(openTiles, penged.tiles);
+        }
+        for (Ganged ganged : state.gangs) {
+            if (ganged.type == GangType.GangBlack) continue;
+            Collections.addAll(openTiles, ganged.tiles);
+        }
+        return openTiles.toArray(new Tile[openTiles.size()]);
+    }
+
+    // 手中的牌数, 包括新摸的牌.
+    public final int getHandTileCount() {
+        final PlayerState state = mState;
+        return state.tiles.length + (state.newTile == null ? 0 : 1);
+    }
+
+    // 复制当前状态并发布. 只在改变状态的线程中, 改完之后调用(见notifyViewChanged()),
+    // 其他线程只读mState: 别的线程来复制可能正好看到改了一半的状态(一张牌不在手中也不在碰中),
+    // 而且可能比改状态的线程晚发布, 把旧的状态盖在新的上面.
+    // 返回和上次发布的状态相比变化了的部分(CHANGE_*), 没有变化时返回0.
+    public final int publishState() {
+        final Tile[] tiles;
+        synchronized (mTiles) {
+            tiles = mTiles.toArray(new Tile[mTiles.size()]);
+        }
+        final Tile[] thrownTiles;
+        synchronized (mThrownTiles) {
+            thrownTiles = mThrownTiles.toArray(new Tile[mThrownTiles.size()]);
+        }
+        final Chied[] chiedTiles;
+        synchronized (mChiedTiles) {
+            chiedTiles = mChiedTiles.toArray(new Chied[mChiedTiles.size()]);
+        }
+        final Penged[] pengs;
+        synchronized (mPengs) {
+            pengs = mPengs.toArray(new Penged[mPengs.size()]);
+        }
+        final Ganged[] gangs;
+        synchronized (mGangs) {
+            gangs = mGangs.toArray(new Ganged[mGangs.size()]);
+        }
+        final TileInfo[] huedTiles;
+        synchronized (mHuedTiles) {
+            huedTiles = mHuedTiles.toArray(new TileInfo[mHuedTiles.size()]);
+        }
+        final TingTileInfo[] canTingTiles;
+        synchronized (mCanTingTiles) {
+            canTingTiles = mCanTingTiles.toArray(new TingTileInfo[mCanTingTiles.size()]);
+        }
+        final int changes;
+        synchronized (this) {
+            final PlayerState state = new PlayerState(tiles, mNewTile, thrownTiles, chiedTiles,
+                            pengs, gangs, huedTiles, canTingTiles, mOpenTile, mIgnoredType,
+                            mActionTingAvailable, mActionTingReported);
+            changes = getChanges(mState, state);
+            mState = state;
+        }
+        // 先发布状态再记下变化, main thread取走变化后读到的状态不会比它旧.
+        if (changes != 0) markChanged(changes);
+        return changes;
+    }
+
+    private static int getChanges(final PlayerState oldState, final PlayerState newState) {
+        int changes = 0;
+        if (!sameElements(oldState.tiles, newState.tiles)
+                        || oldState.newTile != newState.newTile
+                        || oldState.openTile != newState.openTile
+                        || oldState.ignoredType != newState.ignoredType
+                        || oldState.tingAvailable != newState.tingAvailable
+                        || oldState.tingReported != newState.tingReported
+                        || !sameElements(oldState.canTingTiles, newState.canTingTiles)) {
+            changes |= CHANGE_HAND;
+        }
+        // 暗杠的牌显示正面还是背面也取决于openTile.
+        if (!sameElements(oldState.chiedTiles, newState.chiedTiles)
+                        || !sameElements(oldState.pengs, newState.pengs)
+                        || !sameElements(oldState.gangs, newState.gangs)
+                        || oldState.openTile != newState.openTile) {
+            changes |= CHANGE_MELDS;
+        }
+        if (!sameElements(oldState.thrownTiles, newState.thrownTiles)) {
+            changes |= CHANGE_RIVER;
+        }
+        // 胡牌之后手中的牌不能再点击, 所以手中的牌也要刷新.
+        if (!sameElements(oldState.huedTiles, newState.huedTiles)) {
+            changes |= CHANGE_HU | CHANGE_HAND;
+        }
+        return changes;
+    }
+
+    // 逐个比较是不是同一个对象.
+    private static boolean sameElements(final Object[] array1, final Object[] array2) {
+        if (array1.length != array2.length) return false;
+        for (int i = 0; i < array1.length; i++) {
+            if (array1[i] != array2[i]) return false;
+        }
+        return true;
+    }
+
+    // 状态之外的变化(如tile的focus, 选中的牌)不会被publishState()发现, 由改变的一方标记.
+    public final void markChanged(final int changes) {
+        int pending;
+        do {
+            pending = mPendingChanges.get();
+        } while (!mPendingChanges.compareAndSet(pending, pending | changes));
+    }
+
+    private static void writeTiles(final DataOutputStream dos, final Tile[] tiles)
+                    throws IOException {
+        dos.writeByte(tiles == null ? 0 : tiles.length);
+        if (tiles == null) return;
+        for (Tile tile : tiles) {
+            dos.writeByte(GameLog.encodeTile(tile));
+        }
+    }
+
+    private static Tile[] readTiles(final DataInputStream dis) throws IOException {
+        Tile[] tiles = new Tile[dis.readUnsignedByte()];
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = GameLog.decodeTile(dis.readUnsignedByte());
+        }
+        return tiles;
+    }
+
+    private static void writeTileInfo(final DataOutputStream dos, final TileInfo tileInfo)
+                    throws IOException {
+        dos.writeBoolean(tileInfo != null);
+        if (tileInfo != null) {
+            dos.writeUTF(tileInfo.tileInfoString());
+        }
+    }
+
+    private static TileInfo readTileInfo(final DataInputStream dis) throws IOException {
+        if (!dis.readBoolean()) return null;
+        return TileInfo.parseTileInfoString(dis.readUTF());
+    }
+
+    // 保存牌局进行中的状态, 用于进程被杀后恢复牌局.
+    // 只在轮到某个player摸牌之前调用, 此时各player没有未完成的action.
+    void writeSnapshot(final DataOutputStream dos) throws IOException {
+        dos.writeByte(mIgnoredType == null ? -1 : mIgnoredType.ordinal());
+        dos.writeBoolean(mActionTingReported);
+        synchronized (mTiles) {
+            writeTiles(dos, mTiles.toArray(new Tile[mTiles.size()]));
+        }
+        writeTiles(dos, mNewTile == null ? null : new Tile[] {mNewTile});
+        synchronized (mThrownTiles) {
+            writeTiles(dos, mThrownTiles.toArray(new Tile[mThrownTiles.size()]));
+        }
+        synchronized (mChiedTiles) {
+            dos.writeByte(mChiedTiles.size());
+            for (Chied chied : mChiedTiles) {
+                writeTiles(dos, chied.tiles);
+                writeTileInfo(dos, chied.externalTile);
+                dos.writeByte(chied.position);
+            }
+        }
+        synchronized (mPengs) {
+            dos.writeByte(mPengs.size());
+            for (Penged penged : mPengs) {
+                writeTiles(dos, penged.tiles);
+                writeTileInfo(dos, penged.externalTile);
+            }
+        }
+        synchronized (mGangs) {
+            dos.writeByte(mGangs.size());
+            for (Ganged ganged : mGangs) {
+                dos.writeByte(ganged.type.ordinal());
+                switch (ganged.type) {
+                    case GangBlack:
+                        writeTiles(dos, ganged.tiles);
+                        break;
+                    case Gang3_1:
+                        writeTiles(dos, ganged.tiles);
+                        writeTileInfo(dos, ganged.externalTile);
+                        break;
+                    case GangPenged:
+                        writeTiles(dos, ganged.penged.tiles);
+                        writeTileInfo(dos, ganged.penged.externalTile);
+                        writeTiles(dos, new Tile[] {ganged.lastTile});
+                        break;
+                }
+            }
+        }
+        synchronized (mHuedTiles) {
+            dos.writeByte(mHuedTiles.size());
+            for (TileInfo huedTile : mHuedTiles) {
+                writeTileInfo(dos, huedTile);
+                HuPattern huPattern = huedTile.getHuPattern(this);
+                dos.writeByte(huPattern == null ? -1 : huPattern.ordinal());
+                if (huedTile instanceof GangFlower) {
+                    writeTiles(dos, new Tile[] {((GangFlower)huedTile).huTile});
+                } else {
+                    writeTiles(dos, null);
+                }
+            }
+        }
+    }
+
+    private static final EnumCodec<GangType> sGangTypeCodec = EnumCodec.of(GangType.class);
+    private static final EnumCodec<HuPattern> sHuPatternCodec = EnumCodec.of(HuPattern.class);
+
+    // 快照中的enum超出范围时抛出ProtocolException, 恢复失败, 不会抛出数组越界.
+    void restoreSnapshot(final DataInputStream dis) throws IOException {
+        doInit();
+        final int ignoredType = dis.readByte();
+        mIgnoredType = ignoredType < 0 ? null : TileType.getTileType(ignoredType);
+        mActionTingReported = dis.readBoolean();
+        synchronized (mTiles) {
+            Collections.addAll(mTiles, readTiles(dis));
+        }
+        Tile[] newTile = readTiles(dis);
+        setNewTile(newTile.length > 0 ? newTile[0] : null);
+        synchronized (mThrownTiles) {
+            Collections.addAll(mThrownTiles, readTiles(dis));
+        }
+        int count = dis.readUnsignedByte();
+        synchronized (mChiedTiles) {
+            for (int i = 0; i < count; i++) {
+                Tile[] tiles = readTiles(dis);
+                TileInfo externalTile = readTileInfo(dis);
+                mChiedTiles.add(new Chied(tiles, externalTile, dis.readByte()));
+            }
+        }
+        count = dis.readUnsignedByte();
+        synchronized (mPengs) {
+            for (int i = 0; i < count; i++) {
+                Tile[] tiles = readTiles(dis);
+                mPengs.add(new Penged(tiles, readTileInfo(dis)));
+            }
+        }
+        count = dis.readUnsignedByte();
+        synchronized (mGangs) {
+            for (int i = 0; i < count; i++) {
+                GangType gangType = sGangTypeCodec.decode(dis.readUnsignedByte());
+                switch (gangType) {
+                    case GangBlack:
+                        mGangs.add(new Ganged(readTiles(dis)));
+                        break;
+                    case Gang3_1:
+                        Tile[] tiles = readTiles(dis);
+                        mGangs.add(new Ganged(tiles, readTileInfo(dis)));
+                        break;
+                    case GangPenged:
+                        Tile[] pengedTiles = readTiles(dis);
+                        Penged penged = new Penged(pengedTiles, readTileInfo(dis));
+                        mGangs.add(new Ganged(penged, readTiles(dis)[0]));
+                        break;
+                }
+            }
+        }
+        count = dis.readUnsignedByte();
+        synchronized (mHuedTiles) {
+            for (int i = 0; i < count; i++) {
+                TileInfo huedTile = readTileInfo(dis);
+                final int huPatternOrdinal = dis.readByte();
+                Tile[] huTile = readTiles(dis);
+                if (huTile.length > 0) {
+                    huedTile = new GangFlower(huedTile, huTile[0]);
+                }
+                HuPattern huPattern = null;
+                if (huPatternOrdinal >= 0) {
+                    huPattern = sHuPatternCodec.decode(huPatternOrdinal);
+                }
+                huedTile.addHuedPlayer(new Tile.HuedInfo(this, huPattern));
+                mHuedTiles.add(huedTile);
+            }
+        }
+    }
+
+    // host迁移: 断开的设备上的player改由这个player(dummy)接着打,
+    // 接过它的座位, 牌和是否正在打牌. 之后再设置view和callback.
+    public void takeOverFrom(final Player lost) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        lost.writeSnapshot(new DataOutputStream(bos));
+        init();
+        restoreSnapshot(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        setLocation(lost.getLocation());
+        mPlaying = lost.mPlaying;
+        if (mPlaying) updateTilesInfo();
+        publishState();
+    }
+
+    // 摸了牌还没有打出.
+    public boolean hasNewTile() {
+        return mNewTile != null;
+    }
+
     private synchronized void startPlayerThread(boolean fromLocal) {
         if (mPlayerThread != null) {
             mPlayerThread.quitSafely();
@@ -583,6 +954,8 @@ public class Player {
     public synchronized void quitPlaying() {
         setTileOpen(true);
         mPlaying = false;
+        // 不再打牌后手中的牌不能点击.
+        markChanged(CHANGE_HAND);
 
         if (mPlayerThread != null) {
             mPlayerThread.clear();
@@ -597,7 +970,8 @@ public class Player {
 
     public void addNewTile(final Tile tile, final TileInfo gangedTileInfo,
                     final boolean fromManager) {
-        if (mPlaying) {Constants.debug(name + " got " + tile);
+        if (mPlaying) {
+            Logger.d(Subsystem.Player, "{} got {}", name, tile);
             setNewTile(tile);
             TileInfo tileInfo = new TileInfo(tile, this, false);
             tileInfo.gangedTileInfo = gangedTileInfo;
@@ -606,7 +980,7 @@ public class Player {
             addTile(tile);
         }
         // 收到新牌，需要更新player显示.
-        mPlayerCallback.onViewChanged();
+        notifyViewChanged();
         if (fromManager) {
             mPlayerCallback.send2RemotePlayer(RemoteMessage.ConnMessage.MSG_PLAYER_ADD_TILE,
                             messageAddTile(tile, gangedTileInfo));
@@ -618,65 +992,87 @@ public class Player {
         mPlayerThread.post(runnable);
     }
 
-    // 对新tile，需要检查能做的actions：胡/听/杠
-    private void checkActionOnNewTile(final TileInfo tileInfo) {
-        if (mPlayerThread != null) {
-            synchronized (mPlayerThread) {
-                if (!isIgnoredDetermined()) {// 没有定缺之前要等待action check.
-                    playerThreadWait();
-                }
+    // 没有定缺之前不检查action, 先记下来, 定缺后再在player thread中检查.
+    // 不在调用者的线程中等待: 调用者可能是player thread或者收消息的线程, 定缺的消息可能正排在它后面.
+    private void runCheckInPlayerThread(final Runnable check) {
+        synchronized (mChecksBeforeIgnored) {
+            if (!isIgnoredDetermined()) {
+                mChecksBeforeIgnored.add(check);
+                return;
             }
         }
-        runInPlayerThread(new Runnable() {
+        runInPlayerThread(check);
+    }
+
+    private void runChecksAfterIgnored() {
+        final ArrayList<Runnable> checks;
+        synchronized (mChecksBeforeIgnored) {
+            checks = new ArrayList<Runnable>(mChecksBeforeIgnored);
+            mChecksBeforeIgnored.clear();
+        }
+        for (Runnable check : checks) {
+            runInPlayerThread(check);
+        }
+    }
+
+    // 对新tile，需要检查能做的actions：胡/听/杠
+    private void checkActionOnNewTile(final TileInfo tileInfo) {
+        runCheckInPlayerThread(new Runnable() {
             @Override
             public void run() {
-                actionInfo.initActionInfo();
-                final Game game = MahjongManager.getInstance().getGame();
-
-                // 如果必须要报听，就先看看能不能听.
-                if (game.mustReportTing()) {
-                    getCanTingTiles(tileInfo.tile);
-                    if (mCanTingTiles.size() > 0) {
-                        actionInfo.addAction(Action.Ting);
-                        mActionTingAvailable = true;
-                    }
-                }
+                final long startTime = TurnStats.start();
+                doCheckActionOnNewTile(tileInfo);
+                TurnStats.getInstance().record(TurnStats.Stage.CheckAction, startTime);
+            }
+        });
+    }
 
-                boolean isFromGang = tileInfo.gangedTileInfo != null;
-                if (canHuTile(tileInfo.tile, isFromGang, true)) {
-                    actionInfo.addAction(Action.Hu);
-                } else {
-                    if (isFromGang) { // 看看是不是限制到一定杠数不能胡牌就荒庄
-                        if (game.isMaxGangCountReached()) {
-                            // 到了最多杠数不胡牌，则荒庄.
-                            mPlayerCallback.maxGangCountReached();
-                            return;
-                        }
-                    }
-                    if (game.hasNoTile()) {// 没牌了还不胡牌，则荒庄.
-                        mPlayerCallback.whenNoTile();
-                        return;
-                    }
-                    // 北京麻将中4个混儿都摸到了就胡牌.
-                    if (game instanceof GameResource.Beijing &&
-                                    getTileCount(game.getMatchAllTile()) == Tile.MAX_TILE_COUNT) {
-                        actionInfo.addAction(Action.Hu);
-                    }
-                }
+    private void doCheckActionOnNewTile(final TileInfo tileInfo) {
+        actionInfo.initActionInfo();
+        final Game game = MahjongManager.getInstance().getGame();
 
-                if (canGangNewTile(tileInfo.tile)) {
-                    actionInfo.addAction(Action.Gang);
-                    checkActionGangFlower(game, tileInfo);
-                }
+        // 如果必须要报听，就先看看能不能听.
+        if (game.mustReportTing()) {
+            getCanTingTiles(tileInfo.tile);
+            if (mCanTingTiles.size() > 0) {
+                actionInfo.addAction(Action.Ting);
+                mActionTingAvailable = true;
+            }
+        }
 
-                actionInfo.actionCollected = true;
-                if (actionInfo.hasPendingAction()) {
-                    mPlayerCallback.notifyActionsAvailableOnNewTile(tileInfo);
-                } else {
-                    mPlayerCallback.notifyThrowAvaiable();
+        boolean isFromGang = tileInfo.gangedTileInfo != null;
+        if (canHuTile(tileInfo.tile, isFromGang, true)) {
+            actionInfo.addAction(Action.Hu);
+        } else {
+            if (isFromGang) { // 看看是不是限制到一定杠数不能胡牌就荒庄
+                if (game.isMaxGangCountReached()) {
+                    // 到了最多杠数不胡牌，则荒庄.
+                    mPlayerCallback.maxGangCountReached();
+                    return;
                 }
             }
-        });
+            if (game.hasNoTile()) {// 没牌了还不胡牌，则荒庄.
+                mPlayerCallback.whenNoTile();
+                return;
+            }
+            // 北京麻将中4个混儿都摸到了就胡牌.
+            if (game instanceof GameResource.Beijing &&
+                            getTileCount(game.getMatchAllTile()) == Tile.MAX_TILE_COUNT) {
+                actionInfo.addAction(Action.Hu);
+            }
+        }
+
+        if (canGangNewTile(tileInfo.tile)) {
+            actionInfo.addAction(Action.Gang);
+            checkActionGangFlower(game, tileInfo);
+        }
+
+        actionInfo.actionCollected = true;
+        if (actionInfo.hasPendingAction()) {
+            mPlayerCallback.notifyActionsAvailableOnNewTile(tileInfo);
+        } else {
+            mPlayerCallback.notifyThrowAvaiable();
+        }
     }
 
     // 检查要不要为当前tile加上Action.GangFlower.
@@ -729,7 +1125,7 @@ public class Player {
             @Override
             public void run() {
                 if (tile == null) {
-                    Constants.debug("Why null tile for " + name + "!?\n" + Utils.getThrowableStackTrace(new Throwable()));
+                    Logger.e(Subsystem.Player, "Why null tile for {}!?", name, new Throwable());
                     return;
                 }
                 synchronized (mTiles) {
@@ -793,7 +1189,8 @@ public class Player {
         }
     }
 
-    protected void throwSelected(final Tile tile, final boolean fromRemote) {Constants.debug(name + " throws " + tile);
+    protected void throwSelected(final Tile tile, final boolean fromRemote) {
+        Logger.d(Subsystem.Player, "{} throws {}", name, tile);
         synchronized(mTiles) {
             if (!tile.isSameTile(mNewTile)) {
                 removeTileFromAlive(tile);
@@ -804,6 +1201,7 @@ public class Player {
         }
         setNewTile(null);
         mThrowAvailable = false;
+        MahjongManager.getInstance().getGameLog().logThrow(mLocation, tile);
         synchronized(mThrownTiles) {
             mThrownTiles.add(tile);
             mPlayerCallback.onTileThrown(new TileInfo(tile, this, true));
@@ -847,7 +1245,9 @@ public class Player {
                     return;
                 }
                 final ArrayList<TileCount> tileCountList = getTileCountList();
+                final long huStartTime = TurnStats.start();
                 getCanHuTiles();
+                TurnStats.getInstance().record(TurnStats.Stage.Hu, huStartTime);
                 getCanPengTiles(tileCountList);
                 getCanGangTiles(tileCountList);
             }
@@ -1051,6 +1451,12 @@ public class Player {
     // 1. 别人打出的牌，已经碰到当前player手中;
     // 2. 自己摸到的牌.
     private void getCanTingTiles(final Tile newTile) {
+        final long startTime = TurnStats.start();
+        doGetCanTingTiles(newTile);
+        TurnStats.getInstance().record(TurnStats.Stage.Ting, startTime);
+    }
+
+    private void doGetCanTingTiles(final Tile newTile) {
         mCanTingTiles.clear();
         if (mActionTingReported) return; // 如果已经报听则不用再判断.
         int ignoredTypeTileCount = getTileCount(mIgnoredType);
@@ -1426,14 +1832,7 @@ public class Player {
 
     // 对于别人打出来的牌，看看能不能吃/碰/杠/胡等.
     public final void checkActionOnThrownTile(final TileInfo tileInfo) {
-        if (mPlayerThread != null) {
-            synchronized (mPlayerThread) {
-                if (!isIgnoredDetermined()) {// 没有定缺之前要等待action check.
-                    playerThreadWait();
-                }
-            }
-        }
-        runInPlayerThread(new Runnable() {
+        runCheckInPlayerThread(new Runnable() {
             @Override
             public void run() {
                 actionInfo.initActionInfo();
@@ -1473,7 +1872,7 @@ public class Player {
 
     // 对于别人已经杠了的牌，看看能不能抢杠.
     public final void checkActionOnGangedTile(final TileInfo tileInfo, final boolean isBlackGang) {
-        Constants.debug(name + ".checkActionOnGangedTile(" + tileInfo + ")");
+        Logger.d(Subsystem.Player, "{}.checkActionOnGangedTile({})", name, tileInfo.tile);
         runInPlayerThread(new Runnable() {
             @Override
             public void run() {
@@ -1562,7 +1961,34 @@ public class Player {
         }
     }
 
+    // 把action记入事件日志.
+    private void logAction(final Action action, final TileInfo tileInfo) {
+        final GameLog gameLog = MahjongManager.getInstance().getGameLog();
+        if (!gameLog.isRecording()) return;
+        Tile[] tiles = null;
+        HuPattern huPattern = null;
+        switch (action) {
+            case Chi:
+                synchronized (mChiedTiles) {
+                    tiles = mChiedTiles.get(mChiedTiles.size() - 1).tiles;
+                }
+                break;
+            case GangFlower:
+                tiles = new Tile[] {((GangFlower)tileInfo).huTile};
+                huPattern = tileInfo.getHuPattern(this);
+                break;
+            case GangGrab:
+            case Hu:
+                huPattern = tileInfo.getHuPattern(this);
+                break;
+            default:
+                break;
+        }
+        gameLog.logAction(mLocation, action, tileInfo, tiles, huPattern);
+    }
+
     protected void actionDone(Action action, TileInfo tileInfo) {
+        logAction(action, tileInfo);
         actionInfo.doneAction(action);
         notifyViewChanged();
         if (action == Action.GangFlower) {
@@ -1636,7 +2062,15 @@ public class Player {
         });
     }
 
+    // 状态没有变化时不需要刷新.
     protected void notifyViewChanged() {
+        notifyViewChanged(0);
+    }
+
+    // changes: 状态之外还有哪些部分需要刷新.
+    protected void notifyViewChanged(final int changes) {
+        if (changes != 0) markChanged(changes);
+        if (publishState() == 0 && changes == 0) return;
         if (mPlayerCallback != null) {
             mPlayerCallback.onViewChanged();
         }
@@ -1652,6 +2086,7 @@ public class Player {
 
     public synchronized void setPosition(Position position) {
         mPosition = position;
+        markChanged(CHANGE_ALL);
     }
 
     public synchronized Position getPosition() {
@@ -1662,8 +2097,15 @@ public class Player {
             LinearLayout tileListChiView,  int chiTileLayoutId,
             LinearLayout tileListPengView, int pengTileLayoutId,
             LinearLayout tileListGangView, int gangTileLayoutId, int gangBlackTileLayoutId,
-            int huedTileLayoutId, LinearLayout tileListHuView, ViewGroup thrownTilesLayout,
+            int huedTileLayoutId, LinearLayout tileListHuView, TileRiverView thrownTilesView,
             int tileOpenResId, int tileCloseResId, int tileIndicatorViewId) {
+        // 换了views, 旧的views不能再用了.
+        mTileViewPool.clear();
+        mChiViewPool.clear();
+        mPengViewPool.clear();
+        mGangViewPool.clear();
+        mHuViewPool.clear();
+
         mTileListView = tileLayout;
 
         mChiView = tileListChiView;
@@ -1677,13 +2119,16 @@ public class Player {
         mHuedTileLayoutId = huedTileLayoutId;
 
         mHuView = tileListHuView;
-        mThrownTilesView = thrownTilesLayout;
+        mThrownTilesView = thrownTilesView;
         mNewTileView = newTileView;
 
         mTileOpenLayoutId = tileOpenResId;
         mTileCloseLayoutId = tileCloseResId;
 
         mTileIndicatorViewId = tileIndicatorViewId;
+
+        // 新的views还没有画过.
+        markChanged(CHANGE_ALL);
     }
 
     // This must be called in main thread.
@@ -1691,10 +2136,23 @@ public class Player {
         if (!Utils.isMainThread()) {
             throw new RuntimeException("Player.viewChanged() must be called in main thread!");
         }
+        // 先取走变化再读状态, 之后发布的变化留到下一次刷新.
+        final int changes = mPendingChanges.getAndSet(0);
+        if (changes == 0) return;
+        final PlayerState state = mState;
         final int positionIndex = mPosition.ordinal();
-        updateTilesView(context, positionIndex);
-        updateThrownTilesView(context);
-        updateHuedTilesView(context, positionIndex);
+        if ((changes & CHANGE_HAND) != 0) {
+            updateTilesView(context, state, positionIndex);
+        }
+        if ((changes & CHANGE_MELDS) != 0) {
+            updateMeldsView(context, state, positionIndex);
+        }
+        if ((changes & CHANGE_RIVER) != 0) {
+            updateThrownTilesView(context, state);
+        }
+        if ((changes & CHANGE_HU) != 0) {
+            updateHuedTilesView(context, state, positionIndex);
+        }
     }
 
     // 这张牌已经被其他player 吃/碰/杠了，需要从扔出的牌中删掉.
@@ -1710,87 +2168,86 @@ public class Player {
         });
     }
 
-    private void updateChiView(final Context context, final int positionIndex) {
-        synchronized (mChiedTiles) {
-            if (mChiView == null) return;
-            mChiView.removeAllViews();
-            View externalTileView, tileView0, tileView1;
-            for (Chied chied : mChiedTiles) {
-                externalTileView = chied.externalTile.tile.inflateChi(context, mChiTileLayoutId,
-                                positionIndex);
-                final String infoString = chied.externalTile.info();
-                externalTileView.setOnClickListener(new OnClickListener() {
-                    @Override
-                    public void onClick(View arg0) {
-                        Utils.showInfo(context, context.getString(R.string.action_chi),
-                                        infoString);
-                    }
-                });
-                tileView0 = chied.tiles[0].inflate(context, mChiTileLayoutId, positionIndex);
-                tileView1 = chied.tiles[1].inflate(context, mChiTileLayoutId, positionIndex);
-                switch (chied.position) {
-                    case 0:
-                        mChiView.addView(externalTileView);
-                        mChiView.addView(tileView0);
-                        mChiView.addView(tileView1);
-                        break;
-                    case 1:
-                        mChiView.addView(tileView0);
-                        mChiView.addView(externalTileView);
-                        mChiView.addView(tileView1);
-                        break;
-                    case 2:
-                        mChiView.addView(tileView0);
-                        mChiView.addView(tileView1);
-                        mChiView.addView(externalTileView);
-                        break;
-                }
+    private void updateChiView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        if (mChiView == null) return;
+        mChiViewPool.recycleChildren(mChiView);
+        View externalTileView, tileView0, tileView1;
+        for (Chied chied : state.chiedTiles) {
+            externalTileView = chied.externalTile.tile.inflateChi(mChiViewPool, context, mChiTileLayoutId,
+                            positionIndex);
+            final String infoString = chied.externalTile.info();
+            externalTileView.setOnClickListener(new OnClickListener() {
+                @Override
+                public void onClick(View arg0) {
+                    Utils.showInfo(context, context.getString(R.string.action_chi),
+                                    infoString);
+                }
+            });
+            tileView0 = chied.tiles[0].inflate(mChiViewPool, context, mChiTileLayoutId,
+                            positionIndex);
+            tileView1 = chied.tiles[1].inflate(mChiViewPool, context, mChiTileLayoutId,
+                            positionIndex);
+            switch (chied.position) {
+                case 0:
+                    mChiView.addView(externalTileView);
+                    mChiView.addView(tileView0);
+                    mChiView.addView(tileView1);
+                    break;
+                case 1:
+                    mChiView.addView(tileView0);
+                    mChiView.addView(externalTileView);
+                    mChiView.addView(tileView1);
+                    break;
+                case 2:
+                    mChiView.addView(tileView0);
+                    mChiView.addView(tileView1);
+                    mChiView.addView(externalTileView);
+                    break;
             }
         }
     }
 
-    private void updatePengView(final Context context, final int positionIndex) {
-        synchronized(mPengs) {
-            mPengView.removeAllViews();
-            View tileView;
-            for (Penged penged : mPengs) {
-                for (Tile tile : penged.tiles) {
-                    tileView = tile.inflate(context, mPengTileLayoutId, positionIndex);
-                    mPengView.addView(tileView);
-                }
-                tileView = penged.externalTile.tile.inflate(context, mPengTileLayoutId,
-                                positionIndex);
-                final String infoString = penged.externalTile.info();
-                tileView.setOnClickListener(new OnClickListener() {
-                    @Override
-                    public void onClick(View arg0) {
-                        Utils.showInfo(context, context.getString(R.string.action_peng),
-                                        infoString);
-                    }
-                });
+    private void updatePengView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        mPengViewPool.recycleChildren(mPengView);
+        View tileView;
+        for (Penged penged : state.pengs) {
+            for (Tile tile : penged.tiles) {
+                tileView = tile.inflate(mPengViewPool, context, mPengTileLayoutId, positionIndex);
                 mPengView.addView(tileView);
             }
+            tileView = penged.externalTile.tile.inflate(mPengViewPool, context, mPengTileLayoutId,
+                            positionIndex);
+            final String infoString = penged.externalTile.info();
+            tileView.setOnClickListener(new OnClickListener() {
+                @Override
+                public void onClick(View arg0) {
+                    Utils.showInfo(context, context.getString(R.string.action_peng),
+                                    infoString);
+                }
+            });
+            mPengView.addView(tileView);
         }
     }
 
-    private void updateGangView(final Context context, final int positionIndex) {
-        synchronized (mGangs) {
-            mGangView.removeAllViews();
-            for (Ganged ganged : mGangs) {
-                inflateGangView(context, positionIndex, ganged);
-            }
+    private void updateGangView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        mGangViewPool.recycleChildren(mGangView);
+        for (Ganged ganged : state.gangs) {
+            inflateGangView(context, state, positionIndex, ganged);
         }
     }
 
-    private void inflateGangView(final Context context, final int positionIndex,
-                    final Ganged ganged) {
+    private void inflateGangView(final Context context, final PlayerState state,
+                    final int positionIndex, final Ganged ganged) {
         View tileView;
         final String infoString;
         switch (ganged.type) {
             case GangBlack:
                 for (Tile tile : ganged.tiles) {
-                    tileView = tile.inflateGangBlack(context,
-                                    mPosition == Position.BOTTOM || mOpenTile ? mGangTileLayoutId
+                    tileView = tile.inflateGangBlack(mGangViewPool, context,
+                                    mPosition == Position.BOTTOM || state.openTile ? mGangTileLayoutId
                                                     : mGangBlackTileLayoutId,
                                     positionIndex);
                     mGangView.addView(tileView);
@@ -1798,10 +2255,11 @@ public class Player {
                 break;
             case Gang3_1:
                 for (Tile tile : ganged.tiles) {
-                    tileView = tile.inflate(context, mGangTileLayoutId, positionIndex);
+                    tileView = tile.inflate(mGangViewPool, context, mGangTileLayoutId,
+                                    positionIndex);
                     mGangView.addView(tileView);
                 }
-                tileView = ganged.externalTile.tile.inflate(context, mGangTileLayoutId,
+                tileView = ganged.externalTile.tile.inflate(mGangViewPool, context, mGangTileLayoutId,
                                 positionIndex);
                 infoString = ganged.externalTile.info();
                 tileView.setOnClickListener(new OnClickListener() {
@@ -1815,11 +2273,13 @@ public class Player {
                 break;
             case GangPenged:
                 for (Tile tile : ganged.penged.tiles) {
-                    tileView = tile.inflate(context, mGangTileLayoutId, positionIndex);
+                    tileView = tile.inflate(mGangViewPool, context, mGangTileLayoutId,
+                                    positionIndex);
                     mGangView.addView(tileView);
                 }
 
-                tileView = ganged.penged.externalTile.tile.inflate(context, mPengTileLayoutId,
+                tileView = ganged.penged.externalTile.tile.inflate(mGangViewPool, context,
+                                mPengTileLayoutId,
                                 positionIndex);
                 infoString = Action.getActionString(context, Player.this, Action.Peng,
                                 ganged.penged.externalTile);
@@ -1832,36 +2292,48 @@ public class Player {
                 });
                 mGangView.addView(tileView);
 
-                tileView = ganged.lastTile.inflate(context, mGangTileLayoutId, positionIndex);
+                tileView = ganged.lastTile.inflate(mGangViewPool, context, mGangTileLayoutId,
+                                positionIndex);
                 mGangView.addView(tileView);
                 break;
         }
     }
 
-    private void updateTilesView(final Context context, final int positionIndex) {
-        synchronized(mTiles) {
-            mTileListView.removeAllViews();
-            mTileListView.setGravity(Gravity.BOTTOM);
-            View tileView;
-            for (Tile tile : mTiles) {
-                tileView = inflateTileView(context, tile, positionIndex);
-                mTileListView.addView(tileView);
+    private void updateTilesView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        mTileListView.setGravity(Gravity.BOTTOM);
+        // 只重新绑定变化了的tile.
+        int index = 0;
+        int flags;
+        View tileView;
+        for (Tile tile : state.tiles) {
+            flags = getTileViewFlags(state, tile, positionIndex);
+            if (!isTileViewBound(mTileListView, index, tile, flags)) {
+                tileView = inflateTileView(context, state, tile, positionIndex);
+                TileViewPool.getHolder(tileView).boundFlags = flags;
+                mTileViewPool.replaceChild(mTileListView, index, tileView);
             }
+            index++;
         }
+        mTileViewPool.recycleChildren(mTileListView, index);
 
-        setNewTileView();
+        setNewTileView(state);
+    }
 
-        updateChiView(context,  positionIndex);
-        updatePengView(context, positionIndex);
-        updateGangView(context, positionIndex);
+    private void updateMeldsView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        updateChiView(context, state, positionIndex);
+        updatePengView(context, state, positionIndex);
+        updateGangView(context, state, positionIndex);
     }
 
-    private synchronized void setNewTileView() {
+    private void setNewTileView(final PlayerState state) {
+        final Tile newTile = state.newTile;
         final View rootView = mNewTileView.getRootView();
 
         TextView tileMatchAllTextView = (TextView) rootView.findViewById(R.id.tile_match_all_bottom_new);
         if (tileMatchAllTextView != null) {
-            if (mNewTile != null && mNewTile.isMatchAll && mOpenTile) {
+            if (newTile != null && newTile.isMatchAll && state.openTile) {
                 tileMatchAllTextView.setVisibility(View.VISIBLE);
             } else {
                 tileMatchAllTextView.setVisibility(View.GONE);
@@ -1870,62 +2342,61 @@ public class Player {
 
         TextView tileSpecialTextView = (TextView)rootView.findViewById(R.id.tile_special_bottom_new);
         if (tileSpecialTextView != null) {
-            if (mNewTile != null && mNewTile.specialTile != null && mOpenTile) {
+            if (newTile != null && newTile.specialTile != null && state.openTile) {
                 tileSpecialTextView.setVisibility(View.VISIBLE);
             } else {
                 tileSpecialTextView.setVisibility(View.GONE);
             }
         }
 
-        if (mNewTile == null) {
+        if (newTile == null) {
             mNewTileView.setVisibility(View.INVISIBLE);
             mNewTileView.setOnClickListener(null);
             return;
         }
 
         mNewTileView.setVisibility(View.VISIBLE);
-        mNewTileView.setColorFilter(null);
-        final boolean isSelectable = isSelectableTile(mNewTile);
-        if (mOpenTile) {
+        final boolean isSelectable = isSelectableTile(state, newTile);
+        if (state.openTile) {
             mNewTileView.setBackground(mPosition.tileBackgroundDrawable);
-            mNewTileView.setImageResource(mNewTile.getResourceId(mPosition.ordinal()));
-            if (mNewTile.tileType == mIgnoredType) {
-                Tile.grayImageView(mNewTileView);
+            TileShow tileShow = null;
+            if (newTile.tileType == state.ignoredType) {
+                tileShow = TileShow.Gray;
             } else if (!isSelectable) {
-                Tile.tingImageView(mNewTileView);
+                tileShow = TileShow.Ting;
             }
+            mNewTileView.setImageDrawable(newTile.getDrawable(mNewTileView.getContext(),
+                            mPosition.ordinal(), tileShow));
         } else {
             mNewTileView.setBackground(mPosition.tileBackDrawable);
             mNewTileView.setImageBitmap(null);
         }
-        doSetNewTileView(isSelectable);
+        doSetNewTileView(newTile, isSelectable);
     }
 
-    protected void doSetNewTileView(final boolean isSelectable) {
+    protected void doSetNewTileView(final Tile newTile, final boolean isSelectable) {
         mNewTileView.setOnClickListener(null);
     }
 
     // 判断是不是可以被选择的牌.
     // 但是可以被选择并不代表可以随后扔掉。
     // 没有报听时，选择的牌可以接下来再被选中扔掉.
-    protected final boolean isSelectableTile(final Tile tile) {
+    protected final boolean isSelectableTile(final PlayerState state, final Tile tile) {
         // 没报听之前以及不能报听的时候，每一张牌都可以打掉.
-        if (!mActionTingReported && !mActionTingAvailable) return true;
+        if (!state.tingReported && !state.tingAvailable) return true;
 
         if (isMatchAllTile(tile)) {
             return false;
         }
 
-        synchronized (mCanTingTiles) {
-            if (tile == mNewTile && mCanTingTiles.size() <= 0) {
-                return true;// 报听之后只有新摸来的牌可以打掉.
-            }
-            // 刚报听时每一张可以听的牌可以打掉.
-            for (TingTileInfo tileInfo : mCanTingTiles) {
-                if (tileInfo.tile.isSameTile(tile)) return true;
-            }
-            return false;
+        if (tile == state.newTile && state.canTingTiles.length <= 0) {
+            return true;// 报听之后只有新摸来的牌可以打掉.
+        }
+        // 刚报听时每一张可以听的牌可以打掉.
+        for (TingTileInfo tileInfo : state.canTingTiles) {
+            if (tileInfo.tile.isSameTile(tile)) return true;
         }
+        return false;
     }
 
     protected final boolean isMatchAllTile(final Tile tile) {
@@ -1936,81 +2407,73 @@ public class Player {
         return false;
     }
 
-    protected View inflateTileView(Context context, Tile tile, final int positionIndex) {
-        View tileView = tile.inflate(context, mOpenTile || tile.isTingedTile ? mTileOpenLayoutId
-                : mTileCloseLayoutId, positionIndex);
-        if (tile.tileType == mIgnoredType && mOpenTile) {
+    // parent中index位置的view是不是已经以同样的flags绑定了这个tile.
+    private static boolean isTileViewBound(final ViewGroup parent, final int index,
+                    final Tile tile, final int flags) {
+        if (index >= parent.getChildCount()) return false;
+        TileViewHolder holder = TileViewPool.getHolder(parent.getChildAt(index));
+        return holder.boundTile == tile && holder.boundFlags == flags;
+    }
+
+    // 影响手中tile显示的所有标志, 子类显示更多状态时需要加上.
+    protected int getTileViewFlags(final PlayerState state, final Tile tile,
+                    final int positionIndex) {
+        int flags = tile.getViewFlags();
+        int shift = Tile.VIEW_FLAG_CUSTOM_SHIFT;
+        if (state.openTile) flags |= 1 << shift;
+        shift++;
+        if (tile.tileType == state.ignoredType) flags |= 1 << shift;
+        shift++;
+        return flags | (positionIndex << shift);
+    }
+
+    protected View inflateTileView(Context context, PlayerState state, Tile tile,
+                    final int positionIndex) {
+        View tileView = tile.inflate(mTileViewPool, context, state.openTile || tile.isTingedTile
+                ? mTileOpenLayoutId : mTileCloseLayoutId, positionIndex);
+        if (tile.tileType == state.ignoredType && state.openTile) {
             tile.grayTile(tileView);
         }
         return tileView;
     }
 
-    private void updateThrownTilesView(final Context context) {
-        synchronized(mThrownTiles) {
-            final int positionIndex = mPosition.ordinal();
-            mThrownTilesView.removeAllViews();
-            View tileView;
-            LayoutParams params = null;
-            for (Tile tile : mThrownTiles) {
-                tileView = tile.inflateThrownTile(context, mTileOpenLayoutId, positionIndex,
-                                mTileIndicatorViewId);
-
-                if (mThrownTilesView instanceof LinearLayout) {
-                    mThrownTilesView.addView(tileView);
-                } else if (mThrownTilesView instanceof FixedGridLayout) {
-                    ((FixedGridLayout) mThrownTilesView).addCell(tileView);
-                }
-
-                if (params == null) {
-                    params = tileView.getLayoutParams();
-                }
-                boolean isHorizontal = mPosition == Position.BOTTOM || mPosition == Position.TOP;
-                if (tile.isFocused) {
-                    params.width = TileResources.getFocusedTileWidth(isHorizontal);
-                    params.height = TileResources.getFocusedTileHeight(isHorizontal);
-                } else {
-                    params.width = TileResources.getThrownTileWidth(isHorizontal);
-                    params.height = TileResources.getThrownTileHeight(isHorizontal);
-                }
-                tileView.setLayoutParams(params);
-            }
-        }
+    private void updateThrownTilesView(final Context context, final PlayerState state) {
+        mThrownTilesView.setTiles(state.thrownTiles);
     }
 
-    private void updateHuedTilesView(final Context context, final int positionIndex) {
-        synchronized(mHuedTiles) {
-            mHuView.removeAllViews();
-            View tileView;
-            boolean isGangFlower;
-            for (TileInfo huedTile : mHuedTiles) {
-                isGangFlower = huedTile instanceof GangFlower;
-                tileView = huedTile.tile.inflateHuedTile(context, mHuedTileLayoutId,
-                        positionIndex, huedTile, name, isGangFlower);
-                if (isFromSelf(huedTile)) {
-                    if (isGangFlower) {
-                        final String infoString = ((GangFlower)huedTile).info(context);
-                        tileView.setOnClickListener(new OnClickListener() {
-                            @Override
-                            public void onClick(View arg0) {
-                                Utils.showInfo(context, context.getString(R.string.action_gang_flower),
-                                                infoString);
-                            }
-                        });
-                    } else {
-                        tileView.setOnClickListener(null);
-                    }
-                } else {
-                    final String infoString = huedTile.info();
+    private void updateHuedTilesView(final Context context, final PlayerState state,
+                    final int positionIndex) {
+        mHuViewPool.recycleChildren(mHuView);
+        View tileView;
+        boolean isGangFlower;
+        for (TileInfo huedTile : state.huedTiles) {
+            isGangFlower = huedTile instanceof GangFlower;
+            tileView = huedTile.tile.inflateHuedTile(mHuViewPool, context, mHuedTileLayoutId,
+                    positionIndex, huedTile, name, isGangFlower);
+            if (isFromSelf(huedTile)) {
+                if (isGangFlower) {
+                    final String infoString = ((GangFlower)huedTile).info(context);
                     tileView.setOnClickListener(new OnClickListener() {
                         @Override
                         public void onClick(View arg0) {
-                            Utils.showInfo(context, context.getString(R.string.action_hu),
+                            Utils.showInfo(context, context.getString(R.string.action_gang_flower),
                                             infoString);
                         }
                     });
+                } else {
+                    tileView.setOnClickListener(null);
                 }
-                mHuView.addView(tileView);
+            } else {
+                final String infoString = huedTile.info();
+                tileView.setOnClickListener(new OnClickListener() {
+                    @Override
+                    public void onClick(View arg0) {
+                        Utils.showInfo(context, context.getString(R.string.action_hu),
+                                        infoString);
+                    }
+                });
             }
+            mHuView.addView(tileView);
         }
     }
 
@@ -2034,6 +2497,7 @@ public class Player {
                 updateTilesInfo();
             }
         });
+        runChecksAfterIgnored();
         if (!fromRemote) {
             mPlayerCallback.send2RemotePlayer(ConnMessage.MSG_SET_IGNORED_TYPE,
                             MessageUtils.messageIgnoredType(ignoredType));
@@ -2053,6 +2517,58 @@ public class Player {
         mPlayerCallback.promptDetermineIgnored();
     }
 
+    // 托管时选一张牌打: DummyPlayer和超时的LocalPlayer都用这个.
+    protected final Tile findTileToAutoThrow() {
+        final TileType ignoredType = getIgnoredType();
+        int ignoredNum = ignoredType == null ? 0 : getTilesNum(ignoredType);
+        if (ignoredNum > 0) {
+            // 如果有缺还没打完，优先打缺门的牌，随机选.
+            return getRandomTile(ignoredType);
+        }
+        // 现在没有支持智能选牌，只是随机选一张打出去.
+        return getRandomTile(null);
+    }
+
+    private Tile getRandomTile(TileType selectedType) {
+        synchronized(mTiles) {
+            final int num = mTiles.size();
+            if (num <= 0) return null;
+            final int canTingNum = mCanTingTiles.size();
+            int randomIndex;
+            if (selectedType == null) {
+                if (mActionTingReported && canTingNum == 0) {
+                    return mNewTile;
+                }
+                if (canTingNum > 0) {
+                    randomIndex = Utils.getRandomInt(0, canTingNum - 1);
+                    return mCanTingTiles.get(randomIndex).tile;
+                }
+                Tile matchAllTile = MahjongManager.getInstance().getGame().getMatchAllTile();
+                final int tileCount = getTileCount(matchAllTile);
+                if (tileCount <= 0) {
+                    randomIndex = Utils.getRandomInt(0, num - 1);
+                    return mTiles.get(randomIndex);
+                }
+                if (tileCount == mTiles.size()) {
+                    return mTiles.get(0); // 应该不会发生这种情况啊.到这时候应该早都胡牌了...
+                }
+                // 对于matchAllTile，什么时候都不扔掉.
+                Tile tile;
+                do {
+                    randomIndex = Utils.getRandomInt(0, num - 1);
+                    tile = mTiles.get(randomIndex);
+                } while (tile.isSameTile(matchAllTile));
+                return tile;
+            }
+            Tile tile;
+            do {
+                randomIndex = Utils.getRandomInt(0, num - 1);
+                tile = mTiles.get(randomIndex);
+            } while (tile.tileType != selectedType);
+            return tile;
+        }
+    }
+
     public void autoDetermineIgnored() {
         setIgnoredType(findWorstTileType(), false);
     }
@@ -2532,9 +3048,25 @@ public class Player {
         }
     }
 
+    // 牌局中收到的这个player的消息在player thread中处理, 不占用socket的读线程.
+    // player thread还没有开始时在调用者的线程中处理.
+    public void postRemoteMessage(final MessageInfo messageInfo) {
+        final HandlerThreadExt playerThread = mPlayerThread;
+        if (playerThread == null) {
+            handleRemoteMessage(messageInfo);
+            return;
+        }
+        playerThread.post(new Runnable() {
+            @Override
+            public void run() {
+                handleRemoteMessage(messageInfo);
+            }
+        });
+    }
+
     public void handleRemoteMessage(MessageInfo messageInfo) {
         final RemoteMessage remoteMessage = RemoteMessage.parse(messageInfo);
-        Constants.debug("Received for WifiPlayer[" + name + "]," + remoteMessage);
+        Logger.d(Subsystem.Net, "Received for WifiPlayer[{}], {}", name, remoteMessage.connMessage);
         switch (remoteMessage.connMessage) {
             case MSG_PLAYER_ADD_TILE:
                 MsgPlayerAddTile playerAddTile = parsePlayerAddTile(remoteMessage.content);
@@ -2570,7 +3102,8 @@ public class Player {
                 actionsIgnored(actionsIgnored.tileInfo, actionsIgnored.actions);
                 break;
             default:
-                Constants.debug("Unknown MSG for WifiPlayer[" + name + "]," + remoteMessage.connMessage);
+                Logger.w(Subsystem.Net, "Unknown MSG for WifiPlayer[{}], {}", name,
+                                remoteMessage.connMessage);
                 break;
         }
     }
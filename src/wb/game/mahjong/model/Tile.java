@@ -6,8 +6,10 @@ import java.util.Comparator;
 
 import android.content.Context;
 import android.graphics.Color;
+import android.graphics.ColorFilter;
 import android.graphics.ColorMatrix;
 import android.graphics.ColorMatrixColorFilter;
+import android.graphics.drawable.Drawable;
 import android.text.TextUtils;
 import android.view.View;
 import android.widget.ImageView;
@@ -18,6 +20,10 @@ import wb.game.mahjong.constants.HuConstants.HuPattern;
 import wb.game.mahjong.constants.TileResources.TileType;
 import wb.game.mahjong.model.GameResource.Action;
 import wb.game.mahjong.model.GameResource.Game;
+import wb.game.mahjong.view.TileAtlas;
+import wb.game.mahjong.view.TileViewPool;
+import wb.game.mahjong.view.TileViewPool.TileViewHolder;
+import wb.game.utils.EnumCodec;
 
 public class Tile {
     private static final ColorMatrixColorFilter sGrayColorMatrixFilter;
@@ -89,11 +95,10 @@ public class Tile {
         TileThrown,
         TileGot;
 
+        private static final EnumCodec<TileState> sCodec = EnumCodec.of(TileState.class);
+
         public static TileState getTileState(int ordinal) {
-            for (TileState tileState : values()) {
-                if (ordinal == tileState.ordinal()) return tileState;
-            }
-            return null;
+            return sCodec.get(ordinal);
         }
     }
 
@@ -324,7 +329,8 @@ public class Tile {
         }
     }
 
-    private static enum TileShow {
+    public static enum TileShow {
+        Gray,          // 缺的那门
         Black,
         GangBlack,     // 暗杠
         Ting,
@@ -410,14 +416,6 @@ public class Tile {
         return getColorMatrixFilter(Color.DKGRAY, 0.7f);
     }
 
-    public static void grayImageView(ImageView view) {
-        view.setColorFilter(sGrayColorMatrixFilter);
-    }
-
-    public static void tingImageView(ImageView view) {
-        view.setColorFilter(sTileKeptAfterTingColorMatrixFilter);
-    }
-
     public static boolean isNumberTile(final Tile tile) {
         switch (tile.tileType) {
             case Tiao:
@@ -456,69 +454,100 @@ public class Tile {
         specialTile = null;
     }
 
-    private static void applyTileShow(final TileShow tileShow, final ImageView tileFrontView) {
+    // 每种TileShow对应的ColorFilter, Live返回null.
+    public static ColorFilter getColorFilter(final TileShow tileShow) {
         switch (tileShow) {
+            case Gray:
+                return sGrayColorMatrixFilter;
             case Black:
-                tileFrontView.setColorFilter(sBlackColorMatrixFilter);
-                return;
+                return sBlackColorMatrixFilter;
             case Ting:
-                tileFrontView.setColorFilter(sTileKeptAfterTingColorMatrixFilter);
-                return;
+                return sTileKeptAfterTingColorMatrixFilter;
             case Chi:
-                tileFrontView.setColorFilter(sTileChiedColorMatrixFilter);
-                return;
+                return sTileChiedColorMatrixFilter;
             case GangBlack:
-                tileFrontView.setColorFilter(sTileGangBlackColorMatrixFilter);
-                return;
+                return sTileGangBlackColorMatrixFilter;
             case HuSelf:
-                tileFrontView.setColorFilter(sHuSelfColorMatrixFilter);
-                return;
+                return sHuSelfColorMatrixFilter;
             case HuOther:
-                tileFrontView.setColorFilter(sHuOtherColorMatrixFilter);
-                return;
+                return sHuOtherColorMatrixFilter;
             case HuOtherShared:
-                tileFrontView.setColorFilter(sHuOtherSharedColorMatrixFilter);
-                return;
+                return sHuOtherSharedColorMatrixFilter;
             case Live:
             default:
-                return;
+                return null;
         }
     }
 
+    private static final int VIEW_FLAG_TINGED  = 1;
+    public static final int VIEW_FLAG_FOCUSED = 1 << 1;
+    private static final int VIEW_FLAG_MATCH_ALL = 1 << 2;
+    private static final int VIEW_FLAG_SPECIAL = 1 << 3;
+    // 调用者自己的标志从这一位开始.
+    public static final int VIEW_FLAG_CUSTOM_SHIFT = 4;
+
+    // 影响tile显示的标志, 这些不变时tile view不需要重新绑定.
+    public int getViewFlags() {
+        int flags = 0;
+        if (isTingedTile) flags |= VIEW_FLAG_TINGED;
+        if (isFocused) flags |= VIEW_FLAG_FOCUSED;
+        if (isMatchAll) flags |= VIEW_FLAG_MATCH_ALL;
+        if (specialTile != null) flags |= VIEW_FLAG_SPECIAL;
+        return flags;
+    }
+
     public View inflate(Context context, int tileItemLayoutId, int positionIndex) {
-        return inflate(context, tileItemLayoutId, positionIndex, null);
+        return inflate(null, context, tileItemLayoutId, positionIndex, null);
     }
 
-    public View inflateGangBlack(Context context, int tileItemLayoutId, int positionIndex) {
-        return inflate(context, tileItemLayoutId, positionIndex, TileShow.GangBlack);
+    // pool不为null时从pool中取view, 而不是每次都inflate.
+    public View inflate(TileViewPool pool, Context context, int tileItemLayoutId,
+                    int positionIndex) {
+        return inflate(pool, context, tileItemLayoutId, positionIndex, null);
     }
 
-    private View inflate(Context context, int tileItemLayoutId, int positionIndex,
-                    final TileShow tileShow) {
-        View view = View.inflate(context, tileItemLayoutId, null);
+    public View inflateGangBlack(TileViewPool pool, Context context, int tileItemLayoutId,
+                    int positionIndex) {
+        return inflate(pool, context, tileItemLayoutId, positionIndex, TileShow.GangBlack);
+    }
 
-        ImageView tileFrontView = (ImageView)view.findViewById(R.id.tile_front);
+    private View inflate(TileViewPool pool, Context context, int tileItemLayoutId,
+                    int positionIndex, final TileShow tileShow) {
+        View view = (pool == null ? TileViewPool.inflate(context, tileItemLayoutId)
+                        : pool.obtain(context, tileItemLayoutId));
+        bind(view, positionIndex, tileShow);
+        return view;
+    }
+
+    // 把tile绑定到view上; view可能是回收的, 所以每一项都要重新设置.
+    private void bind(final View view, int positionIndex, final TileShow tileShow) {
+        final TileViewHolder holder = TileViewPool.getHolder(view);
+        holder.boundTile = this;
+        holder.boundFlags = getViewFlags();
+        holder.boundPosition = positionIndex;
+
+        ImageView tileFrontView = holder.tileFront;
         if (tileFrontView != null) {
-            tileFrontView.setImageResource(getResourceId(positionIndex));
-            if (tileShow != null) applyTileShow(tileShow, tileFrontView);
+            tileFrontView.setImageDrawable(getDrawable(view.getContext(), positionIndex, tileShow));
         }
-        TextView tileTextView = (TextView)view.findViewById(R.id.tile_text);
+        TextView tileTextView = holder.tileText;
         if (tileTextView != null) {
             if (isTingedTile) {
                 applyTileText(tileTextView, TileShow.Ting, R.string.action_ting);
+            } else {
+                tileTextView.setVisibility(View.GONE);
             }
         }
 
-        TextView tileMatchAllTextView = (TextView)view.findViewById(R.id.tile_match_all_text);
+        TextView tileMatchAllTextView = holder.tileMatchAll;
         if (tileMatchAllTextView != null) {
             tileMatchAllTextView.setVisibility(isMatchAll && tileFrontView != null ? View.VISIBLE : View.GONE);
         }
 
-        TextView tileSpecialTextView = (TextView)view.findViewById(R.id.tile_special);
+        TextView tileSpecialTextView = holder.tileSpecial;
         if (tileSpecialTextView != null) {
             tileSpecialTextView.setVisibility(specialTile == null ? View.GONE : View.VISIBLE);
         }
-        return view;
     }
 
     private void applyTileText(final TextView tileTextView, final TileShow tileShow,
@@ -545,32 +574,33 @@ public class Tile {
     }
 
     public View inflateBlack(Context context, int tileItemLayoutId, int positionIndex) {
-        return inflate(context, tileItemLayoutId, positionIndex, TileShow.Black);
+        return inflate(null, context, tileItemLayoutId, positionIndex, TileShow.Black);
     }
 
-    public View inflateChi(Context context, int tileItemLayoutId, int positionIndex) {
-        return inflate(context, tileItemLayoutId, positionIndex, TileShow.Chi);
+    public View inflateChi(TileViewPool pool, Context context, int tileItemLayoutId,
+                    int positionIndex) {
+        return inflate(pool, context, tileItemLayoutId, positionIndex, TileShow.Chi);
     }
 
-    public View inflateThrownTile(Context context, int tileItemLayoutId, int positionIndex,
-            int tileIndicatorViewId) {
-        View view = inflate(context, tileItemLayoutId, positionIndex);
-        View tileIndicatorView = view.findViewById(tileIndicatorViewId);
+    public View inflateThrownTile(TileViewPool pool, Context context, int tileItemLayoutId,
+            int positionIndex, int tileIndicatorViewId) {
+        View view = inflate(pool, context, tileItemLayoutId, positionIndex);
+        View tileIndicatorView = TileViewPool.getHolder(view).getIndicatorView(tileIndicatorViewId);
         tileIndicatorView.setVisibility(isFocused ? View.VISIBLE : View.GONE);
         return view;
     }
 
     // 胡牌使用不同的layout.
-    public View inflateHuedTile(Context context, final int huedTileLayoutId,
+    public View inflateHuedTile(TileViewPool pool, Context context, final int huedTileLayoutId,
             final int positionIndex, final TileInfo huedTileInfo, final String playerName,
             final boolean isGangFlower) {
         final TileShow tileShow = huedTileInfo.getHued(playerName).tileShow;
 
-        View view = inflate(context, huedTileLayoutId, positionIndex, tileShow);
+        View view = inflate(pool, context, huedTileLayoutId, positionIndex, tileShow);
         //View backgroundView = view.findViewById(R.id.hued_tile_background);
         //backgroundView.setBackgroundColor(huedTileInfo.getTileBackgroundColor(playerName));
 
-        TextView tileTextView = (TextView)view.findViewById(R.id.tile_text);
+        TextView tileTextView = TileViewPool.getHolder(view).tileText;
         if (isGangFlower && tileTextView != null) {
             tileTextView.setVisibility(View.VISIBLE);
             tileTextView.setText(R.string.action_gang);
@@ -581,20 +611,28 @@ public class Tile {
     }
 
     public void grayTile(View tileView) {
-        ImageView tileFrontView = (ImageView)tileView.findViewById(R.id.tile_front);
-        if (tileFrontView != null) {
-            tileFrontView.setColorFilter(sGrayColorMatrixFilter);
-        }
+        applyTileShow(tileView, TileShow.Gray);
     }
 
     // 听牌后，对不可以打出的tile设置不同的显示.
     public void tingTile(View tileView) {
-        ImageView tileFrontView = (ImageView)tileView.findViewById(R.id.tile_front);
-        if (tileFrontView != null) {
-            tileFrontView.setColorFilter(sTileKeptAfterTingColorMatrixFilter);
+        applyTileShow(tileView, TileShow.Ting);
+    }
+
+    private void applyTileShow(final View tileView, final TileShow tileShow) {
+        final TileViewHolder holder = TileViewPool.getHolder(tileView);
+        if (holder.tileFront != null) {
+            holder.tileFront.setImageDrawable(getDrawable(tileView.getContext(),
+                            holder.boundPosition, tileShow));
         }
     }
 
+    // 已经着好色的牌面, 来自TileAtlas. tileShow为null时不着色.
+    public Drawable getDrawable(final Context context, final int positionIndex,
+                    final TileShow tileShow) {
+        return TileAtlas.getInstance(context).getTileDrawable(this, positionIndex, tileShow);
+    }
+
     public int getResourceId(int resIndex) {
         return tileType.getResourceId(tileIndex, resIndex);
     }
@@ -617,8 +655,11 @@ public class Tile {
         return tileType.getTileLabel(tileIndex);
     }
 
+    // 不用每次都复制TileType.values().
+    private static final TileType[] sTileTypes = TileType.values();
+
     public static Tile parse(final String tileString) {
-        for (TileType tileType : TileType.values()) {
+        for (TileType tileType : sTileTypes) {
             int typeTileCount = tileType.getCount();
             for (int i = 0; i < typeTileCount; i++) {
                 if (tileType.getTileLabel(i).equals(tileString)) {
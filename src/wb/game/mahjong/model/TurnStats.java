@@ -0,0 +1,270 @@
+package wb.game.mahjong.model;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import wb.conn.RemoteMessage.ConnMessage;
+import wb.game.mahjong.constants.Constants;
+import wb.game.utils.Utils;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 每一轮的耗时统计: 摸牌/检查action/胡听计算/网络收发/UI刷新/声音.
+// 每个阶段一个对数分桶的直方图(类似HdrHistogram, 相对误差约1/16),
+// 另外统计每种ConnMessage的收发次数和线程切换(post到别的线程)的次数.
+// 记录都是无锁的(Atomic*), 可以在任何线程中调用.
+public class TurnStats {
+    public static enum Stage {
+        Draw,        // notifyPlayerGetTile到牌发给player.
+        CheckAction, // checkActionOnNewTile.
+        Hu,          // canHuTile.
+        Ting,        // getCanTingTiles.
+        NetSend,     // 消息交给RemoteConnector到发送完成.
+        NetReceive,  // 消息到达到处理完成.
+        UiRefresh,   // main thread刷新一个player.
+        Sound;       // 播放一次声音.
+    }
+
+    // 对数分桶的直方图, 单位是微秒.
+    // 小于SUB_COUNT的值每个值一个桶; 之后每个2的幂区间再分SUB_COUNT个桶.
+    public static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int MAX_EXPONENT = 40; // 2^40微秒, 足够了.
+        private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final AtomicLong mMax = new AtomicLong();
+
+        private static int getIndex(long value) {
+            if (value < SUB_COUNT) return (int) Math.max(value, 0);
+            final int exponent = 63 - Long.numberOfLeadingZeros(value);
+            if (exponent > MAX_EXPONENT) return BUCKET_COUNT - 1;
+            final int sub = (int) (value >> (exponent - SUB_BITS));
+            return (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        // 桶的下界.
+        private static long getValue(int index) {
+            if (index < SUB_COUNT * 2) return index;
+            final int exponent = index / SUB_COUNT + SUB_BITS - 1;
+            final long sub = index % SUB_COUNT + SUB_COUNT;
+            return sub << (exponent - SUB_BITS);
+        }
+
+        public void record(long micros) {
+            mBuckets.incrementAndGet(getIndex(micros));
+            mCount.incrementAndGet();
+            mSum.addAndGet(micros);
+            long max;
+            do {
+                max = mMax.get();
+                if (micros <= max) break;
+            } while (!mMax.compareAndSet(max, micros));
+        }
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public long getMax() {
+            return mMax.get();
+        }
+
+        public long getMean() {
+            final long count = mCount.get();
+            return count == 0 ? 0 : mSum.get() / count;
+        }
+
+        // percentile: 0-100. 返回所在桶的上界, 宁可高估.
+        public long getPercentile(double percentile) {
+            final long count = mCount.get();
+            if (count == 0) return 0;
+            final long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+            long total = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                total += mBuckets.get(i);
+                if (total >= target) {
+                    return Math.min(getValue(i + 1) - 1, mMax.get());
+                }
+            }
+            return mMax.get();
+        }
+
+        public void reset() {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                mBuckets.set(i, 0);
+            }
+            mCount.set(0);
+            mSum.set(0);
+            mMax.set(0);
+        }
+    }
+
+    private static final String FORMAT_STAGE = "%-12s n=%-6d mean=%-8d p50=%-8d p90=%-8d p99=%-8d max=%d\n";
+    private static final String FORMAT_STAGE_SHORT = "%s %d/%d/%d\n";
+    private static final String FORMAT_MESSAGE = "%-32s sent=%-6d received=%d\n";
+    private static final String FORMAT_HOP = "%-24s %d\n";
+    private static final String SEPARATOR_THREAD_NAME = "-";
+
+    private static TurnStats sInstance;
+
+    private final Histogram[] mHistograms = new Histogram[Stage.values().length];
+    private final AtomicLongArray mSentMessages = new AtomicLongArray(ConnMessage.values().length);
+    private final AtomicLongArray mReceivedMessages = new AtomicLongArray(ConnMessage.values().length);
+    private final ConcurrentHashMap<String, AtomicLong> mHops = new ConcurrentHashMap<String, AtomicLong>();
+    private volatile long mStartTime = System.currentTimeMillis();
+
+    private TurnStats() {
+        for (int i = 0; i < mHistograms.length; i++) {
+            mHistograms[i] = new Histogram();
+        }
+    }
+
+    public static synchronized TurnStats getInstance() {
+        if (sInstance == null) {
+            sInstance = new TurnStats();
+        }
+        return sInstance;
+    }
+
+    public static boolean isEnabled() {
+        return Constants.TURN_STATS;
+    }
+
+    // 开始计时, 配合record(stage, startTime)使用.
+    public static long start() {
+        return System.nanoTime();
+    }
+
+    public void record(final Stage stage, final long startTime) {
+        if (!isEnabled()) return;
+        mHistograms[stage.ordinal()].record((System.nanoTime() - startTime) / 1000);
+    }
+
+    public Histogram getHistogram(final Stage stage) {
+        return mHistograms[stage.ordinal()];
+    }
+
+    public void countSent(final ConnMessage connMessage) {
+        if (!isEnabled() || connMessage == null) return;
+        mSentMessages.incrementAndGet(connMessage.ordinal());
+    }
+
+    public void countReceived(final ConnMessage connMessage) {
+        if (!isEnabled() || connMessage == null) return;
+        mReceivedMessages.incrementAndGet(connMessage.ordinal());
+    }
+
+    // 记录一次post到threadName所在线程.
+    // 线程名后面的时间戳去掉, 以便同一类线程合在一起统计.
+    public void countHop(final String threadName) {
+        if (!isEnabled() || threadName == null) return;
+        final int index = threadName.lastIndexOf(SEPARATOR_THREAD_NAME);
+        final String key = (index > 0 ? threadName.substring(0, index) : threadName).trim();
+        AtomicLong count = mHops.get(key);
+        if (count == null) {
+            AtomicLong newCount = new AtomicLong();
+            count = mHops.putIfAbsent(key, newCount);
+            if (count == null) count = newCount;
+        }
+        count.incrementAndGet();
+    }
+
+    public void reset() {
+        for (Histogram histogram : mHistograms) {
+            histogram.reset();
+        }
+        for (int i = 0; i < mSentMessages.length(); i++) {
+            mSentMessages.set(i, 0);
+            mReceivedMessages.set(i, 0);
+        }
+        mHops.clear();
+        mStartTime = System.currentTimeMillis();
+    }
+
+    // 屏幕上显示的简要信息: 每个阶段的 p50/p99/max, 单位毫秒.
+    public String overlayString() {
+        StringBuilder sb = new StringBuilder();
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = mHistograms[stage.ordinal()];
+            if (histogram.getCount() == 0) continue;
+            sb.append(String.format(FORMAT_STAGE_SHORT, stage,
+                            histogram.getPercentile(50) / 1000,
+                            histogram.getPercentile(99) / 1000,
+                            histogram.getMax() / 1000));
+        }
+        long sent = 0, received = 0;
+        for (int i = 0; i < mSentMessages.length(); i++) {
+            sent += mSentMessages.get(i);
+            received += mReceivedMessages.get(i);
+        }
+        sb.append("msg ").append(sent).append('/').append(received);
+        long hops = 0;
+        for (AtomicLong count : mHops.values()) {
+            hops += count.get();
+        }
+        sb.append(" hop ").append(hops);
+        return sb.toString();
+    }
+
+    // 完整的统计报告, 单位微秒.
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("since ").append(Utils.getTimeString(mStartTime)).append('\n');
+        sb.append("[stages, us]\n");
+        for (Stage stage : Stage.values()) {
+            Histogram histogram = mHistograms[stage.ordinal()];
+            sb.append(String.format(FORMAT_STAGE, stage, histogram.getCount(),
+                            histogram.getMean(), histogram.getPercentile(50),
+                            histogram.getPercentile(90), histogram.getPercentile(99),
+                            histogram.getMax()));
+        }
+        sb.append("[messages]\n");
+        for (ConnMessage connMessage : ConnMessage.values()) {
+            final long sent = mSentMessages.get(connMessage.ordinal());
+            final long received = mReceivedMessages.get(connMessage.ordinal());
+            if (sent == 0 && received == 0) continue;
+            sb.append(String.format(FORMAT_MESSAGE, connMessage, sent, received));
+        }
+        sb.append("[thread hops]\n");
+        ArrayList<String> threadNames = new ArrayList<String>(mHops.keySet());
+        Collections.sort(threadNames);
+        for (String threadName : threadNames) {
+            AtomicLong count = mHops.get(threadName);
+            if (count == null) continue;
+            sb.append(String.format(FORMAT_HOP, threadName, count.get()));
+        }
+        return sb.toString();
+    }
+
+    // 把报告追加到文件中, 每局一段.
+    public boolean dump(final String filepath) {
+        if (!isEnabled()) return false;
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(filepath, true);
+            fos.write(report().getBytes());
+            fos.write('\n');
+            return true;
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to dump turn stats: {}", ioe);
+            return false;
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ioe) {
+                    // ignore.
+                }
+            }
+        }
+    }
+}
@@ -11,7 +11,7 @@ import wb.conn.MessageInfo.PlayerInfo;
 import wb.conn.RemoteMessage;
 import wb.game.mahjong.RemoteConnector;
 import wb.game.mahjong.constants.Constants;
-import wb.game.utils.Utils;
+import wb.game.utils.IconCache;
 
 public class WifiPlayer extends RemotePlayer implements Parcelable {
     public final String ipv4;
@@ -37,8 +37,9 @@ public class WifiPlayer extends RemotePlayer implements Parcelable {
         this.gender = gender;
     }
 
+    // 解码和写文件都在IconCache的后台线程中.
     public void updateIcon(final byte[] data) {
-        Utils.saveToFile(iconFilename, data);
+        IconCache.getInstance().putIconData(iconFilename, data);
     }
 
     private static final String FORMAT_SHORT_INFO = "%s[%s]";
@@ -109,7 +110,7 @@ public class WifiPlayer extends RemotePlayer implements Parcelable {
                         new PlayerInfo(ipv4, name), uiMessageContent);
         switch (Constants.sNetwork) {
             case Wifi:
-                remoteConnector.sendMessageTcp(messageInfo);
+                remoteConnector.sendGameMessage(messageInfo);
                 break;
             case Bluetooth:
                 break;
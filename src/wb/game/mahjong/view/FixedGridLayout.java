@@ -117,9 +117,10 @@ public class FixedGridLayout extends ViewGroup {
                 resolveSize(mCellHeight * count, heightMeasureSpec));
     }
 
-    private int getColumnNum(int w, int h, int cellWidth, int cellHeight) {
+    // 以下按位置计算格子, TileRiverView也使用.
+    static int getColumnNum(Position position, int w, int h, int cellWidth, int cellHeight) {
         int columnNum = 0;
-        switch (mPosition) {
+        switch (position) {
             case Bottom:
             case Top:
                 columnNum = w / cellWidth;
@@ -129,7 +130,7 @@ public class FixedGridLayout extends ViewGroup {
                 columnNum = h / cellHeight;
                 break;
             default:
-                throw new RuntimeException("Illegal position:" + mPosition);
+                throw new RuntimeException("Illegal position:" + position);
         }
         if (columnNum <= 0) {
             columnNum = 1;
@@ -137,9 +138,9 @@ public class FixedGridLayout extends ViewGroup {
         return columnNum;
     }
 
-    private int getMaxRowNum(int w, int h, int cellWidth, int cellHeight) {
+    static int getMaxRowNum(Position position, int w, int h, int cellWidth, int cellHeight) {
         int maxRowNum = 0;
-        switch (mPosition) {
+        switch (position) {
             case Bottom:
             case Top:
                 maxRowNum = h / cellHeight;
@@ -149,7 +150,7 @@ public class FixedGridLayout extends ViewGroup {
                 maxRowNum = w / cellWidth;
                 break;
             default:
-                throw new RuntimeException("Illegal position:" + mPosition);
+                throw new RuntimeException("Illegal position:" + position);
         }
         if (maxRowNum <= 0) {
             maxRowNum = 1;
@@ -164,8 +165,8 @@ public class FixedGridLayout extends ViewGroup {
 
         final int w = right - left;
         final int h = bottom - top;
-        int columns = getColumnNum(w, h, cellWidth, cellHeight);
-        int maxRowNum = getMaxRowNum(w, h, cellWidth, cellHeight);
+        int columns = getColumnNum(mPosition, w, h, cellWidth, cellHeight);
+        int maxRowNum = getMaxRowNum(mPosition, w, h, cellWidth, cellHeight);
 
         int count = getChildCount();
 
@@ -180,40 +181,44 @@ public class FixedGridLayout extends ViewGroup {
             int row = index / columns;
             int col = index % columns;
 
-            cellLeft = getCellLeft(row, col, maxRowNum, columns) + ((cellWidth - measuredWidth) / 2);
-            cellTop = getCellTop(row, col, maxRowNum, columns) + ((cellHeight - measuredHeight) / 2);
+            cellLeft = getCellLeft(mPosition, row, col, maxRowNum, columns, cellWidth)
+                    + ((cellWidth - measuredWidth) / 2);
+            cellTop = getCellTop(mPosition, row, col, maxRowNum, columns, cellHeight)
+                    + ((cellHeight - measuredHeight) / 2);
 
             child.layout(cellLeft, cellTop, cellLeft + measuredWidth, cellTop + measuredHeight);
         }
     }
 
-    private int getCellLeft(int row, int col, int maxRowNum, int columnNum) {
-        switch (mPosition) {
+    static int getCellLeft(Position position, int row, int col, int maxRowNum, int columnNum,
+            int cellWidth) {
+        switch (position) {
             case Bottom:
-                return col * mCellWidth;
+                return col * cellWidth;
             case Right:
-                return row * mCellWidth;
+                return row * cellWidth;
             case Top:
-                return (columnNum - col - 1) * mCellWidth;
+                return (columnNum - col - 1) * cellWidth;
             case Left:
-                return (maxRowNum - row - 1) * mCellWidth;
+                return (maxRowNum - row - 1) * cellWidth;
             default:
-                throw new RuntimeException("Illegal position:" + mPosition);
+                throw new RuntimeException("Illegal position:" + position);
         }
     }
 
-    private int getCellTop(int row, int col, int maxRowNum, int columnNum) {
-        switch (mPosition) {
+    static int getCellTop(Position position, int row, int col, int maxRowNum, int columnNum,
+            int cellHeight) {
+        switch (position) {
             case Bottom:
-                return row * mCellHeight;
+                return row * cellHeight;
             case Right:
-                return (columnNum - col - 1) * mCellHeight;
+                return (columnNum - col - 1) * cellHeight;
             case Top:
-                return (maxRowNum - row - 1) * mCellHeight;
+                return (maxRowNum - row - 1) * cellHeight;
             case Left:
-                return col * mCellHeight;
+                return col * cellHeight;
             default:
-                throw new RuntimeException("Illegal position:" + mPosition);
+                throw new RuntimeException("Illegal position:" + position);
         }
     }
 }
@@ -0,0 +1,482 @@
+package wb.game.mahjong.view;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.pm.PackageManager.NameNotFoundException;
+import android.content.res.Resources;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.ColorFilter;
+import android.graphics.Paint;
+import android.graphics.PixelFormat;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.SparseArray;
+import wb.game.mahjong.constants.TileResources.TileType;
+import wb.game.mahjong.model.HandlerThreadExt;
+import wb.game.mahjong.model.Tile;
+import wb.game.mahjong.model.Tile.TileShow;
+import wb.game.utils.Logger;
+import wb.game.utils.Logger.Subsystem;
+
+// 牌面位图集: 一个方向 + 一种TileShow的所有牌栅格化到同一张位图(一页)里,
+// 着色(ColorMatrixColorFilter)在栅格化时就做好, 画的时候只是从页中拷贝一块, 没有filter.
+// 页有两种:
+//   front - 只有牌面, 大小为drawable的原始大小, 给tile_front的ImageView用(AtlasDrawable);
+//   cell  - 背景(bg_*)和牌面合成, 大小为格子大小, 给TileRiverView用.
+// 页中格子的顺序是固定的(按TileType和tileIndex), 所以索引不需要单独保存.
+// 生成的页以PNG保存在cache目录中, 目录按屏幕密度和versionCode区分, 下次启动直接读取.
+// 页的读取, 生成和PNG的写入都在后台线程中; 页还没有好时先不画, 好了以后在main thread中通知重画.
+public class TileAtlas {
+    private static final String ATLAS_DIRNAME = "tile_atlas";
+    private static final String FORMAT_CACHE_DIRNAME = "%d_%d"; // densityDpi_versionCode
+    private static final String FORMAT_FRONT_FILENAME = "front_%d_%s.png";
+    private static final String FORMAT_CELL_FILENAME = "cell_%d_%s_%dx%d.png";
+    private static final String SUFFIX_TEMP = ".tmp";
+
+    private static final int PAGE_COLUMNS = 10;
+
+    private static final int KIND_FRONT = 0;
+    private static final int KIND_CELL = 1;
+
+    private static final int POSITION_COUNT = 4;
+    private static final int TILE_SHOW_COUNT = TileShow.values().length;
+
+    // 每种TileType在页中的起始格子.
+    private static final int[] sCellOffsets = new int[TileType.values().length];
+    private static final int sCellCount;
+
+    static {
+        int offset = 0;
+        for (TileType tileType : TileType.values()) {
+            sCellOffsets[tileType.ordinal()] = offset;
+            offset += tileType.getCount();
+        }
+        sCellCount = offset;
+    }
+
+    private static int getCellIndex(final Tile tile) {
+        return sCellOffsets[tile.tileType.ordinal()] + tile.tileIndex;
+    }
+
+    private static int getPageKey(final int kind, final int positionIndex, final TileShow tileShow) {
+        return (kind * POSITION_COUNT + positionIndex) * TILE_SHOW_COUNT + tileShow.ordinal();
+    }
+
+    // 一页: 格子按行排列, 每行PAGE_COLUMNS个.
+    private static class Page {
+        final Bitmap bitmap;
+        final int cellWidth;
+        final int cellHeight;
+
+        Page(Bitmap bitmap, int cellWidth, int cellHeight) {
+            this.bitmap = bitmap;
+            this.cellWidth = cellWidth;
+            this.cellHeight = cellHeight;
+        }
+
+        static int getRowNum() {
+            return (sCellCount + PAGE_COLUMNS - 1) / PAGE_COLUMNS;
+        }
+
+        void getSrcRect(final int cellIndex, final Rect outRect) {
+            final int left = (cellIndex % PAGE_COLUMNS) * cellWidth;
+            final int top = (cellIndex / PAGE_COLUMNS) * cellHeight;
+            outRect.set(left, top, left + cellWidth, top + cellHeight);
+        }
+    }
+
+    // 画页中的一个格子. 每个ImageView一个实例, 共享页的位图.
+    // 页还没有生成好时先不画, 生成好后invalidateSelf().
+    public static class AtlasDrawable extends Drawable {
+        private final TileAtlas mAtlas;
+        private final int mPositionIndex;
+        private final TileShow mTileShow;
+        private final int mCellIndex;
+        // 同一方向的页格子大小一样, 页生成好之前用来给出intrinsic size. 可以为null.
+        private final Page mSizePage;
+        private Page mPage;
+        private final Rect mSrcRect = new Rect();
+        private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+        private final Runnable mPageReady = new Runnable() {
+            @Override
+            public void run() {
+                invalidateSelf();
+            }
+        };
+
+        private AtlasDrawable(final TileAtlas atlas, final int positionIndex,
+                        final TileShow tileShow, final int cellIndex) {
+            mAtlas = atlas;
+            mPositionIndex = positionIndex;
+            mTileShow = tileShow;
+            mCellIndex = cellIndex;
+            setPage(atlas.getFrontPage(positionIndex, tileShow, mPageReady));
+            mSizePage = mPage != null ? mPage : atlas.findFrontPage(positionIndex);
+        }
+
+        private void setPage(final Page page) {
+            mPage = page;
+            if (page != null) {
+                page.getSrcRect(mCellIndex, mSrcRect);
+            }
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            if (mPage == null) {
+                setPage(mAtlas.getFrontPage(mPositionIndex, mTileShow, mPageReady));
+                if (mPage == null) return;
+            }
+            canvas.drawBitmap(mPage.bitmap, mSrcRect, getBounds(), mPaint);
+        }
+
+        @Override
+        public int getIntrinsicWidth() {
+            final Page page = mPage != null ? mPage : mSizePage;
+            return page == null ? -1 : page.cellWidth;
+        }
+
+        @Override
+        public int getIntrinsicHeight() {
+            final Page page = mPage != null ? mPage : mSizePage;
+            return page == null ? -1 : page.cellHeight;
+        }
+
+        @Override
+        public void setAlpha(int alpha) {
+            mPaint.setAlpha(alpha);
+        }
+
+        @Override
+        public void setColorFilter(ColorFilter colorFilter) {
+            mPaint.setColorFilter(colorFilter);
+        }
+
+        @Override
+        public int getOpacity() {
+            return PixelFormat.TRANSLUCENT;
+        }
+    }
+
+    private static TileAtlas sInstance;
+
+    private final Resources mResources;
+    private final File mCacheDir;
+    private final HandlerThreadExt mWorkerThread;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    // 以下由this保护.
+    private final SparseArray<Page> mPages = new SparseArray<Page>();
+    // 正在后台生成的页, 和生成好后要通知的回调.
+    private final SparseArray<ArrayList<Runnable>> mPendingPages =
+                    new SparseArray<ArrayList<Runnable>>();
+
+    // main thread中使用.
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect mSrcRect = new Rect();
+    // mWorkerThread中使用.
+    private final Rect mPadding = new Rect();
+    private final Rect mBounds = new Rect();
+
+    private TileAtlas(Context context) {
+        mResources = context.getApplicationContext().getResources();
+
+        int versionCode = 0;
+        try {
+            versionCode = context.getPackageManager()
+                            .getPackageInfo(context.getPackageName(), 0).versionCode;
+        } catch (NameNotFoundException e) {
+            // ignore.
+        }
+        final File atlasDir = new File(context.getCacheDir(), ATLAS_DIRNAME);
+        mCacheDir = new File(atlasDir, String.format(FORMAT_CACHE_DIRNAME,
+                        mResources.getDisplayMetrics().densityDpi, versionCode));
+
+        mWorkerThread = new HandlerThreadExt(ATLAS_DIRNAME);
+        mWorkerThread.start();
+        mWorkerThread.post(new Runnable() {
+            @Override
+            public void run() {
+                mCacheDir.mkdirs();
+                deleteStaleCacheDirs(atlasDir);
+            }
+        });
+    }
+
+    public static synchronized TileAtlas getInstance(final Context context) {
+        if (sInstance == null) {
+            sInstance = new TileAtlas(context);
+        }
+        return sInstance;
+    }
+
+    // 其他密度/版本的缓存已经没用了.
+    private void deleteStaleCacheDirs(final File atlasDir) {
+        File[] dirs = atlasDir.listFiles();
+        if (dirs == null) return;
+        for (File dir : dirs) {
+            if (dir.equals(mCacheDir)) continue;
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+
+    // 启动时在后台线程中准备好手牌用的(不着色的)页, 第一次画牌时就不需要栅格化了.
+    public void preload() {
+        for (int positionIndex = 0; positionIndex < POSITION_COUNT; positionIndex++) {
+            getFrontPage(positionIndex, TileShow.Live, null);
+        }
+    }
+
+    // tileShow为null时不着色.
+    public Drawable getTileDrawable(final Tile tile, final int positionIndex,
+                    final TileShow tileShow) {
+        return new AtlasDrawable(this, positionIndex,
+                        tileShow == null ? TileShow.Live : tileShow, getCellIndex(tile));
+    }
+
+    // 在dstRect中画出带背景的牌, 只在main thread中调用.
+    // 页还没有生成好时不画, 返回false; 生成好后在main thread中执行onReady.
+    public boolean drawTile(final Canvas canvas, final Tile tile, final int positionIndex,
+                    final TileShow tileShow, final int backgroundResId, final Rect dstRect,
+                    final Runnable onReady) {
+        final Page page = getCellPage(positionIndex, tileShow == null ? TileShow.Live : tileShow,
+                        backgroundResId, dstRect.width(), dstRect.height(), onReady);
+        if (page == null) return false;
+        page.getSrcRect(getCellIndex(tile), mSrcRect);
+        canvas.drawBitmap(page.bitmap, mSrcRect, dstRect, mPaint);
+        return true;
+    }
+
+    private Page getFrontPage(final int positionIndex, final TileShow tileShow,
+                    final Runnable onReady) {
+        return getPage(KIND_FRONT, positionIndex, tileShow, 0, 0, 0, onReady);
+    }
+
+    // 格子大小变了时, 新的页生成好之前先用旧的页缩放着画.
+    private Page getCellPage(final int positionIndex, final TileShow tileShow,
+                    final int backgroundResId, final int width, final int height,
+                    final Runnable onReady) {
+        return getPage(KIND_CELL, positionIndex, tileShow, backgroundResId, width, height,
+                        onReady);
+    }
+
+    // 同一方向任意一个已经有的front页, 没有时返回null.
+    private synchronized Page findFrontPage(final int positionIndex) {
+        Page page;
+        for (TileShow tileShow : TileShow.values()) {
+            page = mPages.get(getPageKey(KIND_FRONT, positionIndex, tileShow));
+            if (page != null) return page;
+        }
+        return null;
+    }
+
+    // 页已经有了直接返回; 否则返回旧的页(没有时为null), 在后台线程中读取或者生成,
+    // 完成后在main thread中执行onReady.
+    private synchronized Page getPage(final int kind, final int positionIndex,
+                    final TileShow tileShow, final int backgroundResId, final int width,
+                    final int height, final Runnable onReady) {
+        final int key = getPageKey(kind, positionIndex, tileShow);
+        final Page page = mPages.get(key);
+        if (page != null && (kind == KIND_FRONT
+                        || page.cellWidth == width && page.cellHeight == height)) {
+            return page;
+        }
+
+        ArrayList<Runnable> waiters = mPendingPages.get(key);
+        if (waiters == null) {
+            waiters = new ArrayList<Runnable>();
+            mPendingPages.put(key, waiters);
+            mWorkerThread.post(new Runnable() {
+                @Override
+                public void run() {
+                    buildPage(key, kind, positionIndex, tileShow, backgroundResId, width, height);
+                }
+            });
+        }
+        if (onReady != null && !waiters.contains(onReady)) {
+            waiters.add(onReady);
+        }
+        return page;
+    }
+
+    // 在mWorkerThread中执行.
+    private void buildPage(final int key, final int kind, final int positionIndex,
+                    final TileShow tileShow, final int backgroundResId, final int width,
+                    final int height) {
+        final String filename = kind == KIND_FRONT
+                        ? String.format(FORMAT_FRONT_FILENAME, positionIndex, tileShow)
+                        : String.format(FORMAT_CELL_FILENAME, positionIndex, tileShow,
+                                        width, height);
+        Page page = null;
+        final Bitmap bitmap = loadPage(filename);
+        if (bitmap != null && kind == KIND_FRONT) {
+            if (bitmap.getWidth() % PAGE_COLUMNS == 0
+                    && bitmap.getHeight() % Page.getRowNum() == 0) {
+                page = new Page(bitmap, bitmap.getWidth() / PAGE_COLUMNS,
+                                bitmap.getHeight() / Page.getRowNum());
+            }
+        } else if (bitmap != null) {
+            if (bitmap.getWidth() == width * PAGE_COLUMNS
+                    && bitmap.getHeight() == height * Page.getRowNum()) {
+                page = new Page(bitmap, width, height);
+            }
+        }
+        final boolean rasterized = page == null;
+        if (rasterized) {
+            page = rasterizePage(positionIndex, tileShow, backgroundResId, width, height);
+        }
+
+        final Page oldPage;
+        final ArrayList<Runnable> waiters;
+        synchronized (this) {
+            oldPage = mPages.get(key);
+            mPages.put(key, page);
+            waiters = mPendingPages.get(key);
+            mPendingPages.remove(key);
+        }
+        // 旧的页可能正在main thread中画, 在main thread中回收.
+        mMainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (oldPage != null) {
+                    synchronized (TileAtlas.this) {
+                        oldPage.bitmap.recycle();
+                    }
+                }
+                if (waiters == null) return;
+                for (Runnable waiter : waiters) {
+                    waiter.run();
+                }
+            }
+        });
+
+        if (rasterized) {
+            savePage(page, filename);
+        }
+    }
+
+    private Bitmap loadPage(final String filename) {
+        final File file = new File(mCacheDir, filename);
+        if (!file.exists()) return null;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inScaled = false;
+        return BitmapFactory.decodeFile(file.getPath(), options);
+    }
+
+    // 在mWorkerThread中执行. 压缩的是拷贝, 不占着atlas的锁.
+    private void savePage(final Page page, final String filename) {
+        final Bitmap copy;
+        // clear()可能同时在回收位图.
+        synchronized (this) {
+            if (page.bitmap.isRecycled()) return;
+            copy = page.bitmap.copy(Bitmap.Config.ARGB_8888, false);
+        }
+        if (copy == null) return;
+
+        final File file = new File(mCacheDir, filename);
+        final File tempFile = new File(mCacheDir, filename + SUFFIX_TEMP);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(tempFile);
+            if (!copy.compress(Bitmap.CompressFormat.PNG, 100, fos)) return;
+            fos.close();
+            fos = null;
+            tempFile.renameTo(file);
+        } catch (IOException ioe) {
+            Logger.w(Subsystem.Storage, "Failed to save tile atlas {}: {}", filename, ioe);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ioe) {
+                    // ignore.
+                }
+            }
+            tempFile.delete();
+            copy.recycle();
+        }
+    }
+
+    // width/height为0时使用牌面drawable的原始大小(取最大的), 不画背景.
+    private Page rasterizePage(final int positionIndex, final TileShow tileShow,
+                    final int backgroundResId, int width, int height) {
+        final Drawable[] fronts = new Drawable[sCellCount];
+        for (TileType tileType : TileType.values()) {
+            for (int i = 0; i < tileType.getCount(); i++) {
+                Drawable front = mResources.getDrawable(tileType.getResourceId(i, positionIndex),
+                                null).mutate();
+                front.setColorFilter(Tile.getColorFilter(tileShow));
+                fronts[sCellOffsets[tileType.ordinal()] + i] = front;
+            }
+        }
+        if (width <= 0 || height <= 0) {
+            for (Drawable front : fronts) {
+                width = Math.max(width, front.getIntrinsicWidth());
+                height = Math.max(height, front.getIntrinsicHeight());
+            }
+        }
+
+        final Page page = new Page(Bitmap.createBitmap(width * PAGE_COLUMNS,
+                        height * Page.getRowNum(), Bitmap.Config.ARGB_8888), width, height);
+        final Canvas canvas = new Canvas(page.bitmap);
+        // 和ImageView一样, 背景不着色.
+        final Drawable background = backgroundResId == 0 ? null
+                        : mResources.getDrawable(backgroundResId, null);
+        for (int cellIndex = 0; cellIndex < sCellCount; cellIndex++) {
+            page.getSrcRect(cellIndex, mBounds);
+            mPadding.set(0, 0, 0, 0);
+            if (background != null) {
+                background.setBounds(mBounds);
+                background.getPadding(mPadding);
+                background.draw(canvas);
+            }
+            drawFitCenter(canvas, fronts[cellIndex], mBounds, mPadding);
+        }
+        return page;
+    }
+
+    // 和ImageView的FIT_CENTER一样: 在bounds去掉padding的区域内居中缩放.
+    private static void drawFitCenter(final Canvas canvas, final Drawable front, final Rect bounds,
+                    final Rect padding) {
+        final int availableWidth = bounds.width() - padding.left - padding.right;
+        final int availableHeight = bounds.height() - padding.top - padding.bottom;
+        int frontWidth = front.getIntrinsicWidth();
+        int frontHeight = front.getIntrinsicHeight();
+        if (frontWidth <= 0 || frontHeight <= 0) {
+            frontWidth = availableWidth;
+            frontHeight = availableHeight;
+        }
+        final float scale = Math.min((float)availableWidth / frontWidth,
+                        (float)availableHeight / frontHeight);
+        final int scaledWidth = Math.round(frontWidth * scale);
+        final int scaledHeight = Math.round(frontHeight * scale);
+        final int left = bounds.left + padding.left + (availableWidth - scaledWidth) / 2;
+        final int top = bounds.top + padding.top + (availableHeight - scaledHeight) / 2;
+        front.setBounds(left, top, left + scaledWidth, top + scaledHeight);
+        front.draw(canvas);
+    }
+
+    // 已经给出去的AtlasDrawable不能再用了, 只在main thread中没有tile views时调用.
+    public synchronized void clear() {
+        for (int i = 0; i < mPages.size(); i++) {
+            mPages.valueAt(i).bitmap.recycle();
+        }
+        mPages.clear();
+    }
+}
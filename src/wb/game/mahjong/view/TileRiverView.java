@@ -0,0 +1,258 @@
+package wb.game.mahjong.view;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.util.TypedValue;
+import android.view.View;
+import wb.game.mahjong.R;
+import wb.game.mahjong.model.Tile;
+import wb.game.mahjong.view.FixedGridLayout.Position;
+
+// 打出的牌(牌河)用一个View直接画出来, 代替FixedGridLayout + 每张牌一个inflate的layout.
+// 格子的排列和FixedGridLayout一样; 牌面从TileAtlas的位图页中拷贝.
+// setTiles()只invalidate变化了的格子, 一般只有最后打出的一两张.
+// 刚打出的牌和以前一样放大(tile_*_focused_*), 以格子为中心画出, 可以盖住旁边的格子.
+// 只能在main thread中使用.
+public class TileRiverView extends View {
+    // tile_text/tile_match_all/tile_special的字体大小, 单位sp.
+    private static final float TEXT_SIZE_TING = 14;
+    private static final float TEXT_SIZE_MATCH_ALL = 9;
+    private static final float TEXT_SIZE_SPECIAL = 8;
+
+    private final int mCellWidth;
+    private final int mCellHeight;
+    private final Position mPosition;
+    private final int mTileBackgroundResId;
+    // 放大的牌比格子宽/高出的一半.
+    private final int mFocusedInsetX;
+    private final int mFocusedInsetY;
+
+    private final TileAtlas mAtlas;
+
+    // 当前画出的牌和每张牌画出时的Tile.getViewFlags().
+    private Tile[] mTiles = new Tile[0];
+    private int[] mTileFlags = new int[0];
+
+    private final int mIndicatorThickness;
+    private final Paint mIndicatorPaint = new Paint();
+    private final Paint mTingTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mMatchAllTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final Paint mSpecialTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final String mTingText;
+    private final String mMatchAllText;
+    private final String mSpecialText;
+
+    private final Rect mCellRect = new Rect();
+    private final Rect mTileRect = new Rect();
+    private final Rect mDirtyRect = new Rect();
+    private final Rect mClipRect = new Rect();
+
+    // TileAtlas的页生成好了, 重画.
+    private final Runnable mPageReady = new Runnable() {
+        @Override
+        public void run() {
+            invalidate();
+        }
+    };
+
+    public TileRiverView(Context context) {
+        this(context, null);
+    }
+
+    public TileRiverView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.TileRiverView);
+        mCellWidth = a.getDimensionPixelSize(R.styleable.TileRiverView_cellWidth, -1);
+        mCellHeight = a.getDimensionPixelSize(R.styleable.TileRiverView_cellHeight, -1);
+        mPosition = Position.getPosition(a.getInt(R.styleable.TileRiverView_position,
+                Position.Bottom.ordinal()));
+        mTileBackgroundResId = a.getResourceId(R.styleable.TileRiverView_tileBackground, 0);
+        a.recycle();
+
+        mAtlas = TileAtlas.getInstance(context);
+
+        final Resources res = context.getResources();
+        final boolean isHorizontal = mCellWidth > mCellHeight;
+        mFocusedInsetX = Math.max(0, res.getDimensionPixelSize(isHorizontal
+                        ? R.dimen.tile_width_focused_hor : R.dimen.tile_width_focused_ver)
+                        - mCellWidth) / 2;
+        mFocusedInsetY = Math.max(0, res.getDimensionPixelSize(isHorizontal
+                        ? R.dimen.tile_height_focused_hor : R.dimen.tile_height_focused_ver)
+                        - mCellHeight) / 2;
+        mIndicatorThickness = res.getDimensionPixelSize(R.dimen.tile_indicator_thickness);
+        mIndicatorPaint.setColor(res.getColor(R.color.blue));
+
+        initTextPaint(res, mTingTextPaint, TEXT_SIZE_TING, res.getColor(R.color.blue), false);
+        initTextPaint(res, mMatchAllTextPaint, TEXT_SIZE_MATCH_ALL,
+                res.getColor(R.color.red), true);
+        initTextPaint(res, mSpecialTextPaint, TEXT_SIZE_SPECIAL,
+                res.getColor(R.color.green), true);
+        mTingText = res.getString(R.string.action_ting);
+        mMatchAllText = res.getString(R.string.tile_match_all);
+        mSpecialText = res.getString(R.string.tile_wu_kui);
+    }
+
+    private static void initTextPaint(final Resources res, final Paint paint, final float sp,
+                    final int color, final boolean bold) {
+        paint.setTextSize(TypedValue.applyDimension(TypedValue.COMPLEX_UNIT_SP, sp,
+                        res.getDisplayMetrics()));
+        paint.setColor(color);
+        paint.setFakeBoldText(bold);
+    }
+
+    // 位置编号和TileResources中的positionIndex一致: 0 - bottom, 1 - right, 2 - top, 3 - left
+    private int getPositionIndex() {
+        return mPosition.ordinal();
+    }
+
+    // 换上新的一组牌, 只invalidate和上次不同的格子.
+    public void setTiles(final Tile[] tiles) {
+        final int oldCount = mTiles.length;
+        final int newCount = tiles.length;
+        final int[] flags = new int[newCount];
+        for (int i = 0; i < newCount; i++) {
+            flags[i] = tiles[i].getViewFlags();
+        }
+
+        final boolean laidOut = getWidth() > 0 && getHeight() > 0;
+        mDirtyRect.setEmpty();
+        final int maxCount = Math.max(oldCount, newCount);
+        for (int i = 0; i < maxCount; i++) {
+            if (i < oldCount && i < newCount
+                    && mTiles[i] == tiles[i] && mTileFlags[i] == flags[i]) {
+                continue;
+            }
+            if (!laidOut) break;
+            // 放大的牌盖住的区域也要重画.
+            if (i < oldCount) {
+                getTileRect(i, (mTileFlags[i] & Tile.VIEW_FLAG_FOCUSED) != 0, mCellRect);
+                mDirtyRect.union(mCellRect);
+            }
+            if (i < newCount) {
+                getTileRect(i, tiles[i].isFocused, mCellRect);
+                mDirtyRect.union(mCellRect);
+            }
+        }
+
+        mTiles = tiles;
+        mTileFlags = flags;
+        if (oldCount != newCount) {
+            requestLayout();
+        }
+        if (!laidOut) {
+            invalidate();
+        } else if (!mDirtyRect.isEmpty()) {
+            invalidate(mDirtyRect);
+        }
+    }
+
+    private void getCellRect(final int index, final Rect outRect) {
+        final int w = getWidth();
+        final int h = getHeight();
+        final int columns = FixedGridLayout.getColumnNum(mPosition, w, h, mCellWidth, mCellHeight);
+        final int maxRowNum = FixedGridLayout.getMaxRowNum(mPosition, w, h,
+                        mCellWidth, mCellHeight);
+        final int row = index / columns;
+        final int col = index % columns;
+        final int left = FixedGridLayout.getCellLeft(mPosition, row, col, maxRowNum, columns,
+                        mCellWidth);
+        final int top = FixedGridLayout.getCellTop(mPosition, row, col, maxRowNum, columns,
+                        mCellHeight);
+        outRect.set(left, top, left + mCellWidth, top + mCellHeight);
+    }
+
+    // 牌画出的区域: 一般就是格子, 刚打出的牌放大.
+    private void getTileRect(final int index, final boolean isFocused, final Rect outRect) {
+        getCellRect(index, outRect);
+        if (isFocused) {
+            outRect.inset(-mFocusedInsetX, -mFocusedInsetY);
+        }
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int count = mTiles.length;
+        setMeasuredDimension(resolveSize(mCellWidth * count, widthMeasureSpec),
+                resolveSize(mCellHeight * count, heightMeasureSpec));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mCellWidth <= 0 || mCellHeight <= 0) return;
+        if (!canvas.getClipBounds(mClipRect)) return;
+
+        final int positionIndex = getPositionIndex();
+        Tile tile;
+        for (int i = 0; i < mTiles.length; i++) {
+            tile = mTiles[i];
+            getTileRect(i, tile.isFocused, mTileRect);
+            // 不在dirty区域内的格子不用画.
+            if (!Rect.intersects(mTileRect, mClipRect)) continue;
+
+            getCellRect(i, mCellRect);
+            if (tile.isFocused) {
+                // 页是格子大小的, 放大的牌缩放着画, 不为它另外生成一页.
+                canvas.save();
+                canvas.scale((float)mTileRect.width() / mCellWidth,
+                        (float)mTileRect.height() / mCellHeight,
+                        mCellRect.exactCenterX(), mCellRect.exactCenterY());
+                mAtlas.drawTile(canvas, tile, positionIndex, null, mTileBackgroundResId,
+                        mCellRect, mPageReady);
+                canvas.restore();
+            } else {
+                mAtlas.drawTile(canvas, tile, positionIndex, null, mTileBackgroundResId,
+                        mCellRect, mPageReady);
+            }
+
+            if (tile.isFocused) {
+                drawIndicator(canvas, mTileRect);
+            }
+            if (tile.isTingedTile) {
+                final float textWidth = mTingTextPaint.measureText(mTingText);
+                canvas.drawText(mTingText, mTileRect.exactCenterX() - textWidth / 2,
+                        mTileRect.exactCenterY() - (mTingTextPaint.ascent()
+                                        + mTingTextPaint.descent()) / 2,
+                        mTingTextPaint);
+            }
+            if (tile.isMatchAll) {
+                final float textWidth = mMatchAllTextPaint.measureText(mMatchAllText);
+                canvas.drawText(mMatchAllText, mTileRect.right - textWidth,
+                        mTileRect.bottom - mMatchAllTextPaint.descent(), mMatchAllTextPaint);
+            }
+            if (tile.specialTile != null) {
+                canvas.drawText(mSpecialText, mTileRect.left,
+                        mTileRect.bottom - mSpecialTextPaint.descent(), mSpecialTextPaint);
+            }
+        }
+    }
+
+    // 刚打出的牌: 和tile_indicator_*一样, 在朝向桌子中间的一边画一条.
+    private void drawIndicator(final Canvas canvas, final Rect cellRect) {
+        switch (mPosition) {
+            case Bottom:
+                canvas.drawRect(cellRect.left, cellRect.top, cellRect.right,
+                        cellRect.top + mIndicatorThickness, mIndicatorPaint);
+                break;
+            case Right:
+                canvas.drawRect(cellRect.left, cellRect.top, cellRect.left + mIndicatorThickness,
+                        cellRect.bottom, mIndicatorPaint);
+                break;
+            case Top:
+                canvas.drawRect(cellRect.left, cellRect.bottom - mIndicatorThickness,
+                        cellRect.right, cellRect.bottom, mIndicatorPaint);
+                break;
+            case Left:
+                canvas.drawRect(cellRect.right - mIndicatorThickness, cellRect.top,
+                        cellRect.right, cellRect.bottom, mIndicatorPaint);
+                break;
+            default:
+                throw new RuntimeException("Illegal position:" + mPosition);
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package wb.game.mahjong.view;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.util.SparseArray;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.ImageView;
+import android.widget.TextView;
+import wb.game.mahjong.R;
+import wb.game.mahjong.model.Tile;
+
+// 回收复用tile views, 按layout id分开存放.
+// 每个放tile views的ViewGroup用一个自己的pool, 这样回收的view的LayoutParams总是属于这个parent的.
+// 刷新时不再removeAllViews()然后重新inflate, 而是把旧views放回pool, 需要时取出来重新绑定.
+// 只能在main thread中使用.
+public class TileViewPool {
+    private static final int MAX_POOLED_PER_LAYOUT = 32;
+
+    // inflate时查找一次子views, 以后绑定时直接使用, 不再findViewById.
+    public static class TileViewHolder {
+        public final int layoutId;
+        public final ImageView tileFront;
+        public final TextView tileText;
+        public final TextView tileMatchAll;
+        public final TextView tileSpecial;
+
+        private final View mItemView;
+        private int mIndicatorViewId;
+        private View mIndicatorView;
+
+        // 上一次绑定的tile和显示标志, 用于只更新变化了的tile.
+        public Tile boundTile;
+        public int boundFlags;
+        public int boundPosition; // 绑定时的positionIndex, 重新着色时使用.
+
+        private TileViewHolder(final View itemView, final int layoutId) {
+            this.layoutId = layoutId;
+            mItemView = itemView;
+            tileFront = (ImageView)itemView.findViewById(R.id.tile_front);
+            tileText = (TextView)itemView.findViewById(R.id.tile_text);
+            tileMatchAll = (TextView)itemView.findViewById(R.id.tile_match_all_text);
+            tileSpecial = (TextView)itemView.findViewById(R.id.tile_special);
+        }
+
+        public View getIndicatorView(final int indicatorViewId) {
+            if (mIndicatorView == null || mIndicatorViewId != indicatorViewId) {
+                mIndicatorViewId = indicatorViewId;
+                mIndicatorView = mItemView.findViewById(indicatorViewId);
+            }
+            return mIndicatorView;
+        }
+    }
+
+    private final SparseArray<ArrayList<View>> mPool = new SparseArray<ArrayList<View>>();
+
+    // 不经过pool直接inflate一个tile view, 也带上holder.
+    public static View inflate(final Context context, final int layoutId) {
+        View view = View.inflate(context, layoutId, null);
+        view.setTag(new TileViewHolder(view, layoutId));
+        return view;
+    }
+
+    public static TileViewHolder getHolder(final View view) {
+        Object tag = view.getTag();
+        if (tag instanceof TileViewHolder) {
+            return (TileViewHolder)tag;
+        }
+        // 不是从这里inflate出来的view, 补上holder.
+        TileViewHolder holder = new TileViewHolder(view, 0);
+        view.setTag(holder);
+        return holder;
+    }
+
+    public View obtain(final Context context, final int layoutId) {
+        ArrayList<View> views = mPool.get(layoutId);
+        if (views != null && views.size() > 0) {
+            return views.remove(views.size() - 1);
+        }
+        return inflate(context, layoutId);
+    }
+
+    // view必须已经从parent中移除.
+    public void recycle(final View view) {
+        final TileViewHolder holder = getHolder(view);
+        if (holder.layoutId == 0) return;
+        holder.boundTile = null;
+        view.setOnClickListener(null);
+        ArrayList<View> views = mPool.get(holder.layoutId);
+        if (views == null) {
+            views = new ArrayList<View>(MAX_POOLED_PER_LAYOUT);
+            mPool.put(holder.layoutId, views);
+        }
+        if (views.size() < MAX_POOLED_PER_LAYOUT) {
+            views.add(view);
+        }
+    }
+
+    // 回收parent中从start开始的所有子views.
+    public void recycleChildren(final ViewGroup parent, final int start) {
+        for (int i = parent.getChildCount() - 1; i >= start; i--) {
+            View child = parent.getChildAt(i);
+            parent.removeViewAt(i);
+            recycle(child);
+        }
+    }
+
+    public void recycleChildren(final ViewGroup parent) {
+        recycleChildren(parent, 0);
+    }
+
+    // 用newView替换parent中index位置的view, 旧的view放回pool.
+    public void replaceChild(final ViewGroup parent, final int index, final View newView) {
+        if (index < parent.getChildCount()) {
+            View oldView = parent.getChildAt(index);
+            if (oldView == newView) return;
+            parent.removeViewAt(index);
+            recycle(oldView);
+        }
+        parent.addView(newView, index);
+    }
+
+    public void clear() {
+        mPool.clear();
+    }
+}
@@ -0,0 +1,62 @@
+package wb.game.utils;
+
+import java.net.ProtocolException;
+import java.util.HashMap;
+
+// 按ordinal解码enum.
+// 每种enum的values()只取一次, 以后直接按下标取, 不再每次复制数组和遍历.
+// 同一种enum在各处(wb.conn和model)共用一个实例, 见of().
+public final class EnumCodec<E extends Enum<E>> {
+    private static final HashMap<Class<?>, EnumCodec<?>> sCodecs =
+                    new HashMap<Class<?>, EnumCodec<?>>();
+
+    private final Class<E> mEnumClass;
+    private final E[] mValues;
+
+    private EnumCodec(final Class<E> enumClass) {
+        mEnumClass = enumClass;
+        mValues = enumClass.getEnumConstants();
+    }
+
+    @SuppressWarnings("unchecked")
+    public static synchronized <E extends Enum<E>> EnumCodec<E> of(final Class<E> enumClass) {
+        EnumCodec<E> codec = (EnumCodec<E>)sCodecs.get(enumClass);
+        if (codec == null) {
+            codec = new EnumCodec<E>(enumClass);
+            sCodecs.put(enumClass, codec);
+        }
+        return codec;
+    }
+
+    public int size() {
+        return mValues.length;
+    }
+
+    public boolean isValid(final int ordinal) {
+        return ordinal >= 0 && ordinal < mValues.length;
+    }
+
+    // ordinal超出范围时返回defaultValue.
+    public E get(final int ordinal, final E defaultValue) {
+        return isValid(ordinal) ? mValues[ordinal] : defaultValue;
+    }
+
+    public E get(final int ordinal) {
+        return get(ordinal, null);
+    }
+
+    // 解码收到的协议数据, ordinal超出范围说明数据不对.
+    public E decode(final int ordinal) throws ProtocolException {
+        if (!isValid(ordinal)) {
+            throw new ProtocolException("Invalid " + mEnumClass.getSimpleName() + " ordinal: "
+                            + ordinal + ", expected [0, " + mValues.length + ")");
+        }
+        return mValues[ordinal];
+    }
+
+    // 超出范围时ordinal按size取模, 用于循环的位置(如下家).
+    public E getCyclic(final int ordinal) {
+        final int index = ordinal % mValues.length;
+        return mValues[index < 0 ? index + mValues.length : index];
+    }
+}
@@ -0,0 +1,224 @@
+package wb.game.utils;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.LruCache;
+import android.widget.ImageView;
+import wb.game.mahjong.constants.Constants;
+
+// 用户/player头像的缓存.
+// 1. 内存中是按字节数计算大小的LRU;
+// 2. 解码时先按头像大小计算inSampleSize, 只解码需要的像素.
+//    被LRU淘汰的bitmap可能还在显示(ImageView, GameEnd.userIcon), 所以不复用(inBitmap), 也不recycle;
+// 3. 缩放到头像大小(Constants.sIconWidth x sIconHeight)后, 另存一份到cache目录,
+//    下次直接读取缩放过的文件, 不需要再解码原图.
+// 解码和文件读写都在一个后台线程中进行, 按提交的顺序执行,
+// 所以先putIconData()再loadIcon()时一定能读到新的头像. main thread中只读内存缓存.
+public class IconCache {
+    private static final String ICON_CACHE_DIRNAME = "icons";
+    private static final String FORMAT_SCALED_FILENAME = "%08x_%x_%x_%dx%d.png";
+
+    // 内存缓存最多使用可用内存的1/16.
+    private static final int MEMORY_CACHE_DIVIDER = 16;
+    public static interface IconListener {
+        void onIconLoaded(String iconFilepath, Bitmap bitmap);
+    }
+
+    private static IconCache sInstance;
+
+    private final File mCacheDir;
+    private final LruCache<String, Bitmap> mMemoryCache;
+    private final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private IconCache(Context context) {
+        mCacheDir = new File(context.getCacheDir(), ICON_CACHE_DIRNAME);
+
+        final int maxSize = (int)(Runtime.getRuntime().maxMemory() / MEMORY_CACHE_DIVIDER);
+        mMemoryCache = new LruCache<String, Bitmap>(maxSize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    public static synchronized void init(final Context context) {
+        if (sInstance == null) {
+            sInstance = new IconCache(context.getApplicationContext());
+        }
+    }
+
+    public static synchronized IconCache getInstance() {
+        if (sInstance == null) {
+            throw new RuntimeException("IconCache.init() has not been called!");
+        }
+        return sInstance;
+    }
+
+    // 在后台线程中调用. 内存中没有时解码.
+    private Bitmap getIcon(final String iconFilepath) {
+        if (TextUtils.isEmpty(iconFilepath)) {
+            return Constants.sDefaultIconBitmap;
+        }
+        Bitmap bitmap = mMemoryCache.get(iconFilepath);
+        if (bitmap != null) return bitmap;
+        bitmap = loadScaledIcon(iconFilepath);
+        if (bitmap == null) return Constants.sDefaultIconBitmap;
+        mMemoryCache.put(iconFilepath, bitmap);
+        return bitmap;
+    }
+
+    // 异步把头像设置到imageView上. 内存中没有时先显示默认头像.
+    // imageView被复用(ListView)后, 旧的结果不会再设置上去.
+    public void loadIcon(final String iconFilepath, final ImageView imageView) {
+        imageView.setTag(iconFilepath);
+        if (TextUtils.isEmpty(iconFilepath)) {
+            imageView.setImageBitmap(Constants.sDefaultIconBitmap);
+            return;
+        }
+        Bitmap bitmap = mMemoryCache.get(iconFilepath);
+        if (bitmap != null) {
+            imageView.setImageBitmap(bitmap);
+            return;
+        }
+        imageView.setImageBitmap(Constants.sDefaultIconBitmap);
+        loadIcon(iconFilepath, new IconListener() {
+            @Override
+            public void onIconLoaded(String iconFilepath, Bitmap bitmap) {
+                if (TextUtils.equals(iconFilepath, (String)imageView.getTag())) {
+                    imageView.setImageBitmap(bitmap);
+                }
+            }
+        });
+    }
+
+    // 在后台线程中加载头像, listener在main thread中被调用.
+    public void loadIcon(final String iconFilepath, final IconListener listener) {
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Bitmap bitmap = getIcon(iconFilepath);
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onIconLoaded(iconFilepath, bitmap);
+                    }
+                });
+            }
+        });
+    }
+
+    // 收到远端的头像数据: 直接从数据解码放入缓存, 文件在后台线程中写入.
+    public void putIconData(final String iconFilepath, final byte[] data) {
+        if (TextUtils.isEmpty(iconFilepath) || data == null) return;
+        mMemoryCache.remove(iconFilepath);
+        mExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Utils.saveToFile(iconFilepath, data);
+                Bitmap bitmap = decodeSampled(data, null);
+                if (bitmap == null) return;
+                bitmap = scaleToIconSize(bitmap);
+                mMemoryCache.put(iconFilepath, bitmap);
+                saveScaledIcon(iconFilepath, bitmap);
+            }
+        });
+    }
+
+    // 头像文件被修改/删除了.
+    public void invalidate(final String iconFilepath) {
+        if (TextUtils.isEmpty(iconFilepath)) return;
+        mMemoryCache.remove(iconFilepath);
+    }
+
+    // 解码一个新的头像大小的bitmap, 不放入缓存, 调用者可以自己修改/recycle.
+    public static Bitmap decodeIcon(final String iconFilepath) {
+        if (TextUtils.isEmpty(iconFilepath)) return null;
+        Bitmap bitmap = decodeSampled(null, iconFilepath);
+        return bitmap == null ? null : scaleToIconSize(bitmap);
+    }
+
+    public void clear() {
+        mMemoryCache.evictAll();
+    }
+
+    private Bitmap loadScaledIcon(final String iconFilepath) {
+        final File file = new File(iconFilepath);
+        if (!file.exists()) return null;
+        final File scaledFile = getScaledFile(file);
+        if (scaledFile.exists()) {
+            Bitmap bitmap = BitmapFactory.decodeFile(scaledFile.getPath());
+            if (bitmap != null) return bitmap;
+        }
+        Bitmap bitmap = decodeSampled(null, iconFilepath);
+        if (bitmap == null) return null;
+        bitmap = scaleToIconSize(bitmap);
+        saveScaledIcon(iconFilepath, bitmap);
+        return bitmap;
+    }
+
+    // 缩放过的文件名包含原文件的修改时间和大小, 原文件变了就自然不会再用旧的.
+    private File getScaledFile(final File file) {
+        return new File(mCacheDir, String.format(FORMAT_SCALED_FILENAME,
+                        file.getPath().hashCode(), file.lastModified(), file.length(),
+                        Constants.sIconWidth, Constants.sIconHeight));
+    }
+
+    private void saveScaledIcon(final String iconFilepath, final Bitmap bitmap) {
+        mCacheDir.mkdirs();
+        BitmapUtils.saveBitmapToPngFile(bitmap, getScaledFile(new File(iconFilepath)));
+    }
+
+    // data不为null时从data解码, 否则从filepath解码.
+    private static Bitmap decodeSampled(final byte[] data, final String filepath) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        decode(data, filepath, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) return null;
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(options.outWidth, options.outHeight,
+                        Constants.sIconWidth, Constants.sIconHeight);
+        return decode(data, filepath, options);
+    }
+
+    private static Bitmap decode(final byte[] data, final String filepath,
+                    final BitmapFactory.Options options) {
+        if (data != null) {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+        return BitmapFactory.decodeFile(filepath, options);
+    }
+
+    // 2的幂, 解码后的宽高都不小于要求的宽高.
+    private static int getSampleSize(final int width, final int height,
+                    final int reqWidth, final int reqHeight) {
+        int sampleSize = 1;
+        if (reqWidth <= 0 || reqHeight <= 0) return sampleSize;
+        while (width / (sampleSize * 2) >= reqWidth && height / (sampleSize * 2) >= reqHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private static Bitmap scaleToIconSize(final Bitmap bitmap) {
+        if (Constants.sIconWidth <= 0 || Constants.sIconHeight <= 0) return bitmap;
+        if (bitmap.getWidth() == Constants.sIconWidth
+                && bitmap.getHeight() == Constants.sIconHeight) {
+            return bitmap;
+        }
+        Bitmap scaled = Bitmap.createScaledBitmap(bitmap, Constants.sIconWidth,
+                        Constants.sIconHeight, true);
+        if (scaled != bitmap) bitmap.recycle();
+        return scaled;
+    }
+}
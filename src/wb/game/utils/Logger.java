@@ -0,0 +1,372 @@
+package wb.game.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import android.content.Context;
+import android.util.Log;
+import wb.game.mahjong.constants.Constants;
+
+// 结构化的日志, 代替Constants.debug()中先拼字符串再判断的做法.
+// 1. 每个子系统单独的级别, 可以在运行时修改; 级别不够时直接返回, 不拼字符串;
+// 2. 消息使用"{}"占位符, 参数在后台线程中才格式化, 调用线程只做一次对象分配;
+// 3. 日志先放入无锁的环形缓冲区(满了覆盖最旧的), 后台线程定期取出,
+//    输出到logcat并写入文件. 文件超过大小后轮转, 保留最近几个, 方便事后取回.
+// 注意: 参数是在后台线程中toString()的, 所以不要传会被修改的对象,
+// 需要当时状态的话自己先toString().
+public class Logger {
+    public static enum Subsystem {
+        Game,    // MahjongManager, 牌局流程
+        Player,  // 玩家的摸牌/打牌/动作
+        Net,     // RemoteConnector, 消息收发
+        Ui,      // main thread, views
+        Sound,
+        Storage; // 快照/日志/缓存文件
+    }
+
+    public static enum Level {
+        Verbose(Log.VERBOSE),
+        Debug(Log.DEBUG),
+        Info(Log.INFO),
+        Warn(Log.WARN),
+        Error(Log.ERROR),
+        Off(Integer.MAX_VALUE);
+
+        public final int priority;
+
+        private Level(int priority) {
+            this.priority = priority;
+        }
+
+        public static Level getLevel(final String name) {
+            for (Level level : values()) {
+                if (level.name().equalsIgnoreCase(name)) return level;
+            }
+            return null;
+        }
+    }
+
+    private static final String LOG_DIRNAME = "logs";
+    private static final String LOG_FILENAME = "mahjong.log";
+    private static final String FORMAT_ROTATED_FILENAME = LOG_FILENAME + ".%d";
+    private static final long MAX_FILE_SIZE = 512 * 1024;
+    private static final int MAX_ROTATED_FILES = 3;
+
+    private static final String PLACEHOLDER = "{}";
+    private static final String FORMAT_LINE = "%s %s/%s [%s] %s\n";
+
+    private static final int BUFFER_SIZE = 1024; // 2的幂.
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+    private static final long FLUSH_INTERVAL_MS = 1000;
+
+    private static final Object[] NO_ARGS = new Object[0];
+
+    // 环形缓冲区中的一条记录, 创建后不再修改.
+    private static class Record {
+        final long sequence;
+        final long time;
+        final String threadName;
+        final Subsystem subsystem;
+        final Level level;
+        final String format;
+        final Object[] args;
+
+        Record(long sequence, Subsystem subsystem, Level level, String format, Object[] args) {
+            this.sequence = sequence;
+            this.time = System.currentTimeMillis();
+            this.threadName = Thread.currentThread().getName();
+            this.subsystem = subsystem;
+            this.level = level;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    private static final AtomicIntegerArray sLevels =
+                    new AtomicIntegerArray(Subsystem.values().length);
+
+    private static final AtomicReferenceArray<Record> sBuffer =
+                    new AtomicReferenceArray<Record>(BUFFER_SIZE);
+    private static final AtomicLong sWriteSequence = new AtomicLong();
+    private static final AtomicLong sDropped = new AtomicLong();
+    private static long sReadSequence; // 只在flusher线程中使用.
+
+    private static File sLogDir;
+    private static Thread sFlusher;
+
+    static {
+        setLevel(Constants.DEBUG ? Level.Debug : Level.Info);
+    }
+
+    // 指定日志目录并启动后台线程. 之前记录的日志也会写入.
+    public static synchronized void init(final Context context) {
+        if (sFlusher != null) return;
+        sLogDir = new File(context.getFilesDir(), LOG_DIRNAME);
+        sFlusher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    flush();
+                    try {
+                        Thread.sleep(FLUSH_INTERVAL_MS);
+                    } catch (InterruptedException ie) {
+                        // 继续.
+                    }
+                }
+            }
+        }, "logger");
+        sFlusher.setDaemon(true);
+        sFlusher.setPriority(Thread.MIN_PRIORITY);
+        sFlusher.start();
+    }
+
+    public static void setLevel(final Subsystem subsystem, final Level level) {
+        sLevels.set(subsystem.ordinal(), level.ordinal());
+    }
+
+    public static void setLevel(final Level level) {
+        for (Subsystem subsystem : Subsystem.values()) {
+            setLevel(subsystem, level);
+        }
+    }
+
+    public static Level getLevel(final Subsystem subsystem) {
+        return Level.values()[sLevels.get(subsystem.ordinal())];
+    }
+
+    // 格式: "Net=Verbose,Ui=Warn", 不认识的项忽略.
+    public static void setLevels(final String spec) {
+        if (spec == null) return;
+        for (String item : spec.split(",")) {
+            String[] pair = item.split("=");
+            if (pair.length != 2) continue;
+            Level level = Level.getLevel(pair[1].trim());
+            if (level == null) continue;
+            for (Subsystem subsystem : Subsystem.values()) {
+                if (subsystem.name().equalsIgnoreCase(pair[0].trim())) {
+                    setLevel(subsystem, level);
+                }
+            }
+        }
+    }
+
+    public static boolean isLoggable(final Subsystem subsystem, final Level level) {
+        return level.ordinal() >= sLevels.get(subsystem.ordinal());
+    }
+
+    public static void v(Subsystem subsystem, String message) {
+        if (isLoggable(subsystem, Level.Verbose)) add(subsystem, Level.Verbose, message, NO_ARGS);
+    }
+
+    public static void v(Subsystem subsystem, String format, Object arg) {
+        if (isLoggable(subsystem, Level.Verbose)) {
+            add(subsystem, Level.Verbose, format, new Object[] {arg});
+        }
+    }
+
+    public static void v(Subsystem subsystem, String format, Object arg1, Object arg2) {
+        if (isLoggable(subsystem, Level.Verbose)) {
+            add(subsystem, Level.Verbose, format, new Object[] {arg1, arg2});
+        }
+    }
+
+    public static void d(Subsystem subsystem, String message) {
+        if (isLoggable(subsystem, Level.Debug)) add(subsystem, Level.Debug, message, NO_ARGS);
+    }
+
+    public static void d(Subsystem subsystem, String format, Object arg) {
+        if (isLoggable(subsystem, Level.Debug)) {
+            add(subsystem, Level.Debug, format, new Object[] {arg});
+        }
+    }
+
+    public static void d(Subsystem subsystem, String format, Object arg1, Object arg2) {
+        if (isLoggable(subsystem, Level.Debug)) {
+            add(subsystem, Level.Debug, format, new Object[] {arg1, arg2});
+        }
+    }
+
+    public static void d(Subsystem subsystem, String format, Object arg1, Object arg2,
+                    Object arg3) {
+        if (isLoggable(subsystem, Level.Debug)) {
+            add(subsystem, Level.Debug, format, new Object[] {arg1, arg2, arg3});
+        }
+    }
+
+    public static void i(Subsystem subsystem, String message) {
+        if (isLoggable(subsystem, Level.Info)) add(subsystem, Level.Info, message, NO_ARGS);
+    }
+
+    public static void i(Subsystem subsystem, String format, Object arg) {
+        if (isLoggable(subsystem, Level.Info)) {
+            add(subsystem, Level.Info, format, new Object[] {arg});
+        }
+    }
+
+    public static void i(Subsystem subsystem, String format, Object arg1, Object arg2) {
+        if (isLoggable(subsystem, Level.Info)) {
+            add(subsystem, Level.Info, format, new Object[] {arg1, arg2});
+        }
+    }
+
+    public static void w(Subsystem subsystem, String message) {
+        if (isLoggable(subsystem, Level.Warn)) add(subsystem, Level.Warn, message, NO_ARGS);
+    }
+
+    public static void w(Subsystem subsystem, String format, Object arg) {
+        if (isLoggable(subsystem, Level.Warn)) {
+            add(subsystem, Level.Warn, format, new Object[] {arg});
+        }
+    }
+
+    public static void w(Subsystem subsystem, String format, Object arg1, Object arg2) {
+        if (isLoggable(subsystem, Level.Warn)) {
+            add(subsystem, Level.Warn, format, new Object[] {arg1, arg2});
+        }
+    }
+
+    public static void e(Subsystem subsystem, String message) {
+        if (isLoggable(subsystem, Level.Error)) add(subsystem, Level.Error, message, NO_ARGS);
+    }
+
+    public static void e(Subsystem subsystem, String format, Object arg) {
+        if (isLoggable(subsystem, Level.Error)) {
+            add(subsystem, Level.Error, format, new Object[] {arg});
+        }
+    }
+
+    public static void e(Subsystem subsystem, String format, Object arg1, Object arg2) {
+        if (isLoggable(subsystem, Level.Error)) {
+            add(subsystem, Level.Error, format, new Object[] {arg1, arg2});
+        }
+    }
+
+    // 无锁: 先领一个序号, 再把记录放到对应的格子里.
+    private static void add(final Subsystem subsystem, final Level level, final String format,
+                    final Object[] args) {
+        final long sequence = sWriteSequence.getAndIncrement();
+        sBuffer.lazySet((int)(sequence & BUFFER_MASK),
+                        new Record(sequence, subsystem, level, format, args));
+    }
+
+    // 取出所有已经放好的记录, 输出并写入文件. 只在flusher线程中调用.
+    private static void flush() {
+        final long end = sWriteSequence.get();
+        if (sReadSequence >= end) return;
+        if (end - sReadSequence > BUFFER_SIZE) {
+            sDropped.addAndGet(end - BUFFER_SIZE - sReadSequence);
+            sReadSequence = end - BUFFER_SIZE;
+        }
+        StringBuilder sb = new StringBuilder();
+        Record record;
+        while (sReadSequence < end) {
+            record = sBuffer.get((int)(sReadSequence & BUFFER_MASK));
+            if (record == null || record.sequence < sReadSequence) {
+                // 序号已经领了, 记录还没放好, 下次再取.
+                break;
+            }
+            if (record.sequence > sReadSequence) {
+                // 被覆盖了.
+                sDropped.incrementAndGet();
+                sReadSequence++;
+                continue;
+            }
+            final String message = format(record.format, record.args);
+            Log.println(record.level.priority, Constants.TAG,
+                            record.subsystem + ": " + message);
+            sb.append(String.format(FORMAT_LINE, Utils.getTimeString(record.time),
+                            record.level.name().charAt(0), record.subsystem,
+                            record.threadName, message));
+            sReadSequence++;
+        }
+        if (sb.length() > 0) write(sb.toString());
+    }
+
+    // "{}"依次替换为参数; 多余的参数附在后面. Throwable参数输出调用栈.
+    private static String format(final String format, final Object[] args) {
+        if (args.length == 0) return format;
+        StringBuilder sb = new StringBuilder(format.length() + 32 * args.length);
+        int start = 0;
+        int argIndex = 0;
+        int index;
+        while (argIndex < args.length
+                && (index = format.indexOf(PLACEHOLDER, start)) >= 0) {
+            sb.append(format, start, index);
+            appendArg(sb, args[argIndex++]);
+            start = index + PLACEHOLDER.length();
+        }
+        sb.append(format, start, format.length());
+        while (argIndex < args.length) {
+            sb.append(' ');
+            appendArg(sb, args[argIndex++]);
+        }
+        return sb.toString();
+    }
+
+    private static void appendArg(final StringBuilder sb, final Object arg) {
+        if (arg instanceof Throwable) {
+            sb.append('\n').append(Utils.getThrowableStackTrace((Throwable)arg));
+        } else {
+            sb.append(arg);
+        }
+    }
+
+    private static void write(final String text) {
+        if (sLogDir == null) return;
+        if (!sLogDir.exists() && !sLogDir.mkdirs()) return;
+        final File file = new File(sLogDir, LOG_FILENAME);
+        if (file.length() > MAX_FILE_SIZE) rotate(file);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(file, true);
+            final long dropped = sDropped.getAndSet(0);
+            if (dropped > 0) {
+                fos.write(("... " + dropped + " dropped\n").getBytes());
+            }
+            fos.write(text.getBytes());
+        } catch (IOException ioe) {
+            Log.w(Constants.TAG, "Failed to write log: " + ioe);
+        } finally {
+            if (fos != null) {
+                try {
+                    fos.close();
+                } catch (IOException ioe) {
+                    // ignore.
+                }
+            }
+        }
+    }
+
+    // mahjong.log -> mahjong.log.1 -> mahjong.log.2 ..., 最旧的删除.
+    private static void rotate(final File file) {
+        File oldest = new File(sLogDir, String.format(FORMAT_ROTATED_FILENAME, MAX_ROTATED_FILES));
+        oldest.delete();
+        for (int i = MAX_ROTATED_FILES - 1; i >= 1; i--) {
+            File rotated = new File(sLogDir, String.format(FORMAT_ROTATED_FILENAME, i));
+            if (rotated.exists()) {
+                rotated.renameTo(new File(sLogDir, String.format(FORMAT_ROTATED_FILENAME, i + 1)));
+            }
+        }
+        file.renameTo(new File(sLogDir, String.format(FORMAT_ROTATED_FILENAME, 1)));
+    }
+
+    // 所有日志文件, 最新的在前, 用于取回现场的日志.
+    public static File[] getLogFiles() {
+        if (sLogDir == null) return new File[0];
+        File[] files = new File[MAX_ROTATED_FILES + 1];
+        int count = 0;
+        File file = new File(sLogDir, LOG_FILENAME);
+        if (file.exists()) files[count++] = file;
+        for (int i = 1; i <= MAX_ROTATED_FILES; i++) {
+            file = new File(sLogDir, String.format(FORMAT_ROTATED_FILENAME, i));
+            if (file.exists()) files[count++] = file;
+        }
+        File[] result = new File[count];
+        System.arraycopy(files, 0, result, 0, count);
+        return result;
+    }
+}
@@ -0,0 +1,94 @@
+package wb.game.utils;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import wb.game.utils.Logger.Subsystem;
+
+// 冷启动的耗时记录: 从MainActivity.onCreate()开始, 到大厅第一帧画出来(可以操作)为止.
+// 每个阶段记录在哪个线程, 相对启动的开始时间和耗时, 单位毫秒.
+// 大厅可以操作时把所有记录写到日志里; 之后的阶段(如第一次选中某种打法时创建Game)也会记录并写日志.
+// 可以在任何线程中调用.
+public class StartupTrace {
+    private static final String FORMAT_ENTRY = "%-24s %-10s +%5dms %5dms\n";
+    private static final String FORMAT_TOTAL = "%-24s %-10s +%5dms\n";
+
+    // 最多记录这么多个阶段.
+    private static final int MAX_ENTRIES = 64;
+
+    private static class Entry {
+        final String stage;
+        final String threadName;
+        final long offset;   // 相对begin()的开始时间.
+        final long duration;
+
+        Entry(final String stage, final String threadName, final long offset,
+                        final long duration) {
+            this.stage = stage;
+            this.threadName = threadName;
+            this.offset = offset;
+            this.duration = duration;
+        }
+    }
+
+    private static final ArrayList<Entry> sEntries = new ArrayList<Entry>();
+
+    private static long sBeginTime;
+    private static long sInteractiveTime;
+
+    // 进程启动后只有第一次调用有效.
+    public static synchronized void begin() {
+        if (sBeginTime != 0) return;
+        sBeginTime = SystemClock.elapsedRealtime();
+    }
+
+    // 开始计时, 配合record(stage, startTime)使用.
+    public static long start() {
+        return SystemClock.elapsedRealtime();
+    }
+
+    public static void record(final String stage, final long startTime) {
+        final long endTime = SystemClock.elapsedRealtime();
+        final String threadName = Thread.currentThread().getName();
+        final boolean interactive;
+        synchronized (StartupTrace.class) {
+            if (sBeginTime == 0) return;
+            if (sEntries.size() >= MAX_ENTRIES) return;
+            sEntries.add(new Entry(stage, threadName, startTime - sBeginTime,
+                            endTime - startTime));
+            interactive = sInteractiveTime != 0;
+        }
+        // 大厅可以操作以后的阶段单独写日志.
+        if (interactive) {
+            Logger.i(Subsystem.Game, "startup: {} in {}ms", stage, endTime - startTime);
+        }
+    }
+
+    // 大厅可以操作了. 只有第一次调用有效.
+    public static void interactive() {
+        final String report;
+        synchronized (StartupTrace.class) {
+            if (sBeginTime == 0 || sInteractiveTime != 0) return;
+            sInteractiveTime = SystemClock.elapsedRealtime();
+            report = reportLocked();
+        }
+        Logger.i(Subsystem.Game, "startup trace:\n{}", report);
+    }
+
+    public static synchronized String report() {
+        return reportLocked();
+    }
+
+    private static String reportLocked() {
+        StringBuilder sb = new StringBuilder();
+        for (Entry entry : sEntries) {
+            sb.append(String.format(FORMAT_ENTRY, entry.stage, entry.threadName,
+                            entry.offset, entry.duration));
+        }
+        if (sInteractiveTime != 0) {
+            sb.append(String.format(FORMAT_TOTAL, "Interactive", "main",
+                            sInteractiveTime - sBeginTime));
+        }
+        return sb.toString();
+    }
+}
@@ -195,7 +195,12 @@ public class Utils {
     }
 
     public static String currentTimeString() {
+        return getTimeString(System.currentTimeMillis());
+    }
+
+    public static String getTimeString(final long timeMillis) {
         Calendar cal = Calendar.getInstance();
+        cal.setTimeInMillis(timeMillis);
 
         int year = cal.get(Calendar.YEAR);
         int month = cal.get(Calendar.MONTH) + 1;